@@ -0,0 +1,304 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes and decodes message text in a given character set without
+ * allocating for every message. Each thread has its own encoder, decoder
+ * and buffers per character set, get one with {@link #get(Charset)} and do
+ * not pass it to other threads. Buffers returned by {@link #encode} are
+ * reused, so they are only valid until the next call on the same thread.
+ * Bad input is replaced, like String does.
+ *
+ * @author Scott Douglass
+ */
+public final class TextCodec {
+
+  /** Size of new buffers. */
+  private static final int INITIAL_CAPACITY = 4096;
+  /** Larger buffers are not kept for the next call. */
+  private static final int MAX_RETAINED = 1 << 20;
+  /** The codecs of each thread. */
+  private static final ThreadLocal<Map<Charset, TextCodec>> CODECS =
+    ThreadLocal.withInitial(HashMap::new);
+  /** The character set. */
+  private final Charset charset;
+  /** Reused encoder. */
+  private final CharsetEncoder encoder;
+  /** Reused decoder. */
+  private final CharsetDecoder decoder;
+  /** Reused encoder output. */
+  private ByteBuffer bytes = ByteBuffer.allocate(INITIAL_CAPACITY);
+  /** Reused decoder output. */
+  private CharBuffer chars = CharBuffer.allocate(INITIAL_CAPACITY);
+
+  /**
+   * @param inCharset the character set
+   */
+  private TextCodec(final Charset inCharset) {
+    this.charset = inCharset;
+    this.encoder = inCharset.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.decoder = inCharset.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  /**
+   * @param inCharset a character set
+   * @return the codec of the current thread for the character set
+   */
+  public static TextCodec get(final Charset inCharset) {
+    return CODECS.get().computeIfAbsent(inCharset, TextCodec::new);
+  }
+
+  /**
+   * @param inName name of a character set, such as UTF-8
+   * @return the character set
+   * @throws JTKException if the character set is not supported
+   */
+  public static Charset charset(final String inName) throws JTKException {
+    try {
+      return Charset.forName(inName);
+    } catch (IllegalArgumentException e) {
+      throw new JTKException("Unsupported encoding: " + inName, e);
+    }
+  }
+
+  /**
+   * Number of bytes of the text in this character set. UTF-8 is counted
+   * without encoding.
+   *
+   * @param inText the text
+   * @return the encoded length in bytes
+   */
+  public int length(final CharSequence inText) {
+    if (StandardCharsets.UTF_8.equals(charset)) {
+      return utf8Length(inText);
+    }
+    return encode(inText).remaining();
+  }
+
+  /**
+   * @param inText the text
+   * @return the UTF-8 length in bytes, a lone surrogate counts as the one
+   * byte it is replaced with
+   */
+  static int utf8Length(final CharSequence inText) {
+    final int chars = inText.length();
+    int length = 0;
+    for (int i = 0; i < chars; i++) {
+      final char c = inText.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < chars
+        && Character.isLowSurrogate(inText.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        length++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * @param inText the text
+   * @return the encoded text from position to limit, valid until the next
+   * call on this thread
+   */
+  public ByteBuffer encode(final CharSequence inText) {
+    final CharBuffer in = CharBuffer.wrap(inText);
+    ByteBuffer out = bytes((int) Math.min(Integer.MAX_VALUE - 8,
+      (long) (inText.length() * encoder.averageBytesPerChar()) + 16));
+    encoder.reset();
+    CoderResult result = encoder.encode(in, out, true);
+    while (result.isOverflow()) {
+      out = grow(out);
+      result = encoder.encode(in, out, true);
+    }
+    result = encoder.flush(out);
+    while (result.isOverflow()) {
+      out = grow(out);
+      result = encoder.flush(out);
+    }
+    // through Buffer, as Java 9 added ByteBuffer.flip() and Java 8 has not
+    ((Buffer) out).flip();
+    return out;
+  }
+
+  /**
+   * Encode the text and write it to a stream.
+   *
+   * @param inText the text
+   * @param inOut where to write it
+   * @return the number of bytes written
+   * @throws IOException if the stream fails
+   */
+  public int write(final CharSequence inText, final OutputStream inOut)
+    throws IOException {
+    final ByteBuffer encoded = encode(inText);
+    final int length = encoded.remaining();
+    inOut.write(encoded.array(), encoded.arrayOffset() + encoded.position(),
+      length);
+    return length;
+  }
+
+  /**
+   * @param inBytes encoded text from position to limit, the position is
+   * moved to the limit
+   * @return the text
+   */
+  public String decode(final ByteBuffer inBytes) {
+    CharBuffer out = chars(inBytes.remaining());
+    decoder.reset();
+    CoderResult result = decoder.decode(inBytes, out, true);
+    while (result.isOverflow()) {
+      out = growChars(out);
+      result = decoder.decode(inBytes, out, true);
+    }
+    result = decoder.flush(out);
+    while (result.isOverflow()) {
+      out = growChars(out);
+      result = decoder.flush(out);
+    }
+    ((Buffer) out).flip();
+    return out.toString();
+  }
+
+  /**
+   * @param inBytes encoded text
+   * @param inOffset first byte
+   * @param inLength number of bytes
+   * @return the text
+   */
+  public String decode(final byte[] inBytes, final int inOffset,
+    final int inLength) {
+    return decode(ByteBuffer.wrap(inBytes, inOffset, inLength));
+  }
+
+  /**
+   * Read a whole text file. Unlike reading fixed size blocks into Strings,
+   * characters that cross a block boundary are kept whole.
+   *
+   * @param inFile the file
+   * @return the text of the file
+   * @throws IOException if the file can not be read
+   */
+  public String readFile(final File inFile) throws IOException {
+    try (FileInputStream in = new FileInputStream(inFile);
+      FileChannel channel = in.getChannel()) {
+      final long size = channel.size();
+      if (size > Integer.MAX_VALUE - 8) {
+        throw new IOException("File too large: " + inFile);
+      }
+      final ByteBuffer data = bytes((int) size);
+      while (data.hasRemaining() && channel.read(data) >= 0) {
+        // read it all
+      }
+      ((Buffer) data).flip();
+      return decode(data);
+    }
+  }
+
+  /**
+   * @param inCapacity bytes needed
+   * @return an empty byte buffer of at least the capacity
+   */
+  private ByteBuffer bytes(final int inCapacity) {
+    if (bytes.capacity() >= inCapacity) {
+      ((Buffer) bytes).clear();
+      return bytes;
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate(inCapacity);
+    if (inCapacity <= MAX_RETAINED) {
+      bytes = buffer;
+    }
+    return buffer;
+  }
+
+  /**
+   * @param inFull a full buffer
+   * @return a buffer twice as large with the same content
+   */
+  private ByteBuffer grow(final ByteBuffer inFull) {
+    ((Buffer) inFull).flip();
+    final ByteBuffer buffer = ByteBuffer.allocate(
+      Math.max(INITIAL_CAPACITY, inFull.capacity() * 2)).put(inFull);
+    if (buffer.capacity() <= MAX_RETAINED) {
+      bytes = buffer;
+    }
+    return buffer;
+  }
+
+  /**
+   * @param inCapacity characters needed
+   * @return an empty char buffer of at least the capacity
+   */
+  private CharBuffer chars(final int inCapacity) {
+    if (chars.capacity() >= inCapacity) {
+      ((Buffer) chars).clear();
+      return chars;
+    }
+    final CharBuffer buffer = CharBuffer.allocate(inCapacity);
+    if (inCapacity <= MAX_RETAINED) {
+      chars = buffer;
+    }
+    return buffer;
+  }
+
+  /**
+   * @param inFull a full buffer
+   * @return a buffer twice as large with the same content
+   */
+  private CharBuffer growChars(final CharBuffer inFull) {
+    ((Buffer) inFull).flip();
+    final CharBuffer buffer = CharBuffer.allocate(
+      Math.max(INITIAL_CAPACITY, inFull.capacity() * 2)).put(inFull);
+    if (buffer.capacity() <= MAX_RETAINED) {
+      chars = buffer;
+    }
+    return buffer;
+  }
+
+  /**
+   * @return the character set
+   */
+  public Charset getCharset() {
+    return charset;
+  }
+}
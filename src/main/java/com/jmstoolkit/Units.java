@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and formatting of the sizes and durations used on the command
+ * line, such as "64m" or "250us".
+ *
+ * @author Scott Douglass
+ */
+public final class Units {
+
+  /** Bytes in a kilobyte. */
+  public static final long KB = 1024L;
+  /** Bytes in a megabyte. */
+  public static final long MB = KB * 1024L;
+  /** Bytes in a gigabyte. */
+  public static final long GB = MB * 1024L;
+
+  /** Utility class. */
+  private Units() {
+  }
+
+  /**
+   * Parse a byte size with an optional k, m or g suffix.
+   *
+   * @param inSize the size, for example "64m"
+   * @return the number of bytes
+   * @throws JTKException if the size can not be parsed
+   */
+  public static long parseBytes(final String inSize) throws JTKException {
+    final String size = inSize.trim().toLowerCase(Locale.US);
+    long multiplier = 1L;
+    String number = size;
+    if (size.endsWith("b")) {
+      number = size.substring(0, size.length() - 1);
+    }
+    if (number.endsWith("k")) {
+      multiplier = KB;
+    } else if (number.endsWith("m")) {
+      multiplier = MB;
+    } else if (number.endsWith("g")) {
+      multiplier = GB;
+    }
+    if (multiplier != 1L) {
+      number = number.substring(0, number.length() - 1);
+    }
+    try {
+      return Long.parseLong(number.trim()) * multiplier;
+    } catch (NumberFormatException e) {
+      throw new JTKException("Not a valid size: " + inSize, e);
+    }
+  }
+
+  /**
+   * Parse a duration with an optional ns, us, ms, s, m, h or d suffix. A
+   * number without a suffix is in milliseconds.
+   *
+   * @param inDuration the duration, for example "250us" or "12h"
+   * @return the duration in nanoseconds
+   * @throws JTKException if the duration can not be parsed
+   */
+  public static long parseDuration(final String inDuration)
+    throws JTKException {
+    final String duration = inDuration.trim().toLowerCase(Locale.US);
+    int split = duration.length();
+    while (split > 0 && Character.isLetter(duration.charAt(split - 1))) {
+      split--;
+    }
+    final String suffix = duration.substring(split);
+    final TimeUnit unit;
+    switch (suffix) {
+      case "ns":
+        unit = TimeUnit.NANOSECONDS;
+        break;
+      case "us":
+        unit = TimeUnit.MICROSECONDS;
+        break;
+      case "":
+      case "ms":
+        unit = TimeUnit.MILLISECONDS;
+        break;
+      case "s":
+        unit = TimeUnit.SECONDS;
+        break;
+      case "m":
+        unit = TimeUnit.MINUTES;
+        break;
+      case "h":
+        unit = TimeUnit.HOURS;
+        break;
+      case "d":
+        unit = TimeUnit.DAYS;
+        break;
+      default:
+        throw new JTKException("Not a valid duration unit: " + inDuration);
+    }
+    try {
+      return unit.toNanos(
+        Long.parseLong(duration.substring(0, split).trim()));
+    } catch (NumberFormatException e) {
+      throw new JTKException("Not a valid duration: " + inDuration, e);
+    }
+  }
+
+  /**
+   * Format a byte count for people.
+   *
+   * @param inBytes number of bytes
+   * @return the size, for example "1.5MB"
+   */
+  public static String formatBytes(final long inBytes) {
+    if (inBytes < KB) {
+      return inBytes + "B";
+    } else if (inBytes < MB) {
+      return String.format(Locale.US, "%.1fKB", (double) inBytes / KB);
+    } else if (inBytes < GB) {
+      return String.format(Locale.US, "%.1fMB", (double) inBytes / MB);
+    }
+    return String.format(Locale.US, "%.2fGB", (double) inBytes / GB);
+  }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import java.util.Map;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.CompletionListener;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import org.springframework.jms.core.MessagePostProcessor;
+
+/**
+ * Sends with a window that adapts to the broker. In batch mode the window
+ * is the number of messages sent in a transaction before the commit, in
+ * async mode it is the number of JMS 2.0 asynchronous sends in flight.
+ * <p>
+ * The window is sized AIMD style, like TCP: after each period of at least
+ * a window of messages, the p99 send latency of the period is compared to
+ * the target. Over the target the window is halved, under it the window
+ * grows, doubling until the first time it is halved and then by a fixed
+ * step of 1/16 of the window at that time. So the window saws around the
+ * largest size that keeps p99 under the target, which is where throughput
+ * is highest for that latency, and follows the broker when load changes.
+ * <p>
+ * The latency of a message runs from its send to its commit in batch
+ * mode, and to its completion in async mode, when the broker has it.
+ *
+ * @author Scott Douglass
+ */
+public class AdaptiveProducer {
+
+  /** Logger for the class. */
+  private static final Logger LOGGER =
+    Logger.getLogger(AdaptiveProducer.class.getName());
+  /** Transacted batches. */
+  public static final String MODE_BATCH = "batch";
+  /** JMS 2.0 asynchronous sends. */
+  public static final String MODE_ASYNC = "async";
+  /** Default p99 latency target. */
+  public static final String D_TARGET = "10ms";
+  /** Default largest window. */
+  public static final int D_MAX_WINDOW = 10000;
+  /** Fewest latencies in a period, so p99 means something. */
+  private static final int MIN_PERIOD = 100;
+  /** Where to connect. */
+  private final ConnectionFactory connectionFactory;
+  /** Where the messages go. */
+  private final Destination destination;
+  /** Sets the properties of each message. */
+  private final MessagePostProcessor processor;
+  /** Batch or async. */
+  private String mode = MODE_BATCH;
+  /** The p99 send latency to stay under (us). */
+  private long targetMicros = 10000;
+  /** Largest window. */
+  private int maxWindow = D_MAX_WINDOW;
+  /** Current window. */
+  private volatile int window = 1;
+  /** True until the window is halved the first time. */
+  private boolean slowStart = true;
+  /** Growth of the window per period after slow start. */
+  private int step = 1;
+  /** Number of times the window was halved. */
+  private long decreases = 0;
+  /** Latencies of the current period. */
+  private LatencyHistogram period = new LatencyHistogram();
+  /** Async sends not completed yet. */
+  private int inFlight = 0;
+
+  /**
+   * @param inConnectionFactory where to connect
+   * @param inDestination where the messages go
+   * @param inProcessor sets the properties of each message
+   */
+  public AdaptiveProducer(final ConnectionFactory inConnectionFactory,
+    final Destination inDestination, final MessagePostProcessor inProcessor) {
+    this.connectionFactory = inConnectionFactory;
+    this.destination = inDestination;
+    this.processor = inProcessor;
+  }
+
+  /**
+   * Send until the count or the time is reached. Failed sends are counted
+   * as errors and sending continues. If the provider has no asynchronous
+   * send, async mode falls back to batch mode.
+   *
+   * @param inMessages the number of messages to send, 0 for no limit
+   * @param inDuration how long to send (ns), 0 for no limit
+   * @param inStats where to count the messages
+   * @param inText the text of message number n, counting from 1
+   * @param inBytes the size of a text
+   * @throws JMSException if the connection can not be made
+   */
+  public final void send(final long inMessages, final long inDuration,
+    final RunStats inStats, final LongFunction<String> inText,
+    final ToLongFunction<String> inBytes) throws JMSException {
+    final Connection connection = connectionFactory.createConnection();
+    try {
+      final Limit limit = new Limit(inMessages, inDuration);
+      if (MODE_ASYNC.equals(mode) && !sendAsync(connection, limit, inStats,
+        inText, inBytes)) {
+        LOGGER.warning("No asynchronous send in this JMS provider,"
+          + " using batches");
+        mode = MODE_BATCH;
+      }
+      if (MODE_BATCH.equals(mode)) {
+        sendBatches(connection, limit, inStats, inText, inBytes);
+      }
+    } finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * Send transactions of a window of messages.
+   *
+   * @param inConnection the connection
+   * @param inLimit when to stop
+   * @param inStats where to count the messages
+   * @param inText the text of message number n
+   * @param inBytes the size of a text
+   * @throws JMSException if the session can not be made
+   */
+  private void sendBatches(final Connection inConnection, final Limit inLimit,
+    final RunStats inStats, final LongFunction<String> inText,
+    final ToLongFunction<String> inBytes) throws JMSException {
+    final Session session =
+      inConnection.createSession(true, Session.SESSION_TRANSACTED);
+    final MessageProducer producer = session.createProducer(destination);
+    final long[] starts = new long[maxWindow];
+    final long[] sizes = new long[maxWindow];
+    while (inLimit.more()) {
+      final int batch = window;
+      int sent = 0;
+      try {
+        while (sent < batch && inLimit.more()) {
+          final String text = inText.apply(inLimit.next());
+          final int i = sent++;
+          starts[i] = System.nanoTime();
+          sizes[i] = inBytes.applyAsLong(text);
+          send(producer, session, text, sizes[i]);
+        }
+        session.commit();
+      } catch (JMSException e) {
+        LOGGER.log(Level.WARNING, "Batch failed", e);
+        rollback(session);
+        // the whole transaction is lost
+        for (int i = 0; i < sent; i++) {
+          inStats.recordError();
+        }
+        continue;
+      }
+      final long end = System.nanoTime();
+      for (int i = 0; i < sent; i++) {
+        final long latency = (end - starts[i]) / 1000;
+        inStats.record(sizes[i], latency);
+        completed(latency);
+      }
+    }
+  }
+
+  /**
+   * Send asynchronously, keeping at most a window of sends in flight.
+   *
+   * @param inConnection the connection
+   * @param inLimit when to stop
+   * @param inStats where to count the messages
+   * @param inText the text of message number n
+   * @param inBytes the size of a text
+   * @return false if the provider has no asynchronous send
+   * @throws JMSException if the session can not be made
+   */
+  private boolean sendAsync(final Connection inConnection,
+    final Limit inLimit, final RunStats inStats,
+    final LongFunction<String> inText, final ToLongFunction<String> inBytes)
+    throws JMSException {
+    final Session session =
+      inConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    final MessageProducer producer = session.createProducer(destination);
+    boolean first = true;
+    try {
+      while (inLimit.more()) {
+        synchronized (this) {
+          while (inFlight >= window) {
+            wait();
+          }
+          inFlight++;
+        }
+        final String text = inText.apply(inLimit.next());
+        final long bytes = inBytes.applyAsLong(text);
+        final long start = System.nanoTime();
+        try {
+          final Message message =
+            processor.postProcessMessage(session.createTextMessage(text));
+          producer.send(message, new CompletionListener() {
+            @Override
+            public void onCompletion(final Message inMessage) {
+              final long latency = (System.nanoTime() - start) / 1000;
+              inStats.record(bytes, latency);
+              completed(latency);
+              release();
+            }
+
+            @Override
+            public void onException(final Message inMessage,
+              final Exception inException) {
+              LOGGER.log(Level.WARNING, "Send failed", inException);
+              inStats.recordError();
+              release();
+            }
+          });
+        } catch (LinkageError | UnsupportedOperationException e) {
+          release();
+          if (first) {
+            inLimit.retry();
+            return false;
+          }
+          throw e;
+        } catch (JMSException e) {
+          LOGGER.log(Level.WARNING, "Send failed", e);
+          inStats.recordError();
+          release();
+        }
+        first = false;
+      }
+      synchronized (this) {
+        while (inFlight > 0) {
+          wait();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return true;
+  }
+
+  /**
+   * One send, with a Flight Recorder event.
+   *
+   * @param inProducer the producer
+   * @param inSession the session of the producer
+   * @param inText the text
+   * @param inBytes size of the text
+   * @throws JMSException if the send fails
+   */
+  private void send(final MessageProducer inProducer, final Session inSession,
+    final String inText, final long inBytes) throws JMSException {
+    final Object event = Flight.beginSend();
+    try {
+      inProducer.send(
+        processor.postProcessMessage(inSession.createTextMessage(inText)));
+    } finally {
+      Flight.end(event, destination, inBytes);
+    }
+  }
+
+  /**
+   * @param inSession a transacted session
+   */
+  private static void rollback(final Session inSession) {
+    try {
+      inSession.rollback();
+    } catch (JMSException e) {
+      LOGGER.log(Level.FINE, "Rollback failed", e);
+    }
+  }
+
+  /**
+   * An async send is done, let the next one go.
+   */
+  private synchronized void release() {
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * Count a latency, and resize the window at the end of a period.
+   *
+   * @param inLatencyMicros the send latency of a message
+   */
+  private synchronized void completed(final long inLatencyMicros) {
+    period.record(inLatencyMicros);
+    if (period.getCount() < Math.max(window, MIN_PERIOD)) {
+      return;
+    }
+    if (period.getPercentile(99) > targetMicros) {
+      step = Math.max(1, window / 16);
+      window = Math.max(1, window / 2);
+      slowStart = false;
+      decreases++;
+    } else if (slowStart) {
+      window = Math.min(maxWindow, window * 2);
+    } else {
+      window = Math.min(maxWindow, window + step);
+    }
+    period = new LatencyHistogram();
+    notifyAll();
+  }
+
+  /**
+   * Add the state of the window to a report row.
+   *
+   * @param inRow the row
+   * @param inSummary true to add the mode and number of decreases too
+   * @return the row
+   */
+  public final Map<String, Object> addTo(final Map<String, Object> inRow,
+    final boolean inSummary) {
+    inRow.put("window", window);
+    if (inSummary) {
+      inRow.put("window_mode", mode);
+      inRow.put("window_decreases", getDecreases());
+    }
+    return inRow;
+  }
+
+  /**
+   * @param inMode batch or async
+   * @throws JTKException if the mode is not known
+   */
+  public final void setMode(final String inMode) throws JTKException {
+    if (!MODE_BATCH.equals(inMode) && !MODE_ASYNC.equals(inMode)) {
+      throw new JTKException("Unknown adaptive mode: " + inMode);
+    }
+    this.mode = inMode;
+  }
+
+  /**
+   * @return batch or async
+   */
+  public final String getMode() {
+    return mode;
+  }
+
+  /**
+   * @param inTarget the p99 send latency to stay under (ns)
+   */
+  public final void setTarget(final long inTarget) {
+    this.targetMicros = Math.max(1, inTarget / 1000);
+  }
+
+  /**
+   * @param inMaxWindow the largest window
+   */
+  public final void setMaxWindow(final int inMaxWindow) {
+    this.maxWindow = Math.max(1, inMaxWindow);
+    this.window = Math.min(window, maxWindow);
+  }
+
+  /**
+   * @return the current window
+   */
+  public final int getWindow() {
+    return window;
+  }
+
+  /**
+   * @return the number of times the window was halved
+   */
+  public final synchronized long getDecreases() {
+    return decreases;
+  }
+
+  /** When to stop sending. */
+  private static final class Limit {
+    /** The number of messages to send, 0 for no limit. */
+    private final long messages;
+    /** How long to send (ns), 0 for no limit. */
+    private final long duration;
+    /** Start of sending (ns). */
+    private final long start = System.nanoTime();
+    /** Messages started. */
+    private long count = 0;
+
+    /**
+     * @param inMessages the number of messages to send, 0 for no limit
+     * @param inDuration how long to send (ns), 0 for no limit
+     */
+    Limit(final long inMessages, final long inDuration) {
+      this.messages = inMessages;
+      this.duration = inDuration;
+    }
+
+    /**
+     * @return true if there is another message to send
+     */
+    boolean more() {
+      return (messages <= 0 || count < messages)
+        && (duration <= 0 || System.nanoTime() - start < duration);
+    }
+
+    /**
+     * @return the number of the next message, counting from 1
+     */
+    long next() {
+      return ++count;
+    }
+
+    /**
+     * The last message was not sent, it is next again.
+     */
+    void retry() {
+      count--;
+    }
+  }
+}
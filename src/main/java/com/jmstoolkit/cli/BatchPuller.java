@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+
+/**
+ * Pulls batches of messages for consumers that share a limit on the
+ * number of messages. A consumer claims a batch of the messages left
+ * before it receives, and gives back what it did not get, so together
+ * the consumers never take more than the limit off the destination.
+ *
+ * @author Scott Douglass
+ */
+final class BatchPuller {
+
+  /** Messages left to receive, negative for no limit. */
+  private final AtomicLong remaining = new AtomicLong(-1);
+
+  /**
+   * @param inMessages the number of messages to receive, 0 for no limit
+   */
+  void setLimit(final long inMessages) {
+    remaining.set(inMessages > 0 ? inMessages : -1);
+  }
+
+  /**
+   * Receive a batch: wait for the first message, then take the messages
+   * that are already there, up to the batch size and the limit.
+   *
+   * @param inConsumer the consumer
+   * @param inBatch where the messages go, empty if none came in time
+   * @param inBatchSize largest number of messages
+   * @param inTimeout how long to wait for the first message (ms)
+   * @return false once the limit has been received
+   * @throws JMSException if the receive fails
+   */
+  boolean pull(final MessageConsumer inConsumer, final List<Message> inBatch,
+    final int inBatchSize, final long inTimeout) throws JMSException {
+    final int wanted = claim(inBatchSize);
+    if (wanted == 0) {
+      return false;
+    }
+    try {
+      Message message = inConsumer.receive(inTimeout);
+      while (message != null) {
+        inBatch.add(message);
+        message =
+          inBatch.size() < wanted ? inConsumer.receiveNoWait() : null;
+      }
+    } finally {
+      release(wanted - inBatch.size());
+    }
+    return true;
+  }
+
+  /**
+   * @param inWanted messages a consumer wants to receive
+   * @return how many it may receive, 0 when all have been received
+   */
+  private int claim(final int inWanted) {
+    while (true) {
+      final long left = remaining.get();
+      if (left < 0) {
+        return inWanted;
+      }
+      final int granted = (int) Math.min(left, inWanted);
+      if (remaining.compareAndSet(left, left - granted)) {
+        return granted;
+      }
+    }
+  }
+
+  /**
+   * @param inUnused messages claimed but not received
+   */
+  private void release(final int inUnused) {
+    if (inUnused > 0 && remaining.get() >= 0) {
+      remaining.addAndGet(inUnused);
+    }
+  }
+}
@@ -16,17 +16,44 @@ package com.jmstoolkit.cli;
 
 import com.jmstoolkit.Settings;
 import com.jmstoolkit.JTKException;
+import com.jmstoolkit.TextCodec;
+import com.jmstoolkit.Units;
 import gnu.getopt.Getopt;
+import gnu.getopt.LongOpt;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.jms.JmsException;
+import org.springframework.jms.connection.CachingConnectionFactory;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.core.MessagePostProcessor;
+import org.springframework.jndi.JndiTemplate;
 /**
  * Send any number of messages and show the throughput.
  * @author scott
  */
 public class Blaster extends Sender {
+  /** Logger for the class. */
+  private static final Logger LOGGER =
+    Logger.getLogger(Blaster.class.getName());
   /** Default number of messages to send. */
   private static final int D_MESSAGE_COUNT = 1000;
   /** Default size of messages. */
@@ -48,6 +75,73 @@ public class Blaster extends Sender {
   private static final Random GENERATOR = new Random();
   /** Default name of the application. */
   private static final String APP_NAME = "QueueBlaster";
+  /** Default time between interval reports of a duration run. */
+  private static final String D_INTERVAL = "10s";
+  /** Default time from the coordinator's start message to the start. */
+  private static final String D_START_DELAY = "5s";
+  /** Long command line options. */
+  static final LongOpt[] LONG_OPTIONS = {
+    new LongOpt("duration", LongOpt.REQUIRED_ARGUMENT, null, 'd'),
+    new LongOpt("interval", LongOpt.REQUIRED_ARGUMENT, null, 'I'),
+    new LongOpt("format", LongOpt.REQUIRED_ARGUMENT, null, 'F'),
+    new LongOpt("report-file", LongOpt.REQUIRED_ARGUMENT, null, 'R'),
+    new LongOpt("warmup", LongOpt.REQUIRED_ARGUMENT, null, 'w'),
+    new LongOpt("agent", LongOpt.NO_ARGUMENT, null, 'A'),
+    new LongOpt("coordinate", LongOpt.REQUIRED_ARGUMENT, null, 'C'),
+    new LongOpt("start-delay", LongOpt.REQUIRED_ARGUMENT, null, 'S'),
+    new LongOpt("monitor", LongOpt.REQUIRED_ARGUMENT, null, 'M'),
+    new LongOpt("jfr", LongOpt.REQUIRED_ARGUMENT, null, 'J'),
+    new LongOpt("adaptive", LongOpt.REQUIRED_ARGUMENT, null, 'a'),
+    new LongOpt("target", LongOpt.REQUIRED_ARGUMENT, null, 'T'),
+    new LongOpt("max-window", LongOpt.REQUIRED_ARGUMENT, null, 'W'),
+    new LongOpt("brokers", LongOpt.REQUIRED_ARGUMENT, null, 'B'),
+    new LongOpt("balance", LongOpt.REQUIRED_ARGUMENT, null, 'L'),
+    new LongOpt("threads", LongOpt.REQUIRED_ARGUMENT, null, 't'),
+    new LongOpt("virtual", LongOpt.NO_ARGUMENT, null, 'V'),
+    new LongOpt("results", LongOpt.REQUIRED_ARGUMENT, null, 'r'),
+    new LongOpt("label", LongOpt.REQUIRED_ARGUMENT, null, 'l'),
+    new LongOpt("scenario", LongOpt.REQUIRED_ARGUMENT, null, 'x'),
+    new LongOpt("groups", LongOpt.REQUIRED_ARGUMENT, null, 'g'),
+    new LongOpt("raw", LongOpt.NO_ARGUMENT, null, 'P'),
+    new LongOpt("delivery", LongOpt.REQUIRED_ARGUMENT, null, 'D'),
+    new LongOpt("priority", LongOpt.REQUIRED_ARGUMENT, null, 'p'),
+    new LongOpt("no-ids", LongOpt.NO_ARGUMENT, null, 'N'),
+    new LongOpt("rate", LongOpt.REQUIRED_ARGUMENT, null, 'm'),
+    new LongOpt("batch", LongOpt.REQUIRED_ARGUMENT, null, 'b'),
+    new LongOpt("sweep", LongOpt.REQUIRED_ARGUMENT, null, 'z')
+  };
+  /** Time between interval reports (ns), 0 for none. */
+  private long reportInterval = 0;
+  /** Where the reports go. */
+  private ReportWriter reportWriter = null;
+  /** Counters of the current run. */
+  private RunStats stats = null;
+  /** Messages sent before measuring starts. */
+  private long warmupMessages = 0;
+  /** Time (ns) spent sending before measuring starts. */
+  private long warmupTime = 0;
+  /** Sends with an adaptive window, null to send one at a time. */
+  private AdaptiveProducer adaptiveProducer = null;
+  /** Sends a mixed workload, null to send one kind of message. */
+  private Scenario scenario = null;
+  /** Keys of keyed messages, null to send messages without a key. */
+  private MessageGroups messageGroups = null;
+  /** Sends without the JmsTemplate, null to use the template. */
+  private RawProducer rawProducer = null;
+  /** Messages per second, paced across the producers, 0 for no pacing. */
+  private double targetRate = 0;
+  /** Print a line every 100 messages of a run without interval reports. */
+  private boolean progress = true;
+  /** Number of producers sending at once. */
+  private int threads = D_THREADS;
+  /** Threads of the producers, platform or virtual. */
+  private String threadMode = ThreadMode.PLATFORM;
+  /** Where the result of each run is kept, null for nowhere. */
+  private ResultStore resultStore = null;
+  /** Label of the results, repeated runs of one setup share it. */
+  private String resultLabel = ResultStore.D_LABEL;
+  /** The JMS provider's connection factory class and version. */
+  private String jmsClient = "";
 
   /** Constructor for a Blaster. */
   public Blaster() {
@@ -78,39 +172,368 @@ public class Blaster extends Sender {
     final Blaster blaster = (Blaster) applicationContext.getBean(APP_NAME);
 
     // deal with command line arguments
-    Integer messageCount = D_MESSAGE_COUNT;
+    long messageCount = D_MESSAGE_COUNT;
+    boolean countGiven = false;
+    long duration = 0;
+    String interval = "";
+    String reportFormat = ReportWriter.FORMAT_TEXT;
+    String reportFileName = "";
     Integer messageSize = D_MESSAGE_SIZE;
     Integer numberOfThreads = D_THREADS;
     String inputFileName = "";
-    final Getopt getopts = new Getopt(APP_NAME, args, "c:s:f:t:h");
+    String warmup = "";
+    boolean agent = false;
+    int agents = 0;
+    String startDelay = D_START_DELAY;
+    String monitorPeriod = "";
+    DepthMonitor monitor = null;
+    String adaptiveMode = "";
+    String target = AdaptiveProducer.D_TARGET;
+    int maxWindow = AdaptiveProducer.D_MAX_WINDOW;
+    String scenarioFileName = "";
+    int groupKeys = 0;
+    boolean raw = false;
+    String delivery = "";
+    int priority = -1;
+    boolean noIds = false;
+    int batch = 1;
+    String sweepFileName = "";
+    Sweep sweep = null;
+    final Getopt getopts = new Getopt(APP_NAME, args,
+      "c:s:f:t:d:I:F:R:w:AC:S:M:J:a:T:W:B:L:Vr:l:x:g:PD:p:Nm:b:z:h",
+      LONG_OPTIONS);
     int optionLetter;
-    while ((optionLetter = getopts.getopt()) != -1) {
-      switch (optionLetter) {
-        case 'c':
-          messageCount = Integer.valueOf(getopts.getOptarg());
-          break;
-        case 's':
-          messageSize = Integer.valueOf(getopts.getOptarg());
-          break;
-        case 'f':
-          inputFileName = getopts.getOptarg();
-          break;
-        case 't':
-          numberOfThreads = Integer.valueOf(getopts.getOptarg());
-          break;
-        case 'h':
-          System.out.println("Arguments: -c count [ -s size | -f file ]");
-          System.exit(1);
+    try {
+      while ((optionLetter = getopts.getopt()) != -1) {
+        switch (optionLetter) {
+          case 'c':
+            messageCount = Long.parseLong(getopts.getOptarg());
+            countGiven = true;
+            break;
+          case 's':
+            messageSize = Integer.valueOf(getopts.getOptarg());
+            break;
+          case 'f':
+            inputFileName = getopts.getOptarg();
+            break;
+          case 't':
+            numberOfThreads = Integer.valueOf(getopts.getOptarg());
+            break;
+          case 'd':
+            duration = Units.parseDuration(getopts.getOptarg());
+            break;
+          case 'I':
+            interval = getopts.getOptarg();
+            break;
+          case 'F':
+            reportFormat = getopts.getOptarg();
+            break;
+          case 'R':
+            reportFileName = getopts.getOptarg();
+            break;
+          case 'w':
+            warmup = getopts.getOptarg();
+            blaster.setWarmup(warmup);
+            break;
+          case 'A':
+            agent = true;
+            break;
+          case 'C':
+            agents = Integer.parseInt(getopts.getOptarg());
+            break;
+          case 'S':
+            startDelay = getopts.getOptarg();
+            break;
+          case 'M':
+            monitorPeriod = getopts.getOptarg();
+            break;
+          case 'J':
+            Flight.startRecording(getopts.getOptarg());
+            break;
+          case 'a':
+            adaptiveMode = getopts.getOptarg();
+            break;
+          case 'T':
+            target = getopts.getOptarg();
+            break;
+          case 'W':
+            maxWindow = Integer.parseInt(getopts.getOptarg());
+            break;
+          case 'B':
+            System.setProperty(BrokerPool.P_CONNECTION_FACTORIES,
+              getopts.getOptarg());
+            break;
+          case 'L':
+            System.setProperty(BrokerPool.P_BALANCE, getopts.getOptarg());
+            break;
+          case 'V':
+            System.setProperty(ThreadMode.P_THREAD_MODE, ThreadMode.VIRTUAL);
+            break;
+          case 'r':
+            System.setProperty(ResultStore.P_FILE, getopts.getOptarg());
+            break;
+          case 'l':
+            System.setProperty(ResultStore.P_LABEL, getopts.getOptarg());
+            break;
+          case 'x':
+            scenarioFileName = getopts.getOptarg();
+            break;
+          case 'g':
+            groupKeys = Integer.parseInt(getopts.getOptarg());
+            break;
+          case 'P':
+            raw = true;
+            break;
+          case 'D':
+            delivery = getopts.getOptarg();
+            break;
+          case 'p':
+            priority = Integer.parseInt(getopts.getOptarg());
+            break;
+          case 'N':
+            noIds = true;
+            break;
+          case 'm':
+            blaster.setTargetRate(Double.parseDouble(getopts.getOptarg()));
+            break;
+          case 'b':
+            batch = Integer.parseInt(getopts.getOptarg());
+            break;
+          case 'z':
+            sweepFileName = getopts.getOptarg();
+            break;
+          case 'h':
+            System.out.println("Arguments: -c count [ -s size | -f file ]\n"
+              + "  [ -d | --duration time ] run for a time, e.g. 30m or 12h\n"
+              + "     (with -d, -c is a limit and defaults to none)\n"
+              + "  [ -I | --interval time ] time between reports"
+              + " (default: 10s with -d)\n"
+              + "  [ -F | --format text | csv | json ] report format\n"
+              + "  [ -R | --report-file file ] append reports to a file\n"
+              + "  [ -w | --warmup count | time ] send first without"
+              + " measuring,\n"
+              + "     e.g. 5000 messages or 30s\n"
+              + "  [ -A | --agent ] wait for runs from a coordinator\n"
+              + "  [ -C | --coordinate agents ] run the load on this many"
+              + " agents\n"
+              + "     and merge their results\n"
+              + "  [ -S | --start-delay time ] time the agents get to warm"
+              + " up\n"
+              + "     before they start together (default: 5s)\n"
+              + "  [ -M | --monitor time ] sample the queue depth with a"
+              + " browser\n"
+              + "  [ -J | --jfr file ] write a Flight Recorder recording on"
+              + " exit\n"
+              + "  [ -a | --adaptive batch | async ] send transacted batches"
+              + " or async\n"
+              + "     sends, with a window sized to keep p99 under the"
+              + " target\n"
+              + "  [ -T | --target time ] p99 send latency target"
+              + " (default: 10ms)\n"
+              + "  [ -W | --max-window count ] largest batch or window"
+              + " (default: 10000)\n"
+              + "  [ -B | --brokers cf,cf,... ] spread sends over these"
+              + " connection\n"
+              + "     factories, leaving out failed and slow brokers\n"
+              + "  [ -L | --balance round-robin | least-outstanding ] how"
+              + " to pick\n"
+              + "     a broker (default: round-robin)\n"
+              + "  [ -t | --threads count ] producers sending at once,"
+              + " a session each\n"
+              + "  [ -V | --virtual ] run the producers on virtual threads"
+              + " (Java 21)\n"
+              + "  [ -r | --results file ] append the result of the run,"
+              + " with its\n"
+              + "     configuration and environment, for Compare\n"
+              + "  [ -l | --label text ] label of the result, e.g. a broker"
+              + " version\n"
+              + "     or tuning option; repeated runs share a label"
+              + " (default: run)\n"
+              + "  [ -x | --scenario file ] send a mix of message classes,"
+              + " each with\n"
+              + "     its own sizes, rate or ratio, destination and"
+              + " headers, see Scenario\n"
+              + "  [ -g | --groups keys ] give each message a JMSXGroupID"
+              + " drawn from\n"
+              + "     this many keys, and a sequence number per key for"
+              + " Receiver -O\n"
+              + "  [ -P | --raw ] send on a producer per thread, reusing"
+              + " one message,\n"
+              + "     instead of converting each message with the"
+              + " JmsTemplate\n"
+              + "  [ -D | --delivery persistent | non-persistent ]"
+              + " delivery mode\n"
+              + "  [ -p | --priority 0-9 ] message priority\n"
+              + "  [ -N | --no-ids ] ask the provider not to set message"
+              + " IDs and time\n"
+              + "     stamps; receivers can then not measure latency\n"
+              + "  [ -m | --rate count ] messages per second, paced on a"
+              + " fixed timeline;\n"
+              + "     latency counts from when each message was due\n"
+              + "  [ -b | --batch count ] commit every count sends, on"
+              + " the raw producer\n"
+              + "  [ -z | --sweep file ] run every combination of sizes,"
+              + " threads, batches\n"
+              + "     and rates for a fixed time each, one report row per"
+              + " point, see Sweep");
+            System.exit(1);
+        }
+      }
+      if (!scenarioFileName.isEmpty()) {
+        final Scenario mix = Scenario.load(scenarioFileName,
+          applicationContext.getBean("authConnectionFactory",
+            ConnectionFactory.class),
+          blaster.new BasicMessageProcessor(),
+          applicationContext.getBean("jndiTemplate", JndiTemplate.class),
+          blaster.getJmsTemplate().getDefaultDestination());
+        if (duration == 0) {
+          duration = mix.getDuration();
+        }
+        blaster.setScenario(mix);
+        System.out.println("Scenario: " + mix.getClassCount()
+          + " message classes");
+      }
+      if (!sweepFileName.isEmpty() && (blaster.getScenario() != null
+        || !adaptiveMode.isEmpty() || agent || agents > 0)) {
+        System.out.println("Ignoring sweep argument. Scenarios, adaptive"
+          + " sends and agents run one point.");
+      } else if (!sweepFileName.isEmpty()) {
+        sweep = Sweep.load(sweepFileName);
+        if (duration > 0) {
+          sweep.setDuration(duration);
+        }
+        if (!warmup.isEmpty()) {
+          sweep.setWarmup(warmup);
+        }
+        numberOfThreads = Math.max(numberOfThreads, sweep.getMaxThreads());
+        batch = Math.max(batch, sweep.getMaxBatch());
+        System.out.println("Sweep: " + sweep.getPoints() + " points of "
+          + formatDuration(sweep.getDuration()));
+      }
+      if (duration > 0 && !countGiven) {
+        messageCount = 0;
+      }
+      if (interval.isEmpty() && duration > 0) {
+        interval = D_INTERVAL;
+      }
+      blaster.setReportInterval(
+        interval.isEmpty() ? 0 : Units.parseDuration(interval));
+      blaster.setReportWriter(ReportWriter.create(reportFormat,
+        reportFileName, System.out));
+      if (numberOfThreads > D_THREADS) {
+        // a cached session for every producer, or they open and close them
+        System.setProperty(P_SESSION_CACHE, numberOfThreads.toString());
+        applicationContext.getBean("cachingConnectionFactory",
+          CachingConnectionFactory.class)
+          .setSessionCacheSize(numberOfThreads);
+      }
+      blaster.setBrokerPool(
+        BrokerPool.create(applicationContext, blaster.getJmsTemplate()));
+      if (!adaptiveMode.isEmpty()) {
+        final AdaptiveProducer adaptive = new AdaptiveProducer(
+          applicationContext.getBean("authConnectionFactory",
+            ConnectionFactory.class),
+          blaster.getJmsTemplate().getDefaultDestination(),
+          blaster.new BasicMessageProcessor());
+        adaptive.setMode(adaptiveMode);
+        adaptive.setTarget(Units.parseDuration(target));
+        adaptive.setMaxWindow(maxWindow);
+        blaster.setAdaptiveProducer(adaptive);
+      }
+      if (blaster.getScenario() != null && !adaptiveMode.isEmpty()) {
+        System.out.println("Ignoring adaptive argument."
+          + " Scenarios send their own classes.");
+        blaster.setAdaptiveProducer(null);
+      }
+      if (groupKeys > 0 && (blaster.getScenario() != null
+        || blaster.getAdaptiveProducer() != null)) {
+        System.out.println("Ignoring groups argument."
+          + " Only plain sends are keyed.");
+      } else if (groupKeys > 0) {
+        blaster.setMessageGroups(new MessageGroups(groupKeys));
+      }
+      if (blaster.getTargetRate() > 0 && (blaster.getScenario() != null
+        || blaster.getAdaptiveProducer() != null)) {
+        System.out.println("Ignoring rate argument."
+          + " Scenarios and adaptive sends set their own pace.");
+        blaster.setTargetRate(0);
+      }
+      setQos(blaster.getJmsTemplate(), delivery, priority, noIds);
+      if (batch > 1 && sweep == null && blaster.getMessageGroups() != null
+        && numberOfThreads > D_THREADS) {
+        // the key lock covers the send, not the commit of another thread
+        System.out.println("Ignoring batch argument. Keyed sends from"
+          + " several threads would be committed out of order.");
+        batch = 1;
+      }
+      if ((raw || batch > 1) && (blaster.getScenario() != null
+        || blaster.getAdaptiveProducer() != null
+        || blaster.getBrokerPool() != null)) {
+        System.out.println("Ignoring raw and batch arguments."
+          + " Scenarios, adaptive sends and brokers have their own.");
+      } else if (raw || batch > 1) {
+        final RawProducer rawProducer = new RawProducer(
+          applicationContext.getBean("authConnectionFactory",
+            ConnectionFactory.class),
+          blaster.getJmsTemplate().getDefaultDestination(),
+          blaster.new BasicMessageProcessor());
+        rawProducer.setDeliveryMode(
+          blaster.getJmsTemplate().getDeliveryMode());
+        rawProducer.setPriority(blaster.getJmsTemplate().getPriority());
+        rawProducer.setDisableIds(noIds);
+        rawProducer.setBatchSize(batch);
+        blaster.setRawProducer(rawProducer);
+      }
+      if (numberOfThreads > D_THREADS && !adaptiveMode.isEmpty()
+        && blaster.getScenario() == null) {
+        System.out.println("Ignoring thread count argument."
+          + " Adaptive sends use one session.");
+      } else {
+        blaster.setThreads(numberOfThreads);
+      }
+      blaster.setThreadMode(System.getProperty(ThreadMode.P_THREAD_MODE,
+        ThreadMode.PLATFORM));
+      final String resultsFileName =
+        System.getProperty(ResultStore.P_FILE, "");
+      if (!resultsFileName.isEmpty()) {
+        blaster.setResultStore(new ResultStore(resultsFileName));
+        blaster.setResultLabel(System.getProperty(ResultStore.P_LABEL,
+          ResultStore.D_LABEL));
+        blaster.setJmsClient(ResultStore.describe(
+          applicationContext.getBean("connectionFactory")));
+      }
+      if (!monitorPeriod.isEmpty()) {
+        monitor = DepthMonitor.forInput(applicationContext,
+          blaster.getReportWriter());
+        if (monitor != null) {
+          monitor.start(Units.parseDuration(monitorPeriod));
+        }
       }
+      if (agents > 0) {
+        final BlasterCoordinator coordinator = new BlasterCoordinator(
+          openControlChannel(applicationContext), blaster.getReportWriter());
+        coordinator.setAgents(agents);
+        coordinator.setStartDelay(Units.parseDuration(startDelay));
+        coordinator.setMessages(messageCount);
+        coordinator.setDuration(duration);
+        coordinator.setWarmup(warmup);
+        coordinator.setMessageSize(inputFileName.isEmpty() ? messageSize : 0);
+        coordinator.setReportInterval(blaster.getReportInterval());
+        final boolean complete = coordinator.run();
+        blaster.getReportWriter().close();
+        System.exit(complete ? 0 : 1);
+      }
+    } catch (JTKException e) {
+      System.out.println(e.toStringWithStackTrace());
+      System.exit(1);
+    } catch (JMSException e) {
+      System.out.println(JTKException.formatException(e));
+      System.exit(1);
     }
 
     if (messageSize != D_MESSAGE_SIZE && !inputFileName.isEmpty()) {
       System.out.println("Ignoring message size argument. Using input file.");
     }
-    if (numberOfThreads > D_THREADS) {
-      System.out.println("Ignoring thread count argument."
-        + " Only one thread supported currently.");
-    }
     if (!inputFileName.isEmpty()) {
       blaster.setMessage(blaster.loadTextFile(inputFileName));
       blaster.setMessageType(TYPE_FILE);
@@ -124,11 +547,88 @@ public class Blaster extends Sender {
       blaster.setMessage(blaster.readLinesFromStdin());
       blaster.setMessageType(TYPE_STDIN);
     }
-    System.out.println("Sending " + messageCount + " messages...");
-    blaster.sendMessages(messageCount);
+    if (agent) {
+      try {
+        new BlasterAgent(blaster, openControlChannel(applicationContext))
+          .serve();
+      } catch (JMSException e) {
+        System.out.println(JTKException.formatException(e));
+        System.exit(1);
+      }
+    }
+    if (sweep != null) {
+      // the points report as usual, the sweep rows go to the report
+      final ReportWriter sweepWriter = blaster.getReportWriter();
+      try {
+        blaster.setReportWriter(
+          new ReportWriter(ReportWriter.FORMAT_TEXT, System.out));
+        blaster.setProgress(false);
+        sweep.run(blaster, sweepWriter, countGiven ? messageCount : 0);
+      } catch (JTKException e) {
+        System.out.println(e.toStringWithStackTrace());
+        System.exit(1);
+      }
+      sweepWriter.close();
+      System.exit(0);
+    }
+    if (messageCount > 0) {
+      System.out.println("Sending " + messageCount + " messages...");
+    }
+    if (duration > 0) {
+      System.out.println("Sending for " + formatDuration(duration) + "...");
+    }
+    blaster.sendMessages(messageCount, duration);
+    if (monitor != null) {
+      monitor.stop();
+    }
+    blaster.getReportWriter().close();
     System.exit(0);
   }
 
+  /**
+   * Set the delivery mode, priority and ID generation of the template.
+   *
+   * @param inTemplate the template
+   * @param inDelivery persistent or non-persistent, empty for the default
+   * @param inPriority 0 to 9, negative for the default
+   * @param inNoIds true to ask for no message IDs and time stamps
+   * @throws JTKException if the delivery mode or priority is not valid
+   */
+  private static void setQos(final JmsTemplate inTemplate,
+    final String inDelivery, final int inPriority, final boolean inNoIds)
+    throws JTKException {
+    if (inPriority > 9) {
+      throw new JTKException("Priority must be 0 to 9: " + inPriority);
+    }
+    if (!inDelivery.isEmpty() || inPriority >= 0) {
+      inTemplate.setExplicitQosEnabled(true);
+    }
+    if ("persistent".equals(inDelivery)) {
+      inTemplate.setDeliveryMode(DeliveryMode.PERSISTENT);
+    } else if ("non-persistent".equals(inDelivery)) {
+      inTemplate.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+    } else if (!inDelivery.isEmpty()) {
+      throw new JTKException("Unknown delivery mode: " + inDelivery);
+    }
+    if (inPriority >= 0) {
+      inTemplate.setPriority(inPriority);
+    }
+    inTemplate.setMessageIdEnabled(!inNoIds);
+    inTemplate.setMessageTimestampEnabled(!inNoIds);
+  }
+
+  /**
+   * @param inContext the application context
+   * @return a channel on the control topic, jmstoolkit.control
+   * @throws JMSException if the connection can not be made
+   */
+  private static ControlChannel openControlChannel(
+    final ClassPathXmlApplicationContext inContext) throws JMSException {
+    return new ControlChannel(
+      inContext.getBean("authConnectionFactory", ConnectionFactory.class),
+      inContext.getBean("control", Destination.class));
+  }
+
   /**
    * Create random text.
    * @param inSize number of letters
@@ -151,20 +651,57 @@ public class Blaster extends Sender {
    * timing info.
    * @param messages the number of messages to send
    */
-  public final void sendMessages(final Integer messages) {
-    final Date start = new Date();
+  public final void sendMessages(final long messages) {
+    sendMessages(messages, 0);
+  }
+
+  /**
+   * Sends messages as fast as the JmsTemplate can muster until the count or
+   * the time is reached, and prints some timing info. Failed sends are
+   * counted as errors and the run continues.
+   * @param messages the number of messages to send, 0 for no limit
+   * @param duration how long to send (ns), 0 for no limit
+   */
+  public final void sendMessages(final long messages, final long duration) {
     System.out.println("JMS Correlation ID: " + CORRELATION_ID);
+    if (reportWriter == null) {
+      try {
+        reportWriter =
+          new ReportWriter(ReportWriter.FORMAT_TEXT, System.out);
+      } catch (JTKException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    warmUp();
+    final Date start = new Date();
     System.out.println("Starting time: " + DATE_TIME.format(start));
+    stats = new RunStats();
+    if (getBrokerPool() != null) {
+      getBrokerPool().resetCounters();
+    }
+    IntervalReporter reporter = null;
+    if (reportInterval > 0) {
+      reporter = new IntervalReporter(stats, reportWriter, reportInterval) {
+        @Override
+        protected Map<String, Object> row() {
+          final Map<String, Object> row = super.row();
+          if (getBrokerPool() != null) {
+            row.put("brokers_up", getBrokerPool().getAvailable());
+          }
+          return adaptiveProducer == null ? row
+            : adaptiveProducer.addTo(row, false);
+        }
+      };
+      reporter.start();
+    }
+    final JvmMetrics before = JvmMetrics.snapshot();
+    final ThreadUsage usage = new ThreadUsage();
     final long startTime = System.currentTimeMillis();
-    for (int m = 1; m <= messages; m++) {
-      sendMessage(getMessage().isEmpty() ? APP_NAME + m : getMessage(),
-        new BasicMessageProcessor());
-      if (m >= 100 && m % 100 == 0) {
-        final long partialElapsed = System.currentTimeMillis() - startTime;
-        System.out.println("  * " + m + " messages in (ms): " + partialElapsed
-          + " - m/s: " +
-          new Double(new Double(m) / new Double(partialElapsed) * 1000).intValue());
-      }
+    send(messages, duration, stats, usage, progress && reporter == null);
+    stats.finish();
+    final JvmMetrics after = JvmMetrics.snapshot();
+    if (reporter != null) {
+      reporter.stop();
     }
     // print the aggregate result
     final long elapsedTime = System.currentTimeMillis() - startTime;
@@ -173,5 +710,497 @@ public class Blaster extends Sender {
     System.out.println("Ending time: " + DATE_TIME.format(end));
     System.out.println("Elapsed time: " + TIME.format(elapsed));
     System.out.println("Elapsed time (ms): " + elapsedTime);
+    final Map<String, Object> summary = stats.summaryRow();
+    final double cpu =
+      JvmMetrics.perMessage(usage.getCpuTime(), 0, stats.getMessages());
+    summary.put("send_cpu_us_per_msg", cpu < 0 ? cpu : cpu / 1000);
+    summary.put("send_alloc_bytes_per_msg", JvmMetrics.perMessage(
+      usage.getAllocatedBytes(), 0, stats.getMessages()));
+    // the producer threads of a scenario or of -t have ended by now, and
+    // the live thread sums of the snapshot leave them out
+    final boolean ended = scenario != null
+      || (threads > 1 && adaptiveProducer == null);
+    after.addUsage(summary, before, stats.getMessages(),
+      ended ? usage.getAllocatedBytes() : 0);
+    if (adaptiveProducer != null) {
+      adaptiveProducer.addTo(summary, true);
+    }
+    reportWriter.write(summary);
+    if (getBrokerPool() != null) {
+      for (Map<String, Object> row : getBrokerPool().rows()) {
+        reportWriter.write(row);
+      }
+    }
+    if (scenario != null) {
+      for (Map<String, Object> row : scenario.rows()) {
+        reportWriter.write(row);
+      }
+    }
+    if (resultStore != null) {
+      try {
+        resultStore.append(ResultStore.result(resultLabel,
+          configRow(messages, duration), summary, stats.getLatencies()));
+        System.out.println("Result appended to: "
+          + resultStore.getFileName());
+      } catch (JTKException e) {
+        LOGGER.log(Level.SEVERE, "Could not keep the result", e);
+      }
+    }
+  }
+
+  /**
+   * @param messages the number of messages to send, 0 for no limit
+   * @param duration how long to send (ns), 0 for no limit
+   * @return the configuration of the run, for its result
+   */
+  private Map<String, Object> configRow(final long messages,
+    final long duration) {
+    final Map<String, Object> config = new LinkedHashMap<>();
+    config.put("messages_limit", messages);
+    config.put("duration_s", TimeUnit.NANOSECONDS.toSeconds(duration));
+    config.put("message_type", getMessageType());
+    config.put("message_size", getMessageBytes());
+    config.put("groups",
+      messageGroups == null ? 0 : messageGroups.getKeys());
+    config.put("raw_producer", rawProducer != null);
+    config.put("delivery_mode",
+      getJmsTemplate().getDeliveryMode() == DeliveryMode.PERSISTENT
+        ? "persistent" : "non-persistent");
+    config.put("priority", getJmsTemplate().getPriority());
+    config.put("message_ids", getJmsTemplate().isMessageIdEnabled());
+    config.put("threads", threads);
+    config.put("batch", rawProducer == null ? 1 : rawProducer.getBatchSize());
+    config.put("target_rate", targetRate);
+    config.put("thread_mode", threadMode);
+    config.put("adaptive",
+      adaptiveProducer == null ? "off" : adaptiveProducer.getMode());
+    config.put("destination",
+      String.valueOf(getJmsTemplate().getDefaultDestination()));
+    config.put("brokers",
+      System.getProperty(BrokerPool.P_CONNECTION_FACTORIES, ""));
+    config.put("scenario",
+      scenario == null ? "" : scenario.getFileName());
+    config.put("jms_client", jmsClient);
+    return config;
+  }
+
+  /**
+   * Send the warm-up messages, if any, without measuring them. The warm-up
+   * is done once, later calls do nothing until it is set again.
+   */
+  public final void warmUp() {
+    if (warmupMessages > 0 || warmupTime > 0) {
+      // class loading, JIT and connection setup happen here, not measured
+      final long warmupStart = System.currentTimeMillis();
+      final RunStats warmupStats = new RunStats();
+      send(warmupMessages, warmupTime, warmupStats, new ThreadUsage(),
+        false);
+      System.out.println("Warm-up: " + warmupStats.getMessages()
+        + " messages in (ms): " + (System.currentTimeMillis() - warmupStart));
+      warmupMessages = 0;
+      warmupTime = 0;
+    }
+  }
+
+  /**
+   * Send until the count or the time is reached. Failed sends are counted
+   * as errors and sending continues.
+   * @param messages the number of messages to send, 0 for no limit
+   * @param duration how long to send (ns), 0 for no limit
+   * @param runStats where to count the messages
+   * @param usage where the sending threads add their CPU and allocation
+   * @param progress print a line every 100 messages
+   */
+  private void send(final long messages, final long duration,
+    final RunStats runStats, final ThreadUsage usage,
+    final boolean progress) {
+    final long messageBytes = getMessageBytes();
+    if (scenario != null) {
+      try {
+        scenario.send(messages, duration, runStats, threads, threadMode,
+          usage);
+      } catch (JMSException e) {
+        runStats.recordError();
+        LOGGER.log(Level.SEVERE, "Could not connect", e);
+      }
+      return;
+    }
+    if (adaptiveProducer != null) {
+      usage.run(() -> {
+        try {
+          adaptiveProducer.send(messages, duration, runStats,
+            m -> getMessage().isEmpty() ? APP_NAME + m : getMessage(),
+            text -> messageBytes == 0 ? text.length() : messageBytes);
+        } catch (JMSException e) {
+          runStats.recordError();
+          LOGGER.log(Level.SEVERE, "Could not connect", e);
+        }
+      });
+      return;
+    }
+    if (rawProducer != null) {
+      try {
+        rawProducer.open();
+      } catch (JMSException e) {
+        runStats.recordError();
+        LOGGER.log(Level.SEVERE, "Could not connect", e);
+        return;
+      }
+    }
+    final long startTime = System.currentTimeMillis();
+    final long startNanos = System.nanoTime();
+    final long interval = targetRate > 0
+      ? (long) (TimeUnit.SECONDS.toNanos(1) / targetRate) : 0;
+    final AtomicLong next = new AtomicLong();
+    final Runnable producer = () -> {
+      for (long m = next.incrementAndGet(); (messages <= 0 || m <= messages)
+        && (duration <= 0 || System.nanoTime() - startNanos < duration);
+        m = next.incrementAndGet()) {
+        long due = System.nanoTime();
+        if (interval > 0) {
+          // a fixed timeline, a slow send makes the next ones late instead
+          // of lowering the rate
+          due = startNanos + (m - 1) * interval;
+          if (duration > 0 && due - startNanos >= duration) {
+            break;
+          }
+          long wait;
+          while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+          }
+        }
+        sendNumbered(m, messageBytes, runStats, progress, startTime, due);
+      }
+    };
+    try {
+      runProducers(producer, runStats, usage);
+    } finally {
+      if (rawProducer != null) {
+        rawProducer.close();
+      }
+    }
+  }
+
+  /**
+   * Run the producer on this thread, or on each producer thread.
+   * @param producer sends until the run is over
+   * @param runStats where to count a failed producer
+   * @param usage where each producer adds its CPU and allocation
+   */
+  private void runProducers(final Runnable producer,
+    final RunStats runStats, final ThreadUsage usage) {
+    if (threads <= 1) {
+      usage.run(producer);
+      return;
+    }
+    final ExecutorService producers =
+      ThreadMode.newExecutor(threadMode, "producer", threads);
+    final List<Future<?>> running = new ArrayList<>(threads);
+    for (int t = 0; t < threads; t++) {
+      running.add(producers.submit(() -> usage.run(producer)));
+    }
+    try {
+      for (Future<?> work : running) {
+        work.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      runStats.recordError();
+      LOGGER.log(Level.SEVERE, "Producer failed", e.getCause());
+    } finally {
+      producers.shutdownNow();
+      ThreadMode.awaitEnd(producers);
+    }
+  }
+
+  /**
+   * Send one message of the run, counting it as sent or as an error.
+   * @param m number of the message in the run
+   * @param messageBytes size of the message, 0 if generated per message
+   * @param runStats where to count the message
+   * @param progress print a line every 100 messages
+   * @param startTime when the run started (ms)
+   * @param due when the message was due (ns), the latency counts from it
+   */
+  private void sendNumbered(final long m, final long messageBytes,
+    final RunStats runStats, final boolean progress, final long startTime,
+    final long due) {
+    final String text = getMessage().isEmpty() ? APP_NAME + m : getMessage();
+    final long bytes = messageBytes == 0 ? text.length() : messageBytes;
+    try {
+      if (messageGroups == null) {
+        sendText(text, bytes, null);
+      } else {
+        final int key = messageGroups.nextKey();
+        synchronized (messageGroups.lock(key)) {
+          sendText(text, bytes, messageGroups.stamp(key, msg -> msg));
+        }
+      }
+      runStats.record(bytes, (System.nanoTime() - due) / 1000);
+    } catch (JmsException | JMSException e) {
+      runStats.recordError();
+      LOGGER.log(Level.WARNING, "Send failed", e);
+    }
+    if (progress && m >= 100 && m % 100 == 0) {
+      final long partialElapsed =
+        Math.max(1, System.currentTimeMillis() - startTime);
+      System.out.println("  * " + m + " messages in (ms): " + partialElapsed
+        + " - m/s: " + (m * 1000 / partialElapsed));
+    }
+  }
+
+  /**
+   * Send a text with the raw producer or the template.
+   * @param text the text
+   * @param bytes size of the text
+   * @param extra sets what differs per message, null for nothing
+   * @throws JMSException if the raw producer fails to send
+   */
+  private void sendText(final String text, final long bytes,
+    final MessagePostProcessor extra) throws JMSException {
+    if (rawProducer != null) {
+      rawProducer.send(text, bytes, extra);
+      return;
+    }
+    final MessagePostProcessor basic = new BasicMessageProcessor();
+    sendMessage(text, extra == null ? basic
+      : msg -> extra.postProcessMessage(basic.postProcessMessage(msg)));
+  }
+
+  /**
+   * @param inWarmup a message count, or a time with a unit such as 30s
+   * @throws JTKException if the value can not be parsed
+   */
+  public final void setWarmup(final String inWarmup) throws JTKException {
+    if (inWarmup.matches("\\d+")) {
+      warmupMessages = Long.parseLong(inWarmup);
+      warmupTime = 0;
+    } else {
+      warmupTime = Units.parseDuration(inWarmup);
+      warmupMessages = 0;
+    }
+  }
+
+  /**
+   * @return size in bytes of the message text, 0 if it is generated per
+   * message
+   */
+  final long getMessageBytes() {
+    if (getMessage().isEmpty()) {
+      return 0;
+    }
+    return TextCodec.get(getCharset()).length(getMessage());
+  }
+
+  /**
+   * @param inNanos a duration
+   * @return the duration as hours, minutes and seconds
+   */
+  static String formatDuration(final long inNanos) {
+    final long seconds = TimeUnit.NANOSECONDS.toSeconds(inNanos);
+    return String.format(Locale.US, "%d:%02d:%02d", seconds / 3600,
+      (seconds / 60) % 60, seconds % 60);
+  }
+
+  /**
+   * @return the keys of keyed messages, null when messages have no key
+   */
+  public final MessageGroups getMessageGroups() {
+    return messageGroups;
+  }
+
+  /**
+   * @param inMessageGroups keys of keyed messages, null to send messages
+   * without a key
+   */
+  public final void setMessageGroups(final MessageGroups inMessageGroups) {
+    this.messageGroups = inMessageGroups;
+  }
+
+  /**
+   * @return the raw producer, null when sending with the template
+   */
+  public final RawProducer getRawProducer() {
+    return rawProducer;
+  }
+
+  /**
+   * @param inRawProducer sends without the JmsTemplate, null to use the
+   * template
+   */
+  public final void setRawProducer(final RawProducer inRawProducer) {
+    this.rawProducer = inRawProducer;
+  }
+
+  /**
+   * @return messages per second, 0 for no pacing
+   */
+  public final double getTargetRate() {
+    return targetRate;
+  }
+
+  /**
+   * @param inTargetRate messages per second across the producers, 0 for
+   * as fast as they can
+   */
+  public final void setTargetRate(final double inTargetRate) {
+    this.targetRate = Math.max(0, inTargetRate);
+  }
+
+  /**
+   * @return true to print a line every 100 messages
+   */
+  public final boolean isProgress() {
+    return progress;
+  }
+
+  /**
+   * @param inProgress true to print a line every 100 messages of a run
+   * without interval reports
+   */
+  public final void setProgress(final boolean inProgress) {
+    this.progress = inProgress;
+  }
+
+  /**
+   * @return the number of producers sending at once
+   */
+  public final int getThreads() {
+    return threads;
+  }
+
+  /**
+   * @param inThreads the number of producers sending at once
+   */
+  public final void setThreads(final int inThreads) {
+    this.threads = Math.max(1, inThreads);
+  }
+
+  /**
+   * @return the thread mode of the producers
+   */
+  public final String getThreadMode() {
+    return threadMode;
+  }
+
+  /**
+   * @param inThreadMode platform or virtual, virtual falls back to
+   * platform threads if this JVM does not have them
+   * @throws JTKException if the mode is not known
+   */
+  public final void setThreadMode(final String inThreadMode)
+    throws JTKException {
+    this.threadMode = ThreadMode.resolve(inThreadMode);
+  }
+
+  /**
+   * @return where the results are kept, null for nowhere
+   */
+  public final ResultStore getResultStore() {
+    return resultStore;
+  }
+
+  /**
+   * @param inResultStore where the result of each run is kept, null for
+   * nowhere
+   */
+  public final void setResultStore(final ResultStore inResultStore) {
+    this.resultStore = inResultStore;
+  }
+
+  /**
+   * @return the label of the results
+   */
+  public final String getResultLabel() {
+    return resultLabel;
+  }
+
+  /**
+   * @param inResultLabel label of the results, such as a broker version
+   */
+  public final void setResultLabel(final String inResultLabel) {
+    this.resultLabel = inResultLabel;
+  }
+
+  /**
+   * @return the JMS provider's connection factory class and version
+   */
+  public final String getJmsClient() {
+    return jmsClient;
+  }
+
+  /**
+   * @param inJmsClient the JMS provider's connection factory class and
+   * version, for the results
+   */
+  public final void setJmsClient(final String inJmsClient) {
+    this.jmsClient = inJmsClient;
+  }
+
+  /**
+   * @return the reportInterval (ns)
+   */
+  public final long getReportInterval() {
+    return reportInterval;
+  }
+
+  /**
+   * @param inReportInterval time between interval reports (ns), 0 for none
+   */
+  public final void setReportInterval(final long inReportInterval) {
+    this.reportInterval = inReportInterval;
+  }
+
+  /**
+   * @return the reportWriter
+   */
+  public final ReportWriter getReportWriter() {
+    return reportWriter;
+  }
+
+  /**
+   * @param inReportWriter where the reports go
+   */
+  public final void setReportWriter(final ReportWriter inReportWriter) {
+    this.reportWriter = inReportWriter;
+  }
+
+  /**
+   * @return the adaptive sender, null when sending one at a time
+   */
+  public final AdaptiveProducer getAdaptiveProducer() {
+    return adaptiveProducer;
+  }
+
+  /**
+   * @param inAdaptiveProducer sends with an adaptive window, null to send
+   * one at a time
+   */
+  public final void setAdaptiveProducer(
+    final AdaptiveProducer inAdaptiveProducer) {
+    this.adaptiveProducer = inAdaptiveProducer;
+  }
+
+  /**
+   * @return the mixed workload, null when sending one kind of message
+   */
+  public final Scenario getScenario() {
+    return scenario;
+  }
+
+  /**
+   * @param inScenario sends a mixed workload, null to send one kind of
+   * message
+   */
+  public final void setScenario(final Scenario inScenario) {
+    this.scenario = inScenario;
+  }
+
+  /**
+   * @return the counters of the current or last run
+   */
+  public final RunStats getStats() {
+    return stats;
   }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Runs Blaster load on request of a {@link BlasterCoordinator}. The agent
+ * says hello on the control topic until it is picked for a run, warms up,
+ * waits for the start time of the run, sends, and publishes its counters
+ * and latency histogram. Then it waits for the next run.
+ *
+ * @author Scott Douglass
+ */
+public class BlasterAgent {
+
+  /** Logger for the class. */
+  private static final Logger LOGGER =
+    Logger.getLogger(BlasterAgent.class.getName());
+  /** Time between hello messages while waiting (ms). */
+  private static final long HELLO_INTERVAL = 2000;
+  /** Sends the load. */
+  private final Blaster blaster;
+  /** Talks to the coordinator. */
+  private final ControlChannel channel;
+  /** Name of the agent, pid@host. */
+  private final String name =
+    ManagementFactory.getRuntimeMXBean().getName();
+
+  /**
+   * @param inBlaster sends the load
+   * @param inChannel talks to the coordinator
+   */
+  public BlasterAgent(final Blaster inBlaster,
+    final ControlChannel inChannel) {
+    this.blaster = inBlaster;
+    this.channel = inChannel;
+  }
+
+  /**
+   * Serve runs until the process is stopped.
+   *
+   * @throws JMSException if the control topic fails
+   */
+  public final void serve() throws JMSException {
+    System.out.println("Agent " + name + " waiting for a coordinator...");
+    long lastHello = 0;
+    while (true) {
+      if (System.currentTimeMillis() - lastHello >= HELLO_INTERVAL) {
+        hello();
+        lastHello = System.currentTimeMillis();
+      }
+      final Message message = channel.receive(HELLO_INTERVAL);
+      if (message == null) {
+        continue;
+      }
+      final String command = ControlChannel.getCommand(message);
+      if (ControlChannel.CMD_DISCOVER.equals(command)) {
+        lastHello = 0;
+      } else if (ControlChannel.CMD_START.equals(command)
+        && isPicked(message)) {
+        run(message);
+        lastHello = 0;
+      }
+    }
+  }
+
+  /**
+   * @throws JMSException if the hello can not be sent
+   */
+  private void hello() throws JMSException {
+    final Message hello =
+      channel.createMessage(ControlChannel.CMD_HELLO, "", "");
+    hello.setStringProperty(ControlChannel.AGENT, name);
+    channel.send(hello);
+  }
+
+  /**
+   * @param inStart a start message
+   * @return true if this agent takes part in the run
+   * @throws JMSException if the property can not be read
+   */
+  private boolean isPicked(final Message inStart) throws JMSException {
+    final String agents = inStart.getStringProperty(ControlChannel.AGENTS);
+    return agents != null && Arrays.asList(agents.split(",")).contains(name);
+  }
+
+  /**
+   * Run the load described by a start message and publish the result.
+   *
+   * @param inStart the start message
+   * @throws JMSException if the control topic fails
+   */
+  private void run(final Message inStart) throws JMSException {
+    final String run = inStart.getStringProperty(ControlChannel.RUN);
+    final long startAt = inStart.getLongProperty(ControlChannel.START_AT);
+    final int size = inStart.getIntProperty(ControlChannel.SIZE);
+    final String warmup = inStart.getStringProperty(ControlChannel.WARMUP);
+    System.out.println("Run " + run + " starts in (ms): "
+      + (startAt - System.currentTimeMillis()));
+    if (size > 0) {
+      blaster.setMessage(blaster.createMessage(size));
+    }
+    blaster.setReportInterval(
+      inStart.getLongProperty(ControlChannel.INTERVAL));
+    try {
+      blaster.setWarmup(warmup == null || warmup.isEmpty() ? "0" : warmup);
+      blaster.warmUp();
+    } catch (JTKException e) {
+      LOGGER.log(Level.WARNING, "Bad warm-up: " + warmup, e);
+    }
+    long wait = startAt - System.currentTimeMillis();
+    while (wait > 0) {
+      try {
+        Thread.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      wait = startAt - System.currentTimeMillis();
+    }
+    final long skew = System.currentTimeMillis() - startAt;
+    blaster.sendMessages(inStart.getLongProperty(ControlChannel.MESSAGES),
+      inStart.getLongProperty(ControlChannel.DURATION));
+    final RunStats stats = blaster.getStats();
+    final Message result = channel.createMessage(ControlChannel.CMD_RESULT,
+      run, stats.getLatencies().encode());
+    result.setStringProperty(ControlChannel.AGENT, name);
+    result.setLongProperty(ControlChannel.MESSAGES, stats.getMessages());
+    result.setLongProperty(ControlChannel.BYTES, stats.getBytes());
+    result.setLongProperty(ControlChannel.ERRORS, stats.getErrors());
+    result.setLongProperty(ControlChannel.ELAPSED, stats.getElapsedNanos());
+    result.setLongProperty(ControlChannel.START_SKEW, skew);
+    channel.send(result);
+    System.out.println("Run " + run + " results sent, started late (ms): "
+      + skew);
+  }
+
+  /**
+   * @return the name of the agent
+   */
+  public final String getName() {
+    return name;
+  }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+/**
+ * Runs the same Blaster load on several {@link BlasterAgent}s at once. The
+ * coordinator waits for enough agents to say hello on the control topic,
+ * tells them when to start, and merges the counters and latency histograms
+ * they send back, so the numbers of all hosts cover the same period.
+ * The start time is wall clock time, so the clocks of the hosts should be
+ * kept in step, for example with NTP.
+ *
+ * @author Scott Douglass
+ */
+public class BlasterCoordinator {
+
+  /** Logger for the class. */
+  private static final Logger LOGGER =
+    Logger.getLogger(BlasterCoordinator.class.getName());
+  /** Time between discover messages while waiting for agents (ms). */
+  private static final long DISCOVER_INTERVAL = 5000;
+  /** Time to wait for results after a timed run ends (ns). */
+  private static final long RESULT_GRACE = TimeUnit.MINUTES.toNanos(2);
+  /** Time to wait for results of a run that only has a count (ns). */
+  private static final long RESULT_TIMEOUT = TimeUnit.HOURS.toNanos(1);
+  /** Talks to the agents. */
+  private final ControlChannel channel;
+  /** Where the results go. */
+  private final ReportWriter reportWriter;
+  /** Number of agents to run with. */
+  private int agents = 1;
+  /** Time from the start message to the start of the run (ns). */
+  private long startDelay = TimeUnit.SECONDS.toNanos(5);
+  /** Messages each agent sends, 0 for no limit. */
+  private long messages = 0;
+  /** Time each agent sends (ns), 0 for no limit. */
+  private long duration = 0;
+  /** Warm-up count or time of each agent, empty for none. */
+  private String warmup = "";
+  /** Size of generated messages, 0 for the agent's own message. */
+  private int messageSize = 0;
+  /** Time between interval reports of the agents (ns), 0 for none. */
+  private long reportInterval = 0;
+
+  /**
+   * @param inChannel talks to the agents
+   * @param inReportWriter where the results go
+   */
+  public BlasterCoordinator(final ControlChannel inChannel,
+    final ReportWriter inReportWriter) {
+    this.channel = inChannel;
+    this.reportWriter = inReportWriter;
+  }
+
+  /**
+   * Wait for the agents, run the load and write the merged results.
+   *
+   * @return true if every agent sent its results
+   * @throws JMSException if the control topic fails
+   */
+  public final boolean run() throws JMSException {
+    final String run = UUID.randomUUID().toString();
+    final List<String> picked = waitForAgents();
+    final long startAt = System.currentTimeMillis()
+      + TimeUnit.NANOSECONDS.toMillis(startDelay);
+    final Message start =
+      channel.createMessage(ControlChannel.CMD_START, run, "");
+    start.setStringProperty(ControlChannel.AGENTS, String.join(",", picked));
+    start.setLongProperty(ControlChannel.START_AT, startAt);
+    start.setLongProperty(ControlChannel.MESSAGES, messages);
+    start.setLongProperty(ControlChannel.DURATION, duration);
+    start.setStringProperty(ControlChannel.WARMUP, warmup);
+    start.setIntProperty(ControlChannel.SIZE, messageSize);
+    start.setLongProperty(ControlChannel.INTERVAL, reportInterval);
+    channel.send(start);
+    System.out.println("Run " + run + " on " + picked.size()
+      + " agents starts in (ms): " + (startAt - System.currentTimeMillis()));
+    return collectResults(run, picked);
+  }
+
+  /**
+   * @return the agents picked for the run
+   * @throws JMSException if the control topic fails
+   */
+  private List<String> waitForAgents() throws JMSException {
+    System.out.println("Waiting for " + agents + " agents...");
+    final Set<String> ready = new LinkedHashSet<>();
+    long lastDiscover = 0;
+    while (ready.size() < agents) {
+      if (System.currentTimeMillis() - lastDiscover >= DISCOVER_INTERVAL) {
+        channel.send(channel.createMessage(ControlChannel.CMD_DISCOVER, "",
+          ""));
+        lastDiscover = System.currentTimeMillis();
+      }
+      final Message message = channel.receive(DISCOVER_INTERVAL);
+      if (message != null && ControlChannel.CMD_HELLO.equals(
+        ControlChannel.getCommand(message))) {
+        final String agent =
+          message.getStringProperty(ControlChannel.AGENT);
+        if (agent != null && ready.add(agent)) {
+          System.out.println("  * agent " + ready.size() + ": " + agent);
+        }
+      }
+    }
+    return new ArrayList<>(ready).subList(0, agents);
+  }
+
+  /**
+   * Collect the results of the agents, write a row for each agent and a
+   * merged row for the whole run.
+   *
+   * @param inRun id of the run
+   * @param inPicked agents in the run
+   * @return true if every agent sent its results
+   * @throws JMSException if the control topic fails
+   */
+  private boolean collectResults(final String inRun,
+    final List<String> inPicked) throws JMSException {
+    final long deadline = System.nanoTime() + startDelay
+      + (duration > 0 ? duration + RESULT_GRACE : RESULT_TIMEOUT);
+    final Set<String> waiting = new LinkedHashSet<>(inPicked);
+    final LatencyHistogram latencies = new LatencyHistogram();
+    long totalMessages = 0;
+    long totalBytes = 0;
+    long totalErrors = 0;
+    long span = 0;
+    long maxSkew = 0;
+    while (!waiting.isEmpty() && System.nanoTime() < deadline) {
+      final Message message = channel.receive(
+        TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+      if (message == null
+        || !ControlChannel.CMD_RESULT.equals(
+          ControlChannel.getCommand(message))
+        || !inRun.equals(message.getStringProperty(ControlChannel.RUN))) {
+        continue;
+      }
+      final String agent = message.getStringProperty(ControlChannel.AGENT);
+      if (!waiting.remove(agent)) {
+        continue;
+      }
+      final LatencyHistogram agentLatencies;
+      try {
+        agentLatencies =
+          LatencyHistogram.parse(((TextMessage) message).getText());
+      } catch (JTKException e) {
+        LOGGER.log(Level.WARNING, "Bad result from " + agent, e);
+        continue;
+      }
+      final long agentMessages =
+        message.getLongProperty(ControlChannel.MESSAGES);
+      final long agentBytes = message.getLongProperty(ControlChannel.BYTES);
+      final long agentErrors = message.getLongProperty(ControlChannel.ERRORS);
+      final long elapsed = message.getLongProperty(ControlChannel.ELAPSED);
+      final long skew = message.getLongProperty(ControlChannel.START_SKEW);
+      final Map<String, Object> row = RunStats.summaryRow("agent",
+        agentMessages, agentBytes, agentErrors, elapsed, agentLatencies);
+      row.put("agent", agent);
+      row.put("start_skew_ms", skew);
+      reportWriter.write(row);
+      latencies.add(agentLatencies);
+      totalMessages += agentMessages;
+      totalBytes += agentBytes;
+      totalErrors += agentErrors;
+      span = Math.max(span,
+        elapsed + TimeUnit.MILLISECONDS.toNanos(Math.max(0, skew)));
+      maxSkew = Math.max(maxSkew, Math.abs(skew));
+    }
+    // the agents started together, so the run lasts as long as the slowest
+    final Map<String, Object> merged = RunStats.summaryRow("merged",
+      totalMessages, totalBytes, totalErrors, span, latencies);
+    merged.put("agents", inPicked.size() - waiting.size());
+    merged.put("max_start_skew_ms", maxSkew);
+    reportWriter.write(merged);
+    if (!waiting.isEmpty()) {
+      System.out.println("No results from: " + String.join(", ", waiting));
+    }
+    return waiting.isEmpty();
+  }
+
+  /**
+   * @return the number of agents to run with
+   */
+  public final int getAgents() {
+    return agents;
+  }
+
+  /**
+   * @param inAgents the number of agents to run with
+   */
+  public final void setAgents(final int inAgents) {
+    this.agents = Math.max(1, inAgents);
+  }
+
+  /**
+   * @return the time from the start message to the start of the run (ns)
+   */
+  public final long getStartDelay() {
+    return startDelay;
+  }
+
+  /**
+   * @param inStartDelay time from the start message to the start of the run
+   * (ns), long enough for the agents to warm up
+   */
+  public final void setStartDelay(final long inStartDelay) {
+    this.startDelay = inStartDelay;
+  }
+
+  /**
+   * @return the messages each agent sends
+   */
+  public final long getMessages() {
+    return messages;
+  }
+
+  /**
+   * @param inMessages the messages each agent sends, 0 for no limit
+   */
+  public final void setMessages(final long inMessages) {
+    this.messages = inMessages;
+  }
+
+  /**
+   * @return the time each agent sends (ns)
+   */
+  public final long getDuration() {
+    return duration;
+  }
+
+  /**
+   * @param inDuration the time each agent sends (ns), 0 for no limit
+   */
+  public final void setDuration(final long inDuration) {
+    this.duration = inDuration;
+  }
+
+  /**
+   * @return the warm-up of each agent
+   */
+  public final String getWarmup() {
+    return warmup;
+  }
+
+  /**
+   * @param inWarmup a message count, or a time with a unit such as 30s
+   */
+  public final void setWarmup(final String inWarmup) {
+    this.warmup = inWarmup;
+  }
+
+  /**
+   * @return the size of generated messages
+   */
+  public final int getMessageSize() {
+    return messageSize;
+  }
+
+  /**
+   * @param inMessageSize size of generated messages, 0 for the agent's own
+   * message
+   */
+  public final void setMessageSize(final int inMessageSize) {
+    this.messageSize = inMessageSize;
+  }
+
+  /**
+   * @return the time between interval reports of the agents (ns)
+   */
+  public final long getReportInterval() {
+    return reportInterval;
+  }
+
+  /**
+   * @param inReportInterval time between interval reports of the agents
+   * (ns), 0 for none
+   */
+  public final void setReportInterval(final long inReportInterval) {
+    this.reportInterval = inReportInterval;
+  }
+}
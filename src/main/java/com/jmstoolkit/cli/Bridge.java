@@ -0,0 +1,933 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import com.jmstoolkit.Settings;
+import com.jmstoolkit.TextCodec;
+import com.jmstoolkit.Units;
+import gnu.getopt.Getopt;
+import gnu.getopt.LongOpt;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.BytesMessage;
+import javax.jms.CompletionListener;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageEOFException;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+import javax.jms.StreamMessage;
+import javax.jms.TextMessage;
+import javax.naming.NamingException;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.jms.connection.UserCredentialsConnectionFactoryAdapter;
+import org.springframework.jndi.JndiTemplate;
+
+/**
+ * Moves messages from a destination on one connection factory to a
+ * destination on another, such as from an old broker cluster to a new one.
+ * Each lane has a session on both sides and moves batches: it receives a
+ * batch, sends a copy of each message and only when the target has all of
+ * them commits or acknowledges the batch on the source. A message is
+ * never lost; if the bridge dies between the two, the batch is moved again
+ * and arrives twice.
+ * <p>
+ * In transacted mode both sessions are transacted, and the target commit
+ * comes before the source commit. In client mode the source acknowledges
+ * each batch and the target sends are JMS 2.0 asynchronous sends, so the
+ * sends of a batch are in flight together and the bridge waits for all of
+ * them to complete; providers without them send one at a time.
+ * <p>
+ * The copies keep the body, the properties, the correlation ID, type,
+ * delivery mode, priority and the time left to live. The target sets its
+ * own message ID and time stamp, the original ones are kept in the
+ * jtk_bridge_id and jtk_bridge_timestamp properties, and the reply-to
+ * destination, which belongs to the source, as text in
+ * jtk_bridge_reply_to. The latency reported is the hand-off time of a
+ * batch, from its receive to its acknowledgement on the source.
+ *
+ * @author Scott Douglass
+ */
+public class Bridge {
+
+  /** Logger for the class. */
+  private static final Logger LOGGER =
+    Logger.getLogger(Bridge.class.getName());
+  /** Name of the application. */
+  private static final String APP_NAME = "Bridge";
+  /** Both sessions transacted. */
+  public static final String MODE_TRANSACTED = "transacted";
+  /** Client acknowledge on the source, async sends to the target. */
+  public static final String MODE_CLIENT = "client";
+  /** Property with the message ID on the source. */
+  public static final String P_ORIGINAL_ID = "jtk_bridge_id";
+  /** Property with the time stamp on the source. */
+  public static final String P_ORIGINAL_TIMESTAMP = "jtk_bridge_timestamp";
+  /** Property with the reply-to destination on the source. */
+  public static final String P_ORIGINAL_REPLY_TO = "jtk_bridge_reply_to";
+  /** Property with the connection factory name of the target. */
+  public static final String P_TARGET_CONNECTION_FACTORY_NAME =
+    "jmstoolkit.target.cf";
+  /** Property with the destination name on the target. */
+  public static final String P_TARGET_DESTINATION_NAME =
+    "jmstoolkit.target.destination";
+  /** Default number of lanes. */
+  private static final int D_LANES = 1;
+  /** Default batch size. */
+  private static final int D_BATCH_SIZE = 100;
+  /** Default time between interval reports. */
+  private static final String D_INTERVAL = "10s";
+  /** Default time to wait for the lanes to finish their batch. */
+  private static final String D_DRAIN_TIMEOUT = "30s";
+  /** How long a lane waits for the first message of a batch (ms). */
+  private static final long RECEIVE_TIMEOUT = 1000;
+  /** Exit code when an error occurs. */
+  private static final int X_ERROR = 1;
+  /** Long command line options. */
+  static final LongOpt[] LONG_OPTIONS = {
+    new LongOpt("target-cf", LongOpt.REQUIRED_ARGUMENT, null, 'C'),
+    new LongOpt("target", LongOpt.REQUIRED_ARGUMENT, null, 'o'),
+    new LongOpt("target-jndi", LongOpt.REQUIRED_ARGUMENT, null, 'k'),
+    new LongOpt("threads", LongOpt.REQUIRED_ARGUMENT, null, 't'),
+    new LongOpt("batch", LongOpt.REQUIRED_ARGUMENT, null, 'b'),
+    new LongOpt("mode", LongOpt.REQUIRED_ARGUMENT, null, 'a'),
+    new LongOpt("idle", LongOpt.REQUIRED_ARGUMENT, null, 'e'),
+    new LongOpt("duration", LongOpt.REQUIRED_ARGUMENT, null, 'd'),
+    new LongOpt("interval", LongOpt.REQUIRED_ARGUMENT, null, 'I'),
+    new LongOpt("format", LongOpt.REQUIRED_ARGUMENT, null, 'F'),
+    new LongOpt("report-file", LongOpt.REQUIRED_ARGUMENT, null, 'R'),
+    new LongOpt("virtual", LongOpt.NO_ARGUMENT, null, 'V'),
+    new LongOpt("jfr", LongOpt.REQUIRED_ARGUMENT, null, 'J')
+  };
+  /** Messages moved. */
+  private final RunStats stats = new RunStats();
+  /** Pulls the batches, up to the number of messages to move. */
+  private final BatchPuller puller = new BatchPuller();
+  /** Batches moved. */
+  private final AtomicLong batches = new AtomicLong();
+  /** Set once stopping has started. */
+  private final AtomicBoolean stopping = new AtomicBoolean();
+  /** Counted down once stopped. */
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  /** Where the messages come from. */
+  private ConnectionFactory sourceConnectionFactory = null;
+  /** The source destination. */
+  private Destination source = null;
+  /** Where the messages go. */
+  private ConnectionFactory targetConnectionFactory = null;
+  /** The target destination. */
+  private Destination target = null;
+  /** Transacted or client. */
+  private String mode = MODE_TRANSACTED;
+  /** Number of lanes, a session on each side each. */
+  private int lanes = D_LANES;
+  /** Largest number of messages moved together. */
+  private int batchSize = D_BATCH_SIZE;
+  /** Threads of the lanes, platform or virtual. */
+  private String threadMode = ThreadMode.PLATFORM;
+  /** Stop once the source was empty this long (ns), 0 to keep going. */
+  private long idle = 0;
+  /** When a lane last moved a batch (ns). */
+  private volatile long lastMoved = System.nanoTime();
+  /** False once the lanes should stop after their current batch. */
+  private volatile boolean running = false;
+  /** True if a lane failed. */
+  private volatile boolean failed = false;
+  /** The source connection. */
+  private Connection sourceConnection = null;
+  /** The target connection. */
+  private Connection targetConnection = null;
+  /** Runs the lanes. */
+  private ExecutorService executor = null;
+  /** Counted down as the lanes end. */
+  private CountDownLatch ended = null;
+  /** Where the reports go. */
+  private ReportWriter reportWriter = null;
+  /** Writes interval reports, null for none. */
+  private IntervalReporter intervalReporter = null;
+
+  /**
+   * Open both connections and start the lanes.
+   *
+   * @param inMessages the number of messages to move, 0 for no limit
+   * @throws JMSException if a connection or session can not be made
+   */
+  public final void start(final long inMessages) throws JMSException {
+    puller.setLimit(inMessages);
+    final boolean transacted = MODE_TRANSACTED.equals(mode);
+    sourceConnection = sourceConnectionFactory.createConnection();
+    final List<Lane> opened = new ArrayList<>(lanes);
+    try {
+      targetConnection = targetConnectionFactory.createConnection();
+      for (int l = 0; l < lanes; l++) {
+        final Session in = sourceConnection.createSession(transacted,
+          transacted ? Session.SESSION_TRANSACTED
+            : Session.CLIENT_ACKNOWLEDGE);
+        final Session out = targetConnection.createSession(transacted,
+          transacted ? Session.SESSION_TRANSACTED
+            : Session.AUTO_ACKNOWLEDGE);
+        opened.add(new Lane(in, in.createConsumer(source), out,
+          out.createProducer(target)));
+      }
+    } catch (JMSException e) {
+      close();
+      throw e;
+    }
+    running = true;
+    lastMoved = System.nanoTime();
+    ended = new CountDownLatch(lanes);
+    executor = ThreadMode.newExecutor(threadMode, "lane", lanes);
+    for (Lane lane : opened) {
+      executor.execute(lane);
+    }
+    sourceConnection.start();
+    System.out.println(lanes + " " + mode + " lanes, batches of "
+      + batchSize + ": " + source + " -> " + target);
+  }
+
+  /**
+   * One session on each side, moving batches until stopped.
+   */
+  private final class Lane implements Runnable {
+    /** The source session. */
+    private final Session in;
+    /** The consumer on the source. */
+    private final MessageConsumer consumer;
+    /** The target session. */
+    private final Session out;
+    /** The producer on the target. */
+    private final MessageProducer producer;
+    /** False once the provider turned out to have no async sends. */
+    private boolean async;
+    /** Async sends of the batch not completed yet. */
+    private int inFlight = 0;
+    /** First failure of an async send of the batch. */
+    private Exception sendFailure = null;
+
+    /**
+     * @param inIn the source session
+     * @param inConsumer the consumer on the source
+     * @param inOut the target session
+     * @param inProducer the producer on the target
+     */
+    Lane(final Session inIn, final MessageConsumer inConsumer,
+      final Session inOut, final MessageProducer inProducer) {
+      this.in = inIn;
+      this.consumer = inConsumer;
+      this.out = inOut;
+      this.producer = inProducer;
+      this.async = MODE_CLIENT.equals(mode);
+    }
+
+    @Override
+    public void run() {
+      final List<Message> batch = new ArrayList<>(batchSize);
+      final long[] sizes = new long[batchSize];
+      try {
+        while (running) {
+          if (!puller.pull(consumer, batch, batchSize, RECEIVE_TIMEOUT)) {
+            break;
+          }
+          final long start = System.nanoTime();
+          if (batch.isEmpty()) {
+            continue;
+          }
+          move(batch, sizes);
+          final long latency = (System.nanoTime() - start) / 1000;
+          for (int i = 0; i < batch.size(); i++) {
+            stats.record(sizes[i], latency);
+          }
+          batches.incrementAndGet();
+          lastMoved = System.nanoTime();
+          batch.clear();
+        }
+      } catch (JMSException e) {
+        // nothing was acknowledged, the source delivers the batch again
+        undo();
+        if (running) {
+          running = false;
+          failed = true;
+          LOGGER.log(Level.SEVERE, "Lane failed, stopping", e);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+          stats.recordError();
+        }
+      } finally {
+        // give what the provider prefetched for this lane to the others
+        try {
+          consumer.close();
+        } catch (JMSException e) {
+          LOGGER.log(Level.FINE, "Could not close consumer", e);
+        }
+        ended.countDown();
+      }
+    }
+
+    /**
+     * Send a batch to the target and, once it has them, acknowledge it on
+     * the source.
+     *
+     * @param inBatch the messages received
+     * @param inSizes set to the size of each message
+     * @throws JMSException if the hand-off fails
+     */
+    private void move(final List<Message> inBatch, final long[] inSizes)
+      throws JMSException {
+      for (int i = 0; i < inBatch.size(); i++) {
+        final Message message = inBatch.get(i);
+        final Message copy = copy(message, out);
+        inSizes[i] = size(message);
+        final long expiration = message.getJMSExpiration();
+        final long timeToLive = expiration == 0 ? Message.DEFAULT_TIME_TO_LIVE
+          : Math.max(1, expiration - System.currentTimeMillis());
+        send(copy, message.getJMSDeliveryMode(), message.getJMSPriority(),
+          timeToLive);
+      }
+      if (out.getTransacted()) {
+        out.commit();
+        in.commit();
+      } else {
+        awaitSends();
+        inBatch.get(inBatch.size() - 1).acknowledge();
+      }
+    }
+
+    /**
+     * @param inCopy the copy to send
+     * @param inDeliveryMode delivery mode of the original
+     * @param inPriority priority of the original
+     * @param inTimeToLive time the original has left to live (ms)
+     * @throws JMSException if the send fails
+     */
+    private void send(final Message inCopy, final int inDeliveryMode,
+      final int inPriority, final long inTimeToLive) throws JMSException {
+      final Object event = Flight.beginSend();
+      try {
+        if (async) {
+          synchronized (this) {
+            inFlight++;
+          }
+          try {
+            producer.send(inCopy, inDeliveryMode, inPriority, inTimeToLive,
+              new CompletionListener() {
+                @Override
+                public void onCompletion(final Message inMessage) {
+                  completed(null);
+                }
+
+                @Override
+                public void onException(final Message inMessage,
+                  final Exception inException) {
+                  completed(inException);
+                }
+              });
+            return;
+          } catch (LinkageError | UnsupportedOperationException e) {
+            completed(null);
+            LOGGER.warning("No asynchronous send in this JMS provider,"
+              + " sending one at a time");
+            async = false;
+          }
+        }
+        producer.send(inCopy, inDeliveryMode, inPriority, inTimeToLive);
+      } finally {
+        Flight.end(event, target, 0);
+      }
+    }
+
+    /**
+     * @param inFailure why an async send failed, null if it completed
+     */
+    private synchronized void completed(final Exception inFailure) {
+      inFlight--;
+      if (inFailure != null && sendFailure == null) {
+        sendFailure = inFailure;
+      }
+      notifyAll();
+    }
+
+    /**
+     * Wait for the async sends of the batch.
+     *
+     * @throws JMSException if one of them failed
+     */
+    private synchronized void awaitSends() throws JMSException {
+      try {
+        while (inFlight > 0) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new JMSException("Interrupted waiting for the target");
+      }
+      if (sendFailure != null) {
+        final JMSException failure =
+          new JMSException("Send to the target failed");
+        failure.setLinkedException(sendFailure);
+        failure.initCause(sendFailure);
+        sendFailure = null;
+        throw failure;
+      }
+    }
+
+    /**
+     * Roll back what the target has of the batch and give the batch back
+     * to the source.
+     */
+    private void undo() {
+      try {
+        if (out.getTransacted()) {
+          out.rollback();
+          in.rollback();
+        } else {
+          in.recover();
+        }
+      } catch (JMSException e) {
+        LOGGER.log(Level.FINE, "Could not roll back", e);
+      }
+    }
+  }
+
+  /**
+   * Copy a message for another provider: the body, the properties and
+   * the headers a client may set.
+   *
+   * @param inMessage the message from the source
+   * @param inSession a session of the target
+   * @return the copy
+   * @throws JMSException if the message can not be read or made
+   */
+  static Message copy(final Message inMessage, final Session inSession)
+    throws JMSException {
+    final Message copy;
+    if (inMessage instanceof TextMessage) {
+      copy = inSession.createTextMessage(((TextMessage) inMessage).getText());
+    } else if (inMessage instanceof BytesMessage) {
+      final BytesMessage bytes = (BytesMessage) inMessage;
+      final byte[] body = new byte[(int) bytes.getBodyLength()];
+      bytes.reset();
+      bytes.readBytes(body);
+      final BytesMessage bytesCopy = inSession.createBytesMessage();
+      bytesCopy.writeBytes(body);
+      copy = bytesCopy;
+    } else if (inMessage instanceof MapMessage) {
+      final MapMessage map = (MapMessage) inMessage;
+      final MapMessage mapCopy = inSession.createMapMessage();
+      final Enumeration<?> names = map.getMapNames();
+      while (names.hasMoreElements()) {
+        final String name = (String) names.nextElement();
+        mapCopy.setObject(name, map.getObject(name));
+      }
+      copy = mapCopy;
+    } else if (inMessage instanceof ObjectMessage) {
+      copy = inSession.createObjectMessage(
+        ((ObjectMessage) inMessage).getObject());
+    } else if (inMessage instanceof StreamMessage) {
+      final StreamMessage stream = (StreamMessage) inMessage;
+      final StreamMessage streamCopy = inSession.createStreamMessage();
+      stream.reset();
+      try {
+        while (true) {
+          streamCopy.writeObject(stream.readObject());
+        }
+      } catch (MessageEOFException e) {
+        // the end of the stream
+      }
+      copy = streamCopy;
+    } else {
+      copy = inSession.createMessage();
+    }
+    final Enumeration<?> names = inMessage.getPropertyNames();
+    while (names.hasMoreElements()) {
+      final String name = (String) names.nextElement();
+      // the other JMSX properties are set by the provider
+      if (!name.startsWith("JMSX") || MessageGroups.GROUP_ID.equals(name)
+        || "JMSXGroupSeq".equals(name)) {
+        copy.setObjectProperty(name, inMessage.getObjectProperty(name));
+      }
+    }
+    copy.setJMSCorrelationID(inMessage.getJMSCorrelationID());
+    copy.setJMSType(inMessage.getJMSType());
+    if (inMessage.getJMSMessageID() != null) {
+      copy.setStringProperty(P_ORIGINAL_ID, inMessage.getJMSMessageID());
+    }
+    copy.setLongProperty(P_ORIGINAL_TIMESTAMP, inMessage.getJMSTimestamp());
+    if (inMessage.getJMSReplyTo() != null) {
+      copy.setStringProperty(P_ORIGINAL_REPLY_TO,
+        inMessage.getJMSReplyTo().toString());
+    }
+    return copy;
+  }
+
+  /**
+   * @param inMessage a message
+   * @return the size of its body in bytes, 0 if it is not text or bytes
+   * @throws JMSException if the body can not be read
+   */
+  private static long size(final Message inMessage) throws JMSException {
+    if (inMessage instanceof TextMessage) {
+      final String text = ((TextMessage) inMessage).getText();
+      return text == null ? 0
+        : TextCodec.get(StandardCharsets.UTF_8).length(text);
+    }
+    if (inMessage instanceof BytesMessage) {
+      return ((BytesMessage) inMessage).getBodyLength();
+    }
+    return 0;
+  }
+
+  /**
+   * Write interval reports.
+   *
+   * @param inWriter where the reports go
+   * @param inInterval time between reports (ns), 0 for none
+   */
+  public final void startReports(final ReportWriter inWriter,
+    final long inInterval) {
+    this.reportWriter = inWriter;
+    if (inInterval > 0) {
+      intervalReporter = new IntervalReporter(stats, inWriter, inInterval);
+      intervalReporter.start();
+    }
+  }
+
+  /**
+   * Wait until the lanes have moved every message, the time is up, the
+   * source was idle for too long or a lane failed.
+   *
+   * @param inDuration how long to run (ns), 0 for no limit
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public final void await(final long inDuration)
+    throws InterruptedException {
+    final long end = System.nanoTime() + inDuration;
+    while (!ended.await(100, TimeUnit.MILLISECONDS)) {
+      final long now = System.nanoTime();
+      if (inDuration > 0 && now - end >= 0) {
+        return;
+      }
+      if (idle > 0 && now - lastMoved >= idle) {
+        System.out.println("Source idle for "
+          + TimeUnit.NANOSECONDS.toSeconds(idle) + "s");
+        return;
+      }
+    }
+  }
+
+  /**
+   * Stop the lanes after their current batch, write the summary and close
+   * the connections. Later calls wait for the first one to finish. Also
+   * run on SIGTERM.
+   */
+  public final void stop() {
+    if (!stopping.compareAndSet(false, true)) {
+      try {
+        stopped.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return;
+    }
+    try {
+      running = false;
+      if (ended != null) {
+        final long timeout = Units.parseDuration(D_DRAIN_TIMEOUT);
+        if (!ended.await(timeout, TimeUnit.NANOSECONDS)) {
+          LOGGER.log(Level.WARNING, "Lanes not stopped after {0}, their"
+            + " batches will be moved again", D_DRAIN_TIMEOUT);
+        }
+        executor.shutdownNow();
+      }
+      stats.finish();
+      if (intervalReporter != null) {
+        intervalReporter.stop();
+      }
+      if (reportWriter != null) {
+        final Map<String, Object> summary = stats.summaryRow();
+        summary.put("batches", batches.get());
+        summary.put("lanes", lanes);
+        summary.put("mode", mode);
+        reportWriter.write(summary);
+        reportWriter.close();
+      }
+    } catch (JTKException e) {
+      LOGGER.log(Level.WARNING, "Not a valid drain timeout", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      close();
+      stopped.countDown();
+    }
+  }
+
+  /**
+   * Close both connections, and with them the sessions.
+   */
+  private void close() {
+    for (Connection connection
+      : new Connection[]{sourceConnection, targetConnection}) {
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (JMSException e) {
+          LOGGER.log(Level.FINE, "Could not close connection", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param inFileName JNDI properties of the target, empty to use the
+   * source's
+   * @param inName JNDI name of the target connection factory
+   * @return the connection factory, with the credentials of the target
+   * @throws JTKException if it can not be looked up
+   */
+  private static ConnectionFactory lookupTargetFactory(
+    final String inFileName, final String inName) throws JTKException {
+    final Properties environment = targetEnvironment(inFileName);
+    final UserCredentialsConnectionFactoryAdapter auth =
+      new UserCredentialsConnectionFactoryAdapter();
+    auth.setTargetConnectionFactory(lookup(environment, inName,
+      ConnectionFactory.class));
+    auth.setUsername(environment.getProperty("jmstoolkit.username",
+      System.getProperty("jmstoolkit.username", "")));
+    auth.setPassword(environment.getProperty("jmstoolkit.password",
+      System.getProperty("jmstoolkit.password", "")));
+    return auth;
+  }
+
+  /**
+   * @param inFileName JNDI properties of the target, empty to use the
+   * source's
+   * @return the JNDI environment of the target
+   * @throws JTKException if the file can not be read
+   */
+  private static Properties targetEnvironment(final String inFileName)
+    throws JTKException {
+    final Properties environment = new Properties();
+    if (inFileName.isEmpty()) {
+      // jndi.properties was loaded into the system properties
+      environment.putAll(System.getProperties());
+      return environment;
+    }
+    try (InputStream in = new FileInputStream(inFileName)) {
+      environment.load(in);
+    } catch (IOException e) {
+      throw new JTKException("Could not read target JNDI properties: "
+        + inFileName, e);
+    }
+    return environment;
+  }
+
+  /**
+   * @param inEnvironment a JNDI environment
+   * @param inName the name to look up
+   * @param inType the type of the object
+   * @return the object
+   * @throws JTKException if it can not be looked up
+   */
+  private static <T> T lookup(final Properties inEnvironment,
+    final String inName, final Class<T> inType) throws JTKException {
+    try {
+      return new JndiTemplate(inEnvironment).lookup(inName, inType);
+    } catch (NamingException e) {
+      throw new JTKException("Could not look up: " + inName, e);
+    }
+  }
+
+  /**
+   * @param args command line arguments, see -h
+   */
+  public static void main(final String[] args) {
+    System.out.println("JMSToolKit - http://jmstoolkit.com/\n");
+    try {
+      Settings.loadSystemSettings(Settings.APP_PROPERTIES);
+    } catch (JTKException e) {
+      // no app.properties, -i, -c and -o are needed
+    }
+    final Bridge bridge = new Bridge();
+    String jndiPropertiesFileName = Sender.D_JNDI_PROPERTIES;
+    String targetJndiFileName = "";
+    long messages = 0;
+    String duration = "";
+    String idle = "";
+    String interval = "";
+    String reportFormat = ReportWriter.FORMAT_TEXT;
+    String reportFileName = "";
+    final Getopt getopt = new Getopt(APP_NAME, args,
+      "c:i:j:C:o:k:t:b:a:n:e:d:I:F:R:VJ:h", LONG_OPTIONS);
+    int optionLetter;
+    while ((optionLetter = getopt.getopt()) != -1) {
+      switch (optionLetter) {
+        case 'c':
+          System.setProperty(Receiver.P_CONNECTION_FACTORY_NAME,
+            getopt.getOptarg());
+          break;
+        case 'i':
+          System.setProperty(Receiver.P_DESTINATION_NAME, getopt.getOptarg());
+          break;
+        case 'j':
+          jndiPropertiesFileName = getopt.getOptarg();
+          break;
+        case 'C':
+          System.setProperty(P_TARGET_CONNECTION_FACTORY_NAME,
+            getopt.getOptarg());
+          break;
+        case 'o':
+          System.setProperty(P_TARGET_DESTINATION_NAME, getopt.getOptarg());
+          break;
+        case 'k':
+          targetJndiFileName = getopt.getOptarg();
+          break;
+        case 't':
+          bridge.setLanes(Integer.parseInt(getopt.getOptarg()));
+          break;
+        case 'b':
+          bridge.setBatchSize(Integer.parseInt(getopt.getOptarg()));
+          break;
+        case 'a':
+          bridge.setMode(getopt.getOptarg());
+          break;
+        case 'n':
+          messages = Long.parseLong(getopt.getOptarg());
+          break;
+        case 'e':
+          idle = getopt.getOptarg();
+          break;
+        case 'd':
+          duration = getopt.getOptarg();
+          break;
+        case 'I':
+          interval = getopt.getOptarg();
+          break;
+        case 'F':
+          reportFormat = getopt.getOptarg();
+          break;
+        case 'R':
+          reportFileName = getopt.getOptarg();
+          break;
+        case 'V':
+          bridge.setThreadMode(ThreadMode.VIRTUAL);
+          break;
+        case 'J':
+          try {
+            Flight.startRecording(getopt.getOptarg());
+          } catch (JTKException e) {
+            System.out.println(e.toStringWithStackTrace());
+            System.exit(X_ERROR);
+          }
+          break;
+        case 'h':
+          System.out.println("Arguments:\n"
+            + "  [ -i JMS Destination JNDI name ] source\n"
+            + "  [ -c JMS ConnectionFactory JNDI name ] source\n"
+            + "  [ -j JNDI properties ] source\n"
+            + "  -o | --target JMS Destination JNDI name\n"
+            + "  [ -C | --target-cf JMS ConnectionFactory JNDI name ]"
+            + " (default: -c)\n"
+            + "  [ -k | --target-jndi JNDI properties ] of another"
+            + " provider or broker,\n"
+            + "     with jmstoolkit.username and jmstoolkit.password if"
+            + " needed (default: -j)\n"
+            + "  [ -t | --threads count ] lanes, a session on each side"
+            + " each (default: 1)\n"
+            + "  [ -b | --batch count ] messages moved together"
+            + " (default: 100)\n"
+            + "  [ -a | --mode transacted | client ] commit on the target,"
+            + " then on the\n"
+            + "     source; or async sends, then client acknowledge"
+            + " (default: transacted)\n"
+            + "  [ -n count ] stop after moving this many messages\n"
+            + "  [ -e | --idle time ] stop once the source was empty this"
+            + " long, e.g. 30s\n"
+            + "  [ -d | --duration time ] stop after a time, e.g. 30m\n"
+            + "  [ -I | --interval time ] time between reports"
+            + " (default: 10s)\n"
+            + "  [ -F | --format text | csv | json ] report format\n"
+            + "  [ -R | --report-file file ] append reports to a file\n"
+            + "  [ -V | --virtual ] run the lanes on virtual threads"
+            + " (Java 21)\n"
+            + "  [ -J | --jfr file ] write a Flight Recorder recording on"
+            + " exit");
+          System.exit(X_ERROR);
+      }
+    }
+    try {
+      Settings.loadSystemSettings(System.getProperty(
+        Sender.D_JNDI_PROPERTIES, jndiPropertiesFileName));
+      final String targetName =
+        System.getProperty(P_TARGET_DESTINATION_NAME, "");
+      if (targetName.isEmpty()) {
+        throw new JTKException("No target destination, use -o");
+      }
+      final String sourceFactoryName =
+        System.getProperty(Receiver.P_CONNECTION_FACTORY_NAME, "");
+      final String targetFactoryName = System.getProperty(
+        P_TARGET_CONNECTION_FACTORY_NAME, sourceFactoryName);
+      if (targetJndiFileName.isEmpty()
+        && targetFactoryName.equals(sourceFactoryName) && targetName.equals(
+          System.getProperty(Receiver.P_DESTINATION_NAME, ""))) {
+        throw new JTKException("The source and the target are the same: "
+          + targetName);
+      }
+      final ClassPathXmlApplicationContext applicationContext =
+        new ClassPathXmlApplicationContext(new String[]{"/app-context.xml"});
+      bridge.setSource(applicationContext.getBean("authConnectionFactory",
+        ConnectionFactory.class),
+        applicationContext.getBean("input", Destination.class));
+      bridge.setTarget(
+        lookupTargetFactory(targetJndiFileName, targetFactoryName),
+        lookup(targetEnvironment(targetJndiFileName), targetName,
+          Destination.class));
+      if (!idle.isEmpty()) {
+        bridge.setIdle(Units.parseDuration(idle));
+      }
+      bridge.startReports(
+        ReportWriter.create(reportFormat, reportFileName, System.out),
+        Units.parseDuration(interval.isEmpty() ? D_INTERVAL : interval));
+      bridge.start(messages);
+      // on SIGTERM, finish the batches in hand and print the statistics
+      Runtime.getRuntime().addShutdownHook(new Thread(bridge::stop, "drain"));
+      bridge.await(duration.isEmpty() ? 0 : Units.parseDuration(duration));
+    } catch (JTKException e) {
+      System.out.println(e.toStringWithStackTrace());
+      System.exit(X_ERROR);
+    } catch (JMSException e) {
+      System.out.println(JTKException.formatException(e));
+      System.exit(X_ERROR);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    bridge.stop();
+    System.exit(bridge.failed ? X_ERROR : 0);
+  }
+
+  /**
+   * @param inConnectionFactory where the messages come from
+   * @param inDestination the source destination
+   */
+  public final void setSource(final ConnectionFactory inConnectionFactory,
+    final Destination inDestination) {
+    this.sourceConnectionFactory = inConnectionFactory;
+    this.source = inDestination;
+  }
+
+  /**
+   * @param inConnectionFactory where the messages go
+   * @param inDestination the target destination
+   */
+  public final void setTarget(final ConnectionFactory inConnectionFactory,
+    final Destination inDestination) {
+    this.targetConnectionFactory = inConnectionFactory;
+    this.target = inDestination;
+  }
+
+  /**
+   * @return transacted or client
+   */
+  public final String getMode() {
+    return mode;
+  }
+
+  /**
+   * @param inMode transacted or client
+   * @throws IllegalArgumentException if the mode is not known
+   */
+  public final void setMode(final String inMode) {
+    if (!MODE_TRANSACTED.equals(inMode) && !MODE_CLIENT.equals(inMode)) {
+      throw new IllegalArgumentException("Unknown bridge mode: " + inMode);
+    }
+    this.mode = inMode;
+  }
+
+  /**
+   * @return the number of lanes
+   */
+  public final int getLanes() {
+    return lanes;
+  }
+
+  /**
+   * @param inLanes the number of lanes, a session on each side each
+   */
+  public final void setLanes(final int inLanes) {
+    this.lanes = Math.max(1, inLanes);
+  }
+
+  /**
+   * @return the largest number of messages moved together
+   */
+  public final int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @param inBatchSize the largest number of messages moved together
+   */
+  public final void setBatchSize(final int inBatchSize) {
+    this.batchSize = Math.max(1, inBatchSize);
+  }
+
+  /**
+   * @return platform or virtual
+   */
+  public final String getThreadMode() {
+    return threadMode;
+  }
+
+  /**
+   * @param inThreadMode platform or virtual
+   */
+  public final void setThreadMode(final String inThreadMode) {
+    this.threadMode = inThreadMode;
+  }
+
+  /**
+   * @return how long the source may be empty before stopping (ns)
+   */
+  public final long getIdle() {
+    return idle;
+  }
+
+  /**
+   * @param inIdle how long the source may be empty before stopping (ns),
+   * 0 to keep going
+   */
+  public final void setIdle(final long inIdle) {
+    this.idle = inIdle;
+  }
+}
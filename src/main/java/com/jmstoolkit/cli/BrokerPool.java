@@ -0,0 +1,482 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.ConnectionFactory;
+import javax.naming.NamingException;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jms.JmsException;
+import org.springframework.jms.UncategorizedJmsException;
+import org.springframework.jms.connection.CachingConnectionFactory;
+import org.springframework.jms.connection.UserCredentialsConnectionFactoryAdapter;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.core.MessageCreator;
+import org.springframework.jndi.JndiTemplate;
+
+/**
+ * Spreads sends over several brokers, one JNDI connection factory each,
+ * for broker clusters without a load balancer in front. The next broker is
+ * picked round-robin, or the one with the fewest sends in progress. A send
+ * that fails is retried on the next broker.
+ * <p>
+ * A broker that fails is left out for a back-off time that doubles with
+ * each failure in a row, from 1s up to 30s. A broker whose average send
+ * time is several times that of the fastest broker is slow and left out
+ * for 5s. After that it gets a send again, which brings it back if it
+ * works.
+ * <p>
+ * For ActiveMQ, define the factories in jndi.properties:
+ * <pre>
+ * connectionFactoryNames = broker1, broker2
+ * connection.broker1.brokerURL = tcp://host1:61616
+ * connection.broker2.brokerURL = tcp://host2:61616
+ * </pre>
+ * and set jmstoolkit.cfs=broker1,broker2 in app.properties or with -B.
+ *
+ * @author Scott Douglass
+ */
+public class BrokerPool {
+
+  /** Logger for the class. */
+  private static final Logger LOGGER =
+    Logger.getLogger(BrokerPool.class.getName());
+  /** Property name of the comma separated connection factory names. */
+  public static final String P_CONNECTION_FACTORIES = "jmstoolkit.cfs";
+  /** Property name of the routing policy. */
+  public static final String P_BALANCE = "jmstoolkit.balance";
+  /** Each broker in turn. */
+  public static final String ROUND_ROBIN = "round-robin";
+  /** The broker with the fewest sends in progress. */
+  public static final String LEAST_OUTSTANDING = "least-outstanding";
+  /** First back-off after a failure (ns). */
+  private static final long MIN_BACKOFF = TimeUnit.SECONDS.toNanos(1);
+  /** Longest back-off after failures in a row (ns). */
+  private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(30);
+  /** Time a slow broker is left out (ns). */
+  private static final long SLOW_PAUSE = TimeUnit.SECONDS.toNanos(5);
+  /** Times the fastest average send time that makes a broker slow. */
+  private static final double SLOW_FACTOR = 4.0;
+  /** Average send times under this are never slow (us). */
+  private static final double SLOW_FLOOR = 1000.0;
+  /** Sends before the average send time is trusted. */
+  private static final long MIN_SAMPLES = 100;
+  /** Sends, connecting included, that only seed the average. */
+  private static final long SEED_SAMPLES = 10;
+  /** Weight of a new send time in the average. */
+  private static final double ALPHA = 0.05;
+  /** The brokers. */
+  private final List<Broker> brokers;
+  /** Round-robin or least-outstanding. */
+  private final String balance;
+  /** Next broker for round-robin. */
+  private final AtomicInteger next = new AtomicInteger();
+  /** Start of the counters (ns). */
+  private volatile long startNanos = System.nanoTime();
+
+  /**
+   * @param inBrokers the brokers
+   * @param inBalance round-robin or least-outstanding
+   * @throws JTKException if there are no brokers or the policy is not known
+   */
+  public BrokerPool(final List<Broker> inBrokers, final String inBalance)
+    throws JTKException {
+    if (inBrokers.isEmpty()) {
+      throw new JTKException("No brokers");
+    }
+    if (!ROUND_ROBIN.equals(inBalance)
+      && !LEAST_OUTSTANDING.equals(inBalance)) {
+      throw new JTKException("Unknown balance policy: " + inBalance);
+    }
+    this.brokers = inBrokers;
+    this.balance = inBalance;
+  }
+
+  /**
+   * A pool of the connection factories named by jmstoolkit.cfs, sending
+   * like a template.
+   *
+   * @param inContext the application context
+   * @param inTemplate the template to copy the destination and message
+   * converter from
+   * @return the pool, null if jmstoolkit.cfs is not set
+   * @throws JTKException if a connection factory can not be looked up
+   */
+  public static BrokerPool create(
+    final ConfigurableApplicationContext inContext,
+    final JmsTemplate inTemplate) throws JTKException {
+    final String names = resolve(inContext, P_CONNECTION_FACTORIES, "");
+    if (names.trim().isEmpty()) {
+      return null;
+    }
+    // jndi.properties was loaded into the system properties, pass all of
+    // it so provider settings such as connectionFactoryNames are seen
+    final JndiTemplate jndi = new JndiTemplate(System.getProperties());
+    final String username = resolve(inContext, "jmstoolkit.username", "");
+    final String password = resolve(inContext, "jmstoolkit.password", "");
+    final List<Broker> brokers = new ArrayList<>();
+    for (String name : names.split(",")) {
+      if (name.trim().isEmpty()) {
+        continue;
+      }
+      final UserCredentialsConnectionFactoryAdapter auth =
+        new UserCredentialsConnectionFactoryAdapter();
+      try {
+        auth.setTargetConnectionFactory(
+          jndi.lookup(name.trim(), ConnectionFactory.class));
+      } catch (NamingException e) {
+        throw new JTKException("Could not look up: " + name.trim(), e);
+      }
+      auth.setUsername(username);
+      auth.setPassword(password);
+      final CachingConnectionFactory caching =
+        new CachingConnectionFactory(auth);
+      caching.setCacheProducers(true);
+      caching.setSessionCacheSize(Integer.parseInt(
+        resolve(inContext, Sender.P_SESSION_CACHE, "1")));
+      final JmsTemplate template = new JmsTemplate(caching);
+      template.setDefaultDestination(inTemplate.getDefaultDestination());
+      template.setMessageConverter(inTemplate.getMessageConverter());
+      brokers.add(new Broker(name.trim(), template, caching));
+    }
+    return new BrokerPool(brokers,
+      resolve(inContext, P_BALANCE, ROUND_ROBIN));
+  }
+
+  /**
+   * @param inContext the application context
+   * @param inName a property name
+   * @param inDefault the default value
+   * @return the value from the system or app.properties
+   */
+  private static String resolve(
+    final ConfigurableApplicationContext inContext, final String inName,
+    final String inDefault) {
+    return inContext.getBeanFactory()
+      .resolveEmbeddedValue("${" + inName + ":" + inDefault + "}");
+  }
+
+  /**
+   * Send on the next broker, and on the others in turn if it fails.
+   *
+   * @param inCreator creates the message
+   * @return the broker that took the message
+   * @throws JmsException the last failure, if no broker took the message
+   */
+  public final Broker send(final MessageCreator inCreator) {
+    final List<Broker> tried = new ArrayList<>(brokers.size());
+    JmsException failure = null;
+    Broker broker;
+    while ((broker = choose(tried)) != null) {
+      tried.add(broker);
+      final long start = System.nanoTime();
+      broker.outstanding.incrementAndGet();
+      try {
+        broker.template.send(inCreator);
+        broker.succeeded((System.nanoTime() - start) / 1000);
+        checkSlow(broker);
+        return broker;
+      } catch (JmsException e) {
+        failure = e;
+        broker.failed(e);
+      } finally {
+        broker.outstanding.decrementAndGet();
+      }
+    }
+    throw failure != null ? failure
+      : new UncategorizedJmsException("No broker available");
+  }
+
+  /**
+   * @param inTried brokers already tried for this send
+   * @return the next broker to try, null if all were tried
+   */
+  private Broker choose(final List<Broker> inTried) {
+    final long now = System.nanoTime();
+    final List<Broker> skipped = new ArrayList<>();
+    while (true) {
+      final int first =
+        Math.floorMod(next.getAndIncrement(), brokers.size());
+      Broker best = null;
+      Broker soonest = null;
+      for (int i = 0; i < brokers.size(); i++) {
+        final Broker broker = brokers.get((first + i) % brokers.size());
+        if (inTried.contains(broker) || skipped.contains(broker)) {
+          continue;
+        }
+        if (broker.isAvailable(now)) {
+          if (best == null || LEAST_OUTSTANDING.equals(balance)
+            && broker.outstanding.get() < best.outstanding.get()) {
+            best = broker;
+          }
+        } else if (soonest == null
+          || broker.downUntil - soonest.downUntil < 0) {
+          soonest = broker;
+        }
+      }
+      if (best == null) {
+        // when every broker is out, keep trying the one back soonest;
+        // if others are probing the ones coming back, send there anyway
+        if (soonest == null && !skipped.isEmpty()) {
+          return skipped.get(0);
+        }
+        return soonest;
+      }
+      if (best.claim()) {
+        return best;
+      }
+      skipped.add(best);
+    }
+  }
+
+  /**
+   * Leave a broker out for a while if it is much slower than the fastest.
+   *
+   * @param inBroker a broker that just sent
+   */
+  private void checkSlow(final Broker inBroker) {
+    if (inBroker.samples.sum() < MIN_SAMPLES
+      || inBroker.average < SLOW_FLOOR) {
+      return;
+    }
+    double fastest = Double.MAX_VALUE;
+    for (Broker broker : brokers) {
+      if (broker != inBroker && broker.isAvailable(System.nanoTime())
+        && broker.samples.sum() >= MIN_SAMPLES) {
+        fastest = Math.min(fastest, broker.average);
+      }
+    }
+    if (fastest < Double.MAX_VALUE
+      && inBroker.average > SLOW_FACTOR * fastest) {
+      inBroker.slow();
+    }
+  }
+
+  /**
+   * Start the per-broker counters again, for example after a warm-up.
+   */
+  public final void resetCounters() {
+    for (Broker broker : brokers) {
+      broker.resetCounters();
+    }
+    startNanos = System.nanoTime();
+  }
+
+  /**
+   * @return the number of brokers that are not left out
+   */
+  public final int getAvailable() {
+    final long now = System.nanoTime();
+    int available = 0;
+    for (Broker broker : brokers) {
+      if (broker.isAvailable(now)) {
+        available++;
+      }
+    }
+    return available;
+  }
+
+  /**
+   * @return one row per broker since the counters were started
+   */
+  public final List<Map<String, Object>> rows() {
+    final double seconds =
+      Math.max(1, System.nanoTime() - startNanos) / 1e9;
+    final long now = System.nanoTime();
+    final List<Map<String, Object>> rows = new ArrayList<>();
+    for (Broker broker : brokers) {
+      final Map<String, Object> row = new LinkedHashMap<>();
+      row.put(ReportWriter.TYPE, "broker");
+      row.put("time", Instant.now().toString());
+      row.put("broker", broker.name);
+      row.put("messages", broker.messages.sum());
+      row.put("rate", broker.messages.sum() / seconds);
+      row.put("errors", broker.errors.sum());
+      row.put("state", broker.getState(now));
+      row.put("avg_send_us", broker.average);
+      RunStats.addLatencies(row, broker.latencies);
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  /**
+   * @return the brokers
+   */
+  public final List<Broker> getBrokers() {
+    return brokers;
+  }
+
+  /**
+   * @return round-robin or least-outstanding
+   */
+  public final String getBalance() {
+    return balance;
+  }
+
+  /** One broker of the pool. */
+  public static final class Broker {
+    /** JNDI name of the connection factory. */
+    private final String name;
+    /** Sends to the broker. */
+    private final JmsTemplate template;
+    /** Connection of the template, reset after a failure. */
+    private final CachingConnectionFactory connectionFactory;
+    /** Sends in progress. */
+    private final AtomicInteger outstanding = new AtomicInteger();
+    /** Messages sent. */
+    private final LongAdder messages = new LongAdder();
+    /** Failed sends. */
+    private final LongAdder errors = new LongAdder();
+    /** Sends in the average. */
+    private final LongAdder samples = new LongAdder();
+    /** Send times. */
+    private volatile LatencyHistogram latencies = new LatencyHistogram();
+    /** Moving average send time (us). */
+    private volatile double average = 0;
+    /** Failures in a row. */
+    private int failures = 0;
+    /** Left out until this time (ns), 0 when in. */
+    private volatile long downUntil = 0;
+    /** Why it is left out. */
+    private volatile String reason = "up";
+    /** True while the first send after being left out is running. */
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    /**
+     * @param inName JNDI name of the connection factory
+     * @param inTemplate sends to the broker
+     * @param inConnectionFactory connection of the template
+     */
+    Broker(final String inName, final JmsTemplate inTemplate,
+      final CachingConnectionFactory inConnectionFactory) {
+      this.name = inName;
+      this.template = inTemplate;
+      this.connectionFactory = inConnectionFactory;
+    }
+
+    /**
+     * @param inNow the time (ns)
+     * @return true if sends may go to the broker, only one at a time when
+     * it comes back
+     */
+    private boolean isAvailable(final long inNow) {
+      final long until = downUntil;
+      return until == 0 || (inNow - until >= 0 && !probing.get());
+    }
+
+    /**
+     * @return false if another send is already trying the broker after it
+     * was left out
+     */
+    private boolean claim() {
+      return downUntil == 0 || probing.compareAndSet(false, true);
+    }
+
+    /**
+     * @param inNow the time (ns)
+     * @return up, slow or down
+     */
+    private String getState(final long inNow) {
+      final long until = downUntil;
+      return until == 0 || inNow - until >= 0 ? "up" : reason;
+    }
+
+    /**
+     * @param inMicros the send time
+     */
+    private synchronized void succeeded(final long inMicros) {
+      messages.increment();
+      samples.increment();
+      latencies.record(inMicros);
+      if (downUntil != 0) {
+        // back after being left out, forget how slow it was
+        LOGGER.log(Level.INFO, "Broker {0} is back", name);
+        average = inMicros;
+        samples.reset();
+        samples.increment();
+        downUntil = 0;
+        probing.set(false);
+      } else if (samples.sum() <= SEED_SAMPLES) {
+        average = inMicros;
+      } else {
+        average = average + ALPHA * (inMicros - average);
+      }
+      failures = 0;
+    }
+
+    /**
+     * @param inFailure why the send failed
+     */
+    private synchronized void failed(final JmsException inFailure) {
+      errors.increment();
+      failures++;
+      final long backoff = Math.min(MAX_BACKOFF,
+        MIN_BACKOFF << Math.min(failures - 1, 16));
+      LOGGER.log(Level.WARNING, "Broker " + name + " failed, left out for "
+        + TimeUnit.NANOSECONDS.toMillis(backoff) + "ms", inFailure);
+      downUntil = System.nanoTime() + backoff;
+      reason = "down";
+      probing.set(false);
+      connectionFactory.resetConnection();
+    }
+
+    /**
+     * Leave the broker out for a while.
+     */
+    private synchronized void slow() {
+      if (downUntil == 0) {
+        LOGGER.log(Level.WARNING, "Broker {0} is slow, average send (us): "
+          + "{1}", new Object[]{name, average});
+        downUntil = System.nanoTime() + SLOW_PAUSE;
+        reason = "slow";
+      }
+    }
+
+    /**
+     * Start the counters again.
+     */
+    private void resetCounters() {
+      messages.reset();
+      errors.reset();
+      latencies = new LatencyHistogram();
+    }
+
+    /**
+     * @return JNDI name of the connection factory
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return the messages sent
+     */
+    public long getMessages() {
+      return messages.sum();
+    }
+  }
+}
@@ -0,0 +1,588 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import com.jmstoolkit.Settings;
+import com.jmstoolkit.Units;
+import gnu.getopt.Getopt;
+import gnu.getopt.LongOpt;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+import javax.jms.Topic;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.jms.JmsException;
+
+/**
+ * Measures how fast consumers catch up on a backlog. A backlog is built
+ * with Blaster on a queue, or on a durable subscription that is
+ * disconnected while it fills up. Then consumers are started and the
+ * drain rate is reported over time. Optionally live messages are sent at a
+ * fixed rate while draining, to show how their latency suffers.
+ *
+ * @author Scott Douglass
+ */
+public class Catchup implements MessageListener {
+
+  /** Logger for the class. */
+  private static final Logger LOGGER =
+    Logger.getLogger(Catchup.class.getName());
+  /** Name of the application. */
+  private static final String APP_NAME = "Catchup";
+  /** Name of the Blaster bean. */
+  private static final String BLASTER = "QueueBlaster";
+  /** Backlog on a queue. */
+  public static final String MODE_QUEUE = "queue";
+  /** Backlog on a disconnected durable subscription. */
+  public static final String MODE_DURABLE = "durable";
+  /** Property marking live messages. */
+  public static final String LIVE = "jtk_live";
+  /** Default backlog size. */
+  private static final long D_BACKLOG = 10000;
+  /** Default message size. */
+  private static final int D_MESSAGE_SIZE = 32;
+  /** Default number of consumers. */
+  private static final int D_CONSUMERS = 1;
+  /** Default time between reports. */
+  private static final String D_INTERVAL = "1s";
+  /** Default time without backlog messages before giving up. */
+  private static final String D_IDLE = "30s";
+  /** Client id and name of the durable subscription. */
+  private static final String D_NAME = "jmstoolkit-catchup";
+  /** Exit code when an error occurs. */
+  private static final int X_ERROR = 1;
+  /** Long command line options. */
+  static final LongOpt[] LONG_OPTIONS = {
+    new LongOpt("backlog", LongOpt.REQUIRED_ARGUMENT, null, 'b'),
+    new LongOpt("mode", LongOpt.REQUIRED_ARGUMENT, null, 'm'),
+    new LongOpt("live-rate", LongOpt.REQUIRED_ARGUMENT, null, 'l'),
+    new LongOpt("idle", LongOpt.REQUIRED_ARGUMENT, null, 'e'),
+    new LongOpt("interval", LongOpt.REQUIRED_ARGUMENT, null, 'I'),
+    new LongOpt("format", LongOpt.REQUIRED_ARGUMENT, null, 'F'),
+    new LongOpt("report-file", LongOpt.REQUIRED_ARGUMENT, null, 'R'),
+    new LongOpt("jfr", LongOpt.REQUIRED_ARGUMENT, null, 'J')
+  };
+  /** Backlog messages drained, from the start of the drain. */
+  private volatile RunStats drained = new RunStats();
+  /** Live messages received while draining. */
+  private volatile RunStats live = new RunStats();
+  /** Counted down when the whole backlog is drained. */
+  private final CountDownLatch done = new CountDownLatch(1);
+  /** Builds the backlog and sends the live messages. */
+  private final Blaster blaster;
+  /** Where the consumers connect. */
+  private final ConnectionFactory connectionFactory;
+  /** Queue or topic of the backlog. */
+  private final Destination destination;
+  /** Connection of the consumers. */
+  private Connection connection = null;
+  /** Sessions of the consumers. */
+  private final List<Session> sessions = new ArrayList<>();
+  /** Queue or durable. */
+  private String mode = MODE_QUEUE;
+  /** Messages in the backlog. */
+  private long backlog = D_BACKLOG;
+  /** Backlog messages sent, failed sends left out; the drain target. */
+  private volatile long sent = Long.MAX_VALUE;
+  /** When the last backlog message was drained (ns). */
+  private volatile long lastDrained = System.nanoTime();
+  /** Stop when no backlog message came for this long (ns), 0 to wait. */
+  private long idle = TimeUnit.SECONDS.toNanos(30);
+  /** Number of consumers, only one for a durable subscription. */
+  private int consumers = D_CONSUMERS;
+  /** Live messages per second while draining, 0 for none. */
+  private double liveRate = 0;
+  /** Client id and name of the durable subscription. */
+  private String name = D_NAME;
+  /** Remove the durable subscription when done. */
+  private boolean unsubscribe = true;
+
+  /**
+   * @param inBlaster builds the backlog
+   * @param inConnectionFactory where the consumers connect
+   * @param inDestination queue or topic of the backlog
+   */
+  public Catchup(final Blaster inBlaster,
+    final ConnectionFactory inConnectionFactory,
+    final Destination inDestination) {
+    this.blaster = inBlaster;
+    this.connectionFactory = inConnectionFactory;
+    this.destination = inDestination;
+  }
+
+  @Override
+  public void onMessage(final Message inMessage) {
+    try {
+      final long latency = Receiver.latencyMicros(inMessage);
+      if (inMessage.propertyExists(LIVE)) {
+        live.record(0, latency);
+      } else {
+        // the latency of a backlog message is how far behind the drain is
+        drained.record(0, latency);
+        lastDrained = System.nanoTime();
+        // stray messages already on the queue may take it past the count
+        if (drained.getMessages() >= sent) {
+          finishDrain();
+        }
+      }
+    } catch (JMSException e) {
+      drained.recordError();
+      LOGGER.log(Level.WARNING, "Could not read message", e);
+    }
+  }
+
+  /**
+   * End the drain, once.
+   */
+  private synchronized void finishDrain() {
+    if (done.getCount() > 0) {
+      drained.finish();
+      done.countDown();
+    }
+  }
+
+  /**
+   * Create the durable subscription and disconnect it, so it keeps the
+   * messages sent while nobody is listening.
+   *
+   * @throws JMSException if the subscription can not be made
+   * @throws JTKException if the destination is not a topic
+   */
+  public final void prepare() throws JMSException, JTKException {
+    if (!MODE_DURABLE.equals(mode)) {
+      return;
+    }
+    if (!(destination instanceof Topic)) {
+      throw new JTKException("A durable backlog needs a topic: "
+        + destination);
+    }
+    final Connection subscriber = connectionFactory.createConnection();
+    try {
+      subscriber.setClientID(name);
+      subscriber.createSession(false, Session.AUTO_ACKNOWLEDGE)
+        .createDurableSubscriber((Topic) destination, name).close();
+    } finally {
+      subscriber.close();
+    }
+  }
+
+  /**
+   * Build the backlog, drain it and report.
+   *
+   * @param inWriter where the reports go
+   * @param inInterval time between reports (ns)
+   * @throws JMSException if the consumers fail
+   * @throws JTKException if the mode is not known
+   */
+  public final void run(final ReportWriter inWriter, final long inInterval)
+    throws JMSException, JTKException {
+    if (!MODE_QUEUE.equals(mode) && !MODE_DURABLE.equals(mode)) {
+      throw new JTKException("Unknown backlog mode: " + mode);
+    }
+    prepare();
+    System.out.println("Building a backlog of " + backlog + " messages...");
+    blaster.sendMessages(backlog);
+    sent = blaster.getStats().getMessages();
+    if (sent < backlog) {
+      System.out.println("Only " + sent + " of the backlog sent, "
+        + blaster.getStats().getErrors() + " sends failed");
+    }
+    if (MODE_DURABLE.equals(mode)) {
+      consumers = 1;
+    }
+    System.out.println("Draining with " + consumers + " consumers...");
+    drained = new RunStats();
+    live = new RunStats();
+    final IntervalReporter reporter =
+      new IntervalReporter(drained, inWriter, inInterval) {
+        @Override
+        protected Map<String, Object> row() {
+          return drainRow(drained.intervalRow(), live.intervalRow());
+        }
+      };
+    final Thread liveSender = startLiveSender();
+    reporter.start();
+    lastDrained = System.nanoTime();
+    startConsumers();
+    if (sent == 0) {
+      finishDrain();
+    }
+    try {
+      while (!done.await(100, TimeUnit.MILLISECONDS)) {
+        if (idle > 0 && System.nanoTime() - lastDrained >= idle) {
+          System.out.println("No backlog messages for "
+            + TimeUnit.NANOSECONDS.toSeconds(idle) + "s, "
+            + (sent - drained.getMessages()) + " not drained");
+          finishDrain();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    reporter.stop();
+    if (liveSender != null) {
+      liveSender.interrupt();
+    }
+    final Map<String, Object> summary =
+      drainRow(drained.summaryRow(), live.summaryRow());
+    summary.put("backlog", backlog);
+    summary.put("backlog_sent", sent);
+    summary.put("consumers", consumers);
+    summary.put("live_rate", liveRate);
+    inWriter.write(summary);
+    stopConsumers();
+  }
+
+  /**
+   * @param inDrained a row of the drained messages
+   * @param inLive a row of the live messages in the same period
+   * @return a drain row, latencies of backlog messages are their age
+   */
+  private Map<String, Object> drainRow(final Map<String, Object> inDrained,
+    final Map<String, Object> inLive) {
+    inDrained.remove("bytes");
+    inDrained.remove("mb_s");
+    inDrained.put("remaining",
+      Math.max(0, Math.min(sent, backlog) - drained.getMessages()));
+    inDrained.put("live_messages", inLive.get("messages"));
+    inDrained.put("live_p50_us", inLive.get("p50_us"));
+    inDrained.put("live_p99_us", inLive.get("p99_us"));
+    inDrained.put("live_max_us", inLive.get("max_us"));
+    return inDrained;
+  }
+
+  /**
+   * @return the thread sending live messages, null if there are none
+   */
+  private Thread startLiveSender() {
+    if (liveRate <= 0) {
+      return null;
+    }
+    final long period = (long) (TimeUnit.SECONDS.toNanos(1) / liveRate);
+    final Thread sender = new Thread(() -> {
+      long next = System.nanoTime();
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          blaster.sendMessage(blaster.getMessage(), message -> {
+            message.setBooleanProperty(LIVE, true);
+            return message;
+          });
+        } catch (JmsException e) {
+          live.recordError();
+          LOGGER.log(Level.WARNING, "Live send failed", e);
+        }
+        next += period;
+        final long wait = next - System.nanoTime();
+        if (wait > 0) {
+          try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    }, "live");
+    sender.setDaemon(true);
+    sender.start();
+    return sender;
+  }
+
+  /**
+   * @throws JMSException if a consumer can not be created
+   */
+  private void startConsumers() throws JMSException {
+    connection = connectionFactory.createConnection();
+    final boolean durable = MODE_DURABLE.equals(mode);
+    if (durable) {
+      connection.setClientID(name);
+    }
+    for (int i = 0; i < consumers; i++) {
+      final Session session =
+        connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      sessions.add(session);
+      final MessageConsumer consumer = durable
+        ? session.createDurableSubscriber((Topic) destination, name)
+        : session.createConsumer(destination);
+      consumer.setMessageListener(this);
+    }
+    connection.start();
+  }
+
+  /**
+   * Close the consumers, and remove the durable subscription.
+   */
+  private void stopConsumers() {
+    try {
+      connection.stop();
+      if (MODE_DURABLE.equals(mode) && unsubscribe) {
+        final Session session = sessions.get(0);
+        session.close();
+        connection.createSession(false, Session.AUTO_ACKNOWLEDGE)
+          .unsubscribe(name);
+      }
+      connection.close();
+    } catch (JMSException e) {
+      LOGGER.log(Level.WARNING, "Could not close the consumers", e);
+    }
+  }
+
+  /**
+   * @param args command line arguments, see -h
+   */
+  public static void main(final String[] args) {
+    System.out.println("JMSToolKit - http://jmstoolkit.com/\n");
+    String jndiPropertiesFileName = Sender.D_JNDI_PROPERTIES;
+    String mode = MODE_QUEUE;
+    long backlog = D_BACKLOG;
+    int messageSize = D_MESSAGE_SIZE;
+    int consumers = D_CONSUMERS;
+    double liveRate = 0;
+    boolean keep = false;
+    String name = D_NAME;
+    String interval = D_INTERVAL;
+    String idle = D_IDLE;
+    String reportFormat = ReportWriter.FORMAT_TEXT;
+    String reportFileName = "";
+    final Getopt getopt = new Getopt(APP_NAME, args,
+      "c:i:j:b:m:s:k:l:e:x:KI:F:R:J:h", LONG_OPTIONS);
+    int optionLetter;
+    while ((optionLetter = getopt.getopt()) != -1) {
+      switch (optionLetter) {
+        case 'c':
+          System.setProperty(Receiver.P_CONNECTION_FACTORY_NAME,
+            getopt.getOptarg());
+          break;
+        case 'i':
+          System.setProperty(Receiver.P_DESTINATION_NAME, getopt.getOptarg());
+          break;
+        case 'j':
+          jndiPropertiesFileName = getopt.getOptarg();
+          break;
+        case 'b':
+          backlog = Long.parseLong(getopt.getOptarg());
+          break;
+        case 'm':
+          mode = getopt.getOptarg();
+          break;
+        case 's':
+          messageSize = Integer.parseInt(getopt.getOptarg());
+          break;
+        case 'k':
+          consumers = Integer.parseInt(getopt.getOptarg());
+          break;
+        case 'l':
+          liveRate = Double.parseDouble(getopt.getOptarg());
+          break;
+        case 'e':
+          idle = getopt.getOptarg();
+          break;
+        case 'x':
+          name = getopt.getOptarg();
+          break;
+        case 'K':
+          keep = true;
+          break;
+        case 'I':
+          interval = getopt.getOptarg();
+          break;
+        case 'F':
+          reportFormat = getopt.getOptarg();
+          break;
+        case 'R':
+          reportFileName = getopt.getOptarg();
+          break;
+        case 'J':
+          try {
+            Flight.startRecording(getopt.getOptarg());
+          } catch (JTKException e) {
+            System.out.println(e.toStringWithStackTrace());
+            System.exit(X_ERROR);
+          }
+          break;
+        case 'h':
+          System.out.println("Arguments:\n  [ -i JMS Destination JNDI name ]\n"
+            + "  [ -c JMS ConnectionFactory JNDI name ]\n"
+            + "  [ -j JNDI properties ]\n"
+            + "  [ -m | --mode queue | durable ] backlog on a queue, or on"
+            + " a disconnected\n"
+            + "     durable subscription of a topic (default: queue)\n"
+            + "  [ -b | --backlog count ] backlog size (default: 10000)\n"
+            + "  [ -s size ] message size (default: 32)\n"
+            + "  [ -k consumers ] consumers draining a queue (default: 1)\n"
+            + "  [ -l | --live-rate messages ] live messages per second"
+            + " while draining\n"
+            + "  [ -e | --idle time ] stop draining when no backlog message"
+            + " came this long,\n"
+            + "     0 to wait for all (default: 30s)\n"
+            + "  [ -x name ] client id and subscription name"
+            + " (default: jmstoolkit-catchup)\n"
+            + "  [ -K ] keep the durable subscription\n"
+            + "  [ -I | --interval time ] time between reports"
+            + " (default: 1s)\n"
+            + "  [ -F | --format text | csv | json ] report format\n"
+            + "  [ -R | --report-file file ] append reports to a file\n"
+            + "  [ -J | --jfr file ] write a Flight Recorder recording on"
+            + " exit");
+          System.exit(X_ERROR);
+      }
+    }
+    try {
+      Settings.loadSystemSettings(System.getProperty(
+        Sender.D_JNDI_PROPERTIES, jndiPropertiesFileName));
+      final ClassPathXmlApplicationContext applicationContext =
+        new ClassPathXmlApplicationContext(new String[]{"/app-context.xml"});
+      final Blaster blaster =
+        applicationContext.getBean(BLASTER, Blaster.class);
+      final ReportWriter writer =
+        ReportWriter.create(reportFormat, reportFileName, System.out);
+      final long reportInterval = Units.parseDuration(interval);
+      blaster.setMessage(blaster.createMessage(messageSize));
+      blaster.setReportWriter(writer);
+      blaster.setReportInterval(reportInterval);
+      final Catchup catchup = new Catchup(blaster,
+        applicationContext.getBean("authConnectionFactory",
+          ConnectionFactory.class),
+        applicationContext.getBean("input", Destination.class));
+      catchup.setMode(mode);
+      catchup.setBacklog(backlog);
+      catchup.setConsumers(consumers);
+      catchup.setLiveRate(liveRate);
+      catchup.setIdle(Units.parseDuration(idle));
+      catchup.setName(name);
+      catchup.setUnsubscribe(!keep);
+      catchup.run(writer, reportInterval);
+      writer.close();
+    } catch (JTKException e) {
+      System.out.println(e.toStringWithStackTrace());
+      System.exit(X_ERROR);
+    } catch (JMSException e) {
+      System.out.println(JTKException.formatException(e));
+      System.exit(X_ERROR);
+    }
+    System.exit(0);
+  }
+
+  /**
+   * @return the mode
+   */
+  public final String getMode() {
+    return mode;
+  }
+
+  /**
+   * @param inMode queue or durable
+   */
+  public final void setMode(final String inMode) {
+    this.mode = inMode;
+  }
+
+  /**
+   * @return the backlog size
+   */
+  public final long getBacklog() {
+    return backlog;
+  }
+
+  /**
+   * @param inBacklog the backlog size
+   */
+  public final void setBacklog(final long inBacklog) {
+    this.backlog = Math.max(1, inBacklog);
+  }
+
+  /**
+   * @return the number of consumers
+   */
+  public final int getConsumers() {
+    return consumers;
+  }
+
+  /**
+   * @param inConsumers the number of consumers draining a queue
+   */
+  public final void setConsumers(final int inConsumers) {
+    this.consumers = Math.max(1, inConsumers);
+  }
+
+  /**
+   * @return the live messages per second
+   */
+  public final double getLiveRate() {
+    return liveRate;
+  }
+
+  /**
+   * @param inLiveRate live messages per second while draining, 0 for none
+   */
+  public final void setLiveRate(final double inLiveRate) {
+    this.liveRate = inLiveRate;
+  }
+
+  /**
+   * @return how long without backlog messages before stopping (ns)
+   */
+  public final long getIdle() {
+    return idle;
+  }
+
+  /**
+   * @param inIdle how long without backlog messages before stopping the
+   * drain (ns), 0 to wait for every message sent
+   */
+  public final void setIdle(final long inIdle) {
+    this.idle = inIdle;
+  }
+
+  /**
+   * @return the client id and name of the durable subscription
+   */
+  public final String getName() {
+    return name;
+  }
+
+  /**
+   * @param inName the client id and name of the durable subscription
+   */
+  public final void setName(final String inName) {
+    this.name = inName;
+  }
+
+  /**
+   * @return true if the durable subscription is removed when done
+   */
+  public final boolean isUnsubscribe() {
+    return unsubscribe;
+  }
+
+  /**
+   * @param inUnsubscribe remove the durable subscription when done
+   */
+  public final void setUnsubscribe(final boolean inUnsubscribe) {
+    this.unsubscribe = inUnsubscribe;
+  }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import com.jmstoolkit.TextCodec;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * A claim check store: large payloads are written to a directory, local or
+ * shared with the receivers, and only a reference to them is sent through
+ * the broker. Files are named by the SHA-256 digest of their content, so
+ * a payload sent many times is stored once, and the receiver checks the
+ * digest before it uses the payload. The store is never cleaned up, remove
+ * old files from the directory when they are no longer needed.
+ * <p>
+ * A claim message has the file name as its text and the properties
+ * JTKClaimDigest, JTKClaimSize and JTKClaimCharset, the character set of
+ * the payload's text.
+ *
+ * @author Scott Douglass
+ */
+public final class ClaimStore {
+
+  /** Property name of the store directory. */
+  public static final String P_DIRECTORY = "jmstoolkit.claimcheck.dir";
+  /** Property name of the smallest payload sent by claim check. */
+  public static final String P_THRESHOLD = "jmstoolkit.claimcheck.threshold";
+  /** Default threshold. */
+  public static final String D_THRESHOLD = "1m";
+  /** Message property with the digest of the payload. */
+  public static final String DIGEST = "JTKClaimDigest";
+  /** Message property with the size of the payload. */
+  public static final String SIZE = "JTKClaimSize";
+  /** Message property with the character set of the payload. */
+  public static final String CHARSET = "JTKClaimCharset";
+  /** The digest algorithm, also the prefix of the digest property. */
+  private static final String ALGORITHM = "SHA-256";
+  /** Size of the copy buffer. */
+  private static final int COPY_BUFFER = 1 << 20;
+  /** Bytes and characters converted at a time. */
+  private static final int TRANSCODE_BUFFER = 1 << 20;
+  /** Largest part of a file mapped at once. */
+  private static final long MAP_CHUNK = 1L << 30;
+  /** The directory. */
+  private final Path directory;
+
+  /**
+   * @param inDirectory the store directory, created if needed
+   * @throws JTKException if the directory can not be created
+   */
+  public ClaimStore(final String inDirectory) throws JTKException {
+    this.directory = Paths.get(inDirectory);
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new JTKException("Could not create claim check store: "
+        + inDirectory, e);
+    }
+  }
+
+  /**
+   * Copy a file into the store, unless the same content is already there.
+   *
+   * @param inFile the payload
+   * @return the claim for it
+   * @throws IOException if the file can not be read or stored
+   */
+  public Claim put(final File inFile) throws IOException {
+    final MessageDigest digest = newDigest();
+    // not createTempFile, whose owner only permissions would keep
+    // receivers running as other users out of a shared store
+    final Path temporary =
+      directory.resolve("claim-" + UUID.randomUUID() + ".tmp");
+    long size = 0;
+    try {
+      try (FileChannel in = FileChannel.open(inFile.toPath(),
+          StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(temporary,
+          StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER);
+        while (in.read(buffer) >= 0) {
+          // through Buffer, the ByteBuffer overrides are Java 9 and later
+          ((Buffer) buffer).flip();
+          final int position = buffer.position();
+          digest.update(buffer);
+          ((Buffer) buffer).position(position);
+          while (buffer.hasRemaining()) {
+            size += out.write(buffer);
+          }
+          ((Buffer) buffer).clear();
+        }
+        out.force(false);
+      }
+      final String hex = toHex(digest.digest());
+      final Path stored = directory.resolve(hex);
+      // the same content may already be stored
+      if (!Files.exists(stored)) {
+        Files.move(temporary, stored, StandardCopyOption.ATOMIC_MOVE);
+      }
+      return new Claim(hex, ALGORITHM + ":" + hex, size);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * @param inMessage a received message
+   * @return true if the message is a claim on this kind of store
+   * @throws JMSException if the properties can not be read
+   */
+  public static boolean isClaim(final Message inMessage)
+    throws JMSException {
+    return inMessage.propertyExists(DIGEST);
+  }
+
+  /**
+   * Map the payload of a claim, after checking its size and digest.
+   *
+   * @param inReference the reference, the text of the claim message
+   * @param inMessage the claim message
+   * @return the payload, mapped read only in parts of at most 1 GB
+   * @throws IOException if the payload is missing, or does not match
+   * @throws JMSException if the properties can not be read
+   */
+  private MappedByteBuffer[] map(final String inReference,
+    final Message inMessage) throws IOException, JMSException {
+    final String reference = inReference.trim();
+    // only a digest, never a path out of the store
+    if (!reference.matches("[0-9a-f]{64}")) {
+      throw new IOException("Not a claim check reference: " + reference);
+    }
+    final Path file = directory.resolve(reference);
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ)) {
+      final long size = channel.size();
+      if (size != inMessage.getLongProperty(SIZE)) {
+        throw new IOException("Claim " + reference + " has " + size
+          + " bytes, expected " + inMessage.getLongProperty(SIZE));
+      }
+      final int parts = (int) ((size + MAP_CHUNK - 1) / MAP_CHUNK);
+      final MappedByteBuffer[] mapped = new MappedByteBuffer[parts];
+      final MessageDigest digest = newDigest();
+      for (int i = 0; i < parts; i++) {
+        final long start = i * MAP_CHUNK;
+        mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+          Math.min(MAP_CHUNK, size - start));
+        digest.update(mapped[i]);
+        ((Buffer) mapped[i]).rewind();
+      }
+      final String expected = inMessage.getStringProperty(DIGEST);
+      final String actual = ALGORITHM + ":" + toHex(digest.digest());
+      if (!actual.equalsIgnoreCase(expected)) {
+        throw new IOException("Claim " + reference + " digest " + actual
+          + " does not match " + expected);
+      }
+      return mapped;
+    }
+  }
+
+  /**
+   * Write the payload of a claim, in the given character set.
+   *
+   * @param inReference the reference, the text of the claim message
+   * @param inMessage the claim message
+   * @param inCharset the character set to write
+   * @param inOut where to write it
+   * @return the number of bytes written
+   * @throws IOException if the payload is missing, does not match, or can
+   * not be written
+   * @throws JMSException if the properties can not be read
+   */
+  public long write(final String inReference, final Message inMessage,
+    final Charset inCharset, final OutputStream inOut)
+    throws IOException, JMSException {
+    final MappedByteBuffer[] mapped = map(inReference, inMessage);
+    final Charset charset = payloadCharset(inMessage, inCharset);
+    long written = 0;
+    if (charset.equals(inCharset)) {
+      // the bytes are already right, no decoding
+      inOut.flush();
+      final WritableByteChannel out = Channels.newChannel(inOut);
+      for (MappedByteBuffer part : mapped) {
+        while (part.hasRemaining()) {
+          written += out.write(part);
+        }
+      }
+    } else {
+      written = transcode(mapped, charset, inCharset, inOut);
+    }
+    return written;
+  }
+
+  /**
+   * Convert a payload to another character set in small steps, with one
+   * decoder across the mapped parts, so a character split between two
+   * parts is kept whole and the text is never held in memory. Bad input
+   * is replaced, like TextCodec does.
+   *
+   * @param inParts the payload
+   * @param inFrom its character set
+   * @param inTo the character set to write
+   * @param inOut where to write it
+   * @return the number of bytes written
+   * @throws IOException if it can not be written
+   */
+  private static long transcode(final MappedByteBuffer[] inParts,
+    final Charset inFrom, final Charset inTo, final OutputStream inOut)
+    throws IOException {
+    final CharsetDecoder decoder = inFrom.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    final CharsetEncoder encoder = inTo.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    final ByteBuffer in = ByteBuffer.allocate(TRANSCODE_BUFFER);
+    final CharBuffer chars = CharBuffer.allocate(TRANSCODE_BUFFER);
+    final ByteBuffer out = ByteBuffer.allocate(TRANSCODE_BUFFER
+      * (int) Math.ceil(encoder.maxBytesPerChar()));
+    long written = 0;
+    for (MappedByteBuffer part : inParts) {
+      while (part.hasRemaining()) {
+        final ByteBuffer slice = part.duplicate();
+        ((Buffer) slice).limit(part.position()
+          + Math.min(in.remaining(), part.remaining()));
+        in.put(slice);
+        ((Buffer) part).position(slice.position());
+        ((Buffer) in).flip();
+        written += convert(decoder, encoder, in, chars, out, false, inOut);
+        // the bytes of a character that is not complete yet stay
+        in.compact();
+      }
+    }
+    ((Buffer) in).flip();
+    written += convert(decoder, encoder, in, chars, out, true, inOut);
+    decoder.flush(chars);
+    ((Buffer) chars).flip();
+    encoder.encode(chars, out, true);
+    encoder.flush(out);
+    return written + drain(out, inOut);
+  }
+
+  /**
+   * Decode what can be decoded and encode it again.
+   *
+   * @param inDecoder decoder of the payload
+   * @param inEncoder encoder of the output
+   * @param inBytes bytes of the payload
+   * @param inChars decoded characters, in write mode
+   * @param inEncoded encoded bytes, in write mode
+   * @param inEnd true if these are the last bytes of the payload
+   * @param inOut where to write
+   * @return the number of bytes written
+   * @throws IOException if they can not be written
+   */
+  private static long convert(final CharsetDecoder inDecoder,
+    final CharsetEncoder inEncoder, final ByteBuffer inBytes,
+    final CharBuffer inChars, final ByteBuffer inEncoded,
+    final boolean inEnd, final OutputStream inOut) throws IOException {
+    long written = 0;
+    CoderResult decoded;
+    do {
+      decoded = inDecoder.decode(inBytes, inChars, inEnd);
+      ((Buffer) inChars).flip();
+      CoderResult encoded;
+      do {
+        // the encoder only ends with the flush
+        encoded = inEncoder.encode(inChars, inEncoded, false);
+        written += drain(inEncoded, inOut);
+      } while (encoded.isOverflow());
+      // a high surrogate waits for its low one
+      inChars.compact();
+    } while (decoded.isOverflow());
+    return written;
+  }
+
+  /**
+   * @param inEncoded encoded bytes, in write mode, empty after
+   * @param inOut where to write them
+   * @return the number of bytes written
+   * @throws IOException if they can not be written
+   */
+  private static int drain(final ByteBuffer inEncoded,
+    final OutputStream inOut) throws IOException {
+    ((Buffer) inEncoded).flip();
+    final int length = inEncoded.remaining();
+    inOut.write(inEncoded.array(), inEncoded.arrayOffset(), length);
+    ((Buffer) inEncoded).clear();
+    return length;
+  }
+
+  /**
+   * @param inReference the reference, the text of the claim message
+   * @param inMessage the claim message
+   * @param inCharset character set if the message does not name one
+   * @return the payload as text
+   * @throws IOException if the payload is missing, does not match or is
+   * too large for a String
+   * @throws JMSException if the properties can not be read
+   */
+  public String readText(final String inReference, final Message inMessage,
+    final Charset inCharset) throws IOException, JMSException {
+    final MappedByteBuffer[] mapped = map(inReference, inMessage);
+    if (mapped.length > 1) {
+      throw new IOException("Claim too large for text: " + inReference);
+    }
+    return mapped.length == 0 ? ""
+      : TextCodec.get(payloadCharset(inMessage, inCharset))
+        .decode(mapped[0]);
+  }
+
+  /**
+   * @param inMessage the claim message
+   * @param inDefault character set if the message does not name one
+   * @return the character set of the payload
+   * @throws JMSException if the property can not be read
+   */
+  private static Charset payloadCharset(final Message inMessage,
+    final Charset inDefault) throws JMSException {
+    final String name = inMessage.getStringProperty(CHARSET);
+    return name == null ? inDefault : Charset.forName(name);
+  }
+
+  /**
+   * @return a new digest
+   */
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform has SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param inBytes bytes
+   * @return the bytes as lower case hex
+   */
+  private static String toHex(final byte[] inBytes) {
+    final StringBuilder hex = new StringBuilder(inBytes.length * 2);
+    for (byte b : inBytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+        .append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  /** A stored payload. */
+  public static final class Claim {
+    /** The file name in the store, the text of the claim message. */
+    private final String reference;
+    /** Algorithm and digest of the content. */
+    private final String digest;
+    /** Size of the content. */
+    private final long size;
+
+    /**
+     * @param inReference the file name in the store
+     * @param inDigest algorithm and digest
+     * @param inSize size of the content
+     */
+    Claim(final String inReference, final String inDigest,
+      final long inSize) {
+      this.reference = inReference;
+      this.digest = inDigest;
+      this.size = inSize;
+    }
+
+    /**
+     * @param inMessage the claim message
+     * @param inCharset character set of the payload's text
+     * @return the message, with the claim properties
+     * @throws JMSException if the properties can not be set
+     */
+    public Message addTo(final Message inMessage, final Charset inCharset)
+      throws JMSException {
+      inMessage.setStringProperty(DIGEST, digest);
+      inMessage.setLongProperty(SIZE, size);
+      inMessage.setStringProperty(CHARSET, inCharset.name());
+      return inMessage;
+    }
+
+    /**
+     * @return the file name in the store
+     */
+    public String getReference() {
+      return reference;
+    }
+
+    /**
+     * @return the size of the content
+     */
+    public long getSize() {
+      return size;
+    }
+  }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import gnu.getopt.Getopt;
+import gnu.getopt.LongOpt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares benchmark results written by Blaster -r. Runs are grouped by
+ * their label, or by any other column, and the repetitions of each group
+ * give a mean and a confidence interval per metric. Every group is tested
+ * against the baseline group with Welch's t-test, and a significant change
+ * for the worse is flagged as a regression. Exits with 2 if there is one,
+ * so a scheduled comparison can fail a build.
+ *
+ * @author Scott Douglass
+ */
+public class Compare {
+
+  /** Name of the application. */
+  private static final String APP_NAME = "Compare";
+  /** Default metrics. */
+  private static final String D_METRICS =
+    "rate,mb_s,p50_us,p99_us,p999_us,errors";
+  /** Default confidence level. */
+  private static final double D_CONFIDENCE = 0.95;
+  /** Metrics where more is better, for all others less is better. */
+  private static final Set<String> HIGHER_IS_BETTER = new LinkedHashSet<>(
+    Arrays.asList("rate", "mb_s", "messages", "bytes"));
+  /** Type of a group row. */
+  private static final String TYPE_GROUP = "group";
+  /** Type of a comparison row. */
+  private static final String TYPE_COMPARE = "compare";
+  /** Verdict of a significant change for the worse. */
+  public static final String REGRESSION = "REGRESSION";
+  /** Exit code when an error occurs. */
+  private static final int X_ERROR = 1;
+  /** Exit code when there is a regression. */
+  private static final int X_REGRESSION = 2;
+  /** Long command line options. */
+  static final LongOpt[] LONG_OPTIONS = {
+    new LongOpt("group-by", LongOpt.REQUIRED_ARGUMENT, null, 'g'),
+    new LongOpt("baseline", LongOpt.REQUIRED_ARGUMENT, null, 'b'),
+    new LongOpt("metrics", LongOpt.REQUIRED_ARGUMENT, null, 'm'),
+    new LongOpt("confidence", LongOpt.REQUIRED_ARGUMENT, null, 'c'),
+    new LongOpt("format", LongOpt.REQUIRED_ARGUMENT, null, 'F'),
+    new LongOpt("report-file", LongOpt.REQUIRED_ARGUMENT, null, 'R')
+  };
+  /** Where the rows go. */
+  private final ReportWriter reportWriter;
+  /** Column the runs are grouped by. */
+  private String groupBy = ResultStore.LABEL;
+  /** Group the others are compared to, empty for the first one. */
+  private String baseline = "";
+  /** The metrics compared. */
+  private List<String> metrics = Arrays.asList(D_METRICS.split(","));
+  /** Confidence level of the intervals and the tests. */
+  private double confidence = D_CONFIDENCE;
+
+  /**
+   * @param inReportWriter where the rows go
+   */
+  public Compare(final ReportWriter inReportWriter) {
+    this.reportWriter = inReportWriter;
+  }
+
+  /**
+   * Compare the groups of results and write a row per group and per metric
+   * and group.
+   *
+   * @param inResults the results
+   * @return true if any group regressed from the baseline
+   * @throws JTKException if there are no results or no baseline group
+   */
+  public final boolean compare(final List<ResultStore.Result> inResults)
+    throws JTKException {
+    final Map<String, List<ResultStore.Result>> groups =
+      new LinkedHashMap<>();
+    for (ResultStore.Result result : inResults) {
+      final String key = String.valueOf(result.get(groupBy));
+      groups.computeIfAbsent(key, k -> new ArrayList<>()).add(result);
+    }
+    if (groups.isEmpty()) {
+      throw new JTKException("No results to compare");
+    }
+    final String base =
+      baseline.isEmpty() ? groups.keySet().iterator().next() : baseline;
+    if (!groups.containsKey(base)) {
+      throw new JTKException("No results for baseline " + groupBy + ": "
+        + base + ", there are " + groups.keySet());
+    }
+    for (Map.Entry<String, List<ResultStore.Result>> group
+      : groups.entrySet()) {
+      final Map<String, Object> row = new LinkedHashMap<>();
+      row.put(ReportWriter.TYPE, TYPE_GROUP);
+      row.put(groupBy, group.getKey());
+      row.put("runs", group.getValue().size());
+      for (String column : new String[]{"host", "java_version",
+        "jvm_args", "threads", "message_size"}) {
+        row.put(column, distinct(group.getValue(), column));
+      }
+      reportWriter.write(row);
+    }
+    boolean regressed = false;
+    for (String metric : metrics) {
+      final Sample reference = new Sample(groups.get(base), metric);
+      for (Map.Entry<String, List<ResultStore.Result>> group
+        : groups.entrySet()) {
+        final Sample sample = new Sample(group.getValue(), metric);
+        final Map<String, Object> row = new LinkedHashMap<>();
+        row.put(ReportWriter.TYPE, TYPE_COMPARE);
+        row.put("metric", metric);
+        row.put(groupBy, group.getKey());
+        row.put("runs", sample.count);
+        row.put("mean", sample.mean);
+        row.put("stddev", sample.stddev());
+        final double half = sample.halfInterval(confidence);
+        row.put("ci_low", sample.mean - half);
+        row.put("ci_high", sample.mean + half);
+        final String verdict;
+        if (group.getKey().equals(base)) {
+          // the same columns as the others, for CSV
+          row.put("change_pct", 0.0);
+          row.put("p_value", Double.NaN);
+          verdict = "baseline";
+        } else {
+          row.put("change_pct", reference.mean == 0 ? Double.NaN
+            : (sample.mean - reference.mean) / Math.abs(reference.mean)
+              * 100);
+          final double p = reference.welch(sample);
+          row.put("p_value", p);
+          verdict = verdict(metric, reference, sample, p);
+          regressed |= REGRESSION.equals(verdict);
+        }
+        row.put("verdict", verdict);
+        reportWriter.write(row);
+      }
+    }
+    return regressed;
+  }
+
+  /**
+   * @param inMetric the metric
+   * @param inReference the baseline
+   * @param inSample the group compared to it
+   * @param inP the p value of the difference
+   * @return the verdict
+   */
+  private String verdict(final String inMetric, final Sample inReference,
+    final Sample inSample, final double inP) {
+    if (Double.isNaN(inP)) {
+      return "too few runs";
+    }
+    if (inP >= 1 - confidence) {
+      return "same";
+    }
+    final boolean higher = inSample.mean > inReference.mean;
+    return higher == HIGHER_IS_BETTER.contains(inMetric) ? "better"
+      : REGRESSION;
+  }
+
+  /**
+   * @param inResults results
+   * @param inColumn a column
+   * @return the different values of the column, separated by " | "
+   */
+  private static String distinct(final List<ResultStore.Result> inResults,
+    final String inColumn) {
+    final Set<String> values = new LinkedHashSet<>();
+    for (ResultStore.Result result : inResults) {
+      final String value = result.get(inColumn);
+      if (value != null) {
+        values.add(value);
+      }
+    }
+    return String.join(" | ", values);
+  }
+
+  /**
+   * @param args command line arguments, see -h
+   */
+  public static void main(final String[] args) {
+    String reportFormat = ReportWriter.FORMAT_TEXT;
+    String reportFileName = "";
+    String groupBy = ResultStore.LABEL;
+    String baseline = "";
+    String metrics = D_METRICS;
+    double confidence = D_CONFIDENCE;
+    final Getopt getopt =
+      new Getopt(APP_NAME, args, "g:b:m:c:F:R:h", LONG_OPTIONS);
+    int optionLetter;
+    while ((optionLetter = getopt.getopt()) != -1) {
+      switch (optionLetter) {
+        case 'g':
+          groupBy = getopt.getOptarg();
+          break;
+        case 'b':
+          baseline = getopt.getOptarg();
+          break;
+        case 'm':
+          metrics = getopt.getOptarg();
+          break;
+        case 'c':
+          confidence = Double.parseDouble(getopt.getOptarg());
+          break;
+        case 'F':
+          reportFormat = getopt.getOptarg();
+          break;
+        case 'R':
+          reportFileName = getopt.getOptarg();
+          break;
+        case 'h':
+          System.out.println("Arguments: [ options ] results-file ...\n"
+            + "  [ -g | --group-by column ] group the runs by a column"
+            + " (default: label)\n"
+            + "  [ -b | --baseline value ] the group the others are"
+            + " compared to\n"
+            + "     (default: the first one in the files)\n"
+            + "  [ -m | --metrics column,... ] columns to compare\n"
+            + "     (default: " + D_METRICS + ")\n"
+            + "  [ -c | --confidence level ] of the intervals and tests"
+            + " (default: 0.95)\n"
+            + "  [ -F | --format text | csv | json ] report format\n"
+            + "  [ -R | --report-file file ] write the comparison to a"
+            + " file\n"
+            + "  Results files are written by Blaster -r. Exits with 2 if"
+            + " a group is\n"
+            + "  significantly worse than the baseline on any metric");
+          System.exit(X_ERROR);
+      }
+    }
+    final List<ResultStore.Result> results = new ArrayList<>();
+    try {
+      if (getopt.getOptind() >= args.length) {
+        throw new JTKException("No results files given, see -h");
+      }
+      if (confidence <= 0 || confidence >= 1) {
+        throw new JTKException("Confidence must be between 0 and 1: "
+          + confidence);
+      }
+      for (int i = getopt.getOptind(); i < args.length; i++) {
+        results.addAll(ResultStore.read(args[i]));
+      }
+      final ReportWriter writer =
+        ReportWriter.create(reportFormat, reportFileName, System.out);
+      final Compare compare = new Compare(writer);
+      compare.setGroupBy(groupBy);
+      compare.setBaseline(baseline);
+      compare.setMetrics(Arrays.asList(metrics.split(",")));
+      compare.setConfidence(confidence);
+      final boolean regressed = compare.compare(results);
+      writer.close();
+      System.exit(regressed ? X_REGRESSION : 0);
+    } catch (JTKException e) {
+      System.out.println(e.toStringWithStackTrace());
+      System.exit(X_ERROR);
+    }
+  }
+
+  /**
+   * @return the column the runs are grouped by
+   */
+  public final String getGroupBy() {
+    return groupBy;
+  }
+
+  /**
+   * @param inGroupBy the column the runs are grouped by
+   */
+  public final void setGroupBy(final String inGroupBy) {
+    this.groupBy = inGroupBy;
+  }
+
+  /**
+   * @return the baseline group, empty for the first one
+   */
+  public final String getBaseline() {
+    return baseline;
+  }
+
+  /**
+   * @param inBaseline the group the others are compared to, empty for the
+   * first one
+   */
+  public final void setBaseline(final String inBaseline) {
+    this.baseline = inBaseline;
+  }
+
+  /**
+   * @return the metrics compared
+   */
+  public final List<String> getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @param inMetrics the columns to compare
+   */
+  public final void setMetrics(final List<String> inMetrics) {
+    this.metrics = inMetrics;
+  }
+
+  /**
+   * @return the confidence level
+   */
+  public final double getConfidence() {
+    return confidence;
+  }
+
+  /**
+   * @param inConfidence confidence level of the intervals and tests, such
+   * as 0.95
+   */
+  public final void setConfidence(final double inConfidence) {
+    this.confidence = inConfidence;
+  }
+
+  /** The values of one metric in the runs of one group. */
+  private static final class Sample {
+    /** Runs with a value. */
+    private final int count;
+    /** Mean of the values. */
+    private final double mean;
+    /** Sample variance of the values, NaN with fewer than 2. */
+    private final double variance;
+
+    /**
+     * @param inResults the runs
+     * @param inMetric the metric
+     */
+    Sample(final List<ResultStore.Result> inResults, final String inMetric) {
+      final List<Double> values = new ArrayList<>();
+      for (ResultStore.Result result : inResults) {
+        final double value = result.getNumber(inMetric);
+        if (!Double.isNaN(value)) {
+          values.add(value);
+        }
+      }
+      count = values.size();
+      double sum = 0;
+      for (double value : values) {
+        sum += value;
+      }
+      mean = count == 0 ? Double.NaN : sum / count;
+      double squares = 0;
+      for (double value : values) {
+        squares += (value - mean) * (value - mean);
+      }
+      variance = count < 2 ? Double.NaN : squares / (count - 1);
+    }
+
+    /**
+     * @return the sample standard deviation
+     */
+    double stddev() {
+      return Math.sqrt(variance);
+    }
+
+    /**
+     * @param inConfidence the confidence level
+     * @return half the width of the confidence interval of the mean
+     */
+    double halfInterval(final double inConfidence) {
+      if (count < 2) {
+        return Double.NaN;
+      }
+      return StudentT.quantile(1 - (1 - inConfidence) / 2, count - 1)
+        * Math.sqrt(variance / count);
+    }
+
+    /**
+     * Welch's t-test, which does not assume equal variances.
+     *
+     * @param inOther the other sample
+     * @return the two sided p value of the difference of the means, NaN if
+     * either sample has fewer than 2 values
+     */
+    double welch(final Sample inOther) {
+      if (count < 2 || inOther.count < 2) {
+        return Double.NaN;
+      }
+      final double a = variance / count;
+      final double b = inOther.variance / inOther.count;
+      if (a + b == 0) {
+        // no spread at all, any difference is certain
+        return mean == inOther.mean ? 1 : 0;
+      }
+      final double t = (inOther.mean - mean) / Math.sqrt(a + b);
+      final double df = (a + b) * (a + b)
+        / (a * a / (count - 1) + b * b / (inOther.count - 1));
+      return StudentT.twoSidedP(t, df);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+/**
+ * Control messages between a Blaster coordinator and its agents, sent over
+ * a topic on the broker under test. The consumer is kept open for the whole
+ * run so no control message is missed between receives.
+ *
+ * @author Scott Douglass
+ */
+public class ControlChannel {
+
+  /** Property with the command of a control message. */
+  public static final String COMMAND = "jtk_command";
+  /** Property with the id of the run. */
+  public static final String RUN = "jtk_run";
+  /** Property with the agent that sent the message. */
+  public static final String AGENT = "jtk_agent";
+  /** Property with the agents taking part in a run, comma separated. */
+  public static final String AGENTS = "jtk_agents";
+  /** Property with the start time of a run (ms since the epoch). */
+  public static final String START_AT = "jtk_start_at";
+  /** Property with the number of messages to send, 0 for no limit. */
+  public static final String MESSAGES = "jtk_messages";
+  /** Property with the time to send (ns), 0 for no limit. */
+  public static final String DURATION = "jtk_duration";
+  /** Property with the warm-up count or time, empty for none. */
+  public static final String WARMUP = "jtk_warmup";
+  /** Property with the time between interval reports (ns), 0 for none. */
+  public static final String INTERVAL = "jtk_interval";
+  /** Property with the message size, 0 to keep the agent's message. */
+  public static final String SIZE = "jtk_size";
+  /** Property with the number of bytes sent. */
+  public static final String BYTES = "jtk_bytes";
+  /** Property with the number of failed sends. */
+  public static final String ERRORS = "jtk_errors";
+  /** Property with the length of the run (ns). */
+  public static final String ELAPSED = "jtk_elapsed";
+  /** Property with how late the agent started (ms). */
+  public static final String START_SKEW = "jtk_start_skew";
+  /** An agent is waiting for work. */
+  public static final String CMD_HELLO = "hello";
+  /** Ask waiting agents to say hello. */
+  public static final String CMD_DISCOVER = "discover";
+  /** Start a run. */
+  public static final String CMD_START = "start";
+  /** Results of an agent. */
+  public static final String CMD_RESULT = "result";
+  /** Connection used only for control messages. */
+  private final Connection connection;
+  /** Session of the connection. */
+  private final Session session;
+  /** Receives all control messages. */
+  private final MessageConsumer consumer;
+  /** Sends control messages. */
+  private final MessageProducer producer;
+
+  /**
+   * @param inConnectionFactory where to connect
+   * @param inTopic the control topic
+   * @throws JMSException if the connection can not be made
+   */
+  public ControlChannel(final ConnectionFactory inConnectionFactory,
+    final Destination inTopic) throws JMSException {
+    connection = inConnectionFactory.createConnection();
+    try {
+      session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      consumer = session.createConsumer(inTopic);
+      producer = session.createProducer(inTopic);
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      connection.start();
+    } catch (JMSException e) {
+      connection.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @param inCommand the command
+   * @param inRun id of the run
+   * @param inBody text of the message, may be empty
+   * @return a new control message
+   * @throws JMSException if the message can not be created
+   */
+  public final TextMessage createMessage(final String inCommand,
+    final String inRun, final String inBody) throws JMSException {
+    final TextMessage message = session.createTextMessage(inBody);
+    message.setStringProperty(COMMAND, inCommand);
+    message.setStringProperty(RUN, inRun);
+    return message;
+  }
+
+  /**
+   * @param inMessage message to send
+   * @throws JMSException if it can not be sent
+   */
+  public final void send(final Message inMessage) throws JMSException {
+    producer.send(inMessage);
+  }
+
+  /**
+   * @param inTimeout time to wait (ms)
+   * @return the next control message, or null if none came in time
+   * @throws JMSException if receiving fails
+   */
+  public final Message receive(final long inTimeout) throws JMSException {
+    return consumer.receive(Math.max(1, inTimeout));
+  }
+
+  /**
+   * @param inMessage a control message
+   * @return the command of the message, or empty if it has none
+   * @throws JMSException if the property can not be read
+   */
+  public static String getCommand(final Message inMessage)
+    throws JMSException {
+    final String command = inMessage.getStringProperty(COMMAND);
+    return command == null ? "" : command;
+  }
+
+  /**
+   * Close the connection.
+   */
+  public final void close() {
+    try {
+      connection.close();
+    } catch (JMSException e) {
+      // nothing more to do with it
+    }
+  }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import com.jmstoolkit.Settings;
+import com.jmstoolkit.Units;
+import gnu.getopt.Getopt;
+import gnu.getopt.LongOpt;
+import java.time.Instant;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Samples the depth of a queue with a QueueBrowser, and the age of the
+ * oldest message from its JMSTimestamp. Each sample walks the queue
+ * without keeping the messages and stops at a limit, so a deep queue only
+ * costs a bounded browse. Sampling uses its own connection and a low
+ * priority thread, to stay out of the way of the load being measured.
+ * A growing depth means the producers are outrunning the consumers.
+ *
+ * @author Scott Douglass
+ */
+public class DepthMonitor {
+
+  /** Logger for the class. */
+  private static final Logger LOGGER =
+    Logger.getLogger(DepthMonitor.class.getName());
+  /** Name of the application. */
+  private static final String APP_NAME = "DepthMonitor";
+  /** Default most messages browsed per sample. */
+  public static final int D_LIMIT = 10000;
+  /** Default time between samples. */
+  private static final String D_PERIOD = "1s";
+  /** Exit code when an error occurs. */
+  private static final int X_ERROR = 1;
+  /** Long command line options. */
+  static final LongOpt[] LONG_OPTIONS = {
+    new LongOpt("interval", LongOpt.REQUIRED_ARGUMENT, null, 'I'),
+    new LongOpt("limit", LongOpt.REQUIRED_ARGUMENT, null, 'b'),
+    new LongOpt("duration", LongOpt.REQUIRED_ARGUMENT, null, 'd'),
+    new LongOpt("format", LongOpt.REQUIRED_ARGUMENT, null, 'F'),
+    new LongOpt("report-file", LongOpt.REQUIRED_ARGUMENT, null, 'R')
+  };
+  /** Where to connect. */
+  private final ConnectionFactory connectionFactory;
+  /** The queue to sample. */
+  private final Queue queue;
+  /** Where the samples go. */
+  private final ReportWriter writer;
+  /** Most messages browsed per sample. */
+  private int limit = D_LIMIT;
+  /** Connection used only for browsing. */
+  private Connection connection = null;
+  /** Session of the connection. */
+  private Session session = null;
+  /** Takes the samples. */
+  private ScheduledExecutorService scheduler = null;
+  /** Depth of the previous sample, -1 before the first. */
+  private long lastDepth = -1;
+  /** Time of the previous sample (ns). */
+  private long lastNanos = 0;
+
+  /**
+   * @param inConnectionFactory where to connect
+   * @param inQueue the queue to sample
+   * @param inWriter where the samples go
+   */
+  public DepthMonitor(final ConnectionFactory inConnectionFactory,
+    final Queue inQueue, final ReportWriter inWriter) {
+    this.connectionFactory = inConnectionFactory;
+    this.queue = inQueue;
+    this.writer = inWriter;
+  }
+
+  /**
+   * A monitor of the input destination of an application context.
+   *
+   * @param inContext the application context
+   * @param inWriter where the samples go
+   * @return the monitor, null if the input is not a queue
+   */
+  public static DepthMonitor forInput(final BeanFactory inContext,
+    final ReportWriter inWriter) {
+    final Object input = inContext.getBean("input");
+    if (!(input instanceof Queue)) {
+      LOGGER.log(Level.WARNING, "Can only monitor a queue, not: {0}", input);
+      return null;
+    }
+    return new DepthMonitor(
+      inContext.getBean("authConnectionFactory", ConnectionFactory.class),
+      (Queue) input, inWriter);
+  }
+
+  /**
+   * Start sampling.
+   *
+   * @param inPeriod time between samples (ns)
+   * @throws JMSException if the connection can not be made
+   */
+  public final synchronized void start(final long inPeriod)
+    throws JMSException {
+    if (scheduler != null) {
+      return;
+    }
+    connection = connectionFactory.createConnection();
+    session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    connection.start();
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "depth-monitor");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::report, 0, inPeriod,
+      TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Write one sample.
+   */
+  private void report() {
+    try {
+      writer.write(sample());
+    } catch (JMSException e) {
+      LOGGER.log(Level.WARNING, "Could not browse " + queue, e);
+    }
+  }
+
+  /**
+   * Browse the queue up to the limit.
+   *
+   * @return a depth row
+   * @throws JMSException if browsing fails
+   */
+  public final synchronized Map<String, Object> sample()
+    throws JMSException {
+    final long start = System.nanoTime();
+    long depth = 0;
+    long oldest = 0;
+    final QueueBrowser browser = session.createBrowser(queue);
+    try {
+      final Enumeration<?> messages = browser.getEnumeration();
+      while (depth < limit && messages.hasMoreElements()) {
+        final Message message = (Message) messages.nextElement();
+        if (depth == 0) {
+          oldest = message.getJMSTimestamp();
+        }
+        depth++;
+      }
+    } finally {
+      browser.close();
+    }
+    final long now = System.nanoTime();
+    final Map<String, Object> row = new LinkedHashMap<>();
+    row.put(ReportWriter.TYPE, "depth");
+    row.put("time", Instant.now().toString());
+    row.put("depth", depth);
+    row.put("capped", depth >= limit);
+    row.put("oldest_age_ms", oldest <= 0 ? 0
+      : Math.max(0, System.currentTimeMillis() - oldest));
+    // positive when producers are ahead of the consumers
+    row.put("depth_change_s", lastDepth < 0 ? 0.0
+      : (depth - lastDepth) * 1e9 / Math.max(1, now - lastNanos));
+    row.put("browse_ms", (now - start) / 1e6);
+    lastDepth = depth;
+    lastNanos = now;
+    return row;
+  }
+
+  /**
+   * Stop sampling and close the connection.
+   */
+  public final void stop() {
+    final ScheduledExecutorService running;
+    synchronized (this) {
+      running = scheduler;
+      scheduler = null;
+    }
+    if (running == null) {
+      return;
+    }
+    running.shutdown();
+    try {
+      running.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      connection.close();
+    } catch (JMSException e) {
+      LOGGER.log(Level.FINE, "Could not close connection", e);
+    }
+  }
+
+  /**
+   * @param args command line arguments, see -h
+   */
+  public static void main(final String[] args) {
+    System.out.println("JMSToolKit - http://jmstoolkit.com/\n");
+    String jndiPropertiesFileName = Sender.D_JNDI_PROPERTIES;
+    String period = D_PERIOD;
+    String duration = "";
+    int limit = D_LIMIT;
+    String reportFormat = ReportWriter.FORMAT_TEXT;
+    String reportFileName = "";
+    final Getopt getopt =
+      new Getopt(APP_NAME, args, "c:i:j:I:b:d:F:R:h", LONG_OPTIONS);
+    int optionLetter;
+    while ((optionLetter = getopt.getopt()) != -1) {
+      switch (optionLetter) {
+        case 'c':
+          System.setProperty(Receiver.P_CONNECTION_FACTORY_NAME,
+            getopt.getOptarg());
+          break;
+        case 'i':
+          System.setProperty(Receiver.P_DESTINATION_NAME, getopt.getOptarg());
+          break;
+        case 'j':
+          jndiPropertiesFileName = getopt.getOptarg();
+          break;
+        case 'I':
+          period = getopt.getOptarg();
+          break;
+        case 'b':
+          limit = Integer.parseInt(getopt.getOptarg());
+          break;
+        case 'd':
+          duration = getopt.getOptarg();
+          break;
+        case 'F':
+          reportFormat = getopt.getOptarg();
+          break;
+        case 'R':
+          reportFileName = getopt.getOptarg();
+          break;
+        case 'h':
+          System.out.println("Arguments:\n  [ -i JMS Queue JNDI name ]\n"
+            + "  [ -c JMS ConnectionFactory JNDI name ]\n"
+            + "  [ -j JNDI properties ]\n"
+            + "  [ -I | --interval time ] time between samples"
+            + " (default: 1s)\n"
+            + "  [ -b | --limit count ] most messages browsed per sample"
+            + " (default: 10000)\n"
+            + "  [ -d | --duration time ] stop after a time\n"
+            + "  [ -F | --format text | csv | json ] report format\n"
+            + "  [ -R | --report-file file ] append reports to a file");
+          System.exit(X_ERROR);
+      }
+    }
+    try {
+      Settings.loadSystemSettings(System.getProperty(
+        Sender.D_JNDI_PROPERTIES, jndiPropertiesFileName));
+      final ClassPathXmlApplicationContext applicationContext =
+        new ClassPathXmlApplicationContext(new String[]{"/app-context.xml"});
+      final ReportWriter writer =
+        ReportWriter.create(reportFormat, reportFileName, System.out);
+      final DepthMonitor monitor = forInput(applicationContext, writer);
+      if (monitor == null) {
+        throw new JTKException("Not a queue: "
+          + System.getProperty(Receiver.P_DESTINATION_NAME));
+      }
+      monitor.setLimit(limit);
+      monitor.start(Units.parseDuration(period));
+      if (duration.isEmpty()) {
+        Thread.currentThread().join();
+      } else {
+        TimeUnit.NANOSECONDS.sleep(Units.parseDuration(duration));
+      }
+      monitor.stop();
+      writer.close();
+    } catch (JTKException e) {
+      System.out.println(e.toStringWithStackTrace());
+      System.exit(X_ERROR);
+    } catch (JMSException e) {
+      System.out.println(JTKException.formatException(e));
+      System.exit(X_ERROR);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    System.exit(0);
+  }
+
+  /**
+   * @return the most messages browsed per sample
+   */
+  public final int getLimit() {
+    return limit;
+  }
+
+  /**
+   * @param inLimit the most messages browsed per sample
+   */
+  public final void setLimit(final int inLimit) {
+    this.limit = Math.max(1, inLimit);
+  }
+}
@@ -0,0 +1,686 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import com.jmstoolkit.Settings;
+import com.jmstoolkit.Units;
+import gnu.getopt.Getopt;
+import gnu.getopt.LongOpt;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+import javax.jms.Topic;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Many subscribers on one topic in one process, to measure the cost of
+ * fan-out. Reports the throughput of every subscriber, the delivery skew
+ * between the first and the last subscriber to get each message, and the
+ * tail latency of the slowest subscriber. Subscribers share a few
+ * connections and are driven by the sessions of the provider, so hundreds
+ * of them do not need hundreds of threads of our own.
+ *
+ * @author Scott Douglass
+ */
+public class FanOut {
+
+  /** Logger for the class. */
+  private static final Logger LOGGER =
+    Logger.getLogger(FanOut.class.getName());
+  /** Name of the application. */
+  private static final String APP_NAME = "FanOut";
+  /** Non-durable subscribers. */
+  public static final String MODE_NON_DURABLE = "nondurable";
+  /** Durable subscribers. */
+  public static final String MODE_DURABLE = "durable";
+  /** Shared subscriptions, JMS 2.0. */
+  public static final String MODE_SHARED = "shared";
+  /** Shared durable subscriptions, JMS 2.0. */
+  public static final String MODE_SHARED_DURABLE = "shared-durable";
+  /** Default number of subscriptions. */
+  private static final int D_SUBSCRIBERS = 10;
+  /** Default number of connections. */
+  private static final int D_CONNECTIONS = 1;
+  /** Default consumers per shared subscription. */
+  private static final int D_SHARED_CONSUMERS = 2;
+  /** Default client id and subscription name prefix. */
+  private static final String D_NAME = "jmstoolkit-fanout";
+  /** Default time between interval reports. */
+  private static final String D_INTERVAL = "10s";
+  /** Messages not seen by every subscription in this time are dropped. */
+  private static final long SKEW_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+  /** Exit code when an error occurs. */
+  private static final int X_ERROR = 1;
+  /** Long command line options. */
+  static final LongOpt[] LONG_OPTIONS = {
+    new LongOpt("subscribers", LongOpt.REQUIRED_ARGUMENT, null, 'N'),
+    new LongOpt("mode", LongOpt.REQUIRED_ARGUMENT, null, 'm'),
+    new LongOpt("connections", LongOpt.REQUIRED_ARGUMENT, null, 'C'),
+    new LongOpt("duration", LongOpt.REQUIRED_ARGUMENT, null, 'd'),
+    new LongOpt("interval", LongOpt.REQUIRED_ARGUMENT, null, 'I'),
+    new LongOpt("format", LongOpt.REQUIRED_ARGUMENT, null, 'F'),
+    new LongOpt("report-file", LongOpt.REQUIRED_ARGUMENT, null, 'R'),
+    new LongOpt("unsubscribe", LongOpt.NO_ARGUMENT, null, 'u'),
+    new LongOpt("jfr", LongOpt.REQUIRED_ARGUMENT, null, 'J')
+  };
+  /** Deliveries to all subscribers. */
+  private final RunStats stats = new RunStats();
+  /** Delivery skew of messages seen by every subscription. */
+  private final RunStats skews = new RunStats();
+  /** Messages not yet seen by every subscription, by message id. */
+  private final Map<String, long[]> pending = new ConcurrentHashMap<>();
+  /** Messages dropped from the skew because a subscription missed them. */
+  private final LongAdder incomplete = new LongAdder();
+  /** The subscribers. */
+  private final List<Subscriber> subscribers = new ArrayList<>();
+  /** The connections of the subscribers. */
+  private final List<Connection> connections = new ArrayList<>();
+  /** How to subscribe. */
+  private String mode = MODE_NON_DURABLE;
+  /** Number of subscriptions. */
+  private int subscriptions = D_SUBSCRIBERS;
+  /** Consumers per shared subscription. */
+  private int sharedConsumers = D_SHARED_CONSUMERS;
+  /** Number of connections. */
+  private int connectionCount = D_CONNECTIONS;
+  /** Prefix of client ids and subscription names. */
+  private String name = D_NAME;
+  /** Messages per subscription before stopping, 0 for no limit. */
+  private long maximumMessages = 0;
+  /** Remove durable subscriptions when stopping. */
+  private boolean unsubscribe = false;
+  /** Where the reports go. */
+  private ReportWriter reportWriter = null;
+  /** Writes interval reports, null for none. */
+  private IntervalReporter intervalReporter = null;
+  /** Set once stopping has started. */
+  private final AtomicBoolean stopping = new AtomicBoolean();
+
+  /**
+   * One consumer on the topic.
+   */
+  private final class Subscriber implements MessageListener {
+    /** Number of the subscriber. */
+    private final int id;
+    /** The subscription name, empty for non-durable. */
+    private final String subscription;
+    /** Its session. */
+    private final Session session;
+    /** Its consumer. */
+    private MessageConsumer consumer = null;
+    /** Messages received. */
+    private final LongAdder messages = new LongAdder();
+    /** Latencies of the messages. */
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    /** When the first message came (ns). */
+    private volatile long firstNanos = 0;
+    /** When the last message came (ns). */
+    private volatile long lastNanos = 0;
+
+    /**
+     * @param inId number of the subscriber
+     * @param inSubscription the subscription name, empty for non-durable
+     * @param inSession its session
+     */
+    Subscriber(final int inId, final String inSubscription,
+      final Session inSession) {
+      this.id = inId;
+      this.subscription = inSubscription;
+      this.session = inSession;
+    }
+
+    @Override
+    public void onMessage(final Message inMessage) {
+      try {
+        final long latency = Receiver.latencyMicros(inMessage);
+        lastNanos = System.nanoTime();
+        if (firstNanos == 0) {
+          firstNanos = lastNanos;
+        }
+        messages.increment();
+        latencies.record(latency);
+        stats.record(0, latency);
+        delivered(inMessage.getJMSMessageID());
+      } catch (JMSException e) {
+        stats.recordError();
+        LOGGER.log(Level.WARNING, "Could not read message", e);
+      }
+    }
+
+    /**
+     * The rate is over the time from the first to the last message of the
+     * subscriber, so waiting for the sender does not count.
+     *
+     * @return a row for this subscriber
+     */
+    Map<String, Object> row() {
+      final Map<String, Object> row = RunStats.summaryRow("subscriber",
+        messages.sum(), 0, 0, lastNanos - firstNanos, latencies);
+      row.remove("errors");
+      withoutBytes(row).put("subscriber", id);
+      if (!subscription.isEmpty()) {
+        row.put("subscription", subscription);
+      }
+      return row;
+    }
+  }
+
+  /**
+   * @return consumers per subscription
+   */
+  private int consumersPerSubscription() {
+    return isShared() ? sharedConsumers : 1;
+  }
+
+  /**
+   * Message sizes are not counted, reading the body of every delivery
+   * would add to the fan-out cost being measured.
+   *
+   * @param inRow a row
+   * @return the row without the byte columns
+   */
+  private static Map<String, Object> withoutBytes(
+    final Map<String, Object> inRow) {
+    inRow.remove("bytes");
+    inRow.remove("mb_s");
+    return inRow;
+  }
+
+  /**
+   * @return true for shared subscriptions
+   */
+  private boolean isShared() {
+    return MODE_SHARED.equals(mode) || MODE_SHARED_DURABLE.equals(mode);
+  }
+
+  /**
+   * Count a delivery for the delivery skew. The skew of a message is the
+   * time from the first to the last subscription getting it. Stops once
+   * every subscription has the maximum number of messages.
+   *
+   * @param inMessageId id of the message, null if ids are disabled
+   */
+  private void delivered(final String inMessageId) {
+    if (inMessageId == null) {
+      return;
+    }
+    final long now = System.nanoTime();
+    pending.compute(inMessageId, (key, entry) -> {
+      final long[] seen = entry == null ? new long[]{now, 0} : entry;
+      seen[1]++;
+      if (seen[1] >= subscriptions) {
+        skews.record(0, (now - seen[0]) / 1000);
+        return null;
+      }
+      return seen;
+    });
+    if (maximumMessages > 0 && skews.getMessages() >= maximumMessages
+      && stopping.compareAndSet(false, true)) {
+      // not on the session thread, stopping the connection waits for it
+      new Thread(this::stop, "stop").start();
+    }
+  }
+
+  /**
+   * Drop messages that some subscription never got, so they do not stay
+   * in the skew table forever.
+   */
+  private void expireSkews() {
+    final long oldest = System.nanoTime() - SKEW_TIMEOUT;
+    final Iterator<long[]> entries = pending.values().iterator();
+    while (entries.hasNext()) {
+      if (entries.next()[0] < oldest) {
+        entries.remove();
+        incomplete.increment();
+      }
+    }
+  }
+
+  /**
+   * Add the delivery skew columns to a row.
+   *
+   * @param inRow the row
+   * @param inSkews a row of skews
+   */
+  private void addSkews(final Map<String, Object> inRow,
+    final Map<String, Object> inSkews) {
+    inRow.put("skew_p50_us", inSkews.get("p50_us"));
+    inRow.put("skew_p99_us", inSkews.get("p99_us"));
+    inRow.put("skew_max_us", inSkews.get("max_us"));
+    inRow.put("incomplete", incomplete.sum());
+  }
+
+  /**
+   * Open the connections and subscribe.
+   *
+   * @param inConnectionFactory where to connect
+   * @param inTopic the topic
+   * @throws JMSException if a subscription fails
+   * @throws JTKException if the mode is not supported
+   */
+  public final void subscribe(final ConnectionFactory inConnectionFactory,
+    final Topic inTopic) throws JMSException, JTKException {
+    final boolean durable =
+      MODE_DURABLE.equals(mode) || MODE_SHARED_DURABLE.equals(mode);
+    final int consumers = subscriptions * consumersPerSubscription();
+    for (int c = 0; c < Math.min(connectionCount, consumers); c++) {
+      final Connection connection = inConnectionFactory.createConnection();
+      connections.add(connection);
+      if (MODE_DURABLE.equals(mode)) {
+        // durable subscriptions belong to a client id, keep it stable
+        connection.setClientID(name + "-" + c);
+      }
+    }
+    try {
+      for (int i = 0; i < consumers; i++) {
+        final int number = isShared() ? i / sharedConsumers : i;
+        final Session session = connections.get(i % connections.size())
+          .createSession(false, Session.AUTO_ACKNOWLEDGE);
+        final Subscriber subscriber = new Subscriber(i,
+          durable || isShared() ? name + "-" + number : "", session);
+        switch (mode) {
+          case MODE_NON_DURABLE:
+            subscriber.consumer = session.createConsumer(inTopic);
+            break;
+          case MODE_DURABLE:
+            subscriber.consumer = session.createDurableSubscriber(inTopic,
+              subscriber.subscription);
+            break;
+          case MODE_SHARED:
+            subscriber.consumer = session.createSharedConsumer(inTopic,
+              subscriber.subscription);
+            break;
+          case MODE_SHARED_DURABLE:
+            subscriber.consumer = session.createSharedDurableConsumer(
+              inTopic, subscriber.subscription);
+            break;
+          default:
+            throw new JTKException("Unknown subscription mode: " + mode);
+        }
+        subscriber.consumer.setMessageListener(subscriber);
+        subscribers.add(subscriber);
+      }
+    } catch (IncompatibleClassChangeError | UnsupportedOperationException e) {
+      // a JMS 1.1 provider or API jar
+      throw new JTKException("The JMS provider does not support " + mode
+        + " subscriptions", e);
+    }
+    for (Connection connection : connections) {
+      connection.start();
+    }
+    System.out.println(subscribers.size() + " " + mode + " subscribers on "
+      + connections.size() + " connections");
+  }
+
+  /**
+   * Write interval reports.
+   *
+   * @param inWriter where the reports go
+   * @param inInterval time between reports (ns), 0 for none
+   */
+  public final void startReports(final ReportWriter inWriter,
+    final long inInterval) {
+    this.reportWriter = inWriter;
+    if (inInterval > 0) {
+      intervalReporter = new IntervalReporter(stats, inWriter, inInterval) {
+        @Override
+        protected Map<String, Object> row() {
+          expireSkews();
+          final Map<String, Object> row = withoutBytes(stats.intervalRow());
+          addSkews(row, skews.intervalRow());
+          return row;
+        }
+      };
+      intervalReporter.start();
+    }
+  }
+
+  /**
+   * Close the subscribers, write the reports and exit.
+   */
+  public final synchronized void stop() {
+    stats.finish();
+    for (Connection connection : connections) {
+      try {
+        connection.stop();
+      } catch (JMSException e) {
+        LOGGER.log(Level.FINE, "Could not stop connection", e);
+      }
+    }
+    if (intervalReporter != null) {
+      intervalReporter.stop();
+    }
+    Subscriber slowest = null;
+    double minRate = Double.MAX_VALUE;
+    double maxRate = 0;
+    for (Subscriber subscriber : subscribers) {
+      final Map<String, Object> row = subscriber.row();
+      reportWriter.write(row);
+      final double rate = (Double) row.get("rate");
+      minRate = Math.min(minRate, rate);
+      maxRate = Math.max(maxRate, rate);
+      if (slowest == null || subscriber.latencies.getPercentile(99)
+        > slowest.latencies.getPercentile(99)) {
+        slowest = subscriber;
+      }
+    }
+    expireSkews();
+    final Map<String, Object> summary = withoutBytes(stats.summaryRow());
+    summary.put("subscribers", subscribers.size());
+    summary.put("min_rate", subscribers.isEmpty() ? 0 : minRate);
+    summary.put("max_rate", maxRate);
+    if (slowest != null) {
+      summary.put("slowest_subscriber", slowest.id);
+      summary.put("slowest_p99_us", slowest.latencies.getPercentile(99));
+      summary.put("slowest_p999_us", slowest.latencies.getPercentile(99.9));
+      summary.put("slowest_max_us", slowest.latencies.getMax());
+    }
+    addSkews(summary, skews.summaryRow());
+    summary.put("skew_messages", skews.getMessages());
+    reportWriter.write(summary);
+    reportWriter.close();
+    if (unsubscribe) {
+      unsubscribe();
+    }
+    for (Connection connection : connections) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.log(Level.FINE, "Could not close connection", e);
+      }
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Remove the durable subscriptions.
+   */
+  private void unsubscribe() {
+    for (Subscriber subscriber : subscribers) {
+      if (subscriber.subscription.isEmpty()) {
+        continue;
+      }
+      try {
+        subscriber.consumer.close();
+        subscriber.session.unsubscribe(subscriber.subscription);
+      } catch (JMSException e) {
+        // a shared subscription is removed with its last consumer
+        LOGGER.log(Level.FINE, "Could not unsubscribe "
+          + subscriber.subscription, e);
+      }
+    }
+  }
+
+  /**
+   * Stop after a time.
+   *
+   * @param inDuration time to run (ns)
+   */
+  public final void stopAfter(final long inDuration) {
+    final Thread timer = new Thread(() -> {
+      try {
+        TimeUnit.NANOSECONDS.sleep(inDuration);
+        stop();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, "duration");
+    timer.setDaemon(true);
+    timer.start();
+  }
+
+  /**
+   * @param args command line arguments, see -h
+   */
+  public static void main(final String[] args) {
+    System.out.println("JMSToolKit - http://jmstoolkit.com/\n");
+    try {
+      Settings.loadSystemSettings(Settings.APP_PROPERTIES);
+    } catch (JTKException e) {
+      // no app.properties, -i and -c are needed
+    }
+    final FanOut fanOut = new FanOut();
+    String jndiPropertiesFileName = Sender.D_JNDI_PROPERTIES;
+    String duration = "";
+    String interval = "";
+    String reportFormat = ReportWriter.FORMAT_TEXT;
+    String reportFileName = "";
+    final Getopt getopt = new Getopt(APP_NAME, args,
+      "c:i:j:N:m:k:C:n:x:d:I:F:R:uJ:h", LONG_OPTIONS);
+    int optionLetter;
+    while ((optionLetter = getopt.getopt()) != -1) {
+      switch (optionLetter) {
+        case 'c':
+          System.setProperty(Receiver.P_CONNECTION_FACTORY_NAME,
+            getopt.getOptarg());
+          break;
+        case 'i':
+          System.setProperty(Receiver.P_DESTINATION_NAME, getopt.getOptarg());
+          break;
+        case 'j':
+          jndiPropertiesFileName = getopt.getOptarg();
+          break;
+        case 'N':
+          fanOut.setSubscriptions(Integer.parseInt(getopt.getOptarg()));
+          break;
+        case 'm':
+          fanOut.setMode(getopt.getOptarg());
+          break;
+        case 'k':
+          fanOut.setSharedConsumers(Integer.parseInt(getopt.getOptarg()));
+          break;
+        case 'C':
+          fanOut.setConnectionCount(Integer.parseInt(getopt.getOptarg()));
+          break;
+        case 'n':
+          fanOut.setMaximumMessages(Long.parseLong(getopt.getOptarg()));
+          break;
+        case 'x':
+          fanOut.setName(getopt.getOptarg());
+          break;
+        case 'd':
+          duration = getopt.getOptarg();
+          break;
+        case 'I':
+          interval = getopt.getOptarg();
+          break;
+        case 'F':
+          reportFormat = getopt.getOptarg();
+          break;
+        case 'R':
+          reportFileName = getopt.getOptarg();
+          break;
+        case 'u':
+          fanOut.setUnsubscribe(true);
+          break;
+        case 'J':
+          try {
+            Flight.startRecording(getopt.getOptarg());
+          } catch (JTKException e) {
+            System.out.println(e.toStringWithStackTrace());
+            System.exit(X_ERROR);
+          }
+          break;
+        case 'h':
+          System.out.println("Arguments:\n  [ -i JMS Topic JNDI name ]\n"
+            + "  [ -c JMS ConnectionFactory JNDI name ]\n"
+            + "  [ -j JNDI properties ]\n"
+            + "  [ -N | --subscribers count ] subscriptions (default: 10)\n"
+            + "  [ -m | --mode nondurable | durable | shared |"
+            + " shared-durable ]\n"
+            + "     shared modes need a JMS 2.0 provider\n"
+            + "  [ -k consumers ] consumers per shared subscription"
+            + " (default: 2)\n"
+            + "  [ -C | --connections count ] connections for the"
+            + " subscribers (default: 1)\n"
+            + "  [ -x name ] client id and subscription name prefix"
+            + " (default: jmstoolkit-fanout)\n"
+            + "  [ -u | --unsubscribe ] remove durable subscriptions"
+            + " when done\n"
+            + "  [ -n count ] stop when every subscription has this many"
+            + " messages\n"
+            + "  [ -d | --duration time ] stop after a time, e.g. 30m\n"
+            + "  [ -I | --interval time ] time between reports"
+            + " (default: 10s)\n"
+            + "  [ -F | --format text | csv | json ] report format\n"
+            + "  [ -R | --report-file file ] append reports to a file\n"
+            + "  [ -J | --jfr file ] write a Flight Recorder recording on"
+            + " exit");
+          System.exit(X_ERROR);
+      }
+    }
+    try {
+      Settings.loadSystemSettings(System.getProperty(
+        Sender.D_JNDI_PROPERTIES, jndiPropertiesFileName));
+      final ClassPathXmlApplicationContext applicationContext =
+        new ClassPathXmlApplicationContext(new String[]{"/app-context.xml"});
+      final Object destination = applicationContext.getBean("input");
+      if (!(destination instanceof Topic)) {
+        throw new JTKException("Not a topic: "
+          + System.getProperty(Receiver.P_DESTINATION_NAME, destination
+            .toString()));
+      }
+      final ReportWriter writer =
+        ReportWriter.create(reportFormat, reportFileName, System.out);
+      fanOut.subscribe(applicationContext.getBean("authConnectionFactory",
+        ConnectionFactory.class), (Topic) destination);
+      fanOut.startReports(writer, Units.parseDuration(interval.isEmpty()
+        ? D_INTERVAL : interval));
+      if (!duration.isEmpty()) {
+        fanOut.stopAfter(Units.parseDuration(duration));
+      }
+    } catch (JTKException e) {
+      System.out.println(e.toStringWithStackTrace());
+      System.exit(X_ERROR);
+    } catch (JMSException e) {
+      System.out.println(JTKException.formatException(e));
+      System.exit(X_ERROR);
+    }
+  }
+
+  /**
+   * @return the mode
+   */
+  public final String getMode() {
+    return mode;
+  }
+
+  /**
+   * @param inMode nondurable, durable, shared or shared-durable
+   */
+  public final void setMode(final String inMode) {
+    this.mode = inMode;
+  }
+
+  /**
+   * @return the number of subscriptions
+   */
+  public final int getSubscriptions() {
+    return subscriptions;
+  }
+
+  /**
+   * @param inSubscriptions the number of subscriptions
+   */
+  public final void setSubscriptions(final int inSubscriptions) {
+    this.subscriptions = Math.max(1, inSubscriptions);
+  }
+
+  /**
+   * @return the consumers per shared subscription
+   */
+  public final int getSharedConsumers() {
+    return sharedConsumers;
+  }
+
+  /**
+   * @param inSharedConsumers the consumers per shared subscription
+   */
+  public final void setSharedConsumers(final int inSharedConsumers) {
+    this.sharedConsumers = Math.max(1, inSharedConsumers);
+  }
+
+  /**
+   * @return the number of connections
+   */
+  public final int getConnectionCount() {
+    return connectionCount;
+  }
+
+  /**
+   * @param inConnectionCount the number of connections
+   */
+  public final void setConnectionCount(final int inConnectionCount) {
+    this.connectionCount = Math.max(1, inConnectionCount);
+  }
+
+  /**
+   * @return the client id and subscription name prefix
+   */
+  public final String getName() {
+    return name;
+  }
+
+  /**
+   * @param inName the client id and subscription name prefix
+   */
+  public final void setName(final String inName) {
+    this.name = inName;
+  }
+
+  /**
+   * @return the messages per subscription before stopping
+   */
+  public final long getMaximumMessages() {
+    return maximumMessages;
+  }
+
+  /**
+   * @param inMaximumMessages messages per subscription before stopping, 0
+   * for no limit
+   */
+  public final void setMaximumMessages(final long inMaximumMessages) {
+    this.maximumMessages = inMaximumMessages;
+  }
+
+  /**
+   * @return true if durable subscriptions are removed when stopping
+   */
+  public final boolean isUnsubscribe() {
+    return unsubscribe;
+  }
+
+  /**
+   * @param inUnsubscribe remove durable subscriptions when stopping
+   */
+  public final void setUnsubscribe(final boolean inUnsubscribe) {
+    this.unsubscribe = inUnsubscribe;
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Map;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * JDK Flight Recorder events for sends, receives, output flushes and
+ * interval reports, so one recording shows whether time went to creating
+ * the message, the provider's send or our own output. A begin method
+ * returns the event, or null when there is no Flight Recorder or the event
+ * is not enabled, and end does nothing with null. Events are nested: the
+ * create event is inside the send event on the same thread, so the rest
+ * of the send is the provider.
+ * <p>
+ * Start a recording with -J file on the command line, or with
+ * -XX:StartFlightRecording. The events are only recorded while a recording
+ * is running.
+ *
+ * @author Scott Douglass
+ */
+public final class Flight {
+
+  /** Property name of the JFR configuration used by -J. */
+  public static final String P_SETTINGS = "jmstoolkit.jfr.settings";
+  /** Default JFR configuration. */
+  public static final String D_SETTINGS = "profile";
+  /** True if this JVM has a Flight Recorder. */
+  private static final boolean AVAILABLE = isAvailable();
+
+  /** Not created. */
+  private Flight() {
+  }
+
+  /**
+   * @return true if jdk.jfr can be used
+   */
+  private static boolean isAvailable() {
+    try {
+      Class.forName("jdk.jfr.Event");
+      return FlightEvents.isRecorderAvailable();
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  /**
+   * Start a recording that is written to a file when the JVM exits, with
+   * the configuration named by jmstoolkit.jfr.settings.
+   *
+   * @param inFile the recording file
+   * @throws JTKException if there is no Flight Recorder or it fails
+   */
+  public static void startRecording(final String inFile)
+    throws JTKException {
+    if (!AVAILABLE) {
+      throw new JTKException("No Flight Recorder in this JVM");
+    }
+    final String settings = System.getProperty(P_SETTINGS, D_SETTINGS);
+    try {
+      FlightEvents.startRecording(inFile, settings);
+    } catch (IOException | ParseException | IllegalStateException e) {
+      throw new JTKException("Could not start recording with " + settings,
+        e);
+    }
+  }
+
+  /**
+   * @return a send event, or null
+   */
+  public static Object beginSend() {
+    return AVAILABLE ? FlightEvents.beginSend() : null;
+  }
+
+  /**
+   * @return a create message event, or null
+   */
+  public static Object beginCreate() {
+    return AVAILABLE ? FlightEvents.beginCreate() : null;
+  }
+
+  /**
+   * @return a receive event, or null
+   */
+  public static Object beginReceive() {
+    return AVAILABLE ? FlightEvents.beginReceive() : null;
+  }
+
+  /**
+   * @return an output flush event, or null
+   */
+  public static Object beginFlush() {
+    return AVAILABLE ? FlightEvents.beginFlush() : null;
+  }
+
+  /**
+   * @return an interval report event, or null
+   */
+  public static Object beginReport() {
+    return AVAILABLE ? FlightEvents.beginReport() : null;
+  }
+
+  /**
+   * End a send, create, receive or flush event.
+   *
+   * @param inEvent the event, may be null
+   * @param inDestination where the bytes went
+   * @param inBytes payload size
+   */
+  public static void end(final Object inEvent, final Object inDestination,
+    final long inBytes) {
+    if (inEvent != null) {
+      FlightEvents.end(inEvent, inDestination, inBytes);
+    }
+  }
+
+  /**
+   * End an event with the destination of a message.
+   *
+   * @param inEvent the event, may be null
+   * @param inMessage the received message
+   * @param inBytes payload size
+   */
+  public static void endMessage(final Object inEvent,
+    final Message inMessage, final long inBytes) {
+    if (inEvent != null) {
+      Object destination;
+      try {
+        destination = inMessage.getJMSDestination();
+      } catch (JMSException e) {
+        destination = null;
+      }
+      FlightEvents.end(inEvent, destination, inBytes);
+    }
+  }
+
+  /**
+   * @param inEvent the event, may be null
+   * @param inRow the interval row that was written
+   */
+  public static void endReport(final Object inEvent,
+    final Map<String, Object> inRow) {
+    if (inEvent != null) {
+      FlightEvents.endReport(inEvent, inRow);
+    }
+  }
+}
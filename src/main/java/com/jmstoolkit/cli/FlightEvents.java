@@ -0,0 +1,218 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.Map;
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Flight Recorder events. This is the only class that uses jdk.jfr, it
+ * is only loaded by {@link Flight} when the JVM has a Flight Recorder.
+ *
+ * @author Scott Douglass
+ */
+final class FlightEvents {
+
+  /** Category of the events in JDK Mission Control. */
+  private static final String CATEGORY = "JMSToolKit";
+
+  /** Not created. */
+  private FlightEvents() {
+  }
+
+  /** An event that moved some bytes somewhere, one per message. */
+  @Category(CATEGORY)
+  @StackTrace(false)
+  abstract static class TransferEvent extends Event {
+    /** Where the bytes went or came from. */
+    @Label("Destination")
+    String destination;
+    /** Payload size. */
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+  }
+
+  /** A whole send, message creation included. */
+  @Name("jmstoolkit.Send")
+  @Label("Send")
+  @Description("Sender.sendMessage, from conversion to the provider's send")
+  static final class SendEvent extends TransferEvent {
+  }
+
+  /** Conversion of the payload into a message. */
+  @Name("jmstoolkit.CreateMessage")
+  @Label("Create Message")
+  @Description("Conversion and post-processing of the payload, inside Send")
+  static final class CreateEvent extends TransferEvent {
+  }
+
+  /** Handling of one received message. */
+  @Name("jmstoolkit.Receive")
+  @Label("Receive")
+  @Description("Receiver.onMessage, processing and output included")
+  static final class ReceiveEvent extends TransferEvent {
+  }
+
+  /** A flush of the tool's own output. */
+  @Name("jmstoolkit.Flush")
+  @Label("Output Flush")
+  static final class FlushEvent extends TransferEvent {
+  }
+
+  /** Writing one interval report. */
+  @Name("jmstoolkit.IntervalReport")
+  @Label("Interval Report")
+  @Category(CATEGORY)
+  static final class ReportEvent extends Event {
+    /** Messages in the interval. */
+    @Label("Messages")
+    long messages;
+    /** Messages per second in the interval. */
+    @Label("Rate")
+    double rate;
+    /** Errors in the interval. */
+    @Label("Errors")
+    long errors;
+    /** 99th percentile latency of the interval. */
+    @Label("P99 (us)")
+    long p99Micros;
+  }
+
+  /**
+   * @return true if the JVM can record
+   */
+  static boolean isRecorderAvailable() {
+    return FlightRecorder.isAvailable();
+  }
+
+  /**
+   * @param inEvent a new event
+   * @return the event, begun, or null if the event is not enabled
+   */
+  private static Event begin(final Event inEvent) {
+    if (!inEvent.isEnabled()) {
+      return null;
+    }
+    inEvent.begin();
+    return inEvent;
+  }
+
+  /**
+   * @return a begun send event, or null
+   */
+  static Object beginSend() {
+    return begin(new SendEvent());
+  }
+
+  /**
+   * @return a begun create event, or null
+   */
+  static Object beginCreate() {
+    return begin(new CreateEvent());
+  }
+
+  /**
+   * @return a begun receive event, or null
+   */
+  static Object beginReceive() {
+    return begin(new ReceiveEvent());
+  }
+
+  /**
+   * @return a begun flush event, or null
+   */
+  static Object beginFlush() {
+    return begin(new FlushEvent());
+  }
+
+  /**
+   * @return a begun report event, or null
+   */
+  static Object beginReport() {
+    return begin(new ReportEvent());
+  }
+
+  /**
+   * @param inEvent a transfer event from one of the begin methods
+   * @param inDestination where the bytes went
+   * @param inBytes payload size
+   */
+  static void end(final Object inEvent, final Object inDestination,
+    final long inBytes) {
+    final TransferEvent event = (TransferEvent) inEvent;
+    event.end();
+    if (event.shouldCommit()) {
+      event.destination = String.valueOf(inDestination);
+      event.bytes = inBytes;
+      event.commit();
+    }
+  }
+
+  /**
+   * @param inEvent a report event from {@link #beginReport()}
+   * @param inRow the interval row that was written
+   */
+  static void endReport(final Object inEvent,
+    final Map<String, Object> inRow) {
+    final ReportEvent event = (ReportEvent) inEvent;
+    event.end();
+    if (event.shouldCommit()) {
+      event.messages = number(inRow.get("messages")).longValue();
+      event.rate = number(inRow.get("rate")).doubleValue();
+      event.errors = number(inRow.get("errors")).longValue();
+      event.p99Micros = number(inRow.get("p99_us")).longValue();
+      event.commit();
+    }
+  }
+
+  /**
+   * @param inValue a column value
+   * @return the value if it is a number, else 0
+   */
+  private static Number number(final Object inValue) {
+    return inValue instanceof Number ? (Number) inValue : 0;
+  }
+
+  /**
+   * Start a recording that is written to a file when the JVM exits.
+   *
+   * @param inFile the recording file
+   * @param inSettings name of a JFR configuration, such as profile
+   * @throws IOException if the configuration can not be read
+   * @throws ParseException if the configuration is not valid
+   */
+  static void startRecording(final String inFile, final String inSettings)
+    throws IOException, ParseException {
+    final Recording recording =
+      new Recording(Configuration.getConfiguration(inSettings));
+    recording.setName("jmstoolkit");
+    recording.setDestination(Paths.get(inFile));
+    recording.setDumpOnExit(true);
+    recording.start();
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Checks that the messages of each key are processed in the order they
+ * were sent, from the sequence numbers MessageGroups gives them. Keys are
+ * per sending run, by correlation ID, so runs that reuse the key names do
+ * not mix. Counts the messages processed after a later one of their key
+ * (out of order), redelivered messages that arrive again after later ones,
+ * and the sequence numbers that never arrived (missing), which include
+ * sends that failed and messages left on the queue.
+ *
+ * @author Scott Douglass
+ */
+public class GroupOrder {
+
+  /** Logger for this class. */
+  private static final Logger LOGGER =
+    Logger.getLogger(GroupOrder.class.getName());
+  /** Highest sequence number processed, per run and key. */
+  private final Map<String, Long> highest = new ConcurrentHashMap<>();
+  /** Messages processed after a later one of their key. */
+  private final LongAdder outOfOrder = new LongAdder();
+  /** Redelivered messages processed after a later one of their key. */
+  private final LongAdder redelivered = new LongAdder();
+  /** Sequence numbers skipped over, some may arrive late. */
+  private final LongAdder skipped = new LongAdder();
+  /** Messages without a key or sequence number. */
+  private final LongAdder unkeyed = new LongAdder();
+
+  /**
+   * Check a message, when it is processed.
+   *
+   * @param inMessage the message
+   */
+  public final void check(final Message inMessage) {
+    try {
+      final String group =
+        inMessage.getStringProperty(MessageGroups.GROUP_ID);
+      if (group == null
+        || !inMessage.propertyExists(MessageGroups.SEQUENCE)) {
+        unkeyed.increment();
+        return;
+      }
+      final long sequence =
+        inMessage.getLongProperty(MessageGroups.SEQUENCE);
+      final String key = inMessage.getJMSCorrelationID() + " " + group;
+      final boolean again = inMessage.getJMSRedelivered();
+      highest.compute(key, (k, last) -> {
+        // the sequence of every key starts at 1
+        final long previous = last == null ? 0 : last;
+        if (sequence > previous) {
+          skipped.add(sequence - previous - 1);
+          return sequence;
+        }
+        if (again) {
+          redelivered.increment();
+        } else {
+          outOfOrder.increment();
+          LOGGER.log(Level.WARNING, "Out of order: {0} sequence {1} after"
+            + " {2}", new Object[]{group, sequence, previous});
+        }
+        return previous;
+      });
+    } catch (JMSException e) {
+      unkeyed.increment();
+      LOGGER.log(Level.WARNING, "Could not get message group", e);
+    }
+  }
+
+  /**
+   * @param inRow a report row to add the counters to
+   * @return the row
+   */
+  public final Map<String, Object> addTo(final Map<String, Object> inRow) {
+    inRow.put("groups", highest.size());
+    inRow.put("out_of_order", outOfOrder.sum());
+    inRow.put("redelivered_late", redelivered.sum());
+    // a message out of order filled a number that was skipped over
+    inRow.put("missing", skipped.sum() - outOfOrder.sum());
+    inRow.put("unkeyed", unkeyed.sum());
+    return inRow;
+  }
+
+  /**
+   * @return the number of messages processed after a later one of their
+   * key, not counting redeliveries
+   */
+  public final long getOutOfOrder() {
+    return outOfOrder.sum();
+  }
+}
@@ -16,7 +16,10 @@ package com.jmstoolkit.cli;
 
 import com.jmstoolkit.JTKException;
 import com.jmstoolkit.Settings;
+import com.jmstoolkit.TextCodec;
+import com.jmstoolkit.Units;
 import gnu.getopt.Getopt;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
@@ -25,11 +28,13 @@ import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.TextMessage;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
-import org.springframework.jms.listener.DefaultMessageListenerContainer;
 
 /**
  * This class is intended for testing JVM heap growth. The received messages
  * will not be written out but will be added to a Collection continuously.
+ * In the "direct" and "mapped" modes the messages are kept off-heap in a
+ * fixed size {@link RingStore} instead, so a slow consumer with on-heap
+ * buffering can be compared with one using off-heap buffering.
  *
  * @author Scott Douglass
  */
@@ -48,17 +53,50 @@ public class Heapstalk extends Receiver {
    * A message with this text body will end the program.
    */
   private static final String M_EXIT = "exit";
+  /** Keep messages in an on-heap List. */
+  public static final String MODE_HEAP = "heap";
+  /** Keep messages in a direct ByteBuffer ring. */
+  public static final String MODE_DIRECT = "direct";
+  /** Keep messages in a memory mapped file ring. */
+  public static final String MODE_MAPPED = "mapped";
+  /** Default capacity of the off-heap ring. */
+  private static final String D_CAPACITY = "64m";
+  /** Default file for the mapped ring. */
+  private static final String D_MAPPED_FILE = "heapstalk.ring";
+  /** Default number of messages between memory reports. */
+  private static final int D_REPORT_INTERVAL = 1000;
+  /** Off-heap store, null in heap mode. */
+  private RingStore ringStore = null;
+  /** Approximate bytes retained by the on-heap List. */
+  private long heapRetained = 0;
+  /** Number of messages between memory reports. */
+  private int reportInterval = D_REPORT_INTERVAL;
+  /** JVM counters at the previous report. */
+  private JvmMetrics lastMetrics = JvmMetrics.snapshot();
 
   @Override
-  public void onMessage(final Message msg) {
-    setMessagesReceived((Integer) (getMessagesReceived() + 1));
+  public synchronized void onMessage(final Message msg) {
+    setMessagesReceived(getMessagesReceived() + 1);
     try {
       if (msg instanceof TextMessage) {
         String messageText = ((TextMessage) msg).getText();
-        messageList.add(messageText + "\n");
+        if (ringStore == null) {
+          messageList.add(messageText + "\n");
+          heapRetained += 2L * (messageText.length() + 1);
+        } else if (!ringStore.put(
+          TextCodec.get(getCharset()).encode(messageText))) {
+          LOGGER.log(Level.WARNING, "Message larger than the ring: {0}",
+            messageText.length());
+        }
+        getStats().record(TextCodec.get(getCharset()).length(messageText),
+          latencyMicros(msg));
         LOGGER.log(Level.INFO, "Message received: {0}", getMessagesReceived());
+        if (getMessagesReceived() % reportInterval == 0) {
+          report();
+        }
         if (messageText.equalsIgnoreCase(M_EXIT)) {
-          this.stop();
+          report();
+          finish();
         }
       }
     } catch (JMSException e) {
@@ -66,6 +104,33 @@ public class Heapstalk extends Receiver {
     }
   }
 
+  /**
+   * Print the backlog size along with the heap, off-heap and garbage
+   * collector counters.
+   */
+  public final void report() {
+    final JvmMetrics metrics = JvmMetrics.snapshot();
+    final double allocationRate = metrics.allocationRate(lastMetrics);
+    lastMetrics = metrics;
+    final StringBuilder line = new StringBuilder("  * ");
+    line.append(getMessagesReceived()).append(" messages, retained: ");
+    if (ringStore == null) {
+      line.append(Units.formatBytes(heapRetained));
+    } else {
+      line.append(Units.formatBytes(ringStore.getUsed()))
+        .append(" in ").append(ringStore.getCount())
+        .append(" (overwritten: ").append(ringStore.getEvicted()).append(")");
+    }
+    line.append(", heap: ").append(Units.formatBytes(metrics.getHeapUsed()))
+      .append(", direct: ").append(Units.formatBytes(metrics.getDirectUsed()))
+      .append(", mapped: ").append(Units.formatBytes(metrics.getMappedUsed()))
+      .append(", GC: ").append(metrics.getGcCount())
+      .append(" (").append(metrics.getGcTime()).append("ms)")
+      .append(", alloc/s: ").append(allocationRate < 0 ? "unknown"
+        : Units.formatBytes((long) allocationRate));
+    System.out.println(line);
+  }
+
   /**
    * Main method to run this dang thing.
    * @param args Command line arguments
@@ -78,8 +143,12 @@ public class Heapstalk extends Receiver {
     }
     String jndiPropertiesFileName = D_JNDI_PROPERTIES;
     final String textEncoding = System.getProperty(P_ENCODING, D_ENCODING);
+    String mode = MODE_HEAP;
+    String capacity = D_CAPACITY;
+    String mappedFileName = D_MAPPED_FILE;
+    int reportInterval = D_REPORT_INTERVAL;
 
-    final Getopt getopt = new Getopt(D_APP_NAME, args, "c:i:j:h");
+    final Getopt getopt = new Getopt(D_APP_NAME, args, "c:i:j:m:s:f:r:h");
     int optionLetter;
     while ((optionLetter = getopt.getopt()) != -1) {
       switch (optionLetter) {
@@ -92,13 +161,40 @@ public class Heapstalk extends Receiver {
         case 'j':
           jndiPropertiesFileName = getopt.getOptarg();
           break;
+        case 'm':
+          mode = getopt.getOptarg();
+          break;
+        case 's':
+          capacity = getopt.getOptarg();
+          break;
+        case 'f':
+          mappedFileName = getopt.getOptarg();
+          break;
+        case 'r':
+          reportInterval = Integer.valueOf(getopt.getOptarg());
+          break;
         case 'h':
           System.out.println("Arguments:\n  [ -i JMS Destination JNDI name ]\n"
             + "[ -c JMS ConnectionFactory JNDI name ]\n"
-            + "[ -j JNDI properties ]\n  ");
+            + "[ -j JNDI properties ]\n"
+            + "[ -m heap | direct | mapped ] where to keep messages"
+            + " (default: heap)\n"
+            + "[ -s capacity ] size of the direct or mapped ring"
+            + " (default: 64m)\n"
+            + "[ -f file ] file for the mapped ring (default: heapstalk.ring)\n"
+            + "[ -r count ] messages between memory reports (default: 1000)\n  ");
           System.exit(X_ERROR);
       }
     }
+    final Heapstalk receiver = new Heapstalk();
+    try {
+      receiver.setReportInterval(reportInterval);
+      receiver.setRingStore(createStore(mode,
+        Units.parseBytes(capacity), new File(mappedFileName)));
+    } catch (JTKException e) {
+      System.out.println(e.toStringWithStackTrace());
+      System.exit(X_ERROR);
+    }
     // load the jndi.properties, if we fail exit
     try {
       Settings.loadSystemSettings(
@@ -110,14 +206,68 @@ public class Heapstalk extends Receiver {
 
     // Initialize the beans
     final ClassPathXmlApplicationContext applicationContext
-      = new ClassPathXmlApplicationContext(new String[]{"/app-context.xml"});
-    applicationContext.start();
-    final Heapstalk receiver = new Heapstalk();
+      = new ClassPathXmlApplicationContext(
+        new String[]{"/app-context.xml", "/receiver-context.xml"});
     receiver.setEncoding(textEncoding);
-    DefaultMessageListenerContainer listener = 
-      (DefaultMessageListenerContainer) applicationContext.getBean("jmsContainer");
+    ReceiverListenerContainer listener = 
+      (ReceiverListenerContainer) applicationContext.getBean("jmsContainer");
     // over ride the message listener with a the heap grower
     listener.setMessageListener(receiver);
-    listener.start();
+    receiver.setListenerContainer(listener);
+    applicationContext.start();
+  }
+
+  /**
+   * Create the off-heap store for a mode.
+   *
+   * @param inMode heap, direct or mapped
+   * @param inCapacity size of the ring in bytes
+   * @param inFile file for the mapped ring
+   * @return the store, or null for heap mode
+   * @throws JTKException if the mode or capacity is not valid
+   */
+  private static RingStore createStore(final String inMode,
+    final long inCapacity, final File inFile) throws JTKException {
+    if (MODE_HEAP.equals(inMode)) {
+      return null;
+    }
+    if (inCapacity <= 0 || inCapacity > Integer.MAX_VALUE) {
+      throw new JTKException("Ring capacity must be between 1B and 2GB: "
+        + inCapacity);
+    }
+    if (MODE_DIRECT.equals(inMode)) {
+      return RingStore.allocateDirect((int) inCapacity);
+    } else if (MODE_MAPPED.equals(inMode)) {
+      return RingStore.map(inFile, (int) inCapacity);
+    }
+    throw new JTKException("Unknown mode: " + inMode);
+  }
+
+  /**
+   * @return the ringStore, null in heap mode
+   */
+  public final RingStore getRingStore() {
+    return ringStore;
+  }
+
+  /**
+   * @param inRingStore the ringStore to set, null for heap mode
+   */
+  public final void setRingStore(final RingStore inRingStore) {
+    this.ringStore = inRingStore;
+  }
+
+  /**
+   * @return the reportInterval
+   */
+  public final int getReportInterval() {
+    return reportInterval;
+  }
+
+  /**
+   * @param inReportInterval the reportInterval to set
+   */
+  public final void setReportInterval(final int inReportInterval) {
+    this.reportInterval = inReportInterval;
   }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes an interval row of a {@link RunStats} at a fixed rate on a daemon
+ * thread.
+ *
+ * @author Scott Douglass
+ */
+public class IntervalReporter {
+
+  /** The counters to report. */
+  private final RunStats stats;
+  /** Where the rows go. */
+  private final ReportWriter writer;
+  /** Time between rows (ns). */
+  private final long period;
+  /** Runs the reports. */
+  private ScheduledExecutorService scheduler = null;
+
+  /**
+   * @param inStats the counters to report
+   * @param inWriter where the rows go
+   * @param inPeriod time between rows (ns)
+   */
+  public IntervalReporter(final RunStats inStats, final ReportWriter inWriter,
+    final long inPeriod) {
+    this.stats = inStats;
+    this.writer = inWriter;
+    this.period = inPeriod;
+  }
+
+  /**
+   * Start writing rows.
+   */
+  public final synchronized void start() {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "reporter");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleAtFixedRate(this::report, period, period,
+      TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Write one interval row.
+   */
+  private void report() {
+    final Object event = Flight.beginReport();
+    final Map<String, Object> row = row();
+    writer.write(row);
+    Flight.endReport(event, row);
+  }
+
+  /**
+   * @return the next interval row
+   */
+  protected Map<String, Object> row() {
+    return stats.intervalRow();
+  }
+
+  /**
+   * Stop writing rows, and write the last partial interval.
+   */
+  public final synchronized void stop() {
+    if (scheduler == null) {
+      return;
+    }
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(period, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    scheduler = null;
+    report();
+  }
+}
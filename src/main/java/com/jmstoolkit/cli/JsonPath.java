@@ -0,0 +1,320 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small JSON path, such as $.order.items[0].sku or $.items[*].sku,
+ * compiled once and evaluated on JSON text without building a tree: the
+ * parts of the document that are not on the path are only skipped over.
+ * Supports .name, ['name'], [index] and * steps.
+ *
+ * @author Scott Douglass
+ */
+final class JsonPath {
+
+  /** Matches any name or index. */
+  private static final String WILDCARD = "*";
+  /** The steps, a String name, an Integer index or the wildcard. */
+  private final Object[] steps;
+  /** The path as given. */
+  private final String path;
+
+  /**
+   * @param inPath the path, starting with $
+   * @throws JTKException if the path can not be parsed
+   */
+  JsonPath(final String inPath) throws JTKException {
+    this.path = inPath;
+    final List<Object> parsed = new ArrayList<>();
+    final String p = inPath.trim();
+    if (!p.startsWith("$")) {
+      throw new JTKException("JSON path must start with $: " + inPath);
+    }
+    int i = 1;
+    while (i < p.length()) {
+      final char c = p.charAt(i);
+      if (c == '.') {
+        int end = i + 1;
+        while (end < p.length() && p.charAt(end) != '.'
+          && p.charAt(end) != '[') {
+          end++;
+        }
+        if (end == i + 1) {
+          throw new JTKException("Empty name in JSON path: " + inPath);
+        }
+        final String name = p.substring(i + 1, end);
+        // steps are compared by identity, so only ['*'] is a literal *
+        parsed.add(WILDCARD.equals(name) ? WILDCARD : name);
+        i = end;
+      } else if (c == '[') {
+        final int end = p.indexOf(']', i);
+        if (end < 0) {
+          throw new JTKException("Missing ] in JSON path: " + inPath);
+        }
+        final String inside = p.substring(i + 1, end).trim();
+        if (inside.startsWith("'") && inside.endsWith("'")
+          && inside.length() > 1) {
+          parsed.add(inside.substring(1, inside.length() - 1));
+        } else if (WILDCARD.equals(inside)) {
+          parsed.add(WILDCARD);
+        } else {
+          try {
+            parsed.add(Integer.valueOf(inside));
+          } catch (NumberFormatException e) {
+            throw new JTKException("Bad index in JSON path: " + inPath, e);
+          }
+        }
+        i = end + 1;
+      } else {
+        throw new JTKException("Unexpected " + c + " in JSON path: "
+          + inPath);
+      }
+    }
+    this.steps = parsed.toArray();
+  }
+
+  /**
+   * @param inJson a JSON document
+   * @return the values at the path, strings without quotes and objects or
+   * arrays as their JSON text, empty if there are none or the text is not
+   * JSON
+   */
+  List<String> evaluate(final String inJson) {
+    final List<String> values = new ArrayList<>(1);
+    try {
+      final Cursor cursor = new Cursor(inJson);
+      cursor.skipSpace();
+      find(cursor, 0, values);
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      values.clear();
+    }
+    return values;
+  }
+
+  /**
+   * Find the values for the steps from a step on, at the value the cursor
+   * is on, and move the cursor past that value.
+   *
+   * @param inCursor the cursor, on a value
+   * @param inStep the next step
+   * @param inValues where found values go
+   */
+  private void find(final Cursor inCursor, final int inStep,
+    final List<String> inValues) {
+    if (inStep == steps.length) {
+      final int start = inCursor.position;
+      final boolean string = inCursor.peek() == '"';
+      final String unquoted = string ? inCursor.readString() : null;
+      if (!string) {
+        inCursor.skipValue();
+      }
+      inValues.add(string ? unquoted
+        : inCursor.text.substring(start, inCursor.position));
+      return;
+    }
+    final Object step = steps[inStep];
+    final char c = inCursor.peek();
+    if (c == '{' && !(step instanceof Integer)) {
+      inCursor.position++;
+      inCursor.skipSpace();
+      if (inCursor.peek() == '}') {
+        inCursor.position++;
+        return;
+      }
+      while (true) {
+        final String name = inCursor.readString();
+        inCursor.skipSpace();
+        inCursor.expect(':');
+        inCursor.skipSpace();
+        if (step == WILDCARD || step.equals(name)) {
+          find(inCursor, inStep + 1, inValues);
+        } else {
+          inCursor.skipValue();
+        }
+        inCursor.skipSpace();
+        if (inCursor.peek() == ',') {
+          inCursor.position++;
+          inCursor.skipSpace();
+        } else {
+          inCursor.expect('}');
+          return;
+        }
+      }
+    } else if (c == '[' && !(step instanceof String && step != WILDCARD)) {
+      inCursor.position++;
+      inCursor.skipSpace();
+      if (inCursor.peek() == ']') {
+        inCursor.position++;
+        return;
+      }
+      int index = 0;
+      while (true) {
+        if (step == WILDCARD || step.equals(index)) {
+          find(inCursor, inStep + 1, inValues);
+        } else {
+          inCursor.skipValue();
+        }
+        index++;
+        inCursor.skipSpace();
+        if (inCursor.peek() == ',') {
+          inCursor.position++;
+          inCursor.skipSpace();
+        } else {
+          inCursor.expect(']');
+          return;
+        }
+      }
+    } else {
+      inCursor.skipValue();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return path;
+  }
+
+  /** A position in JSON text. */
+  private static final class Cursor {
+    /** The text. */
+    private final String text;
+    /** The position. */
+    private int position = 0;
+
+    /**
+     * @param inText the text
+     */
+    Cursor(final String inText) {
+      this.text = inText;
+    }
+
+    /**
+     * @return the character at the position
+     */
+    char peek() {
+      return text.charAt(position);
+    }
+
+    /**
+     * @param inChar the character that must be next
+     */
+    void expect(final char inChar) {
+      if (text.charAt(position) != inChar) {
+        throw new IllegalArgumentException("Expected " + inChar);
+      }
+      position++;
+    }
+
+    /** Skip white space. */
+    void skipSpace() {
+      while (position < text.length()
+        && Character.isWhitespace(text.charAt(position))) {
+        position++;
+      }
+    }
+
+    /** Skip one value of any kind. */
+    void skipValue() {
+      final char c = peek();
+      if (c == '"') {
+        skipString();
+      } else if (c == '{' || c == '[') {
+        int depth = 0;
+        do {
+          final char d = peek();
+          if (d == '"') {
+            skipString();
+            continue;
+          }
+          if (d == '{' || d == '[') {
+            depth++;
+          } else if (d == '}' || d == ']') {
+            depth--;
+          }
+          position++;
+        } while (depth > 0);
+      } else {
+        while (position < text.length()) {
+          final char d = text.charAt(position);
+          if (d == ',' || d == '}' || d == ']'
+            || Character.isWhitespace(d)) {
+            break;
+          }
+          position++;
+        }
+      }
+    }
+
+    /** Skip a string, the cursor is on its opening quote. */
+    private void skipString() {
+      position++;
+      while (true) {
+        final char c = text.charAt(position++);
+        if (c == '\\') {
+          position++;
+        } else if (c == '"') {
+          return;
+        }
+      }
+    }
+
+    /**
+     * @return the string the cursor is on, unescaped
+     */
+    String readString() {
+      expect('"');
+      final StringBuilder value = new StringBuilder();
+      while (true) {
+        final char c = text.charAt(position++);
+        if (c == '"') {
+          return value.toString();
+        }
+        if (c != '\\') {
+          value.append(c);
+          continue;
+        }
+        final char e = text.charAt(position++);
+        switch (e) {
+          case 'n':
+            value.append('\n');
+            break;
+          case 't':
+            value.append('\t');
+            break;
+          case 'r':
+            value.append('\r');
+            break;
+          case 'b':
+            value.append('\b');
+            break;
+          case 'f':
+            value.append('\f');
+            break;
+          case 'u':
+            value.append((char) Integer.parseInt(
+              text.substring(position, position + 4), 16));
+            position += 4;
+            break;
+          default:
+            value.append(e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+
+/**
+ * A point in time snapshot of the JVM memory and garbage collector
+ * counters. Subtract two snapshots to get the cost of what happened in
+ * between.
+ *
+ * @author Scott Douglass
+ */
+public final class JvmMetrics {
+
+  /** Memory MXBean. */
+  private static final MemoryMXBean MEMORY =
+    ManagementFactory.getMemoryMXBean();
+  /** Thread MXBean. */
+  private static final ThreadMXBean THREADS =
+    ManagementFactory.getThreadMXBean();
+
+  /** Time the snapshot was taken (ns). */
+  private final long nanoTime;
+  /** Used heap bytes. */
+  private final long heapUsed;
+  /** Used non-heap bytes. */
+  private final long nonHeapUsed;
+  /** Bytes used by direct ByteBuffers. */
+  private final long directUsed;
+  /** Bytes used by mapped ByteBuffers. */
+  private final long mappedUsed;
+  /** Total collections of all collectors. */
+  private final long gcCount;
+  /** Total time (ms) spent in all collectors. */
+  private final long gcTime;
+  /** Bytes allocated by all live threads, or -1 if not supported. */
+  private final long allocatedBytes;
+  /** CPU time (ns) used by the process, or -1 if not supported. */
+  private final long processCpuTime;
+
+  /** Take a snapshot. */
+  private JvmMetrics() {
+    nanoTime = System.nanoTime();
+    heapUsed = MEMORY.getHeapMemoryUsage().getUsed();
+    nonHeapUsed = MEMORY.getNonHeapMemoryUsage().getUsed();
+    long direct = 0;
+    long mapped = 0;
+    for (BufferPoolMXBean pool
+      : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if ("direct".equals(pool.getName())) {
+        direct = pool.getMemoryUsed();
+      } else if ("mapped".equals(pool.getName())) {
+        mapped = pool.getMemoryUsed();
+      }
+    }
+    directUsed = direct;
+    mappedUsed = mapped;
+    long count = 0;
+    long time = 0;
+    for (GarbageCollectorMXBean gc
+      : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+      time += Math.max(0, gc.getCollectionTime());
+    }
+    gcCount = count;
+    gcTime = time;
+    allocatedBytes = totalAllocatedBytes();
+    final OperatingSystemMXBean os =
+      ManagementFactory.getOperatingSystemMXBean();
+    processCpuTime = os instanceof com.sun.management.OperatingSystemMXBean
+      ? ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime()
+      : -1;
+  }
+
+  /**
+   * @return a snapshot of the current counters
+   */
+  public static JvmMetrics snapshot() {
+    return new JvmMetrics();
+  }
+
+  /**
+   * Sum of the bytes allocated by all live threads. Uses the HotSpot
+   * extension of the ThreadMXBean when it is available.
+   *
+   * @return allocated bytes or -1 if not supported
+   */
+  private static long totalAllocatedBytes() {
+    if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    final com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) THREADS;
+    if (!threads.isThreadAllocatedMemorySupported()
+      || !threads.isThreadAllocatedMemoryEnabled()) {
+      return -1;
+    }
+    long total = 0;
+    for (long bytes
+      : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+      total += Math.max(0, bytes);
+    }
+    return total;
+  }
+
+  /**
+   * @return CPU time (ns) used by the current thread, or -1 if not
+   * supported
+   */
+  public static long currentThreadCpuTime() {
+    return THREADS.isCurrentThreadCpuTimeSupported()
+      ? THREADS.getCurrentThreadCpuTime() : -1;
+  }
+
+  /**
+   * @return bytes allocated by the current thread, or -1 if not supported
+   */
+  public static long currentThreadAllocatedBytes() {
+    if (THREADS instanceof com.sun.management.ThreadMXBean) {
+      final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) THREADS;
+      if (threads.isThreadAllocatedMemorySupported()
+        && threads.isThreadAllocatedMemoryEnabled()) {
+        return threads.getThreadAllocatedBytes(
+          Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Add the resources used between an earlier snapshot and this one to a
+   * report row: GC count and time, and process CPU time and allocated
+   * bytes per message.
+   *
+   * @param inRow the row
+   * @param inEarlier the earlier snapshot
+   * @param inMessages messages handled in between
+   */
+  public void addUsage(final Map<String, Object> inRow,
+    final JvmMetrics inEarlier, final long inMessages) {
+    addUsage(inRow, inEarlier, inMessages, 0);
+  }
+
+  /**
+   * Add the resources used between an earlier snapshot and this one to a
+   * report row, with the bytes allocated by threads that started and ended
+   * in between, which the sums of the live threads leave out.
+   *
+   * @param inRow the row
+   * @param inEarlier the earlier snapshot
+   * @param inMessages messages handled in between
+   * @param inEndedAllocated bytes allocated by threads that ended, -1 if
+   * not known
+   */
+  public void addUsage(final Map<String, Object> inRow,
+    final JvmMetrics inEarlier, final long inMessages,
+    final long inEndedAllocated) {
+    inRow.put("gc_count", gcCount - inEarlier.gcCount);
+    inRow.put("gc_ms", gcTime - inEarlier.gcTime);
+    final double cpu =
+      perMessage(processCpuTime, inEarlier.processCpuTime, inMessages);
+    inRow.put("process_cpu_us_per_msg", cpu < 0 ? cpu : cpu / 1000);
+    inRow.put("alloc_bytes_per_msg", perMessage(
+      inEndedAllocated < 0 ? -1 : allocatedBytes + inEndedAllocated,
+      inEarlier.allocatedBytes, inMessages));
+  }
+
+  /**
+   * @param inAfter counter after
+   * @param inBefore counter before
+   * @param inMessages number of messages
+   * @return the difference per message, or -1 if a counter is unsupported
+   */
+  public static double perMessage(final long inAfter, final long inBefore,
+    final long inMessages) {
+    if (inAfter < 0 || inBefore < 0) {
+      return -1;
+    }
+    return (double) (inAfter - inBefore) / Math.max(1, inMessages);
+  }
+
+  /**
+   * Allocation rate between an earlier snapshot and this one.
+   *
+   * @param inEarlier the earlier snapshot
+   * @return bytes per second, or -1 if not supported
+   */
+  public double allocationRate(final JvmMetrics inEarlier) {
+    final long elapsed = nanoTime - inEarlier.nanoTime;
+    if (allocatedBytes < 0 || inEarlier.allocatedBytes < 0 || elapsed <= 0) {
+      return -1;
+    }
+    return (allocatedBytes - inEarlier.allocatedBytes) * 1e9 / elapsed;
+  }
+
+  /**
+   * @return the nanoTime
+   */
+  public long getNanoTime() {
+    return nanoTime;
+  }
+
+  /**
+   * @return the heapUsed
+   */
+  public long getHeapUsed() {
+    return heapUsed;
+  }
+
+  /**
+   * @return the nonHeapUsed
+   */
+  public long getNonHeapUsed() {
+    return nonHeapUsed;
+  }
+
+  /**
+   * @return the directUsed
+   */
+  public long getDirectUsed() {
+    return directUsed;
+  }
+
+  /**
+   * @return the mappedUsed
+   */
+  public long getMappedUsed() {
+    return mappedUsed;
+  }
+
+  /**
+   * @return the gcCount
+   */
+  public long getGcCount() {
+    return gcCount;
+  }
+
+  /**
+   * @return the gcTime in ms
+   */
+  public long getGcTime() {
+    return gcTime;
+  }
+
+  /**
+   * @return the processCpuTime (ns), or -1 if not supported
+   */
+  public long getProcessCpuTime() {
+    return processCpuTime;
+  }
+
+  /**
+   * @return the allocatedBytes, or -1 if not supported
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+}
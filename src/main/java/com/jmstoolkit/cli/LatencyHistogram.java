@@ -0,0 +1,198 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of latencies in microseconds. Values below 64 are
+ * exact, above that every power of two is split in 32 buckets, so the
+ * reported percentiles are within about 3% of the real value. Histograms
+ * can be merged and written as text, so results from several runs or hosts
+ * can be added together.
+ *
+ * @author Scott Douglass
+ */
+public class LatencyHistogram {
+
+  /** Bits used for the buckets within a power of two. */
+  private static final int SUB_BITS = 5;
+  /** Buckets within a power of two. */
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  /** Values below this have their own bucket. */
+  private static final int LINEAR = 2 * SUB_BUCKETS;
+  /** Exponent of the first power of two after the linear buckets. */
+  private static final int FIRST_EXPONENT = SUB_BITS + 1;
+  /** Total number of buckets, up to Long.MAX_VALUE. */
+  private static final int BUCKETS =
+    LINEAR + (63 - FIRST_EXPONENT) * SUB_BUCKETS;
+  /** Separator between buckets in the text form. */
+  private static final String BUCKET_SEPARATOR = ",";
+  /** Separator between index and count in the text form. */
+  private static final String COUNT_SEPARATOR = ":";
+  /** Counts per bucket. */
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  /** Number of values recorded. */
+  private final LongAdder count = new LongAdder();
+  /** Sum of the values recorded. */
+  private final LongAdder sum = new LongAdder();
+  /** Largest value recorded. */
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * @param inValue a value in microseconds
+   * @return the bucket for the value
+   */
+  static int index(final long inValue) {
+    final long value = Math.max(0, inValue);
+    if (value < LINEAR) {
+      return (int) value;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int sub =
+      (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * @param inIndex a bucket
+   * @return the largest value that goes in the bucket
+   */
+  static long highestValue(final int inIndex) {
+    if (inIndex < LINEAR) {
+      return inIndex;
+    }
+    final int exponent = (inIndex - LINEAR) / SUB_BUCKETS + FIRST_EXPONENT;
+    final int sub = (inIndex - LINEAR) % SUB_BUCKETS;
+    final long width = 1L << (exponent - SUB_BITS);
+    return ((long) (SUB_BUCKETS + sub)) * width + width - 1;
+  }
+
+  /**
+   * @param inMicros a latency in microseconds
+   */
+  public final void record(final long inMicros) {
+    counts.incrementAndGet(index(inMicros));
+    count.increment();
+    sum.add(inMicros);
+    max.accumulateAndGet(inMicros, Math::max);
+  }
+
+  /**
+   * Add the values of another histogram to this one.
+   *
+   * @param inOther the other histogram
+   */
+  public final void add(final LatencyHistogram inOther) {
+    for (int i = 0; i < BUCKETS; i++) {
+      final long bucket = inOther.counts.get(i);
+      if (bucket != 0) {
+        counts.addAndGet(i, bucket);
+      }
+    }
+    count.add(inOther.count.sum());
+    sum.add(inOther.sum.sum());
+    max.accumulateAndGet(inOther.max.get(), Math::max);
+  }
+
+  /**
+   * @param inPercentile percentile from 0 to 100
+   * @return the value at the percentile in microseconds, 0 if empty
+   */
+  public final long getPercentile(final double inPercentile) {
+    final long total = count.sum();
+    if (total == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(inPercentile / 100.0
+      * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * @return the number of values
+   */
+  public final long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return the largest value in microseconds
+   */
+  public final long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @return the mean value in microseconds, 0 if empty
+   */
+  public final double getMean() {
+    final long total = count.sum();
+    return total == 0 ? 0 : (double) sum.sum() / total;
+  }
+
+  /**
+   * Text form of the histogram: the max, the sum and the non empty buckets,
+   * for example "1200,35000,12:3,40:1". See {@link #parse(String)}.
+   *
+   * @return the histogram as text
+   */
+  public final String encode() {
+    final StringBuilder text = new StringBuilder();
+    text.append(max.get()).append(BUCKET_SEPARATOR).append(sum.sum());
+    for (int i = 0; i < BUCKETS; i++) {
+      final long bucket = counts.get(i);
+      if (bucket != 0) {
+        text.append(BUCKET_SEPARATOR).append(i)
+          .append(COUNT_SEPARATOR).append(bucket);
+      }
+    }
+    return text.toString();
+  }
+
+  /**
+   * @param inText a histogram written by {@link #encode()}
+   * @return the histogram
+   * @throws JTKException if the text is not a histogram
+   */
+  public static LatencyHistogram parse(final String inText)
+    throws JTKException {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    final String[] parts = inText.trim().split(BUCKET_SEPARATOR);
+    try {
+      histogram.max.set(Long.parseLong(parts[0]));
+      histogram.sum.add(Long.parseLong(parts[1]));
+      for (int i = 2; i < parts.length; i++) {
+        final String[] bucket = parts[i].split(COUNT_SEPARATOR);
+        final long bucketCount = Long.parseLong(bucket[1]);
+        histogram.counts.addAndGet(Integer.parseInt(bucket[0]), bucketCount);
+        histogram.count.add(bucketCount);
+      }
+    } catch (RuntimeException e) {
+      throw new JTKException("Not a histogram: " + inText, e);
+    }
+    return histogram;
+  }
+}
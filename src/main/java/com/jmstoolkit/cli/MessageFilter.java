@@ -0,0 +1,325 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Filters and projects message bodies. Every match expression must match
+ * the body for the message to be kept, and if there are extract
+ * expressions only the extracted values are kept, separated by tabs.
+ * An expression is type:text, one of:
+ * <pre>
+ * regex:ERROR [0-9]+   the body contains a match, extracts group 1 if
+ *                      there is one, else the whole match
+ * contains:ERROR       the body contains the text, extracts the text
+ * xpath:/order/@id     the XPath is true of the XML body, extracts its
+ *                      string value
+ * json:$.order.id      the path is in the JSON body, extracts the values,
+ *                      separated by commas
+ * </pre>
+ * Expressions are compiled once, when the filter is created, and the
+ * filter can be used by several threads at once. Filters on headers and
+ * properties belong in a JMS selector instead, the broker applies those
+ * before the message is even sent to us.
+ *
+ * @author Scott Douglass
+ */
+public final class MessageFilter {
+
+  /** Separates extracted values in the output. */
+  private static final String FIELD_SEPARATOR = "\t";
+  /** The expressions that must all match. */
+  private final List<Expression> matches = new ArrayList<>();
+  /** The expressions whose values are the output. */
+  private final List<Expression> extracts = new ArrayList<>();
+
+  /**
+   * @param inMatches match expressions, may be empty
+   * @param inExtracts extract expressions, empty to keep the whole body
+   * @throws JTKException if an expression can not be compiled
+   */
+  public MessageFilter(final List<String> inMatches,
+    final List<String> inExtracts) throws JTKException {
+    for (String spec : inMatches) {
+      matches.add(compile(spec));
+    }
+    for (String spec : inExtracts) {
+      extracts.add(compile(spec));
+    }
+  }
+
+  /**
+   * @param inBody a message body
+   * @return what to output for the body, null if it does not match
+   */
+  public String apply(final String inBody) {
+    for (Expression match : matches) {
+      if (!match.matches(inBody)) {
+        return null;
+      }
+    }
+    if (extracts.isEmpty()) {
+      return inBody;
+    }
+    final StringBuilder output = new StringBuilder();
+    for (int i = 0; i < extracts.size(); i++) {
+      if (i > 0) {
+        output.append(FIELD_SEPARATOR);
+      }
+      final String value = extracts.get(i).extract(inBody);
+      if (value != null) {
+        output.append(value);
+      }
+    }
+    return output.toString();
+  }
+
+  /**
+   * @param inSpec type:text
+   * @return the compiled expression
+   * @throws JTKException if the type is unknown or the text is not valid
+   */
+  static Expression compile(final String inSpec) throws JTKException {
+    final int colon = inSpec.indexOf(':');
+    if (colon < 0) {
+      throw new JTKException("Expression must be type:text: " + inSpec);
+    }
+    final String text = inSpec.substring(colon + 1);
+    switch (inSpec.substring(0, colon)) {
+      case "regex":
+        return new RegexExpression(text);
+      case "contains":
+        return new ContainsExpression(text);
+      case "xpath":
+        return new XPathBodyExpression(text);
+      case "json":
+        return new JsonExpression(text);
+      default:
+        throw new JTKException("Unknown expression type: " + inSpec);
+    }
+  }
+
+  /** A compiled expression. */
+  abstract static class Expression {
+    /**
+     * @param inBody a message body
+     * @return true if the expression matches the body
+     */
+    abstract boolean matches(String inBody);
+
+    /**
+     * @param inBody a message body
+     * @return the value of the expression, null if it does not match
+     */
+    abstract String extract(String inBody);
+  }
+
+  /** A regular expression, found anywhere in the body. */
+  private static final class RegexExpression extends Expression {
+    /** The compiled pattern, shared by all threads. */
+    private final Pattern pattern;
+
+    /**
+     * @param inRegex the regular expression
+     * @throws JTKException if it is not valid
+     */
+    RegexExpression(final String inRegex) throws JTKException {
+      try {
+        pattern = Pattern.compile(inRegex);
+      } catch (PatternSyntaxException e) {
+        throw new JTKException("Not a valid regular expression: " + inRegex,
+          e);
+      }
+    }
+
+    @Override
+    boolean matches(final String inBody) {
+      return pattern.matcher(inBody).find();
+    }
+
+    @Override
+    String extract(final String inBody) {
+      final Matcher matcher = pattern.matcher(inBody);
+      if (!matcher.find()) {
+        return null;
+      }
+      return matcher.groupCount() > 0 ? matcher.group(1) : matcher.group();
+    }
+  }
+
+  /** Plain text, found anywhere in the body. */
+  private static final class ContainsExpression extends Expression {
+    /** The text. */
+    private final String text;
+
+    /**
+     * @param inText the text
+     */
+    ContainsExpression(final String inText) {
+      this.text = inText;
+    }
+
+    @Override
+    boolean matches(final String inBody) {
+      return inBody.contains(text);
+    }
+
+    @Override
+    String extract(final String inBody) {
+      return matches(inBody) ? text : null;
+    }
+  }
+
+  /**
+   * An XPath on an XML body. XPathExpression and DocumentBuilder are not
+   * thread safe, so each thread compiles its own copy, once.
+   */
+  private static final class XPathBodyExpression extends Expression {
+    /** The XPath. */
+    private final String xpath;
+    /** The compiled XPath of each thread. */
+    private final ThreadLocal<XPathExpression> compiled;
+    /** The parser of each thread. */
+    private final ThreadLocal<DocumentBuilder> parser =
+      ThreadLocal.withInitial(XPathBodyExpression::newParser);
+
+    /**
+     * @param inXPath the XPath
+     * @throws JTKException if it is not valid
+     */
+    XPathBodyExpression(final String inXPath) throws JTKException {
+      this.xpath = inXPath;
+      try {
+        compile(inXPath);
+      } catch (XPathExpressionException e) {
+        throw new JTKException("Not a valid XPath: " + inXPath, e);
+      }
+      compiled = ThreadLocal.withInitial(() -> {
+        try {
+          return compile(xpath);
+        } catch (XPathExpressionException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+    }
+
+    /**
+     * @param inXPath the XPath
+     * @return it, compiled
+     * @throws XPathExpressionException if it is not valid
+     */
+    private static XPathExpression compile(final String inXPath)
+      throws XPathExpressionException {
+      return XPathFactory.newInstance().newXPath().compile(inXPath);
+    }
+
+    /**
+     * @return a parser that does not read DTDs or external entities
+     */
+    private static DocumentBuilder newParser() {
+      final DocumentBuilderFactory factory =
+        DocumentBuilderFactory.newInstance();
+      try {
+        factory.setFeature(
+          "http://apache.org/xml/features/disallow-doctype-decl", true);
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        final DocumentBuilder builder = factory.newDocumentBuilder();
+        // bodies that are not XML just do not match, do not print them
+        builder.setErrorHandler(new DefaultHandler());
+        return builder;
+      } catch (ParserConfigurationException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /**
+     * @param inBody a message body
+     * @return the parsed body, null if it is not XML
+     */
+    private Document parse(final String inBody) {
+      try {
+        return parser.get().parse(new InputSource(new StringReader(inBody)));
+      } catch (SAXException | IOException e) {
+        return null;
+      }
+    }
+
+    @Override
+    boolean matches(final String inBody) {
+      final Document document = parse(inBody);
+      try {
+        return document != null && (Boolean) compiled.get()
+          .evaluate(document, XPathConstants.BOOLEAN);
+      } catch (XPathExpressionException e) {
+        return false;
+      }
+    }
+
+    @Override
+    String extract(final String inBody) {
+      final Document document = parse(inBody);
+      try {
+        return document == null ? null : compiled.get().evaluate(document);
+      } catch (XPathExpressionException e) {
+        return null;
+      }
+    }
+  }
+
+  /** A JSON path on a JSON body. */
+  private static final class JsonExpression extends Expression {
+    /** The compiled path. */
+    private final JsonPath path;
+
+    /**
+     * @param inPath the path
+     * @throws JTKException if it is not valid
+     */
+    JsonExpression(final String inPath) throws JTKException {
+      this.path = new JsonPath(inPath);
+    }
+
+    @Override
+    boolean matches(final String inBody) {
+      return !path.evaluate(inBody).isEmpty();
+    }
+
+    @Override
+    String extract(final String inBody) {
+      final List<String> values = path.evaluate(inBody);
+      return values.isEmpty() ? null : String.join(",", values);
+    }
+  }
+}
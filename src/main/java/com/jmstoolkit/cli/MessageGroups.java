@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import java.util.concurrent.ThreadLocalRandom;
+import org.springframework.jms.core.MessagePostProcessor;
+
+/**
+ * Keys for keyed, order sensitive messages, such as the events of one
+ * account. Each message gets a key drawn at random from the key space as
+ * its JMSXGroupID, and the next sequence number of that key. The broker
+ * sends all the messages of a group to the same consumer, and the
+ * sequence lets the receiver check that a key's messages were processed
+ * in the order they were sent, see GroupOrder.
+ * <p>
+ * The sequence number and the send of a key happen under one lock, so
+ * producers on several threads still send each key in sequence order.
+ * Keys share a fixed number of locks.
+ *
+ * @author Scott Douglass
+ */
+public class MessageGroups {
+
+  /** The JMS group property, the key. */
+  public static final String GROUP_ID = "JMSXGroupID";
+  /** Property with the sequence number of the message within its key. */
+  public static final String SEQUENCE = "jtk_group_seq";
+  /** Prefix of the keys. */
+  private static final String KEY_PREFIX = "key-";
+  /** Largest number of locks. */
+  private static final int MAX_LOCKS = 1024;
+  /** The last sequence number of each key. */
+  private final long[] sequences;
+  /** The locks, a key uses key modulo the number of locks. */
+  private final Object[] locks;
+
+  /**
+   * @param inKeys the number of keys
+   */
+  public MessageGroups(final int inKeys) {
+    sequences = new long[Math.max(1, inKeys)];
+    locks = new Object[Math.min(sequences.length, MAX_LOCKS)];
+    for (int l = 0; l < locks.length; l++) {
+      locks[l] = new Object();
+    }
+  }
+
+  /**
+   * @return a key drawn at random
+   */
+  public final int nextKey() {
+    return ThreadLocalRandom.current().nextInt(sequences.length);
+  }
+
+  /**
+   * @param inKey a key
+   * @return what to hold while numbering and sending a message of the key
+   */
+  public final Object lock(final int inKey) {
+    return locks[inKey % locks.length];
+  }
+
+  /**
+   * Number a message of a key. Call while holding the key's lock, and send
+   * the message before letting go of it.
+   *
+   * @param inKey the key
+   * @param inProcessor sets the other headers and properties
+   * @return sets the group and sequence as well
+   */
+  public final MessagePostProcessor stamp(final int inKey,
+    final MessagePostProcessor inProcessor) {
+    final long sequence = ++sequences[inKey];
+    return message -> {
+      inProcessor.postProcessMessage(message);
+      message.setStringProperty(GROUP_ID, KEY_PREFIX + inKey);
+      message.setLongProperty(SEQUENCE, sequence);
+      return message;
+    };
+  }
+
+  /**
+   * @return the number of keys
+   */
+  public final int getKeys() {
+    return sequences.length;
+  }
+}
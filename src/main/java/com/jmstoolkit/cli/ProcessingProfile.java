@@ -0,0 +1,272 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import com.jmstoolkit.Units;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulated per-message consumer work. A profile is a comma separated list
+ * of steps which are all run for every message:
+ * <code>
+ * delay:5ms            sleep for a fixed time
+ * random:1ms-20ms      sleep for a uniformly random time
+ * cpu:200us            keep the CPU busy for a fixed time
+ * alloc:4k             allocate a byte array
+ * file:latencies.txt   sleep for a time picked from a file, one per line
+ * </code>
+ *
+ * @author Scott Douglass
+ */
+public class ProcessingProfile {
+
+  /** Separator between profile steps. */
+  private static final String STEP_SEPARATOR = ",";
+  /** Separator between step name and value. */
+  private static final String VALUE_SEPARATOR = ":";
+  /** Separator between the low and high value of a random delay. */
+  private static final String RANGE_SEPARATOR = "-";
+  /** Keeps the busy work and allocations from being optimized away. */
+  private static volatile long sink;
+  /** The steps of this profile. */
+  private final List<Step> steps = new ArrayList<>();
+  /** The profile as given on the command line. */
+  private final String specification;
+
+  /**
+   * @param inSpecification the profile, for example "cpu:100us,alloc:1k"
+   * @throws JTKException if the profile can not be parsed
+   */
+  public ProcessingProfile(final String inSpecification) throws JTKException {
+    this.specification = inSpecification;
+    for (String step : inSpecification.split(STEP_SEPARATOR)) {
+      if (!step.trim().isEmpty()) {
+        steps.add(parseStep(step.trim()));
+      }
+    }
+  }
+
+  /**
+   * @param inStep one step of a profile
+   * @return the step
+   * @throws JTKException if the step can not be parsed
+   */
+  private static Step parseStep(final String inStep) throws JTKException {
+    final int split = inStep.indexOf(VALUE_SEPARATOR);
+    if (split < 0) {
+      throw new JTKException("Processing step needs a value: " + inStep);
+    }
+    final String name = inStep.substring(0, split);
+    final String value = inStep.substring(split + 1);
+    switch (name) {
+      case "delay":
+        return new Delay(Units.parseDuration(value));
+      case "random":
+        final String[] range = value.split(RANGE_SEPARATOR);
+        if (range.length != 2) {
+          throw new JTKException("Random delay needs low-high: " + inStep);
+        }
+        return new RandomDelay(Units.parseDuration(range[0]),
+          Units.parseDuration(range[1]));
+      case "cpu":
+        return new BusyWork(Units.parseDuration(value));
+      case "alloc":
+        return new Allocation(Units.parseBytes(value));
+      case "file":
+        return new DelayDistribution(value);
+      default:
+        throw new JTKException("Unknown processing step: " + inStep);
+    }
+  }
+
+  /**
+   * Run all the steps of the profile for one message.
+   */
+  public final void process() {
+    for (Step step : steps) {
+      step.run();
+    }
+  }
+
+  /**
+   * @return true if the profile does nothing
+   */
+  public final boolean isEmpty() {
+    return steps.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return specification;
+  }
+
+  /**
+   * Sleep, using parkNanos for delays below a millisecond.
+   *
+   * @param inNanos time to sleep
+   */
+  private static void pause(final long inNanos) {
+    if (inNanos >= TimeUnit.MILLISECONDS.toNanos(1)) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(inNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    } else if (inNanos > 0) {
+      LockSupport.parkNanos(inNanos);
+    }
+  }
+
+  /** One step of a profile. */
+  private interface Step {
+    /** Do the work for one message. */
+    void run();
+  }
+
+  /** Fixed delay. */
+  private static final class Delay implements Step {
+    /** Delay in nanoseconds. */
+    private final long nanos;
+
+    /**
+     * @param inNanos delay in nanoseconds
+     */
+    Delay(final long inNanos) {
+      this.nanos = inNanos;
+    }
+
+    @Override
+    public void run() {
+      pause(nanos);
+    }
+  }
+
+  /** Uniformly random delay. */
+  private static final class RandomDelay implements Step {
+    /** Shortest delay in nanoseconds. */
+    private final long low;
+    /** Longest delay in nanoseconds. */
+    private final long high;
+
+    /**
+     * @param inLow shortest delay in nanoseconds
+     * @param inHigh longest delay in nanoseconds
+     */
+    RandomDelay(final long inLow, final long inHigh) {
+      this.low = Math.min(inLow, inHigh);
+      this.high = Math.max(inLow, inHigh);
+    }
+
+    @Override
+    public void run() {
+      pause(low + (long) (ThreadLocalRandom.current().nextDouble()
+        * (high - low)));
+    }
+  }
+
+  /** Spin on the CPU. */
+  private static final class BusyWork implements Step {
+    /** Time to spin in nanoseconds. */
+    private final long nanos;
+
+    /**
+     * @param inNanos time to spin in nanoseconds
+     */
+    BusyWork(final long inNanos) {
+      this.nanos = inNanos;
+    }
+
+    @Override
+    public void run() {
+      final long deadline = System.nanoTime() + nanos;
+      long work = 0;
+      while (System.nanoTime() < deadline) {
+        work = work * 31 + deadline;
+      }
+      sink = work;
+    }
+  }
+
+  /** Allocate garbage. */
+  private static final class Allocation implements Step {
+    /** Number of bytes to allocate. */
+    private final int bytes;
+
+    /**
+     * @param inBytes number of bytes to allocate
+     * @throws JTKException if the size does not fit in an array
+     */
+    Allocation(final long inBytes) throws JTKException {
+      if (inBytes < 1 || inBytes > Integer.MAX_VALUE - 8) {
+        throw new JTKException("Allocation size out of range: " + inBytes);
+      }
+      this.bytes = (int) inBytes;
+    }
+
+    @Override
+    public void run() {
+      final byte[] garbage = new byte[bytes];
+      garbage[bytes - 1] = 1;
+      sink = garbage[bytes / 2] + garbage[bytes - 1];
+    }
+  }
+
+  /** Delays sampled from a file of durations. */
+  private static final class DelayDistribution implements Step {
+    /** The delays in nanoseconds. */
+    private final long[] delays;
+
+    /**
+     * @param inFileName file with one duration per line, # for comments
+     * @throws JTKException if the file can not be read
+     */
+    DelayDistribution(final String inFileName) throws JTKException {
+      final List<Long> values = new ArrayList<>();
+      try (BufferedReader reader =
+        new BufferedReader(new FileReader(inFileName))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (!line.isEmpty() && !line.startsWith("#")) {
+            values.add(Units.parseDuration(line));
+          }
+        }
+      } catch (IOException e) {
+        throw new JTKException("Could not read latency file: " + inFileName,
+          e);
+      }
+      if (values.isEmpty()) {
+        throw new JTKException("No latencies in file: " + inFileName);
+      }
+      delays = new long[values.size()];
+      for (int i = 0; i < delays.length; i++) {
+        delays[i] = values.get(i);
+      }
+    }
+
+    @Override
+    public void run() {
+      pause(delays[ThreadLocalRandom.current().nextInt(delays.length)]);
+    }
+  }
+}
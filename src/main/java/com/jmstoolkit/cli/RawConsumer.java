@@ -0,0 +1,299 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+/**
+ * Receives without a listener container: each consumer has its own
+ * session and thread, and calls receive for the first message of a batch
+ * and receiveNoWait for the rest, until the batch is full or the queue is
+ * empty. The whole batch is handed to the receiver at once, written with
+ * one flush, and then acknowledged or committed together. This is the
+ * ceiling of what the client and the broker can deliver, for purging and
+ * draining queues and for comparing with the listener container.
+ * <p>
+ * Nothing is redelivered to us on errors and a lost connection is not
+ * recovered, the receiver stops instead.
+ *
+ * @author Scott Douglass
+ */
+public class RawConsumer {
+
+  /** Logger for the class. */
+  private static final Logger LOGGER =
+    Logger.getLogger(RawConsumer.class.getName());
+  /** Default messages per batch. */
+  public static final int D_BATCH_SIZE = 100;
+  /** Longest wait for the first message of a batch (ms). */
+  private static final long RECEIVE_TIMEOUT = 100;
+  /** Where to connect. */
+  private final ConnectionFactory connectionFactory;
+  /** Where the messages come from. */
+  private final Destination destination;
+  /** Writes the batches. */
+  private final Batches receiver;
+  /** Number of consumers, a session each. */
+  private int consumers = 1;
+  /** Largest batch. */
+  private int batchSize = D_BATCH_SIZE;
+  /** Session acknowledge mode, ignored for transacted sessions. */
+  private int acknowledgeMode = Session.AUTO_ACKNOWLEDGE;
+  /** True for transacted sessions, committed per batch. */
+  private boolean transacted = false;
+  /** JMS selector, empty for none. */
+  private String selector = "";
+  /** Threads of the consumers, platform or virtual. */
+  private String threadMode = ThreadMode.PLATFORM;
+  /** Pulls the batches, up to the number of messages to receive. */
+  private final BatchPuller puller = new BatchPuller();
+  /** The connection, while running. */
+  private Connection connection = null;
+  /** The consumer threads, while running. */
+  private ExecutorService executor = null;
+  /** Cleared to stop the consumers after their current batch. */
+  private volatile boolean running = false;
+  /** Released as each consumer ends. */
+  private CountDownLatch ended = null;
+
+  /**
+   * Where a raw consumer hands its batches.
+   */
+  public interface Batches {
+    /**
+     * Write a batch, in order. Called by one consumer at a time.
+     *
+     * @param inBatch the messages
+     * @return true if the receiver has all the messages it wants
+     */
+    boolean writeBatch(List<Message> inBatch);
+
+    /**
+     * The consumers failed and can not go on.
+     */
+    void failed();
+  }
+
+  /**
+   * @param inConnectionFactory where to connect
+   * @param inDestination where the messages come from
+   * @param inReceiver writes the batches
+   */
+  public RawConsumer(final ConnectionFactory inConnectionFactory,
+    final Destination inDestination, final Batches inReceiver) {
+    this.connectionFactory = inConnectionFactory;
+    this.destination = inDestination;
+    this.receiver = inReceiver;
+  }
+
+  /**
+   * Connect and start the consumers.
+   *
+   * @param inMessages the number of messages to receive, 0 for no limit
+   * @throws JMSException if the connection or a session can not be made
+   */
+  public final void start(final long inMessages) throws JMSException {
+    puller.setLimit(inMessages);
+    connection = connectionFactory.createConnection();
+    final List<Session> sessions = new ArrayList<>(consumers);
+    final List<MessageConsumer> receivers = new ArrayList<>(consumers);
+    try {
+      for (int c = 0; c < consumers; c++) {
+        final Session session =
+          connection.createSession(transacted, acknowledgeMode);
+        sessions.add(session);
+        receivers.add(selector.isEmpty()
+          ? session.createConsumer(destination)
+          : session.createConsumer(destination, selector));
+      }
+    } catch (JMSException e) {
+      connection.close();
+      throw e;
+    }
+    running = true;
+    ended = new CountDownLatch(consumers);
+    executor = ThreadMode.newExecutor(threadMode, "raw", consumers);
+    for (int c = 0; c < consumers; c++) {
+      final Session session = sessions.get(c);
+      final MessageConsumer consumer = receivers.get(c);
+      executor.execute(() -> consume(session, consumer));
+    }
+    connection.start();
+  }
+
+  /**
+   * One consumer: pull batches until stopped.
+   *
+   * @param inSession the consumer's session
+   * @param inConsumer the consumer
+   */
+  private void consume(final Session inSession,
+    final MessageConsumer inConsumer) {
+    final List<Message> batch = new ArrayList<>(batchSize);
+    try {
+      while (running) {
+        if (!puller.pull(inConsumer, batch, batchSize, RECEIVE_TIMEOUT)) {
+          break;
+        }
+        if (batch.isEmpty()) {
+          continue;
+        }
+        final boolean done = receiver.writeBatch(batch);
+        // acknowledge once the batch is written
+        if (transacted) {
+          inSession.commit();
+        } else if (acknowledgeMode == Session.CLIENT_ACKNOWLEDGE) {
+          batch.get(batch.size() - 1).acknowledge();
+        }
+        batch.clear();
+        if (done) {
+          running = false;
+        }
+      }
+      inSession.close();
+    } catch (JMSException e) {
+      if (running) {
+        running = false;
+        LOGGER.log(Level.SEVERE, "Raw consumer failed, stopping", e);
+        receiver.failed();
+      }
+    } finally {
+      ended.countDown();
+    }
+  }
+
+  /**
+   * Stop the consumers after their current batch, which is written and
+   * acknowledged, and close the connection.
+   *
+   * @param inTimeout how long to wait for the consumers (ns)
+   * @return true if all consumers ended in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public final boolean stop(final long inTimeout)
+    throws InterruptedException {
+    running = false;
+    if (ended == null) {
+      return true;
+    }
+    final boolean drained = ended.await(inTimeout, TimeUnit.NANOSECONDS);
+    executor.shutdownNow();
+    try {
+      connection.close();
+    } catch (JMSException e) {
+      LOGGER.log(Level.WARNING, "Could not close the connection", e);
+    }
+    return drained;
+  }
+
+  /**
+   * @return the number of consumers
+   */
+  public final int getConsumers() {
+    return consumers;
+  }
+
+  /**
+   * @param inConsumers the number of consumers, a session each
+   */
+  public final void setConsumers(final int inConsumers) {
+    this.consumers = Math.max(1, inConsumers);
+  }
+
+  /**
+   * @return the largest batch
+   */
+  public final int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @param inBatchSize the largest number of messages written and
+   * acknowledged together
+   */
+  public final void setBatchSize(final int inBatchSize) {
+    this.batchSize = Math.max(1, inBatchSize);
+  }
+
+  /**
+   * @return the session acknowledge mode
+   */
+  public final int getAcknowledgeMode() {
+    return acknowledgeMode;
+  }
+
+  /**
+   * @param inAcknowledgeMode a Session acknowledge mode
+   */
+  public final void setAcknowledgeMode(final int inAcknowledgeMode) {
+    this.acknowledgeMode = inAcknowledgeMode;
+  }
+
+  /**
+   * @return true for transacted sessions
+   */
+  public final boolean isTransacted() {
+    return transacted;
+  }
+
+  /**
+   * @param inTransacted true to commit each batch
+   */
+  public final void setTransacted(final boolean inTransacted) {
+    this.transacted = inTransacted;
+  }
+
+  /**
+   * @return the selector, empty for none
+   */
+  public final String getSelector() {
+    return selector;
+  }
+
+  /**
+   * @param inSelector a JMS selector, empty for none
+   */
+  public final void setSelector(final String inSelector) {
+    this.selector = inSelector;
+  }
+
+  /**
+   * @return the thread mode of the consumers
+   */
+  public final String getThreadMode() {
+    return threadMode;
+  }
+
+  /**
+   * @param inThreadMode platform or virtual, as returned by
+   * ThreadMode.resolve
+   */
+  public final void setThreadMode(final String inThreadMode) {
+    this.threadMode = inThreadMode;
+  }
+}
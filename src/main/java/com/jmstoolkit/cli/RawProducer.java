@@ -0,0 +1,302 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageNotWriteableException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import org.springframework.jms.core.MessagePostProcessor;
+
+/**
+ * Sends without the JmsTemplate: each sending thread has its own session
+ * and producer for the whole run, and one text message which is built
+ * once, with its properties, and sent again and again. Only the body is
+ * set again when the text changes, and whatever a send adds, such as a
+ * group sequence number; the provider sets the message ID and time stamp
+ * on every send. This leaves out the template's converter, the cached
+ * session lookup and building the message and its properties on every
+ * send, which is most of the client's work for small messages.
+ * <p>
+ * A sent message may be changed and sent again, but some providers make
+ * it read only. Then a new message is built for each send instead.
+ * <p>
+ * With a batch size over 1 the sessions are transacted, and each thread
+ * commits after every batch of sends. The send that ends a batch waits
+ * for the commit. What is left of the last batches is committed on close.
+ *
+ * @author Scott Douglass
+ */
+public class RawProducer {
+
+  /** Logger for the class. */
+  private static final Logger LOGGER =
+    Logger.getLogger(RawProducer.class.getName());
+  /** Where to connect. */
+  private final ConnectionFactory connectionFactory;
+  /** Where the messages go. */
+  private final Destination destination;
+  /** Sets the properties of each new message. */
+  private final MessagePostProcessor processor;
+  /** Persistent or non-persistent. */
+  private int deliveryMode = DeliveryMode.PERSISTENT;
+  /** Priority, 0 to 9. */
+  private int priority = Message.DEFAULT_PRIORITY;
+  /** True to ask the provider not to set message IDs and time stamps. */
+  private boolean disableIds = false;
+  /** Sends per transaction, 1 for no transactions. */
+  private int batchSize = 1;
+  /** The connection, while open. */
+  private Connection connection = null;
+  /** The session and producer of each sending thread. */
+  private ThreadLocal<Channel> channel = new ThreadLocal<>();
+  /** Every channel opened, for the commit on close. */
+  private final List<Channel> channels = new ArrayList<>();
+
+  /**
+   * @param inConnectionFactory where to connect
+   * @param inDestination where the messages go
+   * @param inProcessor sets the properties of each new message
+   */
+  public RawProducer(final ConnectionFactory inConnectionFactory,
+    final Destination inDestination, final MessagePostProcessor inProcessor) {
+    this.connectionFactory = inConnectionFactory;
+    this.destination = inDestination;
+    this.processor = inProcessor;
+  }
+
+  /**
+   * Connect. Sessions are made by the first send of each thread.
+   *
+   * @throws JMSException if the connection can not be made
+   */
+  public final synchronized void open() throws JMSException {
+    connection = connectionFactory.createConnection();
+    channel = new ThreadLocal<>();
+  }
+
+  /**
+   * Send a text message.
+   *
+   * @param inText the text, often the same object as the last send
+   * @param inBytes size of the text, for the Flight Recorder
+   * @param inExtra sets what differs per send, null for nothing
+   * @throws JMSException if the send fails
+   */
+  public final void send(final String inText, final long inBytes,
+    final MessagePostProcessor inExtra) throws JMSException {
+    Channel out = channel.get();
+    if (out == null) {
+      out = openChannel();
+      channel.set(out);
+    }
+    final Object event = Flight.beginSend();
+    try {
+      Message message = out.message(inText);
+      if (inExtra != null) {
+        message = inExtra.postProcessMessage(message);
+      }
+      out.producer.send(message);
+      if (batchSize > 1 && ++out.uncommitted >= batchSize) {
+        out.commit();
+      }
+    } finally {
+      Flight.end(event, destination, inBytes);
+    }
+  }
+
+  /**
+   * @return a new session and producer for the calling thread
+   * @throws JMSException if they can not be made
+   */
+  private synchronized Channel openChannel() throws JMSException {
+    if (connection == null) {
+      throw new IllegalStateException("Not open");
+    }
+    final Session session = batchSize > 1
+      ? connection.createSession(true, Session.SESSION_TRANSACTED)
+      : connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    final MessageProducer producer = session.createProducer(destination);
+    producer.setDeliveryMode(deliveryMode);
+    producer.setPriority(priority);
+    producer.setDisableMessageID(disableIds);
+    producer.setDisableMessageTimestamp(disableIds);
+    final Channel opened = new Channel(session, producer);
+    channels.add(opened);
+    return opened;
+  }
+
+  /**
+   * Commit the last batches, once the sending threads are done, and close
+   * the connection, and with it the sessions.
+   */
+  public final synchronized void close() {
+    for (Channel open : channels) {
+      if (open.uncommitted > 0) {
+        try {
+          open.commit();
+        } catch (JMSException e) {
+          LOGGER.log(Level.WARNING, "Could not commit the last batch", e);
+        }
+      }
+    }
+    channels.clear();
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.log(Level.WARNING, "Could not close the connection", e);
+      }
+      connection = null;
+    }
+  }
+
+  /**
+   * @return DeliveryMode.PERSISTENT or NON_PERSISTENT
+   */
+  public final int getDeliveryMode() {
+    return deliveryMode;
+  }
+
+  /**
+   * @param inDeliveryMode DeliveryMode.PERSISTENT or NON_PERSISTENT
+   */
+  public final void setDeliveryMode(final int inDeliveryMode) {
+    this.deliveryMode = inDeliveryMode;
+  }
+
+  /**
+   * @return the priority
+   */
+  public final int getPriority() {
+    return priority;
+  }
+
+  /**
+   * @param inPriority the priority, 0 to 9
+   */
+  public final void setPriority(final int inPriority) {
+    this.priority = inPriority;
+  }
+
+  /**
+   * @return true if the provider is asked not to set IDs and time stamps
+   */
+  public final boolean isDisableIds() {
+    return disableIds;
+  }
+
+  /**
+   * @param inDisableIds true to ask the provider not to set message IDs
+   * and time stamps, receivers can then not measure latency
+   */
+  public final void setDisableIds(final boolean inDisableIds) {
+    this.disableIds = inDisableIds;
+  }
+
+  /**
+   * @return sends per transaction, 1 for no transactions
+   */
+  public final int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @param inBatchSize sends per transaction, 1 for no transactions; takes
+   * effect on the next open
+   */
+  public final void setBatchSize(final int inBatchSize) {
+    this.batchSize = Math.max(1, inBatchSize);
+  }
+
+  /**
+   * The session, producer and message of one sending thread.
+   */
+  private final class Channel {
+    /** The session. */
+    private final Session session;
+    /** The producer. */
+    private final MessageProducer producer;
+    /** The message sent again, null until the first send. */
+    private TextMessage reused = null;
+    /** The text of the reused message. */
+    private String text = null;
+    /** False once the provider would not let a message be reused. */
+    private boolean reuse = true;
+    /** Sends since the last commit. */
+    private int uncommitted = 0;
+
+    /**
+     * @param inSession the session
+     * @param inProducer the producer
+     */
+    Channel(final Session inSession, final MessageProducer inProducer) {
+      this.session = inSession;
+      this.producer = inProducer;
+    }
+
+    /**
+     * Commit the sends of the current batch.
+     *
+     * @throws JMSException if the commit fails, the batch is then lost
+     */
+    void commit() throws JMSException {
+      uncommitted = 0;
+      session.commit();
+    }
+
+    /**
+     * @param inText the text to send
+     * @return the message to send, the last one again if possible
+     * @throws JMSException if the message can not be made
+     */
+    Message message(final String inText) throws JMSException {
+      if (reuse && reused != null) {
+        try {
+          if (inText != text) {
+            reused.setText(inText);
+            // the properties may depend on the text, such as its size
+            processor.postProcessMessage(reused);
+            text = inText;
+          }
+          return reused;
+        } catch (MessageNotWriteableException e) {
+          LOGGER.info("Sent messages are read only in this JMS provider,"
+            + " building a message per send");
+          reuse = false;
+        }
+      }
+      final Object event = Flight.beginCreate();
+      final Message message =
+        processor.postProcessMessage(session.createTextMessage(inText));
+      Flight.end(event, destination, 0);
+      if (reuse) {
+        reused = (TextMessage) message;
+        text = inText;
+      }
+      return message;
+    }
+  }
+}
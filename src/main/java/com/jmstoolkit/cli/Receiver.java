@@ -16,31 +16,46 @@ package com.jmstoolkit.cli;
 
 import com.jmstoolkit.JTKException;
 import com.jmstoolkit.Settings;
+import com.jmstoolkit.TextCodec;
+import com.jmstoolkit.Units;
 import gnu.getopt.Getopt;
-import java.io.BufferedWriter;
+import gnu.getopt.LongOpt;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
-import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.jms.BytesMessage;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
+import javax.jms.Session;
 import javax.jms.TextMessage;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
-import org.springframework.jms.listener.DefaultMessageListenerContainer;
 
 /**
  *
  * @author Scott Douglass
  */
-public class Receiver implements MessageListener {
+public class Receiver implements MessageListener,
+  ReceiverListenerContainer.ReceiveOrder, RawConsumer.Batches {
 
   /**
    * Logger for this class.
@@ -77,6 +92,51 @@ public class Receiver implements MessageListener {
    * Property name for the ConnectionFatory password.
    */
   protected static final String P_PASSWORD = "jmstoolkit.password";
+  /**
+   * Property name for the number of worker threads of the listener.
+   */
+  protected static final String P_WORKERS = "jmstoolkit.receiver.workers";
+  /**
+   * Property name for the messages in flight per session with workers.
+   */
+  protected static final String P_WINDOW = "jmstoolkit.receiver.window";
+  /**
+   * Property name for keeping the order of message groups on the workers.
+   */
+  protected static final String P_GROUP_ORDERED =
+    "jmstoolkit.receiver.groupOrdered";
+  /**
+   * Property name for the number of concurrent consumers of the listener.
+   */
+  protected static final String P_CONSUMERS = "jmstoolkit.receiver.consumers";
+  /**
+   * Property name for the session acknowledge mode of the listener.
+   */
+  protected static final String P_ACK_MODE = "jmstoolkit.receiver.ackMode";
+  /**
+   * Property name for a transacted listener session.
+   */
+  protected static final String P_TRANSACTED =
+    "jmstoolkit.receiver.transacted";
+  /**
+   * Property name for the number of messages per acknowledgement.
+   */
+  protected static final String P_ACK_BATCH = "jmstoolkit.receiver.ackBatch";
+  /**
+   * Property name for the longest time (ms) between acknowledgements.
+   */
+  protected static final String P_ACK_INTERVAL =
+    "jmstoolkit.receiver.ackInterval";
+  /**
+   * Property name for the longest time to wait for the listener to drain
+   * when stopping.
+   */
+  protected static final String P_DRAIN_TIMEOUT =
+    "jmstoolkit.receiver.drainTimeout";
+  /**
+   * Default time to wait for the listener to drain.
+   */
+  protected static final String D_DRAIN_TIMEOUT = "30s";
   /**
    * Exit code when maximum number of messages has been received.
    */
@@ -85,10 +145,35 @@ public class Receiver implements MessageListener {
    * Exit code when an error occurs.
    */
   protected static final int X_ERROR = 1;
+  /**
+   * Default time between interval reports of a duration run.
+   */
+  protected static final String D_INTERVAL = "10s";
+  /**
+   * Long command line options.
+   */
+  protected static final LongOpt[] LONG_OPTIONS = {
+    new LongOpt("duration", LongOpt.REQUIRED_ARGUMENT, null, 'd'),
+    new LongOpt("interval", LongOpt.REQUIRED_ARGUMENT, null, 'I'),
+    new LongOpt("format", LongOpt.REQUIRED_ARGUMENT, null, 'F'),
+    new LongOpt("report-file", LongOpt.REQUIRED_ARGUMENT, null, 'R'),
+    new LongOpt("monitor", LongOpt.REQUIRED_ARGUMENT, null, 'M'),
+    new LongOpt("jfr", LongOpt.REQUIRED_ARGUMENT, null, 'J'),
+    new LongOpt("selector", LongOpt.REQUIRED_ARGUMENT, null, 's'),
+    new LongOpt("match", LongOpt.REQUIRED_ARGUMENT, null, 'm'),
+    new LongOpt("extract", LongOpt.REQUIRED_ARGUMENT, null, 'x'),
+    new LongOpt("consumers", LongOpt.REQUIRED_ARGUMENT, null, 'C'),
+    new LongOpt("virtual", LongOpt.NO_ARGUMENT, null, 'V'),
+    new LongOpt("claims", LongOpt.REQUIRED_ARGUMENT, null, 'K'),
+    new LongOpt("raw", LongOpt.NO_ARGUMENT, null, 'r'),
+    new LongOpt("batch", LongOpt.REQUIRED_ARGUMENT, null, 'b'),
+    new LongOpt("groups", LongOpt.NO_ARGUMENT, null, 'G'),
+    new LongOpt("verify-order", LongOpt.NO_ARGUMENT, null, 'O')
+  };
   /**
    * The maximum number of messages to receive.
    */
-  private Integer maximumMessagesToReceive = 0;
+  private long maximumMessagesToReceive = 0;
   /**
    * The OutputStream to send received messages.
    */
@@ -98,54 +183,430 @@ public class Receiver implements MessageListener {
    */
   private String encoding = D_ENCODING;
   /**
-   * The Writer for the OutputSream.
+   * The character set of the encoding.
+   */
+  private Charset charset = StandardCharsets.UTF_8;
+  /**
+   * Buffers the output stream, the text is encoded straight into it.
    */
-  private Writer outputWriter = null;
-  /** Integer value of the number of messages received. */
-  private Integer messagesReceived = 0;
+  private BufferedOutputStream output = null;
+  /** The number of messages received. */
+  private long messagesReceived = 0;
+  /** Message, byte, error and latency counters. */
+  private final RunStats stats = new RunStats();
+  /** Where the interval and summary reports go, null for none. */
+  private ReportWriter reportWriter = null;
+  /** Writes interval reports, null for none. */
+  private IntervalReporter intervalReporter = null;
+  /** Simulated work done for every message, null for none. */
+  private ProcessingProfile processingProfile = null;
+  /** The container delivering the messages, null if unknown. */
+  private ReceiverListenerContainer listenerContainer = null;
+  /** Receives without the container, null to use the container. */
+  private RawConsumer rawConsumer = null;
+  /** Samples the depth of the input queue, null for none. */
+  private DepthMonitor depthMonitor = null;
+  /** Filters and projects message bodies, null to write every body. */
+  private MessageFilter filter = null;
+  /** Where claim check payloads are read from, null to write claims. */
+  private ClaimStore claimStore = null;
+  /** Checks the order of each message group, null for no checks. */
+  private GroupOrder groupOrder = null;
+  /** The number of messages the filter did not match. */
+  private long messagesFiltered = 0;
+  /**
+   * Messages handed to the workers, in the order they were received, so
+   * filtered output is written in that order.
+   */
+  private final ArrayDeque<Slot> slots = new ArrayDeque<>();
+  /** The slot of each message handed to the workers. */
+  private final Map<Message, Slot> slotOf =
+    Collections.synchronizedMap(new IdentityHashMap<>());
+  /** Set by the first call to {@link #stop()}. */
+  private final AtomicBoolean stopping = new AtomicBoolean();
+  /** Released once {@link #stop()} is done. */
+  private final CountDownLatch stopped = new CountDownLatch(1);
 
   @Override
   public void onMessage(Message msg) {
-    setMessagesReceived((Integer) (getMessagesReceived() + 1));
+    final Object event = Flight.beginReceive();
+    if (groupOrder != null) {
+      groupOrder.check(msg);
+    }
+    if (getProcessingProfile() != null) {
+      getProcessingProfile().process();
+    }
+    boolean done = false;
+    final long size;
+    if (getFilter() == null) {
+      synchronized (this) {
+        setMessagesReceived(getMessagesReceived() + 1);
+        size = writeMessage(msg);
+        done = getMessagesReceived() == getMaximumMessagesToReceive();
+      }
+    } else {
+      // filter and encode in parallel, write in the order received
+      Slot slot = slotOf.remove(msg);
+      if (slot == null) {
+        slot = new Slot();
+      }
+      filterMessage(msg, slot);
+      synchronized (this) {
+        slot.ready = true;
+        if (slot.queued) {
+          while (!slots.isEmpty() && slots.peek().ready) {
+            done |= writeSlot(slots.poll());
+          }
+        } else {
+          done = writeSlot(slot);
+        }
+        flushOutput(slot.size);
+      }
+      size = slot.size;
+    }
+    Flight.endMessage(event, msg, size);
+    if (done) {
+      finish();
+    }
+  }
+
+  @Override
+  public final void received(final Message msg) {
+    if (getFilter() != null) {
+      final Slot slot = new Slot();
+      slot.queued = true;
+      slotOf.put(msg, slot);
+      synchronized (this) {
+        slots.add(slot);
+      }
+    }
+  }
+
+  @Override
+  public final boolean writeBatch(final List<Message> inBatch) {
+    final Object[] events = new Object[inBatch.size()];
+    final Slot[] filtered = new Slot[inBatch.size()];
+    for (int i = 0; i < inBatch.size(); i++) {
+      events[i] = Flight.beginReceive();
+      if (groupOrder != null) {
+        groupOrder.check(inBatch.get(i));
+      }
+      if (getProcessingProfile() != null) {
+        getProcessingProfile().process();
+      }
+      if (getFilter() != null) {
+        filtered[i] = new Slot();
+        filterMessage(inBatch.get(i), filtered[i]);
+      }
+    }
+    boolean done = false;
+    final long[] sizes = new long[inBatch.size()];
+    synchronized (this) {
+      long written = 0;
+      for (int i = 0; i < inBatch.size() && !done; i++) {
+        if (filtered[i] != null) {
+          done = writeSlot(filtered[i]);
+          sizes[i] = filtered[i].size;
+        } else {
+          setMessagesReceived(getMessagesReceived() + 1);
+          sizes[i] = writeBody(inBatch.get(i));
+          done = getMessagesReceived() == getMaximumMessagesToReceive();
+        }
+        written += sizes[i];
+      }
+      // one flush for the whole batch
+      flushOutput(written);
+    }
+    for (int i = 0; i < inBatch.size(); i++) {
+      Flight.endMessage(events[i], inBatch.get(i), sizes[i]);
+    }
+    if (done) {
+      finish();
+    }
+    return done;
+  }
+
+  @Override
+  public final void failed() {
+    exitAfterStop(X_ERROR);
+  }
+
+  /**
+   * Apply the filter to a message and encode what is to be written.
+   *
+   * @param msg the message
+   * @param inSlot where the result goes
+   */
+  private void filterMessage(final Message msg, final Slot inSlot) {
+    try {
+      inSlot.latency = latencyMicros(msg);
+      String text = msg instanceof TextMessage
+        ? ((TextMessage) msg).getText() : null;
+      if (text != null && claimStore != null && ClaimStore.isClaim(msg)) {
+        text = claimStore.readText(text, msg, charset);
+      }
+      final String kept = text == null ? null : getFilter().apply(text);
+      if (kept != null) {
+        final ByteBuffer encoded = TextCodec.get(charset).encode(kept);
+        inSlot.bytes = new byte[encoded.remaining()];
+        encoded.get(inSlot.bytes);
+        inSlot.size = inSlot.bytes.length;
+      }
+    } catch (JMSException e) {
+      inSlot.error = true;
+      LOGGER.log(Level.SEVERE, "Could not get message text", e);
+    } catch (IOException e) {
+      inSlot.error = true;
+      LOGGER.log(Level.SEVERE, "Could not read claim check", e);
+    } catch (RuntimeException e) {
+      inSlot.error = true;
+      LOGGER.log(Level.SEVERE, "Could not filter message", e);
+    }
+  }
+
+  /**
+   * Write the result of filtering one message, without flushing.
+   *
+   * @param inSlot the result
+   * @return true if this was the last message to receive
+   */
+  private boolean writeSlot(final Slot inSlot) {
+    setMessagesReceived(getMessagesReceived() + 1);
+    if (inSlot.error) {
+      stats.recordError();
+    } else if (inSlot.bytes == null) {
+      messagesFiltered++;
+    } else {
+      try {
+        if (output == null) {
+          output = new BufferedOutputStream(
+            getOutputStream() == null ? System.out : getOutputStream());
+        }
+        output.write(inSlot.bytes);
+        output.write('\n');
+        stats.record(inSlot.size, inSlot.latency);
+      } catch (IOException e) {
+        stats.recordError();
+        LOGGER.log(Level.SEVERE, "Error writing to output stream", e);
+      }
+    }
+    return getMessagesReceived() == getMaximumMessagesToReceive();
+  }
+
+  /**
+   * @param inSize bytes written since the last flush, for the event
+   */
+  private void flushOutput(final long inSize) {
+    if (output == null) {
+      return;
+    }
+    final Object event = Flight.beginFlush();
+    try {
+      output.flush();
+    } catch (IOException e) {
+      stats.recordError();
+      LOGGER.log(Level.SEVERE, "Error writing to output stream", e);
+    }
+    Flight.end(event, getOutputStream() == null ? "stdout" : "file",
+      inSize);
+  }
+
+  /**
+   * Stop taking messages and exit once everything received so far has
+   * been written and acknowledged. Does not wait, so it can be called from
+   * the listener.
+   */
+  protected final void finish() {
+    if (getListenerContainer() != null) {
+      getListenerContainer().drain();
+    }
+    exitAfterStop(X_MAX_MESSAGES);
+  }
+
+  /**
+   * Stop and exit, on a thread of its own.
+   *
+   * @param inExitCode the exit code
+   */
+  private void exitAfterStop(final int inExitCode) {
+    final Thread shutdown = new Thread(() -> {
+      stop();
+      System.exit(inExitCode);
+    }, "shutdown");
+    // not a daemon like the worker that may create it, or the JVM could
+    // end before the exit code is set
+    shutdown.setDaemon(false);
+    shutdown.start();
+  }
+
+  /**
+   * Write the message body to the output stream.
+   *
+   * @param msg the message
+   * @return size of the text in bytes, 0 if there is none
+   */
+  private long writeMessage(final Message msg) {
+    final long size = writeBody(msg);
+    if (output != null) {
+      final Object event = Flight.beginFlush();
+      try {
+        output.flush();
+      } catch (IOException e) {
+        stats.recordError();
+        LOGGER.log(Level.SEVERE, "Error writing to output stream", e);
+      }
+      Flight.end(event, getOutputStream() == null ? "stdout" : "file",
+        size);
+    }
+    return size;
+  }
+
+  /**
+   * Write the message body to the output stream, without flushing it.
+   *
+   * @param msg the message
+   * @return size of the text in bytes, 0 if there is none
+   */
+  private long writeBody(final Message msg) {
+    long size = 0;
     try {
-      if (getOutputWriter() == null) {
-        setOutputWriter(new BufferedWriter(new OutputStreamWriter(
-          getOutputStream() == null ? System.out : getOutputStream(),
-          getEncoding())));
+      if (output == null) {
+        output = new BufferedOutputStream(
+          getOutputStream() == null ? System.out : getOutputStream());
       }
-      if (msg instanceof TextMessage) {
-        getOutputWriter().write(((TextMessage) msg).getText() + "\n");
+      final TextCodec codec = TextCodec.get(charset);
+      if (msg instanceof TextMessage && claimStore != null
+        && ClaimStore.isClaim(msg)) {
+        size = claimStore.write(((TextMessage) msg).getText(), msg, charset,
+          output);
+        output.write('\n');
+      } else if (msg instanceof TextMessage) {
+        size = codec.write(((TextMessage) msg).getText(), output);
+        output.write('\n');
       } else if (msg instanceof BytesMessage) {
-        getOutputWriter().write("BytesMessage not supported at this time.");
+        codec.write("BytesMessage not supported at this time.", output);
       } else {
-        getOutputWriter().write("Unknown message type: "
-          + msg.getClass().getName());
+        codec.write("Unknown message type: " + msg.getClass().getName(),
+          output);
       }
-      getOutputWriter().flush();
-
-    } catch (UnsupportedEncodingException e) {
-      LOGGER.log(Level.SEVERE, "Bad encoding: " + getEncoding(), e);
+      stats.record(size, latencyMicros(msg));
     } catch (JMSException e) {
+      stats.recordError();
       LOGGER.log(Level.SEVERE, "Could not get message text", e);
     } catch (IOException e) {
+      stats.recordError();
       LOGGER.log(Level.SEVERE, "Error writing to output stream", e);
     }
+    return size;
+  }
 
-    if (getMessagesReceived().intValue()
-      == getMaximumMessagesToReceive().intValue()) {
-      this.stop();
-    }
+  /**
+   * Time from sending to now. Only meaningful when the sender and receiver
+   * clocks are in sync.
+   *
+   * @param msg the message
+   * @return latency in microseconds, 0 if the message has no time stamp
+   * @throws JMSException if the time stamp can not be read
+   */
+  protected static long latencyMicros(final Message msg) throws JMSException {
+    final long sent = msg.getJMSTimestamp();
+    return sent <= 0 ? 0
+      : Math.max(0, System.currentTimeMillis() - sent) * 1000;
   }
 
+  /**
+   * Stop in order: stop taking messages, wait for the messages in flight
+   * and acknowledge or commit them, shut the listener container down, then
+   * flush the output and write the final statistics. Later calls wait for
+   * the first one to finish. Also run on SIGTERM.
+   */
   public final void stop() {
-    if (getOutputWriter() != null) {
+    if (!stopping.compareAndSet(false, true)) {
       try {
-        getOutputWriter().close();
-      } catch (IOException ex) {
-        //
+        stopped.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return;
+    }
+    try {
+      if (getListenerContainer() != null) {
+        drainListener();
+      }
+      if (rawConsumer != null) {
+        stopRawConsumer();
+      }
+      stats.finish();
+      if (depthMonitor != null) {
+        depthMonitor.stop();
+      }
+      if (intervalReporter != null) {
+        intervalReporter.stop();
+      }
+      final Map<String, Object> summary = stats.summaryRow();
+      synchronized (this) {
+        if (getFilter() != null) {
+          summary.put("filtered", messagesFiltered);
+        }
+        if (groupOrder != null) {
+          groupOrder.addTo(summary);
+        }
+        if (output != null) {
+          try {
+            output.close();
+          } catch (IOException ex) {
+            //
+          }
+        }
+      }
+      if (reportWriter != null) {
+        reportWriter.write(summary);
+        reportWriter.close();
+      }
+    } finally {
+      stopped.countDown();
+    }
+  }
+
+  /**
+   * Stop the raw consumers once their current batch is written and
+   * acknowledged.
+   */
+  private void stopRawConsumer() {
+    try {
+      final long timeout = Units.parseDuration(
+        System.getProperty(P_DRAIN_TIMEOUT, D_DRAIN_TIMEOUT));
+      if (!rawConsumer.stop(timeout)) {
+        LOGGER.log(Level.WARNING, "Raw consumers not stopped after {0},"
+          + " unacknowledged messages will be redelivered",
+          TimeUnit.NANOSECONDS.toMillis(timeout) + "ms");
       }
+    } catch (JTKException e) {
+      LOGGER.log(Level.WARNING, "Not a valid drain timeout", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
-    System.exit(X_MAX_MESSAGES);
+  }
+
+  /**
+   * Wait for the listener container to acknowledge everything it has
+   * received, then shut it down.
+   */
+  private void drainListener() {
+    try {
+      final long timeout = Units.parseDuration(
+        System.getProperty(P_DRAIN_TIMEOUT, D_DRAIN_TIMEOUT));
+      if (!getListenerContainer().awaitDrained(timeout)) {
+        LOGGER.log(Level.WARNING, "Listener not drained after {0},"
+          + " unacknowledged messages will be redelivered",
+          TimeUnit.NANOSECONDS.toMillis(timeout) + "ms");
+      }
+    } catch (JTKException e) {
+      LOGGER.log(Level.WARNING, "Not a valid drain timeout", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    getListenerContainer().shutdown();
   }
 
   /**
@@ -156,6 +617,21 @@ public class Receiver implements MessageListener {
    * -j jndi properties file (defaults to jndi.properties) 
    * -f connection factory JNDI name 
    * -n maximum number of messages to receive
+   * -p processing profile, see ProcessingProfile
+   * -W number of worker threads
+   * -w maximum messages in flight per session with workers
+   * -C number of concurrent consumers
+   * -V consumers and workers on virtual threads
+   * -a acknowledgement: auto, client[:count[:time]], dups,
+   *    transacted[:count[:time]]
+   * -s JMS selector, applied by the broker
+   * -m match expression, see MessageFilter
+   * -x extract expression, see MessageFilter
+   * -K claim check store directory, see ClaimStore
+   * -r receive without the listener container, see RawConsumer
+   * -b messages per batch of the raw consumers
+   * -G keep the order of each message group on the workers, and check it
+   * -O check the order of each message group, see MessageGroups
    *</code>
    * @param args Command line arguments
    */
@@ -167,10 +643,23 @@ public class Receiver implements MessageListener {
     }
     String jndiPropertiesFileName = D_JNDI_PROPERTIES;
     String outputFileName = "";
-    Integer maximumNumberOfMessages = 0;
+    long maximumNumberOfMessages = 0;
     String textEncoding = System.getProperty(P_ENCODING, D_ENCODING);
+    String profile = "";
+    String duration = "";
+    String interval = "";
+    String reportFormat = ReportWriter.FORMAT_TEXT;
+    String reportFileName = "";
+    String monitorPeriod = "";
+    String selector = "";
+    final List<String> matches = new ArrayList<>();
+    final List<String> extracts = new ArrayList<>();
+    boolean raw = false;
+    boolean verifyOrder = false;
+    int batchSize = RawConsumer.D_BATCH_SIZE;
 
-    Getopt getopt = new Getopt(D_APP_NAME, args, "c:i:o:j:n:e:h");
+    Getopt getopt = new Getopt(D_APP_NAME, args,
+      "c:i:o:j:n:e:p:W:w:a:d:I:F:R:M:J:s:m:x:C:VK:rb:GOh", LONG_OPTIONS);
     int optionLetter;
     while ((optionLetter = getopt.getopt()) != -1) {
       switch (optionLetter) {
@@ -187,23 +676,156 @@ public class Receiver implements MessageListener {
           jndiPropertiesFileName = getopt.getOptarg();
           break;
         case 'n':
-          maximumNumberOfMessages = Integer.valueOf(getopt.getOptarg());
+          maximumNumberOfMessages = Long.parseLong(getopt.getOptarg());
           break;
         case 'e':
           textEncoding = getopt.getOptarg();
           break;
+        case 'p':
+          profile = getopt.getOptarg();
+          break;
+        case 'W':
+          System.setProperty(P_WORKERS, getopt.getOptarg());
+          break;
+        case 'w':
+          System.setProperty(P_WINDOW, getopt.getOptarg());
+          break;
+        case 'C':
+          System.setProperty(P_CONSUMERS, getopt.getOptarg());
+          break;
+        case 'V':
+          System.setProperty(ThreadMode.P_THREAD_MODE, ThreadMode.VIRTUAL);
+          break;
+        case 'a':
+          try {
+            setAcknowledgeMode(getopt.getOptarg());
+          } catch (JTKException e) {
+            System.out.println(e.toStringWithStackTrace());
+            System.exit(X_ERROR);
+          }
+          break;
+        case 'd':
+          duration = getopt.getOptarg();
+          break;
+        case 'I':
+          interval = getopt.getOptarg();
+          break;
+        case 'F':
+          reportFormat = getopt.getOptarg();
+          break;
+        case 'R':
+          reportFileName = getopt.getOptarg();
+          break;
+        case 'M':
+          monitorPeriod = getopt.getOptarg();
+          break;
+        case 'J':
+          try {
+            Flight.startRecording(getopt.getOptarg());
+          } catch (JTKException e) {
+            System.out.println(e.toStringWithStackTrace());
+            System.exit(X_ERROR);
+          }
+          break;
+        case 's':
+          selector = getopt.getOptarg();
+          break;
+        case 'm':
+          matches.add(getopt.getOptarg());
+          break;
+        case 'x':
+          extracts.add(getopt.getOptarg());
+          break;
+        case 'K':
+          System.setProperty(ClaimStore.P_DIRECTORY, getopt.getOptarg());
+          break;
+        case 'r':
+          raw = true;
+          break;
+        case 'b':
+          batchSize = Integer.parseInt(getopt.getOptarg());
+          break;
+        case 'G':
+          System.setProperty(P_GROUP_ORDERED, "true");
+          verifyOrder = true;
+          break;
+        case 'O':
+          verifyOrder = true;
+          break;
         case 'h':
           System.out.println("Arguments:\n  [ -i JMS Destination JNDI name ]\n"
             + "  [ -c JMS ConnectionFactory JNDI name ]\n"
             + "  [ -j JNDI properties ]\n"
             + "  [ -e character encoding (default: UTF-8) ]\n"
             + "  [ -n number of message to receive ]\n"
-            + "  [ -o output file (if not set output to stdout) ]");
+            + "  [ -o output file (if not set output to stdout) ]\n"
+            + "  [ -p processing profile ] simulated work per message:\n"
+            + "     delay:5ms random:1ms-20ms cpu:200us alloc:4k"
+            + " file:latencies.txt\n"
+            + "     combine steps with a comma: cpu:100us,alloc:1k\n"
+            + "  [ -W worker threads ] process messages on a worker pool,"
+            + " acknowledged in order\n"
+            + "  [ -w window ] messages in flight per session"
+            + " (default: 2 x workers)\n"
+            + "  [ -C | --consumers count ] concurrent consumers, one"
+            + " session each\n"
+            + "  [ -V | --virtual ] run consumers and workers on virtual"
+            + " threads (Java 21)\n"
+            + "  [ -a acknowledgement ] one of:\n"
+            + "     auto                      acknowledge every message"
+            + " (default)\n"
+            + "     client[:count[:time]]     acknowledge every count"
+            + " messages or time\n"
+            + "     dups                      lazy acknowledgement,"
+            + " duplicates possible\n"
+            + "     transacted[:count[:time]] commit every count messages"
+            + " or time\n"
+            + "     Unacknowledged messages are redelivered if the receiver"
+            + " dies mid-batch\n"
+            + "  [ -d | --duration time ] stop after a time, e.g. 30m or 12h\n"
+            + "  [ -I | --interval time ] time between reports"
+            + " (default: 10s with -d)\n"
+            + "  [ -F | --format text | csv | json ] report format\n"
+            + "  [ -R | --report-file file ] write reports to a file"
+            + " (default: stderr)\n"
+            + "  [ -M | --monitor time ] sample the queue depth with a"
+            + " browser\n"
+            + "  [ -J | --jfr file ] write a Flight Recorder recording on"
+            + " exit\n"
+            + "  [ -s | --selector selector ] JMS selector on headers and"
+            + " properties,\n"
+            + "     applied by the broker, e.g. \"priority > 4\"\n"
+            + "  [ -m | --match type:text ] only write bodies that match,"
+            + " may be repeated:\n"
+            + "     regex:ERROR contains:ERROR xpath:/order[@qty>5]"
+            + " json:$.order.id\n"
+            + "  [ -x | --extract type:text ] only write the extracted"
+            + " values, tab separated,\n"
+            + "     may be repeated. Use -W to filter on several threads,"
+            + " output keeps\n"
+            + "     the order the messages were received in\n"
+            + "  [ -K | --claims directory ] claim check store: write the"
+            + " stored payload\n"
+            + "     of claim messages, after checking its digest\n"
+            + "  [ -r | --raw ] receive in a tight loop on dedicated"
+            + " sessions, without\n"
+            + "     the listener container; -C sets the sessions, -W and"
+            + " -w do not apply\n"
+            + "  [ -b | --batch count ] messages written and acknowledged"
+            + " together\n"
+            + "     by the raw consumers (default: 100)\n"
+            + "  [ -G | --groups ] the workers of -W process each"
+            + " JMSXGroupID in order,\n"
+            + "     different groups in parallel; implies -O\n"
+            + "  [ -O | --verify-order ] count messages processed out of"
+            + " order within\n"
+            + "     their group, for messages sent by Blaster -g");
           System.exit(X_ERROR);
       }
     }
     // load the jndi.properties, if we fail exit
     try {
+      TextCodec.charset(textEncoding);
       Settings.loadSystemSettings(
         System.getProperty(D_JNDI_PROPERTIES, jndiPropertiesFileName));
     } catch (JTKException e) {
@@ -225,18 +847,235 @@ public class Receiver implements MessageListener {
 
     // Initialize the beans
     final ClassPathXmlApplicationContext applicationContext
-      = new ClassPathXmlApplicationContext(new String[]{"/app-context.xml"});
-    applicationContext.start();
+      = new ClassPathXmlApplicationContext(
+        new String[]{"/app-context.xml", "/receiver-context.xml"});
     final Receiver receiver = (Receiver) applicationContext.getBean(D_APP_NAME);
     receiver.setMaximumMessagesToReceive(maximumNumberOfMessages);
     receiver.setEncoding(textEncoding);
     receiver.setOutputStream(outputStream);
-    DefaultMessageListenerContainer listener = 
-      (DefaultMessageListenerContainer) applicationContext.getBean("jmsContainer");
-    listener.start();
+    if (!profile.isEmpty()) {
+      try {
+        receiver.setProcessingProfile(new ProcessingProfile(profile));
+      } catch (JTKException e) {
+        System.out.println(e.toStringWithStackTrace());
+        System.exit(X_ERROR);
+      }
+    }
+    final ReceiverListenerContainer container =
+      applicationContext.getBean("jmsContainer",
+        ReceiverListenerContainer.class);
+    if (container.isGroupOrdered()
+      && (raw || container.getWorkerThreads() == 0)) {
+      System.out.println("Ignoring groups argument."
+        + " Without workers each session processes its messages in order.");
+    }
+    if (verifyOrder) {
+      receiver.setGroupOrder(new GroupOrder());
+    }
+    if (raw) {
+      // it opened a connection when it was initialized, close it
+      container.shutdown();
+      try {
+        receiver.setRawConsumer(createRawConsumer(applicationContext,
+          receiver, selector, batchSize));
+      } catch (JTKException e) {
+        System.out.println(e.toStringWithStackTrace());
+        System.exit(X_ERROR);
+      }
+    } else {
+      receiver.setListenerContainer(container);
+      if (!selector.isEmpty()) {
+        container.setMessageSelector(selector);
+      }
+    }
+    if (!matches.isEmpty() || !extracts.isEmpty()) {
+      try {
+        receiver.setFilter(new MessageFilter(matches, extracts));
+      } catch (JTKException e) {
+        System.out.println(e.toStringWithStackTrace());
+        System.exit(X_ERROR);
+      }
+    }
+    final String claimDirectory =
+      System.getProperty(ClaimStore.P_DIRECTORY, "");
+    if (!claimDirectory.isEmpty()) {
+      try {
+        receiver.setClaimStore(new ClaimStore(claimDirectory));
+      } catch (JTKException e) {
+        System.out.println(e.toStringWithStackTrace());
+        System.exit(X_ERROR);
+      }
+    }
+    try {
+      if (interval.isEmpty() && !duration.isEmpty()) {
+        interval = D_INTERVAL;
+      }
+      // the summary is always written, when the receiver stops
+      final ReportWriter writer =
+        ReportWriter.create(reportFormat, reportFileName, System.err);
+      receiver.startReports(writer,
+        interval.isEmpty() ? 0 : Units.parseDuration(interval));
+      if (!monitorPeriod.isEmpty()) {
+        receiver.depthMonitor =
+          DepthMonitor.forInput(applicationContext, writer);
+        if (receiver.depthMonitor != null) {
+          receiver.depthMonitor.start(Units.parseDuration(monitorPeriod));
+        }
+      }
+      if (!duration.isEmpty()) {
+        receiver.stopAfter(Units.parseDuration(duration));
+      }
+    } catch (JTKException e) {
+      System.out.println(e.toStringWithStackTrace());
+      System.exit(X_ERROR);
+    } catch (JMSException e) {
+      System.out.println(JTKException.formatException(e));
+      System.exit(X_ERROR);
+    }
+    // on SIGTERM, acknowledge what was received and print the statistics
+    Runtime.getRuntime().addShutdownHook(new Thread(receiver::stop, "drain"));
+    if (receiver.getRawConsumer() != null) {
+      try {
+        receiver.getRawConsumer().start(maximumNumberOfMessages);
+        // the consumer threads are daemons, and a provider need not have
+        // threads of its own to keep the JVM running
+        receiver.stopped.await();
+      } catch (JMSException e) {
+        System.out.println(JTKException.formatException(e));
+        System.exit(X_ERROR);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return;
+    }
+    // the listener container is only started once the receiver is ready
+    applicationContext.start();
+  }
+
+  /**
+   * @param inContext the application context
+   * @param inReceiver where the batches go
+   * @param inSelector JMS selector, empty for none
+   * @param inBatchSize messages per batch
+   * @return raw consumers set up like the listener container would be
+   * @throws JTKException if a setting is not valid
+   */
+  private static RawConsumer createRawConsumer(
+    final ClassPathXmlApplicationContext inContext,
+    final Receiver inReceiver, final String inSelector,
+    final int inBatchSize) throws JTKException {
+    final RawConsumer consumer = new RawConsumer(
+      inContext.getBean("authConnectionFactory", ConnectionFactory.class),
+      inContext.getBean("input", Destination.class), inReceiver);
+    consumer.setConsumers(
+      Integer.parseInt(System.getProperty(P_CONSUMERS, "1")));
+    consumer.setBatchSize(inBatchSize);
+    consumer.setSelector(inSelector);
+    consumer.setTransacted(
+      Boolean.parseBoolean(System.getProperty(P_TRANSACTED, "false")));
+    final String ackMode =
+      System.getProperty(P_ACK_MODE, "AUTO_ACKNOWLEDGE");
+    switch (ackMode) {
+      case "CLIENT_ACKNOWLEDGE":
+        consumer.setAcknowledgeMode(Session.CLIENT_ACKNOWLEDGE);
+        break;
+      case "DUPS_OK_ACKNOWLEDGE":
+        consumer.setAcknowledgeMode(Session.DUPS_OK_ACKNOWLEDGE);
+        break;
+      case "AUTO_ACKNOWLEDGE":
+        consumer.setAcknowledgeMode(Session.AUTO_ACKNOWLEDGE);
+        break;
+      default:
+        throw new JTKException("Unknown acknowledgement mode: " + ackMode);
+    }
+    consumer.setThreadMode(ThreadMode.resolve(System.getProperty(
+      ThreadMode.P_THREAD_MODE, ThreadMode.PLATFORM)));
+    return consumer;
   }
 
   
+  /**
+   * Write a summary when the receiver stops, and interval reports if an
+   * interval is given.
+   *
+   * @param inWriter where the reports go
+   * @param inInterval time between interval reports (ns), 0 for none
+   */
+  public final void startReports(final ReportWriter inWriter,
+    final long inInterval) {
+    this.reportWriter = inWriter;
+    if (inInterval > 0) {
+      intervalReporter = new IntervalReporter(stats, inWriter, inInterval);
+      intervalReporter.start();
+    }
+  }
+
+  /**
+   * Stop the receiver after a time.
+   *
+   * @param inDuration time to run (ns)
+   */
+  public final void stopAfter(final long inDuration) {
+    final Thread timer = new Thread(() -> {
+      try {
+        TimeUnit.NANOSECONDS.sleep(inDuration);
+        finish();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, "duration");
+    timer.setDaemon(true);
+    timer.start();
+  }
+
+  /**
+   * Set the listener container properties for an acknowledgement mode.
+   *
+   * @param inMode auto, client[:count[:time]], dups or
+   * transacted[:count[:time]]
+   * @throws JTKException if the mode can not be parsed
+   */
+  protected static void setAcknowledgeMode(final String inMode)
+    throws JTKException {
+    final String[] mode = inMode.split(":");
+    String ackMode = "AUTO_ACKNOWLEDGE";
+    boolean batched = false;
+    switch (mode[0]) {
+      case "auto":
+        break;
+      case "client":
+        ackMode = "CLIENT_ACKNOWLEDGE";
+        batched = true;
+        break;
+      case "dups":
+        ackMode = "DUPS_OK_ACKNOWLEDGE";
+        break;
+      case "transacted":
+        System.setProperty(P_TRANSACTED, "true");
+        batched = true;
+        break;
+      default:
+        throw new JTKException("Unknown acknowledgement mode: " + inMode);
+    }
+    if (mode.length > 1 && !batched) {
+      throw new JTKException("Only client and transacted can be batched: "
+        + inMode);
+    }
+    System.setProperty(P_ACK_MODE, ackMode);
+    if (mode.length > 1) {
+      try {
+        System.setProperty(P_ACK_BATCH,
+          String.valueOf(Integer.parseInt(mode[1])));
+      } catch (NumberFormatException e) {
+        throw new JTKException("Not a valid batch size: " + inMode, e);
+      }
+    }
+    if (mode.length > 2) {
+      System.setProperty(P_ACK_INTERVAL, String.valueOf(
+        TimeUnit.NANOSECONDS.toMillis(Units.parseDuration(mode[2]))));
+    }
+  }
+
   /**
    * @return the outputStream
    */
@@ -262,27 +1101,21 @@ public class Receiver implements MessageListener {
    * @param inEncoding the encoding to set
    */
   public final void setEncoding(final String inEncoding) {
+    this.charset = Charset.forName(inEncoding);
     this.encoding = inEncoding;
   }
 
   /**
-   * @return the outputWriter
-   */
-  public final Writer getOutputWriter() {
-    return outputWriter;
-  }
-
-  /**
-   * @param inOutputWriter the outputWriter to set
+   * @return the character set of the encoding
    */
-  public final void setOutputWriter(final Writer inOutputWriter) {
-    this.outputWriter = inOutputWriter;
+  public final Charset getCharset() {
+    return charset;
   }
 
   /**
    * @return the maximumMessagesToReceive
    */
-  public final Integer getMaximumMessagesToReceive() {
+  public final long getMaximumMessagesToReceive() {
     return maximumMessagesToReceive;
   }
 
@@ -290,21 +1123,133 @@ public class Receiver implements MessageListener {
    * @param inMaximumMessagesToReceive the maximumMessagesToReceive to set
    */
   public final void setMaximumMessagesToReceive(
-    final Integer inMaximumMessagesToReceive) {
+    final long inMaximumMessagesToReceive) {
     this.maximumMessagesToReceive = inMaximumMessagesToReceive;
   }
   
+  /**
+   * @return the processingProfile
+   */
+  public final ProcessingProfile getProcessingProfile() {
+    return processingProfile;
+  }
+
+  /**
+   * @param inProcessingProfile the processingProfile to set
+   */
+  public final void setProcessingProfile(
+    final ProcessingProfile inProcessingProfile) {
+    this.processingProfile = inProcessingProfile;
+  }
+
+  /**
+   * @return the message, byte, error and latency counters
+   */
+  public final RunStats getStats() {
+    return stats;
+  }
+
+  /**
+   * @return the listenerContainer
+   */
+  public final ReceiverListenerContainer getListenerContainer() {
+    return listenerContainer;
+  }
+
+  /**
+   * @param inListenerContainer the container delivering the messages
+   */
+  public final void setListenerContainer(
+    final ReceiverListenerContainer inListenerContainer) {
+    this.listenerContainer = inListenerContainer;
+  }
+
+  /**
+   * @return the group order checks, null for none
+   */
+  public final GroupOrder getGroupOrder() {
+    return groupOrder;
+  }
+
+  /**
+   * @param inGroupOrder checks the order of each message group, null for
+   * no checks
+   */
+  public final void setGroupOrder(final GroupOrder inGroupOrder) {
+    this.groupOrder = inGroupOrder;
+  }
+
+  /**
+   * @return the raw consumers, null when the container delivers
+   */
+  public final RawConsumer getRawConsumer() {
+    return rawConsumer;
+  }
+
+  /**
+   * @param inRawConsumer receives without the container, null to use the
+   * container
+   */
+  public final void setRawConsumer(final RawConsumer inRawConsumer) {
+    this.rawConsumer = inRawConsumer;
+  }
+
+  /**
+   * @return the filter, null if every body is written
+   */
+  public final MessageFilter getFilter() {
+    return filter;
+  }
+
+  /**
+   * @param inFilter filters and projects message bodies, null for none
+   */
+  public final void setFilter(final MessageFilter inFilter) {
+    this.filter = inFilter;
+  }
+
+  /**
+   * @return the claim check store, null if claims are written as they are
+   */
+  public final ClaimStore getClaimStore() {
+    return claimStore;
+  }
+
+  /**
+   * @param inClaimStore where claim check payloads are read from, null to
+   * write the claims themselves
+   */
+  public final void setClaimStore(final ClaimStore inClaimStore) {
+    this.claimStore = inClaimStore;
+  }
+
   /**
    * @return the messagesReceived
    */
-  public final Integer getMessagesReceived() {
+  public final long getMessagesReceived() {
     return messagesReceived;
   }
   
   /**
    * @param inMessagesReceived the number of messages received
    */
-  public final void setMessagesReceived(final Integer inMessagesReceived) {
+  public final void setMessagesReceived(final long inMessagesReceived) {
     this.messagesReceived = inMessagesReceived;
   }
+
+  /** What to write for one filtered message. */
+  private static final class Slot {
+    /** The encoded output, null if the message was filtered out. */
+    private byte[] bytes = null;
+    /** Size of the output. */
+    private long size = 0;
+    /** Latency of the message (us). */
+    private long latency = 0;
+    /** True if the message could not be read. */
+    private boolean error = false;
+    /** True if the slot is in the queue of messages handed to workers. */
+    private boolean queued = false;
+    /** True once the worker is done with the message. */
+    private boolean ready = false;
+  }
 }
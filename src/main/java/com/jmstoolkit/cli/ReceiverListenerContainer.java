@@ -0,0 +1,473 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.jms.listener.DefaultMessageListenerContainer;
+
+/**
+ * A DefaultMessageListenerContainer which can hand messages to a pool of
+ * worker threads. JMS acknowledges every message a session has consumed
+ * at once, so each session keeps a window of messages in flight and only
+ * acknowledges (or commits) once every message in the window has been
+ * processed. Messages are acknowledged in the order they were received and
+ * a failed message causes the whole window to be redelivered.
+ * <p>
+ * With a client acknowledge or transacted session the acknowledgement or
+ * commit can also be batched, every ackBatchSize messages or every
+ * ackBatchInterval milliseconds, whichever comes first. Messages of a batch
+ * that was not yet acknowledged when the process dies are redelivered by
+ * the broker, so a batch gives at-least-once delivery with up to one batch
+ * of duplicates.
+ * <p>
+ * {@link #drain()} stops taking new messages and acknowledges the windows
+ * of every session, so a receiver can stop without the last batches being
+ * redelivered.
+ * <p>
+ * With the virtual thread mode each consumer runs on a virtual thread and
+ * so does each message handed to the workers, so thousands of consumers
+ * cost no more OS threads than one. The window still bounds the messages
+ * in flight per session.
+ * <p>
+ * With groupOrdered the workers are stripes keyed by the JMSXGroupID of
+ * the message, so the messages of a group are processed one at a time in
+ * the order the session received them, and different groups in parallel.
+ * Messages without a group are spread over the stripes by message ID.
+ *
+ * @author Scott Douglass
+ */
+public class ReceiverListenerContainer extends DefaultMessageListenerContainer {
+
+  /** Number of worker threads, 0 runs the listener on the consumer thread. */
+  private int workerThreads = 0;
+  /** Maximum number of messages in flight per session. */
+  private int workerWindow = 0;
+  /** The worker pool. */
+  private ExecutorService workers = null;
+  /** Keep the order of each message group among the workers. */
+  private boolean groupOrdered = false;
+  /** The workers, as stripes by message group, when groupOrdered. */
+  private StripedExecutor stripedWorkers = null;
+  /** Messages received but not yet acknowledged, per session. */
+  private final Map<Session, Window> windows = new ConcurrentHashMap<>();
+  /** Acknowledge or commit every this many messages. */
+  private int ackBatchSize = 1;
+  /** Acknowledge or commit at least this often (ms), 0 for no limit. */
+  private long ackBatchInterval = 0;
+  /** Threads of the consumers and workers, platform or virtual. */
+  private String threadMode = ThreadMode.PLATFORM;
+  /** Time between checks while draining (ms). */
+  private static final long DRAIN_POLL = 10;
+  /** True once no more messages should be received. */
+  private volatile boolean draining = false;
+  /** Sessions whose window was acknowledged since draining started. */
+  private final Set<Session> drained = ConcurrentHashMap.newKeySet();
+
+  @Override
+  public void initialize() {
+    final String mode;
+    try {
+      mode = ThreadMode.resolve(threadMode);
+    } catch (JTKException e) {
+      throw new IllegalArgumentException(e.getMessage(), e);
+    }
+    final TaskExecutor consumers = ThreadMode.newTaskExecutor(mode,
+      "consumer");
+    if (consumers != null) {
+      setTaskExecutor(consumers);
+      // a virtual thread can keep its consumer for the whole run
+      setMaxMessagesPerTask(-1);
+    }
+    if (workerThreads > 0) {
+      if (workerWindow <= 0) {
+        workerWindow = 2 * workerThreads;
+      }
+      // auto acknowledge would ack before the workers are done
+      if (!isSessionTransacted()
+        && getSessionAcknowledgeMode() == Session.AUTO_ACKNOWLEDGE) {
+        setSessionAcknowledgeMode(Session.CLIENT_ACKNOWLEDGE);
+      }
+      if (groupOrdered && stripedWorkers == null) {
+        stripedWorkers = new StripedExecutor("worker", workerThreads);
+      } else if (!groupOrdered && workers == null) {
+        workers = ThreadMode.newExecutor(mode, "worker", workerThreads);
+      }
+    }
+    if (ackBatchSize > 1 || ackBatchInterval > 0) {
+      if (!isSessionTransacted()
+        && getSessionAcknowledgeMode() == Session.AUTO_ACKNOWLEDGE) {
+        setSessionAcknowledgeMode(Session.CLIENT_ACKNOWLEDGE);
+      }
+      // the idle receive timeout is when a partial batch is acknowledged
+      if (ackBatchInterval > 0 && ackBatchInterval < getReceiveTimeout()) {
+        setReceiveTimeout(ackBatchInterval);
+      }
+    }
+    super.initialize();
+  }
+
+  @Override
+  protected void doShutdown() throws JMSException {
+    super.doShutdown();
+    if (workers != null) {
+      workers.shutdown();
+    }
+    if (stripedWorkers != null) {
+      stripedWorkers.shutdown();
+    }
+  }
+
+  @Override
+  protected Message receiveMessage(final MessageConsumer consumer)
+    throws JMSException {
+    if (draining) {
+      // an idle pass, which acknowledges the window of the session
+      try {
+        TimeUnit.MILLISECONDS.sleep(DRAIN_POLL);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return null;
+    }
+    return super.receiveMessage(consumer);
+  }
+
+  /**
+   * Stop receiving messages. Messages already received are still
+   * processed, and each session acknowledges or commits its window on its
+   * next idle pass. Messages prefetched by the provider go back to the
+   * broker when the consumer closes.
+   */
+  public final void drain() {
+    draining = true;
+  }
+
+  /**
+   * Wait for every session to acknowledge its window after {@link #drain()}.
+   *
+   * @param inTimeout longest time to wait (ns)
+   * @return true if every session was drained in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public final boolean awaitDrained(final long inTimeout)
+    throws InterruptedException {
+    drain();
+    final long deadline = System.nanoTime() + inTimeout;
+    while (!drained.containsAll(windows.keySet())) {
+      if (System.nanoTime() - deadline >= 0) {
+        return false;
+      }
+      TimeUnit.MILLISECONDS.sleep(DRAIN_POLL);
+    }
+    return true;
+  }
+
+  @Override
+  protected void invokeListener(final Session session, final Message message)
+    throws JMSException {
+    if (!hasWorkers()) {
+      super.invokeListener(session, message);
+      return;
+    }
+    final Object listener = getMessageListener();
+    if (listener instanceof ReceiveOrder) {
+      ((ReceiveOrder) listener).received(message);
+    }
+    final Callable<Object> work = () -> {
+      invokeWorkerListener(session, message);
+      return null;
+    };
+    window(session).inFlight.add(stripedWorkers == null
+      ? workers.submit(work)
+      : stripedWorkers.submit(groupOf(message), work));
+  }
+
+  /**
+   * @param message a message
+   * @return its group, or its ID if it has no group
+   * @throws JMSException if the properties can not be read
+   */
+  private static String groupOf(final Message message) throws JMSException {
+    final String group = message.getStringProperty(MessageGroups.GROUP_ID);
+    return group == null ? message.getJMSMessageID() : group;
+  }
+
+  /**
+   * @return true if messages are handed to worker threads
+   */
+  private boolean hasWorkers() {
+    return workers != null || stripedWorkers != null;
+  }
+
+  /**
+   * Run the listener on a worker thread.
+   *
+   * @param session the session the message came from
+   * @param message the message
+   * @throws JMSException if the listener fails
+   */
+  private void invokeWorkerListener(final Session session,
+    final Message message) throws JMSException {
+    super.invokeListener(session, message);
+  }
+
+  @Override
+  protected void commitIfNecessary(final Session session,
+    final Message message) throws JMSException {
+    final Window window = window(session);
+    if (message != null) {
+      if (window.pending == 0) {
+        window.firstTime = System.currentTimeMillis();
+      }
+      window.lastMessage = message;
+      window.pending++;
+    }
+    if (window.pending == 0) {
+      super.commitIfNecessary(session, message);
+    } else if (isWindowDue(window, message == null)) {
+      flush(session, window);
+    }
+    if (draining && message == null && window.pending == 0) {
+      drained.add(session);
+    }
+  }
+
+  /**
+   * @param inWindow the window of a session
+   * @param inIdle true if the consumer did not receive a message
+   * @return true if the window should be acknowledged now
+   */
+  protected boolean isWindowDue(final Window inWindow, final boolean inIdle) {
+    if (inIdle || (hasWorkers()
+      && inWindow.inFlight.size() >= workerWindow)) {
+      return true;
+    }
+    if (ackBatchInterval > 0 && System.currentTimeMillis()
+      - inWindow.firstTime >= ackBatchInterval) {
+      return true;
+    }
+    if (inWindow.pending < ackBatchSize) {
+      return false;
+    }
+    if (!hasWorkers()) {
+      return true;
+    }
+    // do not wait for the workers while there is still room in the window
+    for (Future<?> work : inWindow.inFlight) {
+      if (!work.isDone()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Wait for all the messages of a window to be processed and then
+   * acknowledge or commit them. If one failed the session is rolled back or
+   * recovered so the whole window is redelivered.
+   *
+   * @param session the session
+   * @param window the messages received on the session
+   * @throws JMSException if the acknowledgement fails
+   */
+  protected void flush(final Session session, final Window window)
+    throws JMSException {
+    Throwable failure = null;
+    for (Future<?> work : window.inFlight) {
+      try {
+        work.get();
+      } catch (ExecutionException e) {
+        failure = e.getCause();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failure = e;
+      }
+    }
+    final Message last = window.lastMessage;
+    window.clear();
+    if (failure == null) {
+      super.commitIfNecessary(session, last);
+    } else {
+      rollbackOnExceptionIfNecessary(session, failure);
+      handleListenerException(failure);
+    }
+  }
+
+  @Override
+  protected void rollbackIfNecessary(final Session session)
+    throws JMSException {
+    window(session).clear();
+    super.rollbackIfNecessary(session);
+  }
+
+  @Override
+  protected void rollbackOnExceptionIfNecessary(final Session session,
+    final Throwable ex) throws JMSException {
+    window(session).clear();
+    super.rollbackOnExceptionIfNecessary(session, ex);
+  }
+
+  /**
+   * @param session the session
+   * @return the window of messages in flight for the session
+   */
+  private Window window(final Session session) {
+    return windows.computeIfAbsent(session, s -> new Window());
+  }
+
+  /**
+   * @return the workerThreads
+   */
+  public final int getWorkerThreads() {
+    return workerThreads;
+  }
+
+  /**
+   * @param inWorkerThreads the workerThreads to set, 0 for none
+   */
+  public final void setWorkerThreads(final int inWorkerThreads) {
+    this.workerThreads = inWorkerThreads;
+  }
+
+  /**
+   * @return true if the order of each message group is kept
+   */
+  public final boolean isGroupOrdered() {
+    return groupOrdered;
+  }
+
+  /**
+   * @param inGroupOrdered true to process the messages of a group one at a
+   * time, in order, on the workers
+   */
+  public final void setGroupOrdered(final boolean inGroupOrdered) {
+    this.groupOrdered = inGroupOrdered;
+  }
+
+  /**
+   * @return the workerWindow
+   */
+  public final int getWorkerWindow() {
+    return workerWindow;
+  }
+
+  /**
+   * @param inWorkerWindow maximum messages in flight per session
+   */
+  public final void setWorkerWindow(final int inWorkerWindow) {
+    this.workerWindow = inWorkerWindow;
+  }
+
+  /**
+   * @return the threadMode
+   */
+  public final String getThreadMode() {
+    return threadMode;
+  }
+
+  /**
+   * @param inThreadMode platform or virtual
+   */
+  public final void setThreadMode(final String inThreadMode) {
+    this.threadMode = inThreadMode;
+  }
+
+  /**
+   * @return the ackBatchSize
+   */
+  public final int getAckBatchSize() {
+    return ackBatchSize;
+  }
+
+  /**
+   * @param inAckBatchSize acknowledge or commit every this many messages
+   */
+  public final void setAckBatchSize(final int inAckBatchSize) {
+    this.ackBatchSize = Math.max(1, inAckBatchSize);
+  }
+
+  /**
+   * @return the ackBatchInterval in ms
+   */
+  public final long getAckBatchInterval() {
+    return ackBatchInterval;
+  }
+
+  /**
+   * @param inAckBatchInterval acknowledge or commit at least this often
+   * (ms), 0 for no limit
+   */
+  public final void setAckBatchInterval(final long inAckBatchInterval) {
+    this.ackBatchInterval = inAckBatchInterval;
+  }
+
+  /**
+   * A listener that needs the order messages were received in, although
+   * the workers process them in any order.
+   */
+  public interface ReceiveOrder {
+    /**
+     * Called on the consumer thread, in receive order, before the message
+     * is handed to a worker.
+     *
+     * @param message the message
+     */
+    void received(Message message);
+  }
+
+  /**
+   * Messages received on one session and not yet acknowledged. Only used by
+   * the consumer thread of the session.
+   */
+  protected static final class Window {
+    /** Work handed to the pool. */
+    private final List<Future<?>> inFlight = new ArrayList<>();
+    /** The most recent message. */
+    private Message lastMessage = null;
+    /** Number of messages not yet acknowledged. */
+    private int pending = 0;
+    /** When the first message not yet acknowledged was received. */
+    private long firstTime = 0;
+
+    /** Forget everything in the window. */
+    void clear() {
+      inFlight.clear();
+      lastMessage = null;
+      pending = 0;
+    }
+
+    /**
+     * @return the number of messages not yet acknowledged
+     */
+    public int getPending() {
+      return pending;
+    }
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes report rows as text for people, or as CSV or JSON lines for
+ * plotting. A row is an ordered map of column name to value. CSV output
+ * writes a new header line whenever the columns change.
+ *
+ * @author Scott Douglass
+ */
+public class ReportWriter {
+
+  /** Text format. */
+  public static final String FORMAT_TEXT = "text";
+  /** Comma separated values. */
+  public static final String FORMAT_CSV = "csv";
+  /** One JSON object per line. */
+  public static final String FORMAT_JSON = "json";
+  /** Column with the type of row, it is not repeated in text output. */
+  public static final String TYPE = "type";
+  /** The output format. */
+  private final String format;
+  /** Where the rows go. */
+  private final PrintStream out;
+  /** Columns of the last CSV header. */
+  private List<String> columns = new ArrayList<>();
+
+  /**
+   * @param inFormat text, csv or json
+   * @param inOut where the rows go
+   * @throws JTKException if the format is not known
+   */
+  public ReportWriter(final String inFormat, final PrintStream inOut)
+    throws JTKException {
+    if (!FORMAT_TEXT.equals(inFormat) && !FORMAT_CSV.equals(inFormat)
+      && !FORMAT_JSON.equals(inFormat)) {
+      throw new JTKException("Unknown report format: " + inFormat);
+    }
+    this.format = inFormat;
+    this.out = inOut;
+  }
+
+  /**
+   * @param inFormat text, csv or json
+   * @param inFileName file to write, or empty for the default stream
+   * @param inDefault the default stream
+   * @return the writer
+   * @throws JTKException if the format is not known or the file can not be
+   * created
+   */
+  public static ReportWriter create(final String inFormat,
+    final String inFileName, final PrintStream inDefault)
+    throws JTKException {
+    if (inFileName == null || inFileName.isEmpty()) {
+      return new ReportWriter(inFormat, inDefault);
+    }
+    try {
+      return new ReportWriter(inFormat, new PrintStream(
+        new FileOutputStream(inFileName, true), true, "UTF-8"));
+    } catch (FileNotFoundException | UnsupportedEncodingException e) {
+      throw new JTKException("Could not create report file: " + inFileName,
+        e);
+    }
+  }
+
+  /**
+   * @param inRow the row to write
+   */
+  public final synchronized void write(final Map<String, Object> inRow) {
+    switch (format) {
+      case FORMAT_CSV:
+        writeCsv(inRow);
+        break;
+      case FORMAT_JSON:
+        writeJson(inRow);
+        break;
+      default:
+        writeText(inRow);
+    }
+    final Object event = Flight.beginFlush();
+    out.flush();
+    Flight.end(event, "report", 0);
+  }
+
+  /**
+   * @param inRow the row to write
+   */
+  private void writeText(final Map<String, Object> inRow) {
+    final StringBuilder line = new StringBuilder("  * ");
+    if (inRow.containsKey(TYPE)) {
+      line.append(inRow.get(TYPE)).append(":");
+    }
+    for (Map.Entry<String, Object> column : inRow.entrySet()) {
+      if (!TYPE.equals(column.getKey())) {
+        line.append(" ").append(column.getKey()).append("=")
+          .append(format(column.getValue()));
+      }
+    }
+    out.println(line);
+  }
+
+  /**
+   * @param inRow the row to write
+   */
+  private void writeCsv(final Map<String, Object> inRow) {
+    final List<String> rowColumns = new ArrayList<>(inRow.keySet());
+    if (!rowColumns.equals(columns)) {
+      columns = rowColumns;
+      out.println(String.join(",", columns));
+    }
+    final StringBuilder line = new StringBuilder();
+    for (Object value : inRow.values()) {
+      if (line.length() > 0) {
+        line.append(",");
+      }
+      final String text = format(value);
+      if (text.contains(",") || text.contains("\"")) {
+        line.append('"').append(text.replace("\"", "\"\"")).append('"');
+      } else {
+        line.append(text);
+      }
+    }
+    out.println(line);
+  }
+
+  /**
+   * @param inRow the row to write
+   */
+  private void writeJson(final Map<String, Object> inRow) {
+    out.println(toJson(inRow));
+  }
+
+  /**
+   * @param inRow a row
+   * @return the row as a JSON object on one line
+   */
+  public static String toJson(final Map<String, Object> inRow) {
+    final StringBuilder line = new StringBuilder("{");
+    for (Map.Entry<String, Object> column : inRow.entrySet()) {
+      if (line.length() > 1) {
+        line.append(",");
+      }
+      line.append(quote(column.getKey())).append(":");
+      final Object value = column.getValue();
+      if (value instanceof Number || value instanceof Boolean) {
+        line.append(format(value));
+      } else {
+        line.append(quote(String.valueOf(value)));
+      }
+    }
+    return line.append("}").toString();
+  }
+
+  /**
+   * @param inValue a value
+   * @return the value as text, doubles with three decimals
+   */
+  private static String format(final Object inValue) {
+    if (inValue instanceof Double || inValue instanceof Float) {
+      return String.format(Locale.US, "%.3f",
+        ((Number) inValue).doubleValue());
+    }
+    return String.valueOf(inValue);
+  }
+
+  /**
+   * @param inText text
+   * @return the text as a JSON string
+   */
+  private static String quote(final String inText) {
+    final StringBuilder quoted = new StringBuilder("\"");
+    for (char c : inText.toCharArray()) {
+      switch (c) {
+        case '"':
+          quoted.append("\\\"");
+          break;
+        case '\\':
+          quoted.append("\\\\");
+          break;
+        case '\n':
+          quoted.append("\\n");
+          break;
+        case '\r':
+          quoted.append("\\r");
+          break;
+        case '\t':
+          quoted.append("\\t");
+          break;
+        default:
+          if (c < ' ') {
+            quoted.append(String.format("\\u%04x", (int) c));
+          } else {
+            quoted.append(c);
+          }
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+  /**
+   * @return the format
+   */
+  public final String getFormat() {
+    return format;
+  }
+
+  /**
+   * Flush and close the output, unless it is System.out or System.err.
+   */
+  public final synchronized void close() {
+    out.flush();
+    if (out != System.out && out != System.err) {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A file of benchmark results, one JSON object per line and per run, so
+ * runs can be compared long after the terminal is gone. A result has the
+ * run's label, its configuration, the environment it ran in (host, Java,
+ * JVM flags, JMS client), the summary row and the latency histogram of
+ * the whole run. Results are only ever appended, runs of several weeks
+ * can share a file.
+ *
+ * @author Scott Douglass
+ */
+public final class ResultStore {
+
+  /** Property name of the results file. */
+  public static final String P_FILE = "jmstoolkit.results";
+  /** Property name of the label of the run. */
+  public static final String P_LABEL = "jmstoolkit.results.label";
+  /** Default label. */
+  public static final String D_LABEL = "run";
+  /** Type of a result row. */
+  public static final String TYPE_RESULT = "result";
+  /** Column with the label. */
+  public static final String LABEL = "label";
+  /** Column with the encoded latency histogram. */
+  public static final String HISTOGRAM = "latency_histogram";
+  /** Columns that are ours, not copied from the summary. */
+  private static final String[] OWN = {ReportWriter.TYPE, "id", LABEL};
+  /** The file. */
+  private final String fileName;
+
+  /**
+   * @param inFileName the results file, created on the first result
+   */
+  public ResultStore(final String inFileName) {
+    this.fileName = inFileName;
+  }
+
+  /**
+   * Build the result of a run.
+   *
+   * @param inLabel what is being measured, such as a broker version or a
+   * tuning option, repeated runs share a label
+   * @param inConfig the configuration of the run
+   * @param inSummary the summary row of the run
+   * @param inLatencies the latencies of the whole run
+   * @return the result
+   */
+  public static Map<String, Object> result(final String inLabel,
+    final Map<String, Object> inConfig, final Map<String, Object> inSummary,
+    final LatencyHistogram inLatencies) {
+    final Map<String, Object> result = new LinkedHashMap<>();
+    result.put(ReportWriter.TYPE, TYPE_RESULT);
+    result.put("id", UUID.randomUUID().toString());
+    result.put(LABEL, inLabel);
+    putAll(result, inSummary);
+    putAll(result, inConfig);
+    putAll(result, environment());
+    result.put(HISTOGRAM, inLatencies.encode());
+    return result;
+  }
+
+  /**
+   * @param inTo the result
+   * @param inFrom columns to add, other than the result's own
+   */
+  private static void putAll(final Map<String, Object> inTo,
+    final Map<String, Object> inFrom) {
+    for (Map.Entry<String, Object> column : inFrom.entrySet()) {
+      boolean own = false;
+      for (String name : OWN) {
+        own |= name.equals(column.getKey());
+      }
+      if (!own) {
+        inTo.put(column.getKey(), column.getValue());
+      }
+    }
+  }
+
+  /**
+   * @return what the run ran on
+   */
+  static Map<String, Object> environment() {
+    final Map<String, Object> env = new LinkedHashMap<>();
+    String host;
+    try {
+      host = InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException e) {
+      host = "unknown";
+    }
+    env.put("host", host);
+    env.put("user", System.getProperty("user.name"));
+    env.put("os", System.getProperty("os.name") + " "
+      + System.getProperty("os.version") + " "
+      + System.getProperty("os.arch"));
+    env.put("cpus", Runtime.getRuntime().availableProcessors());
+    env.put("java_version", System.getProperty("java.version"));
+    env.put("java_vm", System.getProperty("java.vm.name") + " "
+      + System.getProperty("java.vm.version"));
+    env.put("max_heap", Runtime.getRuntime().maxMemory());
+    env.put("jvm_args", String.join(" ",
+      ManagementFactory.getRuntimeMXBean().getInputArguments()));
+    return env;
+  }
+
+  /**
+   * @param inConnectionFactory the JMS provider's connection factory
+   * @return its class and the version of its jar, if the jar has one
+   */
+  public static String describe(final Object inConnectionFactory) {
+    final Package provider = inConnectionFactory.getClass().getPackage();
+    final String version =
+      provider == null ? null : provider.getImplementationVersion();
+    return inConnectionFactory.getClass().getName()
+      + (version == null ? "" : " " + version);
+  }
+
+  /**
+   * Append a result to the file.
+   *
+   * @param inResult the result
+   * @throws JTKException if the file can not be written
+   */
+  public synchronized void append(final Map<String, Object> inResult)
+    throws JTKException {
+    try (Writer out = Files.newBufferedWriter(Paths.get(fileName),
+        StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND)) {
+      out.write(ReportWriter.toJson(inResult));
+      out.write('\n');
+    } catch (IOException e) {
+      throw new JTKException("Could not write results file: " + fileName,
+        e);
+    }
+  }
+
+  /**
+   * Read the results in a file, lines that are not results are skipped.
+   *
+   * @param inFileName the file
+   * @return the results, in the order they were written
+   * @throws JTKException if the file can not be read
+   */
+  public static List<Result> read(final String inFileName)
+    throws JTKException {
+    final List<Result> results = new ArrayList<>();
+    try (BufferedReader in = Files.newBufferedReader(Paths.get(inFileName),
+        StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        final Result result = new Result(line);
+        if (TYPE_RESULT.equals(result.get(ReportWriter.TYPE))) {
+          results.add(result);
+        }
+      }
+    } catch (IOException e) {
+      throw new JTKException("Could not read results file: " + inFileName,
+        e);
+    }
+    return results;
+  }
+
+  /**
+   * @return the results file
+   */
+  public String getFileName() {
+    return fileName;
+  }
+
+  /**
+   * A result read back. Columns are looked up in the JSON line when they
+   * are first asked for.
+   */
+  public static final class Result {
+    /** The result as written. */
+    private final String json;
+    /** Columns looked up so far. */
+    private final Map<String, String> columns = new HashMap<>();
+
+    /**
+     * @param inJson the result as written
+     */
+    Result(final String inJson) {
+      this.json = inJson;
+    }
+
+    /**
+     * @param inColumn a column name
+     * @return its value as text, null if the result does not have it
+     */
+    public String get(final String inColumn) {
+      if (!columns.containsKey(inColumn)) {
+        String value = null;
+        try {
+          final List<String> values =
+            new JsonPath("$['" + inColumn + "']").evaluate(json);
+          value = values.isEmpty() ? null : values.get(0);
+        } catch (JTKException e) {
+          // not a name a path can hold, so not a column we wrote
+        }
+        columns.put(inColumn, value);
+      }
+      return columns.get(inColumn);
+    }
+
+    /**
+     * @param inColumn a column name
+     * @return its value as a number, NaN if it is missing or not a number
+     */
+    public double getNumber(final String inColumn) {
+      final String value = get(inColumn);
+      if (value == null) {
+        return Double.NaN;
+      }
+      try {
+        return Double.parseDouble(value);
+      } catch (NumberFormatException e) {
+        return Double.NaN;
+      }
+    }
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A fixed capacity ring of length prefixed records kept outside of the Java
+ * heap, either in a direct ByteBuffer or in a memory mapped file. When the
+ * ring is full the oldest records are overwritten.
+ *
+ * @author Scott Douglass
+ */
+public class RingStore {
+
+  /** Bytes used by the length prefix of each record. */
+  private static final int HEADER = 4;
+  /** The backing buffer. */
+  private final ByteBuffer buffer;
+  /** Buffer used for relative writes, so the backing buffer is untouched. */
+  private final ByteBuffer writer;
+  /** Capacity in bytes. */
+  private final int capacity;
+  /** Offset of the oldest record. */
+  private int head = 0;
+  /** Offset where the next record will be written. */
+  private int tail = 0;
+  /** Bytes in use, including the length prefixes. */
+  private long used = 0;
+  /** Number of records in the ring. */
+  private long count = 0;
+  /** Number of records overwritten because the ring was full. */
+  private long evicted = 0;
+
+  /**
+   * @param inBuffer the backing buffer
+   */
+  public RingStore(final ByteBuffer inBuffer) {
+    this.buffer = inBuffer;
+    this.writer = inBuffer.duplicate();
+    this.capacity = inBuffer.capacity();
+  }
+
+  /**
+   * Create a ring in a direct (off-heap) ByteBuffer.
+   *
+   * @param inCapacity size in bytes
+   * @return the store
+   */
+  public static RingStore allocateDirect(final int inCapacity) {
+    return new RingStore(ByteBuffer.allocateDirect(inCapacity));
+  }
+
+  /**
+   * Create a ring in a memory mapped file. The mapping stays valid after
+   * the file is closed.
+   *
+   * @param inFile the file to map, it is created or resized as needed
+   * @param inCapacity size in bytes
+   * @return the store
+   * @throws JTKException if the file can not be mapped
+   */
+  public static RingStore map(final File inFile, final int inCapacity)
+    throws JTKException {
+    try (RandomAccessFile file = new RandomAccessFile(inFile, "rw");
+      FileChannel channel = file.getChannel()) {
+      return new RingStore(
+        channel.map(FileChannel.MapMode.READ_WRITE, 0, inCapacity));
+    } catch (IOException e) {
+      throw new JTKException("Could not map file: " + inFile, e);
+    }
+  }
+
+  /**
+   * Append a record, overwriting the oldest records if needed.
+   *
+   * @param inData the record
+   * @return false if the record is larger than the whole ring
+   */
+  public boolean put(final byte[] inData) {
+    return put(ByteBuffer.wrap(inData));
+  }
+
+  /**
+   * Append the remaining bytes of a buffer as a record, overwriting the
+   * oldest records if needed. The position of the buffer is not changed.
+   *
+   * @param inData the record
+   * @return false if the record is larger than the whole ring
+   */
+  public synchronized boolean put(final ByteBuffer inData) {
+    final int length = inData.remaining();
+    final long needed = HEADER + (long) length;
+    if (needed > capacity) {
+      return false;
+    }
+    while (capacity - used < needed) {
+      evict();
+    }
+    writeInt(tail, length);
+    write(offset(tail, HEADER), inData);
+    tail = offset(tail, needed);
+    used += needed;
+    count++;
+    return true;
+  }
+
+  /**
+   * Drop the oldest record.
+   */
+  private void evict() {
+    final int length = readInt(head);
+    head = offset(head, HEADER + (long) length);
+    used -= HEADER + (long) length;
+    count--;
+    evicted++;
+  }
+
+  /**
+   * @param inOffset an offset in the ring
+   * @param inDistance bytes to move forward
+   * @return the offset that far on, wrapping at the end of the ring; in
+   * long arithmetic, as a ring near 2GB overflows an int
+   */
+  private int offset(final int inOffset, final long inDistance) {
+    return (int) ((inOffset + inDistance) % capacity);
+  }
+
+  /**
+   * @param inOffset where to write
+   * @param inValue the int to write, wrapping at the end of the ring
+   */
+  private void writeInt(final int inOffset, final int inValue) {
+    if (capacity - inOffset >= HEADER) {
+      buffer.putInt(inOffset, inValue);
+    } else {
+      for (int i = 0; i < HEADER; i++) {
+        buffer.put(offset(inOffset, i),
+          (byte) (inValue >>> (8 * (HEADER - 1 - i))));
+      }
+    }
+  }
+
+  /**
+   * @param inOffset where to read
+   * @return the int at the offset, wrapping at the end of the ring
+   */
+  private int readInt(final int inOffset) {
+    if (capacity - inOffset >= HEADER) {
+      return buffer.getInt(inOffset);
+    }
+    int value = 0;
+    for (int i = 0; i < HEADER; i++) {
+      value = (value << 8) | (buffer.get(offset(inOffset, i)) & 0xff);
+    }
+    return value;
+  }
+
+  /**
+   * @param inOffset where to write
+   * @param inData bytes to write, wrapping at the end of the ring
+   */
+  private void write(final int inOffset, final ByteBuffer inData) {
+    final ByteBuffer part = inData.duplicate();
+    final int first = Math.min(part.remaining(), capacity - inOffset);
+    // through Buffer, the ByteBuffer overrides are Java 9 and later
+    ((Buffer) writer).clear();
+    ((Buffer) writer).position(inOffset);
+    ((Buffer) part).limit(part.position() + first);
+    writer.put(part);
+    if (part.limit() < inData.limit()) {
+      ((Buffer) writer).position(0);
+      ((Buffer) part).limit(inData.limit());
+      writer.put(part);
+    }
+  }
+
+  /**
+   * @return the capacity in bytes
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return the bytes retained, including the length prefixes
+   */
+  public synchronized long getUsed() {
+    return used;
+  }
+
+  /**
+   * @return the number of records retained
+   */
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /**
+   * @return the number of records overwritten
+   */
+  public synchronized long getEvicted() {
+    return evicted;
+  }
+}
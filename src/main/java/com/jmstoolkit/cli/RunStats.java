@@ -0,0 +1,217 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.Units;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 64 bit message, byte and error counters with latency histograms for the
+ * whole run and for the current reporting interval. Safe to record from
+ * any number of threads.
+ *
+ * @author Scott Douglass
+ */
+public class RunStats {
+
+  /** Nanoseconds in a second. */
+  private static final double NANOS_PER_SECOND = 1e9;
+  /** When the run started (ns). */
+  private final long startNanos = System.nanoTime();
+  /** When the run finished (ns), 0 while running. */
+  private volatile long endNanos = 0;
+  /** Messages recorded. */
+  private final LongAdder messages = new LongAdder();
+  /** Bytes recorded. */
+  private final LongAdder bytes = new LongAdder();
+  /** Errors recorded. */
+  private final LongAdder errors = new LongAdder();
+  /** Latencies of the whole run. */
+  private final LatencyHistogram total = new LatencyHistogram();
+  /** Latencies of the current interval. */
+  private final AtomicReference<LatencyHistogram> interval =
+    new AtomicReference<>(new LatencyHistogram());
+  /** End of the previous interval (ns). */
+  private long lastNanos = startNanos;
+  /** Messages at the end of the previous interval. */
+  private long lastMessages = 0;
+  /** Bytes at the end of the previous interval. */
+  private long lastBytes = 0;
+  /** Errors at the end of the previous interval. */
+  private long lastErrors = 0;
+
+  /**
+   * @param inBytes size of the message
+   * @param inLatencyMicros latency of the message in microseconds
+   */
+  public final void record(final long inBytes, final long inLatencyMicros) {
+    messages.increment();
+    bytes.add(inBytes);
+    total.record(inLatencyMicros);
+    interval.get().record(inLatencyMicros);
+  }
+
+  /**
+   * Count a failed message.
+   */
+  public final void recordError() {
+    errors.increment();
+  }
+
+  /**
+   * A row for the interval since the previous call, which starts a new
+   * interval.
+   *
+   * @return the interval row
+   */
+  public final synchronized Map<String, Object> intervalRow() {
+    final long now = System.nanoTime();
+    final long nowMessages = messages.sum();
+    final long nowBytes = bytes.sum();
+    final long nowErrors = errors.sum();
+    final LatencyHistogram latencies =
+      interval.getAndSet(new LatencyHistogram());
+    final Map<String, Object> row = row("interval", now - startNanos,
+      nowMessages - lastMessages, nowBytes - lastBytes,
+      nowErrors - lastErrors, now - lastNanos, latencies);
+    row.put("total_messages", nowMessages);
+    lastNanos = now;
+    lastMessages = nowMessages;
+    lastBytes = nowBytes;
+    lastErrors = nowErrors;
+    return row;
+  }
+
+  /**
+   * Mark the end of the run, so the elapsed time stops growing.
+   */
+  public final void finish() {
+    if (endNanos == 0) {
+      endNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * @return a row for the whole run
+   */
+  public final Map<String, Object> summaryRow() {
+    return summaryRow("summary", messages.sum(), bytes.sum(), errors.sum(),
+      getElapsedNanos(), total);
+  }
+
+  /**
+   * A summary row from counters gathered elsewhere, for example merged from
+   * several hosts.
+   *
+   * @param inType type of row
+   * @param inMessages number of messages
+   * @param inBytes number of bytes
+   * @param inErrors number of errors
+   * @param inElapsed length of the run (ns)
+   * @param inLatencies latencies of the run
+   * @return the row
+   */
+  public static Map<String, Object> summaryRow(final String inType,
+    final long inMessages, final long inBytes, final long inErrors,
+    final long inElapsed, final LatencyHistogram inLatencies) {
+    return row(inType, inElapsed, inMessages, inBytes, inErrors, inElapsed,
+      inLatencies);
+  }
+
+  /**
+   * @param inType type of row
+   * @param inElapsed time since the start of the run (ns)
+   * @param inMessages messages in the period
+   * @param inBytes bytes in the period
+   * @param inErrors errors in the period
+   * @param inPeriod length of the period (ns)
+   * @param inLatencies latencies of the period
+   * @return the row
+   */
+  private static Map<String, Object> row(final String inType,
+    final long inElapsed, final long inMessages, final long inBytes,
+    final long inErrors, final long inPeriod,
+    final LatencyHistogram inLatencies) {
+    final double seconds = Math.max(1, inPeriod) / NANOS_PER_SECOND;
+    final Map<String, Object> row = new LinkedHashMap<>();
+    row.put(ReportWriter.TYPE, inType);
+    row.put("time", Instant.now().toString());
+    row.put("elapsed_s", inElapsed / NANOS_PER_SECOND);
+    row.put("messages", inMessages);
+    row.put("rate", inMessages / seconds);
+    row.put("bytes", inBytes);
+    row.put("mb_s", inBytes / seconds / Units.MB);
+    row.put("errors", inErrors);
+    addLatencies(row, inLatencies);
+    return row;
+  }
+
+  /**
+   * Add the usual latency columns to a row.
+   *
+   * @param inRow the row
+   * @param inLatencies the latencies
+   */
+  public static void addLatencies(final Map<String, Object> inRow,
+    final LatencyHistogram inLatencies) {
+    inRow.put("mean_us", inLatencies.getMean());
+    inRow.put("p50_us", inLatencies.getPercentile(50));
+    inRow.put("p90_us", inLatencies.getPercentile(90));
+    inRow.put("p99_us", inLatencies.getPercentile(99));
+    inRow.put("p999_us", inLatencies.getPercentile(99.9));
+    inRow.put("max_us", inLatencies.getMax());
+  }
+
+  /**
+   * @return the number of messages
+   */
+  public final long getMessages() {
+    return messages.sum();
+  }
+
+  /**
+   * @return the number of bytes
+   */
+  public final long getBytes() {
+    return bytes.sum();
+  }
+
+  /**
+   * @return the number of errors
+   */
+  public final long getErrors() {
+    return errors.sum();
+  }
+
+  /**
+   * @return the latencies of the whole run
+   */
+  public final LatencyHistogram getLatencies() {
+    return total;
+  }
+
+  /**
+   * @return nanoseconds since the run started, or the length of the run
+   * once it is finished
+   */
+  public final long getElapsedNanos() {
+    final long end = endNanos;
+    return (end == 0 ? System.nanoTime() : end) - startNanos;
+  }
+}
@@ -0,0 +1,630 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import com.jmstoolkit.Units;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.naming.NamingException;
+import org.springframework.jms.core.MessagePostProcessor;
+import org.springframework.jndi.JndiTemplate;
+
+/**
+ * A mixed workload: several classes of message sent together, each with
+ * its own sizes, rate or share, destination and headers. A scenario is a
+ * properties file:
+ * <pre>
+ * classes=events,documents
+ * threads=8                      producers, default Blaster -t
+ * duration=5m                    default Blaster -d
+ * events.rate=500                messages per second
+ * events.size=64-512             uniform, or 256, normal:1k:200, exp:4k
+ * events.destination=dynamicQueues/events    JNDI name, default -o
+ * events.priority=7
+ * events.ttl=30s
+ * events.delivery=non_persistent
+ * events.property.region=EU      string properties of every message
+ * documents.ratio=1              share of the capacity not paced by rate
+ * documents.size=normal:2m:512k
+ * </pre>
+ * Classes with a rate are paced on a fixed timeline from the start, so a
+ * slow send makes the following ones late instead of silently lowering
+ * the rate, and their latency is measured from the time they were due.
+ * Classes with a ratio fill the time in between, interleaved by smooth
+ * weighted round robin. Every message has the class as its JMSType and
+ * in the jtk_class property, for selectors on the receiving side.
+ *
+ * @author Scott Douglass
+ */
+public class Scenario {
+
+  /** Logger for the class. */
+  private static final Logger LOGGER =
+    Logger.getLogger(Scenario.class.getName());
+  /** Property with the class of a message. */
+  public static final String CLASS_PROPERTY = "jtk_class";
+  /** Type of a class row. */
+  private static final String TYPE_CLASS = "class";
+  /** Prefix of the message properties of a class. */
+  private static final String PROPERTY_PREFIX = "property.";
+  /** Characters of the generated text, one byte each in any encoding. */
+  private static final String TEXT_CHARACTERS =
+    "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+  /** Nanoseconds in a second. */
+  private static final double NANOS_PER_SECOND = 1e9;
+  /** The classes, in the order of the file. */
+  private final List<MessageClass> classes = new ArrayList<>();
+  /** Where to connect. */
+  private final ConnectionFactory connectionFactory;
+  /** Sets the common properties of each message. */
+  private final MessagePostProcessor processor;
+  /** The scenario file. */
+  private final String fileName;
+  /** Producers from the file, 0 to use Blaster's. */
+  private int threads = 0;
+  /** Duration from the file (ns), 0 for none. */
+  private long duration = 0;
+  /** Text the payloads are cut from, as long as the largest one. */
+  private String text = "";
+
+  /**
+   * @param inFileName the scenario file
+   * @param inConnectionFactory where to connect
+   * @param inProcessor sets the common properties of each message
+   */
+  Scenario(final String inFileName,
+    final ConnectionFactory inConnectionFactory,
+    final MessagePostProcessor inProcessor) {
+    this.fileName = inFileName;
+    this.connectionFactory = inConnectionFactory;
+    this.processor = inProcessor;
+  }
+
+  /**
+   * @param inFileName the scenario file
+   * @param inConnectionFactory where to connect
+   * @param inProcessor sets the common properties of each message
+   * @param inJndi looks up the destinations
+   * @param inDefault destination of classes that do not name one
+   * @return the scenario
+   * @throws JTKException if the file can not be read, is not valid or
+   * names a destination that can not be found
+   */
+  public static Scenario load(final String inFileName,
+    final ConnectionFactory inConnectionFactory,
+    final MessagePostProcessor inProcessor, final JndiTemplate inJndi,
+    final Destination inDefault) throws JTKException {
+    final Properties file = new Properties();
+    try (InputStream in = new FileInputStream(inFileName)) {
+      file.load(in);
+    } catch (IOException e) {
+      throw new JTKException("Could not read scenario: " + inFileName, e);
+    }
+    final Scenario scenario =
+      new Scenario(inFileName, inConnectionFactory, inProcessor);
+    final String names = file.getProperty("classes", "").trim();
+    if (names.isEmpty()) {
+      throw new JTKException("No classes in scenario: " + inFileName);
+    }
+    try {
+      scenario.threads =
+        Integer.parseInt(file.getProperty("threads", "0").trim());
+    } catch (NumberFormatException e) {
+      throw new JTKException("Not a valid thread count in scenario: "
+        + inFileName, e);
+    }
+    scenario.duration =
+      Units.parseDuration(file.getProperty("duration", "0"));
+    long largest = 0;
+    for (String name : names.split(",")) {
+      final MessageClass messageClass =
+        MessageClass.parse(name.trim(), file, inJndi, inDefault);
+      scenario.classes.add(messageClass);
+      largest = Math.max(largest, messageClass.sizes.max());
+    }
+    if (largest > Integer.MAX_VALUE) {
+      throw new JTKException("Message size too large: " + largest);
+    }
+    final StringBuilder builder = new StringBuilder((int) largest);
+    final Random random = new Random();
+    for (long i = 0; i < largest; i++) {
+      builder.append(TEXT_CHARACTERS.charAt(
+        random.nextInt(TEXT_CHARACTERS.length())));
+    }
+    scenario.text = builder.toString();
+    return scenario;
+  }
+
+  /**
+   * Send the scenario until the count or the time is reached. Failed sends
+   * are counted as errors and sending continues.
+   *
+   * @param inMessages the number of messages to send, 0 for no limit
+   * @param inDuration how long to send (ns), 0 for no limit
+   * @param inStats where to count all messages
+   * @param inThreads producers, if the scenario does not say
+   * @param inThreadMode platform or virtual producer threads
+   * @param inUsage where each producer adds its CPU and allocation
+   * @throws JMSException if the connection can not be made
+   */
+  public final void send(final long inMessages, final long inDuration,
+    final RunStats inStats, final int inThreads, final String inThreadMode,
+    final ThreadUsage inUsage) throws JMSException {
+    final Schedule schedule = new Schedule(inMessages, inDuration);
+    final int producers = threads > 0 ? threads : Math.max(1, inThreads);
+    final Connection connection = connectionFactory.createConnection();
+    final ExecutorService executor =
+      ThreadMode.newExecutor(inThreadMode, "scenario", producers);
+    try {
+      final List<Future<?>> running = new ArrayList<>(producers);
+      for (int t = 0; t < producers; t++) {
+        running.add(executor.submit(() -> inUsage.call(() -> {
+          produce(connection, schedule, inStats);
+          return null;
+        })));
+      }
+      for (Future<?> work : running) {
+        work.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof JMSException) {
+        throw (JMSException) e.getCause();
+      }
+      inStats.recordError();
+      LOGGER.log(Level.SEVERE, "Producer failed", e.getCause());
+    } finally {
+      executor.shutdownNow();
+      ThreadMode.awaitEnd(executor);
+      connection.close();
+      for (MessageClass messageClass : classes) {
+        messageClass.stats.finish();
+      }
+    }
+  }
+
+  /**
+   * One producer: take the next message from the schedule, wait until it
+   * is due and send it.
+   *
+   * @param inConnection the connection
+   * @param inSchedule what to send when
+   * @param inStats where to count all messages
+   * @throws JMSException if the session can not be created
+   */
+  private void produce(final Connection inConnection,
+    final Schedule inSchedule, final RunStats inStats) throws JMSException {
+    final Session session =
+      inConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    // one producer for all the destinations of the classes
+    final MessageProducer producer = session.createProducer(null);
+    try {
+      Ticket ticket;
+      while ((ticket = inSchedule.next()) != null) {
+        long wait;
+        while ((wait = ticket.due - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(wait);
+        }
+        final MessageClass messageClass = ticket.messageClass;
+        final long sendStart = System.nanoTime();
+        final int size = (int) messageClass.sizes.next();
+        try {
+          final Message message = processor.postProcessMessage(
+            session.createTextMessage(text.substring(0, size)));
+          messageClass.addTo(message);
+          producer.send(messageClass.destination, message,
+            messageClass.deliveryMode, messageClass.priority,
+            messageClass.timeToLive);
+          // paced messages count from when they were due, not sent
+          final long latency = (System.nanoTime()
+            - (messageClass.rate > 0 ? ticket.due : sendStart)) / 1000;
+          inStats.record(size, latency);
+          messageClass.stats.record(size, latency);
+        } catch (JMSException e) {
+          inStats.recordError();
+          messageClass.stats.recordError();
+          LOGGER.log(Level.WARNING, "Send failed", e);
+        }
+      }
+    } finally {
+      session.close();
+    }
+  }
+
+  /**
+   * @return a summary row per class, of the last run
+   */
+  public final List<Map<String, Object>> rows() {
+    final List<Map<String, Object>> rows = new ArrayList<>();
+    for (MessageClass messageClass : classes) {
+      final RunStats stats = messageClass.stats;
+      final Map<String, Object> row = RunStats.summaryRow(TYPE_CLASS,
+        stats.getMessages(), stats.getBytes(), stats.getErrors(),
+        stats.getElapsedNanos(), stats.getLatencies());
+      row.put("class", messageClass.name);
+      if (messageClass.rate > 0) {
+        row.put("target_rate", messageClass.rate);
+      }
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  /**
+   * @return the scenario file
+   */
+  public final String getFileName() {
+    return fileName;
+  }
+
+  /**
+   * @return producers from the file, 0 if it does not say
+   */
+  public final int getThreads() {
+    return threads;
+  }
+
+  /**
+   * @return duration from the file (ns), 0 if it does not say
+   */
+  public final long getDuration() {
+    return duration;
+  }
+
+  /**
+   * @return the number of message classes
+   */
+  public final int getClassCount() {
+    return classes.size();
+  }
+
+  /** A message due to be sent. */
+  private static final class Ticket {
+    /** The class of the message. */
+    private final MessageClass messageClass;
+    /** When to send it (ns). */
+    private final long due;
+
+    /**
+     * @param inMessageClass the class of the message
+     * @param inDue when to send it (ns)
+     */
+    Ticket(final MessageClass inMessageClass, final long inDue) {
+      this.messageClass = inMessageClass;
+      this.due = inDue;
+    }
+  }
+
+  /** Hands out the messages of a run to the producers, in order. */
+  private final class Schedule {
+    /** The number of messages to send, 0 for no limit. */
+    private final long messages;
+    /** End of sending (ns), 0 for no limit. */
+    private final long end;
+    /** Messages handed out. */
+    private long count = 0;
+    /** Sum of the ratios of the unpaced classes. */
+    private final long totalRatio;
+
+    /**
+     * @param inMessages the number of messages to send, 0 for no limit
+     * @param inDuration how long to send (ns), 0 for no limit
+     */
+    Schedule(final long inMessages, final long inDuration) {
+      final long start = System.nanoTime();
+      this.messages = inMessages;
+      this.end = inDuration > 0 ? start + inDuration : 0;
+      long ratios = 0;
+      for (MessageClass messageClass : classes) {
+        messageClass.stats = new RunStats();
+        messageClass.due = start;
+        messageClass.credit = 0;
+        ratios += messageClass.rate > 0 ? 0 : messageClass.ratio;
+      }
+      this.totalRatio = ratios;
+    }
+
+    /**
+     * @return the next message, null when the run is over
+     */
+    synchronized Ticket next() {
+      final long now = System.nanoTime();
+      if (messages > 0 && count >= messages || end > 0 && now >= end) {
+        return null;
+      }
+      MessageClass paced = null;
+      for (MessageClass messageClass : classes) {
+        if (messageClass.rate > 0
+          && (paced == null || messageClass.due < paced.due)) {
+          paced = messageClass;
+        }
+      }
+      if (paced != null && (totalRatio == 0 || paced.due <= now)) {
+        if (end > 0 && paced.due >= end) {
+          return null;
+        }
+        final long due = paced.due;
+        paced.due += paced.interval;
+        count++;
+        return new Ticket(paced, due);
+      }
+      // smooth weighted round robin: the classes take turns in
+      // proportion to their ratios, spread out rather than in runs
+      MessageClass chosen = null;
+      for (MessageClass messageClass : classes) {
+        if (messageClass.rate <= 0) {
+          messageClass.credit += messageClass.ratio;
+          if (chosen == null || messageClass.credit > chosen.credit) {
+            chosen = messageClass;
+          }
+        }
+      }
+      chosen.credit -= totalRatio;
+      count++;
+      return new Ticket(chosen, now);
+    }
+  }
+
+  /** One class of message. */
+  private static final class MessageClass {
+    /** Name, the JMSType of the messages. */
+    private final String name;
+    /** Where the messages go. */
+    private final Destination destination;
+    /** The sizes of the messages. */
+    private final SizeDistribution sizes;
+    /** Messages per second, 0 if sent by ratio. */
+    private final double rate;
+    /** Share of the unpaced messages. */
+    private final long ratio;
+    /** Time between paced messages (ns). */
+    private final long interval;
+    /** JMS priority. */
+    private final int priority;
+    /** Time to live (ms), 0 for ever. */
+    private final long timeToLive;
+    /** Persistent or not. */
+    private final int deliveryMode;
+    /** String properties of every message. */
+    private final Map<String, String> properties = new LinkedHashMap<>();
+    /** Counters of the current run. */
+    private volatile RunStats stats = new RunStats();
+    /** When the next paced message is due (ns). */
+    private long due = 0;
+    /** Round robin credit of an unpaced class. */
+    private long credit = 0;
+
+    /**
+     * @param inName the name
+     * @param inFile the scenario
+     * @param inJndi looks up the destination
+     * @param inDefault the destination if the class does not name one
+     * @throws JTKException if the class is not valid
+     */
+    private MessageClass(final String inName, final Properties inFile,
+      final JndiTemplate inJndi, final Destination inDefault)
+      throws JTKException {
+      this.name = inName;
+      final String prefix = inName + ".";
+      final String destinationName =
+        inFile.getProperty(prefix + "destination", "").trim();
+      try {
+        destination = destinationName.isEmpty() ? inDefault
+          : inJndi.lookup(destinationName, Destination.class);
+      } catch (NamingException e) {
+        throw new JTKException("Destination of " + inName
+          + " not found: " + destinationName, e);
+      }
+      sizes = SizeDistribution.parse(
+        inFile.getProperty(prefix + "size", "32").trim());
+      final String rateText = inFile.getProperty(prefix + "rate");
+      rate = rateText == null ? 0 : Double.parseDouble(rateText.trim());
+      ratio = Long.parseLong(
+        inFile.getProperty(prefix + "ratio", "1").trim());
+      if (rateText != null && rate <= 0 || rate <= 0 && ratio <= 0) {
+        throw new JTKException("Rate and ratio of " + inName
+          + " must be positive");
+      }
+      interval = rate > 0 ? Math.max(1, (long) (NANOS_PER_SECOND / rate))
+        : 0;
+      priority = Integer.parseInt(inFile.getProperty(prefix + "priority",
+        String.valueOf(Message.DEFAULT_PRIORITY)).trim());
+      if (priority < 0 || priority > 9) {
+        throw new JTKException("Priority of " + inName
+          + " must be 0 to 9: " + priority);
+      }
+      timeToLive = TimeUnit.NANOSECONDS.toMillis(Units.parseDuration(
+        inFile.getProperty(prefix + "ttl", "0")));
+      final String delivery = inFile.getProperty(prefix + "delivery",
+        "persistent").trim().toLowerCase(Locale.US);
+      switch (delivery) {
+        case "persistent":
+          deliveryMode = DeliveryMode.PERSISTENT;
+          break;
+        case "non_persistent":
+          deliveryMode = DeliveryMode.NON_PERSISTENT;
+          break;
+        default:
+          throw new JTKException("Delivery of " + inName
+            + " must be persistent or non_persistent: " + delivery);
+      }
+      for (String key : inFile.stringPropertyNames()) {
+        if (key.startsWith(prefix + PROPERTY_PREFIX)) {
+          properties.put(
+            key.substring(prefix.length() + PROPERTY_PREFIX.length()),
+            inFile.getProperty(key));
+        }
+      }
+    }
+
+    /**
+     * @param inName the name
+     * @param inFile the scenario
+     * @param inJndi looks up the destination
+     * @param inDefault the destination if the class does not name one
+     * @return the class
+     * @throws JTKException if the class is not valid
+     */
+    static MessageClass parse(final String inName, final Properties inFile,
+      final JndiTemplate inJndi, final Destination inDefault)
+      throws JTKException {
+      try {
+        return new MessageClass(inName, inFile, inJndi, inDefault);
+      } catch (NumberFormatException e) {
+        throw new JTKException("Not a valid number in class " + inName, e);
+      }
+    }
+
+    /**
+     * @param inMessage a message of the class
+     * @throws JMSException if the headers can not be set
+     */
+    void addTo(final Message inMessage) throws JMSException {
+      inMessage.setJMSType(name);
+      inMessage.setStringProperty(CLASS_PROPERTY, name);
+      for (Map.Entry<String, String> property : properties.entrySet()) {
+        inMessage.setStringProperty(property.getKey(), property.getValue());
+      }
+    }
+  }
+
+  /** Message sizes: fixed, uniform, normal or exponential. */
+  private static final class SizeDistribution {
+    /** Fixed size. */
+    private static final int FIXED = 0;
+    /** Uniform between low and high. */
+    private static final int UNIFORM = 1;
+    /** Normal with a mean and a standard deviation. */
+    private static final int NORMAL = 2;
+    /** Exponential with a mean. */
+    private static final int EXPONENTIAL = 3;
+    /** Standard deviations above the mean a normal size is cut off at. */
+    private static final int NORMAL_LIMIT = 4;
+    /** Means an exponential size is cut off at. */
+    private static final int EXPONENTIAL_LIMIT = 10;
+    /** One of the kinds. */
+    private final int kind;
+    /** Fixed size, low end or mean. */
+    private final long first;
+    /** High end or standard deviation. */
+    private final long second;
+
+    /**
+     * @param inKind the kind
+     * @param inFirst fixed size, low end or mean
+     * @param inSecond high end or standard deviation
+     */
+    private SizeDistribution(final int inKind, final long inFirst,
+      final long inSecond) {
+      this.kind = inKind;
+      this.first = inFirst;
+      this.second = inSecond;
+    }
+
+    /**
+     * @param inSpec 256, 64-512, normal:1k:200 or exp:4k
+     * @return the distribution
+     * @throws JTKException if the sizes can not be parsed
+     */
+    static SizeDistribution parse(final String inSpec) throws JTKException {
+      final String[] parts = inSpec.split(":");
+      if (parts.length == 3 && "normal".equals(parts[0])) {
+        return new SizeDistribution(NORMAL, Units.parseBytes(parts[1]),
+          Units.parseBytes(parts[2]));
+      }
+      if (parts.length == 2 && "exp".equals(parts[0])) {
+        return new SizeDistribution(EXPONENTIAL,
+          Units.parseBytes(parts[1]), 0);
+      }
+      if (parts.length == 1 && inSpec.contains("-")) {
+        final String[] range = inSpec.split("-");
+        final long low = Units.parseBytes(range[0]);
+        final long high = Units.parseBytes(range[1]);
+        if (high < low) {
+          throw new JTKException("Size range is backwards: " + inSpec);
+        }
+        return new SizeDistribution(UNIFORM, low, high);
+      }
+      if (parts.length == 1) {
+        return new SizeDistribution(FIXED, Units.parseBytes(inSpec), 0);
+      }
+      throw new JTKException("Not a valid size distribution: " + inSpec);
+    }
+
+    /**
+     * @return the largest size
+     */
+    long max() {
+      switch (kind) {
+        case UNIFORM:
+          return second;
+        case NORMAL:
+          return first + NORMAL_LIMIT * second;
+        case EXPONENTIAL:
+          return first * EXPONENTIAL_LIMIT;
+        default:
+          return first;
+      }
+    }
+
+    /**
+     * @return a size, between 0 and max
+     */
+    long next() {
+      final ThreadLocalRandom random = ThreadLocalRandom.current();
+      final double size;
+      switch (kind) {
+        case UNIFORM:
+          size = first + random.nextDouble() * (second - first + 1);
+          break;
+        case NORMAL:
+          size = first + random.nextGaussian() * second;
+          break;
+        case EXPONENTIAL:
+          size = -first * Math.log(1 - random.nextDouble());
+          break;
+        default:
+          size = first;
+      }
+      return Math.max(0, Math.min(max(), (long) size));
+    }
+  }
+}
@@ -16,6 +16,8 @@ package com.jmstoolkit.cli;
 
 import com.jmstoolkit.Settings;
 import com.jmstoolkit.JTKException;
+import com.jmstoolkit.TextCodec;
+import com.jmstoolkit.Units;
 import gnu.getopt.Getopt;
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
@@ -23,21 +25,25 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.jms.BytesMessage;
+import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.TextMessage;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.core.MessageCreator;
 import org.springframework.jms.core.MessagePostProcessor;
+import org.springframework.jms.support.converter.MessageConverter;
 
 /**
  *
@@ -98,6 +104,11 @@ public class Sender {
    * Property name for the JMS destination.
    */
   private static final String P_DESTINATION_NAME = "jmstoolkit.destination";
+  /**
+   * Property name for the number of sessions each caching connection
+   * factory keeps, one per concurrent producer.
+   */
+  public static final String P_SESSION_CACHE = "jmstoolkit.sessionCache";
   /**
    * Message source/type "file".
    */
@@ -126,6 +137,10 @@ public class Sender {
    * Message text encoding.
    */
   private String encoding = D_ENCODING;
+  /**
+   * Character set of the encoding.
+   */
+  private Charset charset = StandardCharsets.UTF_8;
   /**
    * Message source/type.
    */
@@ -138,6 +153,18 @@ public class Sender {
    * Spring JmsTemplate.
    */
   private JmsTemplate jmsTemplate;
+  /**
+   * Brokers to spread the sends over, null to use the JmsTemplate.
+   */
+  private BrokerPool brokerPool = null;
+  /**
+   * Where large files are stored instead of sent, null to send them.
+   */
+  private ClaimStore claimStore = null;
+  /**
+   * Files larger than this are sent by claim check, when there is a store.
+   */
+  private long claimThreshold = Long.MAX_VALUE;
 
   /**
    * Constructor.
@@ -165,10 +192,11 @@ public class Sender {
     }
     String jndiPropertiesFileName = D_JNDI_PROPERTIES;
     String inputFileName = "";
-    final String textEncoding = System.getProperty(P_ENCODING, D_ENCODING);
+    String textEncoding = System.getProperty(P_ENCODING, D_ENCODING);
     String inputPipeName = "";
 
-    final Getopt getopt = new Getopt(APP_NAME, args, "c:o:j:f:i:hp:");
+    final Getopt getopt =
+      new Getopt(APP_NAME, args, "c:o:j:e:f:i:hp:J:B:L:K:k:");
     int optionLetter;
     while ((optionLetter = getopt.getopt()) != -1) {
       switch (optionLetter) {
@@ -181,6 +209,9 @@ public class Sender {
         case 'f':
           inputFileName = getopt.getOptarg();
           break;
+        case 'e':
+          textEncoding = getopt.getOptarg();
+          break;
         case 'j':
           jndiPropertiesFileName = getopt.getOptarg();
           break;
@@ -190,6 +221,27 @@ public class Sender {
         case 'p': // Persistent sender
           inputPipeName = getopt.getOptarg();
           break;
+        case 'J':
+          try {
+            Flight.startRecording(getopt.getOptarg());
+          } catch (JTKException e) {
+            System.out.println(e.toStringWithStackTrace());
+            System.exit(X_ERROR);
+          }
+          break;
+        case 'B':
+          System.setProperty(BrokerPool.P_CONNECTION_FACTORIES,
+            getopt.getOptarg());
+          break;
+        case 'L':
+          System.setProperty(BrokerPool.P_BALANCE, getopt.getOptarg());
+          break;
+        case 'K':
+          System.setProperty(ClaimStore.P_DIRECTORY, getopt.getOptarg());
+          break;
+        case 'k':
+          System.setProperty(ClaimStore.P_THRESHOLD, getopt.getOptarg());
+          break;
         case 'h':
           System.out.println("Arguments:\n"
             + "  [ -o destination ] JMS Destination JNDI name\n"
@@ -201,12 +253,22 @@ public class Sender {
             + "  [ -f file ] file to send\n"
             + "  [ -p fifo ] read from named pipe/fifo\n"
             + "  # If neither -p nor -f, read from stdin\n"
-            + "  [ -i id ] JMS Correlation ID");
+            + "  [ -i id ] JMS Correlation ID\n"
+            + "  [ -J file ] write a Flight Recorder recording on exit\n"
+            + "  [ -B cf,cf,... ] spread sends over these connection"
+            + " factories\n"
+            + "  [ -L round-robin | least-outstanding ] how to pick one"
+            + " (default: round-robin)\n"
+            + "  [ -K directory ] claim check store: files over the"
+            + " threshold are\n"
+            + "     stored there and only a reference is sent\n"
+            + "  [ -k size ] claim check threshold (default: 1m)");
           System.exit(X_ERROR);
       }
     }
     // load the jndi.properties, if we fail exit
     try {
+      TextCodec.charset(textEncoding);
       Settings.loadSystemSettings(
         System.getProperty(D_JNDI_PROPERTIES, jndiPropertiesFileName));
     } catch (JTKException e) {
@@ -219,6 +281,20 @@ public class Sender {
       = new ClassPathXmlApplicationContext(new String[]{"/app-context.xml"});
     applicationContext.start();
     final Sender sender = (Sender) applicationContext.getBean(APP_NAME);
+    try {
+      sender.setBrokerPool(
+        BrokerPool.create(applicationContext, sender.getJmsTemplate()));
+      final String claimDirectory =
+        System.getProperty(ClaimStore.P_DIRECTORY, "");
+      if (!claimDirectory.isEmpty()) {
+        sender.setClaimStore(new ClaimStore(claimDirectory));
+        sender.setClaimThreshold(Units.parseBytes(System.getProperty(
+          ClaimStore.P_THRESHOLD, ClaimStore.D_THRESHOLD)));
+      }
+    } catch (JTKException e) {
+      System.out.println(e.toStringWithStackTrace());
+      System.exit(X_ERROR);
+    }
 
     sender.setEncoding(textEncoding);
     if (!inputPipeName.isEmpty()) {
@@ -242,17 +318,58 @@ public class Sender {
    * @param inMessage The text message to send.
    */
   public final void sendMessage(final Object inMessage) {
-    this.getJmsTemplate().convertAndSend(inMessage);
+    sendMessage(inMessage, message -> message);
   }
 
   /**
+   * Convert and send like JmsTemplate.convertAndSend, with Flight Recorder
+   * events around the whole send and around creating the message.
    *
    * @param inMessage the messaage to send
    * @param inProcessor the preprocessor for the message
    */
   public final void sendMessage(final Object inMessage,
     final MessagePostProcessor inProcessor) {
-    this.getJmsTemplate().convertAndSend(inMessage, inProcessor);
+    final Object sendEvent = Flight.beginSend();
+    final Destination destination = getJmsTemplate().getDefaultDestination();
+    try {
+      final MessageCreator creator = session -> {
+        final Object createEvent = Flight.beginCreate();
+        final MessageConverter converter =
+          getJmsTemplate().getMessageConverter();
+        if (converter == null) {
+          throw new IllegalStateException("No message converter");
+        }
+        final Message message = inProcessor.postProcessMessage(
+          converter.toMessage(inMessage, session));
+        Flight.end(createEvent, destination,
+          payloadBytes(createEvent, inMessage));
+        return message;
+      };
+      if (brokerPool == null) {
+        this.getJmsTemplate().send(creator);
+      } else {
+        brokerPool.send(creator);
+      }
+    } finally {
+      Flight.end(sendEvent, destination, payloadBytes(sendEvent, inMessage));
+    }
+  }
+
+  /**
+   * @param inEvent a Flight Recorder event, null when not recording
+   * @param inMessage the payload
+   * @return the payload size in bytes, 0 without an event
+   */
+  private long payloadBytes(final Object inEvent, final Object inMessage) {
+    if (inEvent == null) {
+      return 0;
+    } else if (inMessage instanceof String) {
+      return TextCodec.get(charset).length((String) inMessage);
+    } else if (inMessage instanceof byte[]) {
+      return ((byte[]) inMessage).length;
+    }
+    return 0;
   }
 
   /**
@@ -260,10 +377,33 @@ public class Sender {
    * @param inFileName name of file to send
    */
   public final void sendTextFile(final String inFileName) {
+    final File file = new File(inFileName);
+    if (claimStore != null && file.length() > claimThreshold) {
+      sendClaim(file);
+      return;
+    }
     message = loadTextFile(inFileName);
     sendMessage(message, new BasicMessageProcessor());
   }
 
+  /**
+   * Store a file in the claim check store and send only its reference.
+   *
+   * @param inFile the file
+   */
+  private void sendClaim(final File inFile) {
+    final ClaimStore.Claim claim;
+    try {
+      claim = claimStore.put(inFile);
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Could not store the claim check", e);
+      return;
+    }
+    final BasicMessageProcessor basic = new BasicMessageProcessor();
+    sendMessage(claim.getReference(),
+      msg -> claim.addTo(basic.postProcessMessage(msg), charset));
+  }
+
   /**
    * Sends text from standard input.
    */
@@ -297,21 +437,15 @@ public class Sender {
    * @return the text of the file
    */
   public final String loadTextFile(final String inFileName) {
-    final File messageFile = new File(inFileName);
-    final StringBuilder messageString = new StringBuilder("");
-    final byte[] buffer = new byte[4096];
-    try (BufferedInputStream messageFileStream
-        = new BufferedInputStream(new FileInputStream(messageFile))) {
-      
-      while (messageFileStream.read(buffer) != -1) {
-        messageString.append(new String(buffer));
-      }
+    String messageString = "";
+    try {
+      messageString = TextCodec.get(charset).readFile(new File(inFileName));
     } catch (FileNotFoundException e) {
       LOGGER.log(Level.SEVERE, "You want a what?", e);
     } catch (IOException e) {
       LOGGER.log(Level.SEVERE, "Sorry, I don't do that.", e);
-    } 
-    return messageString.toString().trim();
+    }
+    return messageString.trim();
   }
 
   /**
@@ -322,7 +456,7 @@ public class Sender {
   public final String readLinesFromStdin() {
     final StringBuilder input = new StringBuilder();
     try (BufferedReader inputBuffer
-        = new BufferedReader(new InputStreamReader(System.in))) {
+        = new BufferedReader(new InputStreamReader(System.in, charset))) {
       String line = "";
       while ((line = inputBuffer.readLine()) != null) {
         input.append(line);
@@ -340,7 +474,8 @@ public class Sender {
   public final void readAndSend(final String inputPipeName) {
     final StringBuilder input = new StringBuilder();
     try (BufferedReader inputBuffer
-        = new BufferedReader(new FileReader(new File(inputPipeName)))) {
+        = new BufferedReader(new InputStreamReader(
+          new FileInputStream(new File(inputPipeName)), charset))) {
       String line = "";
       while (true) {
         line = inputBuffer.readLine();
@@ -391,7 +526,8 @@ public class Sender {
       String length = "unknown";
       try {
         if (msg instanceof TextMessage) {
-          length = ((TextMessage) msg).getText().getBytes().length + "B";
+          length = TextCodec.get(charset).length(
+            ((TextMessage) msg).getText()) + "B";
         } else if (msg instanceof BytesMessage) {
           length = ((BytesMessage) msg).getBodyLength() + "B";
         }
@@ -405,7 +541,7 @@ public class Sender {
    * @return the messageLength
    */
   public final String getMessageLength() {
-    return message.getBytes().length + "B";
+    return TextCodec.get(charset).length(message) + "B";
   }
 
   /**
@@ -450,6 +586,50 @@ public class Sender {
     this.jmsTemplate = inJmsTemplate;
   }
 
+  /**
+   * @return the claimStore
+   */
+  public final ClaimStore getClaimStore() {
+    return claimStore;
+  }
+
+  /**
+   * @param inClaimStore where large files are stored, null to send them
+   */
+  public final void setClaimStore(final ClaimStore inClaimStore) {
+    this.claimStore = inClaimStore;
+  }
+
+  /**
+   * @return the claimThreshold
+   */
+  public final long getClaimThreshold() {
+    return claimThreshold;
+  }
+
+  /**
+   * @param inClaimThreshold files larger than this many bytes are sent by
+   * claim check
+   */
+  public final void setClaimThreshold(final long inClaimThreshold) {
+    this.claimThreshold = inClaimThreshold;
+  }
+
+  /**
+   * @return the brokers the sends are spread over, null for none
+   */
+  public final BrokerPool getBrokerPool() {
+    return brokerPool;
+  }
+
+  /**
+   * @param inBrokerPool brokers to spread the sends over, null to use the
+   * JmsTemplate
+   */
+  public final void setBrokerPool(final BrokerPool inBrokerPool) {
+    this.brokerPool = inBrokerPool;
+  }
+
   /**
    * @return the encoding
    */
@@ -461,6 +641,14 @@ public class Sender {
    * @param encoding the encoding to set
    */
   public final void setEncoding(String encoding) {
+    this.charset = Charset.forName(encoding);
     this.encoding = encoding;
   }
+
+  /**
+   * @return the character set of the encoding
+   */
+  public final Charset getCharset() {
+    return charset;
+  }
 }
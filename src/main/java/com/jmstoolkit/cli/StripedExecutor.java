@@ -0,0 +1,88 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Worker threads that run the tasks of one key in the order they were
+ * submitted, and the tasks of different keys in parallel. Each stripe is a
+ * single thread and a key always hashes to the same stripe, so two keys
+ * sharing a stripe wait for each other but a key never overtakes itself.
+ * More stripes than busy keys gives the most parallelism.
+ * <p>
+ * The stripes are platform threads even in the virtual thread mode, which
+ * starts a thread per task and so would lose the order.
+ *
+ * @author Scott Douglass
+ */
+public class StripedExecutor {
+
+  /** One single threaded executor per stripe. */
+  private final ExecutorService[] stripes;
+
+  /**
+   * @param inName prefix of the thread names
+   * @param inStripes the number of stripes, a thread each
+   */
+  public StripedExecutor(final String inName, final int inStripes) {
+    stripes = new ExecutorService[Math.max(1, inStripes)];
+    for (int s = 0; s < stripes.length; s++) {
+      stripes[s] = ThreadMode.newExecutor(ThreadMode.PLATFORM,
+        inName + "-" + s, 1);
+    }
+  }
+
+  /**
+   * @param inKey the key of the task, null for none
+   * @param inTask the task
+   * @return the result of the task, once it has run
+   */
+  public final <T> Future<T> submit(final Object inKey,
+    final Callable<T> inTask) {
+    return stripes[stripe(inKey)].submit(inTask);
+  }
+
+  /**
+   * @param inKey a key, null for none
+   * @return the stripe its tasks run on
+   */
+  final int stripe(final Object inKey) {
+    if (inKey == null) {
+      return 0;
+    }
+    // spread the hash so keys that differ in the high bits are spread too
+    final int hash = inKey.hashCode();
+    return Math.floorMod(hash ^ (hash >>> 16), stripes.length);
+  }
+
+  /**
+   * @return the number of stripes
+   */
+  public final int getStripes() {
+    return stripes.length;
+  }
+
+  /**
+   * Run the tasks already submitted and then end the threads.
+   */
+  public final void shutdown() {
+    for (ExecutorService stripe : stripes) {
+      stripe.shutdown();
+    }
+  }
+}
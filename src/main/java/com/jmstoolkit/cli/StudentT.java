@@ -0,0 +1,165 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+/**
+ * Student's t distribution, for confidence intervals and Welch's t-test
+ * on the few repetitions a benchmark usually has. The distribution
+ * function comes from the regularized incomplete beta function, evaluated
+ * as a continued fraction.
+ *
+ * @author Scott Douglass
+ */
+final class StudentT {
+
+  /** Largest number of continued fraction terms. */
+  private static final int MAX_TERMS = 300;
+  /** Relative accuracy of the continued fraction. */
+  private static final double EPSILON = 1e-12;
+  /** Smallest number the continued fraction divides by. */
+  private static final double TINY = 1e-300;
+  /** Lanczos coefficients for the log gamma function. */
+  private static final double[] LANCZOS = {
+    76.18009172947146, -86.50532032941677, 24.01409824083091,
+    -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5
+  };
+
+  /** Not created. */
+  private StudentT() {
+  }
+
+  /**
+   * @param inT a t value
+   * @param inDf degrees of freedom
+   * @return the probability of a t at least this far from 0, either way
+   */
+  static double twoSidedP(final double inT, final double inDf) {
+    if (Double.isNaN(inT) || inDf <= 0) {
+      return Double.NaN;
+    }
+    if (Double.isInfinite(inT)) {
+      return 0;
+    }
+    return incompleteBeta(inDf / (inDf + inT * inT), inDf / 2, 0.5);
+  }
+
+  /**
+   * @param inP a probability, such as 0.975 for a 95% interval
+   * @param inDf degrees of freedom
+   * @return the t value with that probability below it
+   */
+  static double quantile(final double inP, final double inDf) {
+    if (inP == 0.5) {
+      return 0;
+    }
+    if (inP < 0.5) {
+      return -quantile(1 - inP, inDf);
+    }
+    // the two sided p falls as t grows, so bisect on it
+    final double target = 2 * (1 - inP);
+    double low = 0;
+    double high = 1;
+    while (twoSidedP(high, inDf) > target) {
+      high *= 2;
+    }
+    for (int i = 0; i < 200 && high - low > EPSILON * high; i++) {
+      final double middle = (low + high) / 2;
+      if (twoSidedP(middle, inDf) > target) {
+        low = middle;
+      } else {
+        high = middle;
+      }
+    }
+    return (low + high) / 2;
+  }
+
+  /**
+   * @param inX where to evaluate, 0 to 1
+   * @param inA first shape parameter
+   * @param inB second shape parameter
+   * @return the regularized incomplete beta function I_x(a, b)
+   */
+  static double incompleteBeta(final double inX, final double inA,
+    final double inB) {
+    if (inX <= 0) {
+      return 0;
+    }
+    if (inX >= 1) {
+      return 1;
+    }
+    final double front = Math.exp(logGamma(inA + inB) - logGamma(inA)
+      - logGamma(inB) + inA * Math.log(inX) + inB * Math.log(1 - inX));
+    // the continued fraction converges quickly on this side only
+    if (inX < (inA + 1) / (inA + inB + 2)) {
+      return front * betaFraction(inX, inA, inB) / inA;
+    }
+    return 1 - front * betaFraction(1 - inX, inB, inA) / inB;
+  }
+
+  /**
+   * @param inX where to evaluate
+   * @param inA first shape parameter
+   * @param inB second shape parameter
+   * @return the continued fraction of the incomplete beta function, by
+   * the modified Lentz method
+   */
+  private static double betaFraction(final double inX, final double inA,
+    final double inB) {
+    double c = 1;
+    double d = nonZero(1 - (inA + inB) * inX / (inA + 1));
+    d = 1 / d;
+    double fraction = d;
+    for (int m = 1; m <= MAX_TERMS; m++) {
+      final int m2 = 2 * m;
+      double term = m * (inB - m) * inX / ((inA + m2 - 1) * (inA + m2));
+      d = 1 / nonZero(1 + term * d);
+      c = nonZero(1 + term / c);
+      fraction *= d * c;
+      term = -(inA + m) * (inA + inB + m) * inX
+        / ((inA + m2) * (inA + m2 + 1));
+      d = 1 / nonZero(1 + term * d);
+      c = nonZero(1 + term / c);
+      final double delta = d * c;
+      fraction *= delta;
+      if (Math.abs(delta - 1) < EPSILON) {
+        break;
+      }
+    }
+    return fraction;
+  }
+
+  /**
+   * @param inValue a divisor
+   * @return the divisor, or a tiny number instead of 0
+   */
+  private static double nonZero(final double inValue) {
+    return Math.abs(inValue) < TINY ? TINY : inValue;
+  }
+
+  /**
+   * @param inX a positive number
+   * @return the natural log of the gamma function, by Lanczos
+   */
+  static double logGamma(final double inX) {
+    double y = inX;
+    double tmp = inX + 5.5;
+    tmp -= (inX + 0.5) * Math.log(tmp);
+    double series = 1.000000000190015;
+    for (double coefficient : LANCZOS) {
+      series += coefficient / ++y;
+    }
+    return -tmp + Math.log(2.5066282746310005 * series / inX);
+  }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import com.jmstoolkit.Units;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A parameter sweep: Blaster runs once for every combination of message
+ * size, thread count, batch size and target rate, each point for a fixed
+ * time after a warm-up, and writes a row per point with its throughput,
+ * bandwidth and latency percentiles, ready to plot. A sweep is a
+ * properties file:
+ * <pre>
+ * size=64,256,1k-64k*4         bytes, 1k-64k*4 is 1k 4k 16k 64k
+ * threads=1-16*2               producers
+ * batch=1,10,100               sends per transaction, over 1 needs -P
+ * rate=0,1000-10000+3000       messages per second, 0 for no pacing
+ * duration=30s                 of each point, default Blaster -d or 10s
+ * warmup=5s                    before each point, default Blaster -w or 2s
+ * </pre>
+ * A list may mix values and ranges, from-to*factor for a geometric range
+ * and from-to+step for a linear one. A parameter that is left out keeps
+ * its Blaster setting. The rate varies fastest, so each size, thread and
+ * batch setting gives a latency curve over the rates, where the knee
+ * shows; the size varies slowest, for where the bandwidth saturates.
+ *
+ * @author Scott Douglass
+ */
+public class Sweep {
+
+  /** Default time each point runs. */
+  public static final String D_DURATION = "10s";
+  /** Default warm-up before each point. */
+  public static final String D_WARMUP = "2s";
+  /** Type of the report rows. */
+  private static final String TYPE_SWEEP = "sweep";
+  /** The sweep file. */
+  private final String fileName;
+  /** Message sizes (bytes), empty to keep the message. */
+  private List<Long> sizes = Collections.emptyList();
+  /** Thread counts, empty to keep Blaster's. */
+  private List<Long> threads = Collections.emptyList();
+  /** Batch sizes, empty to keep Blaster's. */
+  private List<Long> batches = Collections.emptyList();
+  /** Target rates (messages per second), empty to keep Blaster's. */
+  private List<Long> rates = Collections.emptyList();
+  /** Time each point runs (ns). */
+  private long duration;
+  /** Warm-up before each point, a count or a time. */
+  private String warmup = D_WARMUP;
+
+  /**
+   * @param inFileName the sweep file
+   */
+  Sweep(final String inFileName) {
+    this.fileName = inFileName;
+  }
+
+  /**
+   * @param inFileName the sweep file
+   * @return the sweep
+   * @throws JTKException if the file can not be read or is not valid
+   */
+  public static Sweep load(final String inFileName) throws JTKException {
+    final Properties file = new Properties();
+    try (InputStream in = new FileInputStream(inFileName)) {
+      file.load(in);
+    } catch (IOException e) {
+      throw new JTKException("Could not read sweep: " + inFileName, e);
+    }
+    final Sweep sweep = new Sweep(inFileName);
+    sweep.sizes = values(file, "size", true);
+    sweep.threads = values(file, "threads", false);
+    sweep.batches = values(file, "batch", false);
+    sweep.rates = values(file, "rate", false);
+    sweep.duration =
+      Units.parseDuration(file.getProperty("duration", D_DURATION));
+    sweep.setWarmup(file.getProperty("warmup", D_WARMUP));
+    for (long count : sweep.threads) {
+      if (count < 1) {
+        throw new JTKException("Not a valid thread count in sweep: "
+          + count);
+      }
+    }
+    if (sweep.sizes.isEmpty() && sweep.threads.isEmpty()
+      && sweep.batches.isEmpty() && sweep.rates.isEmpty()) {
+      throw new JTKException("Nothing to sweep in: " + inFileName);
+    }
+    return sweep;
+  }
+
+  /**
+   * @param inFile the sweep file
+   * @param inName a parameter
+   * @param inBytes true if the values are sizes, with k, m or g
+   * @return its values in order, empty if it is not in the file
+   * @throws JTKException if a value or range is not valid
+   */
+  static List<Long> values(final Properties inFile, final String inName,
+    final boolean inBytes) throws JTKException {
+    final String text = inFile.getProperty(inName, "").trim();
+    final List<Long> values = new ArrayList<>();
+    if (text.isEmpty()) {
+      return values;
+    }
+    for (String item : text.split(",")) {
+      final String range = item.trim();
+      final int geometric = range.indexOf('*');
+      final int linear = range.indexOf('+');
+      final int step = Math.max(geometric, linear);
+      final int dash = range.indexOf('-', 1);
+      if (step < 0 && dash < 0) {
+        values.add(value(range, inBytes));
+        continue;
+      }
+      if (step < 0 || dash < 0 || dash > step) {
+        throw new JTKException("Not a valid " + inName + " range: " + range
+          + ", use from-to*factor or from-to+step");
+      }
+      final long from = value(range.substring(0, dash), inBytes);
+      final long to = value(range.substring(dash + 1, step), inBytes);
+      final long by = value(range.substring(step + 1), false);
+      if (from < 0 || to < from || by < (geometric >= 0 ? 2 : 1)
+        || geometric >= 0 && from == 0) {
+        throw new JTKException("Not a valid " + inName + " range: "
+          + range);
+      }
+      for (long v = from; v <= to; v = geometric >= 0 ? v * by : v + by) {
+        values.add(v);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * @param inText a number, or a size with a unit
+   * @param inBytes true if it is a size
+   * @return the value
+   * @throws JTKException if it is not a number
+   */
+  private static long value(final String inText, final boolean inBytes)
+    throws JTKException {
+    if (inBytes) {
+      return Units.parseBytes(inText);
+    }
+    try {
+      return Long.parseLong(inText.trim());
+    } catch (NumberFormatException e) {
+      throw new JTKException("Not a valid number in sweep: " + inText, e);
+    }
+  }
+
+  /**
+   * Run every point, and write a row for each as soon as it is done.
+   *
+   * @param inBlaster sends the messages
+   * @param inWriter where the rows go
+   * @param inMessages limit of messages per point, 0 for none
+   * @throws JTKException if a point needs batches without a raw producer
+   */
+  public final void run(final Blaster inBlaster, final ReportWriter inWriter,
+    final long inMessages) throws JTKException {
+    final RawProducer raw = inBlaster.getRawProducer();
+    if (raw == null && getMaxBatch() > 1) {
+      throw new JTKException("Batches need the raw producer, -P");
+    }
+    if (inBlaster.getMessageGroups() != null && getMaxBatch() > 1
+      && getMaxThreads() > 1) {
+      throw new JTKException("Keyed sends from several threads can not be"
+        + " batched, they would be committed out of order");
+    }
+    final String label = inBlaster.getResultLabel();
+    final int points = getPoints();
+    int point = 0;
+    for (Long size : orKeep(sizes)) {
+      if (size != null) {
+        inBlaster.setMessage(inBlaster.createMessage(size.intValue()));
+      }
+      for (Long count : orKeep(threads)) {
+        if (count != null) {
+          inBlaster.setThreads(count.intValue());
+        }
+        for (Long batch : orKeep(batches)) {
+          if (batch != null && raw != null) {
+            raw.setBatchSize(batch.intValue());
+          }
+          for (Long rate : orKeep(rates)) {
+            if (rate != null) {
+              inBlaster.setTargetRate(rate);
+            }
+            final Map<String, Object> row = new LinkedHashMap<>();
+            row.put(ReportWriter.TYPE, TYPE_SWEEP);
+            row.put("point", ++point);
+            row.put("size",
+              size == null ? inBlaster.getMessageBytes() : size);
+            row.put("threads", inBlaster.getThreads());
+            row.put("batch", raw == null ? 1 : raw.getBatchSize());
+            row.put("target_rate", (long) inBlaster.getTargetRate());
+            System.out.println("Sweep point " + point + " of " + points
+              + ": size=" + row.get("size") + " threads="
+              + row.get("threads") + " batch=" + row.get("batch")
+              + " rate=" + row.get("target_rate"));
+            inBlaster.setWarmup(warmup);
+            if (inBlaster.getResultStore() != null) {
+              // a label per point, or Compare takes them for repeats
+              inBlaster.setResultLabel(label + " s" + row.get("size") + " t"
+                + row.get("threads") + " b" + row.get("batch") + " r"
+                + row.get("target_rate"));
+            }
+            inBlaster.sendMessages(inMessages, duration);
+            final Map<String, Object> summary =
+              inBlaster.getStats().summaryRow();
+            summary.remove(ReportWriter.TYPE);
+            row.putAll(summary);
+            inWriter.write(row);
+          }
+        }
+      }
+    }
+    inBlaster.setResultLabel(label);
+  }
+
+  /**
+   * @param inValues the values of a parameter
+   * @return the values, or a single null to keep the setting
+   */
+  private static List<Long> orKeep(final List<Long> inValues) {
+    return inValues.isEmpty() ? Collections.singletonList(null) : inValues;
+  }
+
+  /**
+   * @return the number of points
+   */
+  public final int getPoints() {
+    return orKeep(sizes).size() * orKeep(threads).size()
+      * orKeep(batches).size() * orKeep(rates).size();
+  }
+
+  /**
+   * @return the largest thread count of the sweep, 0 if it keeps Blaster's
+   */
+  public final int getMaxThreads() {
+    return threads.isEmpty() ? 0 : Collections.max(threads).intValue();
+  }
+
+  /**
+   * @return the largest batch size of the sweep, 0 if it keeps Blaster's
+   */
+  public final int getMaxBatch() {
+    return batches.isEmpty() ? 0 : Collections.max(batches).intValue();
+  }
+
+  /**
+   * @return the sweep file
+   */
+  public final String getFileName() {
+    return fileName;
+  }
+
+  /**
+   * @return the time each point runs (ns)
+   */
+  public final long getDuration() {
+    return duration;
+  }
+
+  /**
+   * @param inDuration the time each point runs (ns)
+   */
+  public final void setDuration(final long inDuration) {
+    this.duration = inDuration;
+  }
+
+  /**
+   * @return the warm-up before each point, a count or a time
+   */
+  public final String getWarmup() {
+    return warmup;
+  }
+
+  /**
+   * @param inWarmup the warm-up before each point, a message count or a
+   * time such as 5s
+   * @throws JTKException if it is neither
+   */
+  public final void setWarmup(final String inWarmup) throws JTKException {
+    if (!inWarmup.trim().matches("\\d+")) {
+      Units.parseDuration(inWarmup);
+    }
+    this.warmup = inWarmup.trim();
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import com.jmstoolkit.JTKException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+
+/**
+ * The threads the consumers, workers and producers run on: platform
+ * threads, one OS thread each, or virtual threads, which lets one process
+ * keep thousands of sessions busy. Virtual threads need Java 21 and a jar
+ * built with the java21 profile. Without them the virtual mode falls back
+ * to platform threads, with a warning.
+ *
+ * @author Scott Douglass
+ */
+public final class ThreadMode {
+
+  /** Property name of the thread mode. */
+  public static final String P_THREAD_MODE = "jmstoolkit.threads";
+  /** One OS thread per consumer, worker or producer. */
+  public static final String PLATFORM = "platform";
+  /** A virtual thread per consumer, worker or producer task. */
+  public static final String VIRTUAL = "virtual";
+  /** Logger for this class. */
+  private static final Logger LOGGER =
+    Logger.getLogger(ThreadMode.class.getName());
+
+  /** Not created. */
+  private ThreadMode() {
+  }
+
+  /**
+   * @param inMode platform or virtual
+   * @return the mode to use, platform if virtual threads are not available
+   * @throws JTKException if the mode is not known
+   */
+  public static String resolve(final String inMode) throws JTKException {
+    if (PLATFORM.equals(inMode)) {
+      return PLATFORM;
+    }
+    if (!VIRTUAL.equals(inMode)) {
+      throw new JTKException("Unknown thread mode: " + inMode);
+    }
+    if (!VirtualThreads.isSupported()) {
+      LOGGER.warning("Virtual threads need Java 21 and the java21 build,"
+        + " using platform threads");
+      return PLATFORM;
+    }
+    return VIRTUAL;
+  }
+
+  /**
+   * @param inMode platform or virtual, as returned by resolve
+   * @param inName prefix of the thread names
+   * @param inThreads number of platform threads, ignored for virtual
+   * threads which are started per task
+   * @return the executor, its platform threads are daemons
+   */
+  public static ExecutorService newExecutor(final String inMode,
+    final String inName, final int inThreads) {
+    if (VIRTUAL.equals(inMode)) {
+      return VirtualThreads.newExecutor(inName);
+    }
+    return Executors.newFixedThreadPool(inThreads,
+      new NamedThreadFactory(inName));
+  }
+
+  /**
+   * Wait a moment for the threads of an executor that was shut down to
+   * end, so measurements of the live threads taken next leave them out.
+   *
+   * @param inExecutor the executor, shut down
+   */
+  public static void awaitEnd(final ExecutorService inExecutor) {
+    try {
+      inExecutor.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * A task executor for a listener container, which runs each consumer as
+   * a long lived task.
+   *
+   * @param inMode platform or virtual, as returned by resolve
+   * @param inName prefix of the thread names
+   * @return the executor, null for the container's own platform threads
+   */
+  public static TaskExecutor newTaskExecutor(final String inMode,
+    final String inName) {
+    if (VIRTUAL.equals(inMode)) {
+      return new ConcurrentTaskExecutor(VirtualThreads.newExecutor(inName));
+    }
+    return null;
+  }
+
+  /** Names the threads, which are daemons. */
+  private static final class NamedThreadFactory implements ThreadFactory {
+    /** Prefix of the names. */
+    private final String name;
+    /** Thread counter. */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @param inName prefix of the names
+     */
+    NamedThreadFactory(final String inName) {
+      this.name = inName;
+    }
+
+    @Override
+    public Thread newThread(final Runnable inRunnable) {
+      final Thread thread =
+        new Thread(inRunnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CPU time and allocated bytes of the tasks of a run, measured on the
+ * threads that run them and added up. Measuring the thread that starts a
+ * run would miss the work when the sending is done on other threads.
+ *
+ * @author Scott Douglass
+ */
+public final class ThreadUsage {
+
+  /** CPU time (ns) of the tasks. */
+  private final LongAdder cpuTime = new LongAdder();
+  /** Bytes allocated by the tasks. */
+  private final LongAdder allocatedBytes = new LongAdder();
+  /** False once a thread could not measure its CPU time. */
+  private volatile boolean cpuSupported = true;
+  /** False once a thread could not measure its allocation. */
+  private volatile boolean allocationSupported = true;
+
+  /**
+   * Run a task and add what it used.
+   *
+   * @param inTask the task
+   */
+  public void run(final Runnable inTask) {
+    final long cpu = JvmMetrics.currentThreadCpuTime();
+    final long allocated = JvmMetrics.currentThreadAllocatedBytes();
+    try {
+      inTask.run();
+    } finally {
+      add(cpu, allocated);
+    }
+  }
+
+  /**
+   * Call a task and add what it used.
+   *
+   * @param inTask the task
+   * @param <T> the result type
+   * @return the result of the task
+   * @throws Exception if the task fails
+   */
+  public <T> T call(final Callable<T> inTask) throws Exception {
+    final long cpu = JvmMetrics.currentThreadCpuTime();
+    final long allocated = JvmMetrics.currentThreadAllocatedBytes();
+    try {
+      return inTask.call();
+    } finally {
+      add(cpu, allocated);
+    }
+  }
+
+  /**
+   * @param inCpuBefore CPU time of the thread before the task (ns)
+   * @param inAllocatedBefore bytes allocated by the thread before the task
+   */
+  private void add(final long inCpuBefore, final long inAllocatedBefore) {
+    final long cpu = JvmMetrics.currentThreadCpuTime();
+    if (cpu < 0 || inCpuBefore < 0) {
+      // virtual threads, for one, have no CPU time of their own
+      cpuSupported = false;
+    } else {
+      cpuTime.add(cpu - inCpuBefore);
+    }
+    final long allocated = JvmMetrics.currentThreadAllocatedBytes();
+    if (allocated < 0 || inAllocatedBefore < 0) {
+      allocationSupported = false;
+    } else {
+      allocatedBytes.add(allocated - inAllocatedBefore);
+    }
+  }
+
+  /**
+   * @return CPU time (ns) of all tasks, or -1 if a thread could not tell
+   */
+  public long getCpuTime() {
+    return cpuSupported ? cpuTime.sum() : -1;
+  }
+
+  /**
+   * @return bytes allocated by all tasks, or -1 if a thread could not tell
+   */
+  public long getAllocatedBytes() {
+    return allocationSupported ? allocatedBytes.sum() : -1;
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Virtual threads, for Java versions that do not have them. The jar built
+ * with the java21 profile also has a Java 21 version of this class under
+ * META-INF/versions/21, which a Java 21 JVM uses instead.
+ *
+ * @author Scott Douglass
+ * @see ThreadMode
+ */
+final class VirtualThreads {
+
+  /** Not created. */
+  private VirtualThreads() {
+  }
+
+  /**
+   * @return true if this JVM and build have virtual threads
+   */
+  static boolean isSupported() {
+    return false;
+  }
+
+  /**
+   * @param inName prefix of the thread names
+   * @return an executor that starts a virtual thread per task
+   */
+  static ExecutorService newExecutor(final String inName) {
+    throw new UnsupportedOperationException(
+      "Virtual threads need Java 21 and the java21 build profile");
+  }
+}
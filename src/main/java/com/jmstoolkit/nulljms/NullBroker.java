@@ -0,0 +1,331 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.nulljms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * The in-memory broker behind a null connection factory. In discard mode
+ * every message sent is dropped and nothing is ever received, so a sender
+ * runs at the speed of its own code. In loopback mode each queue is a
+ * lock-free queue of messages in this JVM, and each topic subscription has
+ * one; a copy of each message sent goes to the queue or to every
+ * subscription of the topic, so senders and receivers in one process see
+ * each other's messages.
+ * <p>
+ * Brokers are shared by provider URL within a JVM:
+ * <code>
+ * null://discard
+ * null://loopback
+ * null://loopback?preload=100000&amp;size=256
+ * </code>
+ * Each process has its own broker, so preload fills each queue with that
+ * many generated text messages of the size given when it is first used,
+ * for a receiver to drain on its own. A loopback queue without receivers
+ * keeps growing, send on its own in discard mode.
+ * <p>
+ * Nothing is persistent, selectors are not supported and a redelivered
+ * message goes to the back of its queue.
+ *
+ * @author Scott Douglass
+ */
+public final class NullBroker {
+
+  /** Provider URL scheme. */
+  public static final String SCHEME = "null://";
+  /** Drop every message. */
+  public static final String MODE_DISCARD = "discard";
+  /** Deliver every message to the receivers in this JVM. */
+  public static final String MODE_LOOPBACK = "loopback";
+  /** Default provider URL. */
+  public static final String D_URL = SCHEME + MODE_LOOPBACK;
+  /** Shortest park of an idle receiver (ns). */
+  private static final long MIN_PARK = TimeUnit.MICROSECONDS.toNanos(10);
+  /** Longest park of an idle receiver (ns). */
+  private static final long MAX_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+  /** Letters of the preloaded messages. */
+  private static final String LETTERS =
+    "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+  /** The brokers of this JVM, by provider URL. */
+  private static final Map<String, NullBroker> BROKERS =
+    new ConcurrentHashMap<>();
+  /** Discard or loopback. */
+  private final String mode;
+  /** Messages put in each queue when it is first used. */
+  private final long preload;
+  /** Size of the preloaded messages. */
+  private final int size;
+  /** The queues, by name. */
+  private final Map<String, Channel> queues = new ConcurrentHashMap<>();
+  /** The subscriptions of each topic, by topic name. */
+  private final Map<String, List<Channel>> topics = new ConcurrentHashMap<>();
+  /** Durable and shared subscriptions, by client ID and name. */
+  private final Map<String, Channel> subscriptions =
+    new ConcurrentHashMap<>();
+
+  /**
+   * @param inMode discard or loopback
+   * @param inPreload messages put in each queue when it is first used
+   * @param inSize size of the preloaded messages
+   */
+  private NullBroker(final String inMode, final long inPreload,
+    final int inSize) {
+    this.mode = inMode;
+    this.preload = inPreload;
+    this.size = inSize;
+  }
+
+  /**
+   * @param inUrl provider URL, null for the default
+   * @return the broker of the URL in this JVM
+   * @throws IllegalArgumentException if the URL is not valid
+   */
+  public static NullBroker forUrl(final String inUrl) {
+    final String url = inUrl == null || inUrl.isEmpty() ? D_URL : inUrl;
+    return BROKERS.computeIfAbsent(url, NullBroker::parse);
+  }
+
+  /**
+   * @param inUrl provider URL
+   * @return a new broker for the URL
+   */
+  private static NullBroker parse(final String inUrl) {
+    if (!inUrl.startsWith(SCHEME)) {
+      throw new IllegalArgumentException("Not a null provider URL: " + inUrl);
+    }
+    final String rest = inUrl.substring(SCHEME.length());
+    final int query = rest.indexOf('?');
+    final String mode = query < 0 ? rest : rest.substring(0, query);
+    if (!MODE_DISCARD.equals(mode) && !MODE_LOOPBACK.equals(mode)) {
+      throw new IllegalArgumentException("Unknown null provider mode: "
+        + mode);
+    }
+    long preload = 0;
+    int size = 256;
+    if (query >= 0) {
+      for (String option : rest.substring(query + 1).split("&")) {
+        final String[] pair = option.split("=", 2);
+        if (pair.length == 2 && "preload".equals(pair[0])) {
+          preload = Long.parseLong(pair[1]);
+        } else if (pair.length == 2 && "size".equals(pair[0])) {
+          size = Integer.parseInt(pair[1]);
+        } else {
+          throw new IllegalArgumentException("Unknown null provider option: "
+            + option);
+        }
+      }
+    }
+    return new NullBroker(mode, preload, size);
+  }
+
+  /**
+   * @return true if every message is dropped
+   */
+  public boolean isDiscard() {
+    return MODE_DISCARD.equals(mode);
+  }
+
+  /**
+   * @return discard or loopback
+   */
+  public String getMode() {
+    return mode;
+  }
+
+  /**
+   * Take a message that was sent.
+   *
+   * @param inMessage the message, with its headers set
+   * @throws JMSException if the message can not be copied
+   */
+  void deliver(final NullMessage inMessage) throws JMSException {
+    if (isDiscard()) {
+      return;
+    }
+    final NullDestination destination =
+      (NullDestination) inMessage.getJMSDestination();
+    if (destination.isTopic()) {
+      for (Channel subscription : topic(destination.getName())) {
+        subscription.messages.offer(inMessage.copy());
+      }
+    } else {
+      queue(destination.getName()).messages.offer(inMessage.copy());
+    }
+  }
+
+  /**
+   * @param inName a queue name
+   * @return the queue, made and preloaded on first use
+   */
+  Channel queue(final String inName) {
+    return queues.computeIfAbsent(inName, this::preloaded);
+  }
+
+  /**
+   * @param inName a queue name
+   * @return a new queue with the preloaded messages
+   */
+  private Channel preloaded(final String inName) {
+    final Channel channel = new Channel();
+    if (isDiscard() || preload <= 0) {
+      return channel;
+    }
+    final Random random = new Random();
+    final StringBuilder text = new StringBuilder(size);
+    for (int i = 0; i < size; i++) {
+      text.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+    }
+    final NullQueue queue = new NullQueue(inName);
+    for (long m = 0; m < preload; m++) {
+      final NullTextMessage message = new NullTextMessage(text.toString());
+      message.setJMSDestination(queue);
+      message.setJMSMessageID("ID:null-preload-" + m);
+      message.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      message.setJMSPriority(Message.DEFAULT_PRIORITY);
+      channel.messages.offer(message);
+    }
+    return channel;
+  }
+
+  /**
+   * @param inName a topic name
+   * @return its subscriptions
+   */
+  private List<Channel> topic(final String inName) {
+    return topics.computeIfAbsent(inName, n -> new CopyOnWriteArrayList<>());
+  }
+
+  /**
+   * @param inTopic a topic name
+   * @param inKey client ID and name of a durable or shared subscription,
+   * null for a subscription that ends with its consumer
+   * @return the subscription
+   */
+  Channel subscribe(final String inTopic, final String inKey) {
+    if (inKey == null) {
+      final Channel subscription = new Channel();
+      topic(inTopic).add(subscription);
+      return subscription;
+    }
+    return subscriptions.computeIfAbsent(inKey, k -> {
+      final Channel subscription = new Channel();
+      topic(inTopic).add(subscription);
+      return subscription;
+    });
+  }
+
+  /**
+   * @param inTopic a topic name
+   * @param inSubscription a subscription that ended
+   */
+  void unsubscribe(final String inTopic, final Channel inSubscription) {
+    topic(inTopic).remove(inSubscription);
+  }
+
+  /**
+   * @param inKey client ID and name of a durable subscription
+   * @return true if there was one
+   */
+  boolean unsubscribe(final String inKey) {
+    final Channel subscription = subscriptions.remove(inKey);
+    if (subscription == null) {
+      return false;
+    }
+    for (List<Channel> subscribers : topics.values()) {
+      subscribers.remove(subscription);
+    }
+    return true;
+  }
+
+  /**
+   * Messages waiting for a queue or a topic subscription.
+   */
+  static final class Channel {
+    /** The messages, in the order they were sent. */
+    private final Queue<NullMessage> messages =
+      new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param inMessage a message to deliver again
+     */
+    void redeliver(final NullMessage inMessage) {
+      inMessage.setJMSRedelivered(true);
+      messages.offer(inMessage);
+    }
+
+    /**
+     * @return the next message that has not expired, null if there is none
+     */
+    NullMessage poll() {
+      NullMessage message = messages.poll();
+      while (message != null && message.isExpired()) {
+        message = messages.poll();
+      }
+      return message;
+    }
+
+    /**
+     * Wait for the next message.
+     *
+     * @param inTimeout longest wait (ns), 0 for no limit
+     * @param inOpen false once the wait should end
+     * @param inStarted false while messages should not be taken
+     * @return the message, null on timeout or when closed
+     */
+    NullMessage take(final long inTimeout, final BooleanSupplier inOpen,
+      final BooleanSupplier inStarted) {
+      final long deadline = System.nanoTime() + inTimeout;
+      long park = MIN_PARK;
+      while (inOpen.getAsBoolean()) {
+        final NullMessage message =
+          inStarted.getAsBoolean() ? poll() : null;
+        if (message != null) {
+          return message;
+        }
+        final long left = deadline - System.nanoTime();
+        if (inTimeout > 0 && left <= 0) {
+          return null;
+        }
+        LockSupport.parkNanos(inTimeout > 0 ? Math.min(park, left) : park);
+        park = Math.min(park * 2, MAX_PARK);
+        if (Thread.interrupted()) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return the messages waiting, oldest first
+     */
+    List<NullMessage> snapshot() {
+      return new ArrayList<>(messages);
+    }
+  }
+}
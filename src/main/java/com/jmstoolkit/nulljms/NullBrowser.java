@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.nulljms;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+
+/**
+ * A browser of the null provider: the messages waiting on a queue when
+ * the enumeration is made.
+ *
+ * @author Scott Douglass
+ */
+public class NullBrowser implements QueueBrowser {
+
+  /** The queue. */
+  private final Queue queue;
+  /** Its messages. */
+  private final NullBroker.Channel channel;
+
+  /**
+   * @param inQueue the queue
+   * @param inChannel its messages
+   */
+  NullBrowser(final Queue inQueue, final NullBroker.Channel inChannel) {
+    this.queue = inQueue;
+    this.channel = inChannel;
+  }
+
+  @Override
+  public final Queue getQueue() {
+    return queue;
+  }
+
+  @Override
+  public final String getMessageSelector() {
+    return null;
+  }
+
+  @Override
+  public final Enumeration<?> getEnumeration() {
+    return Collections.enumeration(channel.snapshot());
+  }
+
+  @Override
+  public final void close() {
+    // nothing to let go of
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.nulljms;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.jms.Connection;
+import javax.jms.ConnectionConsumer;
+import javax.jms.ConnectionMetaData;
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.ServerSessionPool;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * A connection to the null provider. Messages are only received while it
+ * is started.
+ *
+ * @author Scott Douglass
+ */
+public class NullConnection implements Connection {
+
+  /** Where the messages go. */
+  private final NullBroker broker;
+  /** The sessions. */
+  private final List<NullSession> sessions = new CopyOnWriteArrayList<>();
+  /** Client ID, for durable subscriptions. */
+  private String clientId = null;
+  /** Told about failures, which do not happen. */
+  private ExceptionListener exceptionListener = null;
+  /** True while messages are delivered. */
+  private volatile boolean started = false;
+  /** True once closed. */
+  private volatile boolean closed = false;
+
+  /**
+   * @param inBroker where the messages go
+   */
+  NullConnection(final NullBroker inBroker) {
+    this.broker = inBroker;
+  }
+
+  /**
+   * @return where the messages go
+   */
+  final NullBroker getBroker() {
+    return broker;
+  }
+
+  /**
+   * @return true while messages are delivered
+   */
+  final boolean isStarted() {
+    return started && !closed;
+  }
+
+  /**
+   * @throws JMSException if the connection is closed
+   */
+  private void checkOpen() throws JMSException {
+    if (closed) {
+      throw new javax.jms.IllegalStateException("Connection closed");
+    }
+  }
+
+  @Override
+  public final Session createSession(final boolean inTransacted,
+    final int inAcknowledgeMode) throws JMSException {
+    checkOpen();
+    final NullSession session = new NullSession(this, inTransacted,
+      inTransacted ? Session.SESSION_TRANSACTED : inAcknowledgeMode);
+    sessions.add(session);
+    return session;
+  }
+
+  @Override
+  public final Session createSession(final int inSessionMode)
+    throws JMSException {
+    return createSession(inSessionMode == Session.SESSION_TRANSACTED,
+      inSessionMode);
+  }
+
+  @Override
+  public final Session createSession() throws JMSException {
+    return createSession(false, Session.AUTO_ACKNOWLEDGE);
+  }
+
+  /**
+   * @param inSession a session that was closed
+   */
+  final void closed(final NullSession inSession) {
+    sessions.remove(inSession);
+  }
+
+  @Override
+  public final String getClientID() {
+    return clientId;
+  }
+
+  @Override
+  public final void setClientID(final String inClientId)
+    throws JMSException {
+    checkOpen();
+    this.clientId = inClientId;
+  }
+
+  @Override
+  public final ConnectionMetaData getMetaData() {
+    return new ConnectionMetaData() {
+      @Override
+      public String getJMSVersion() {
+        return "2.0";
+      }
+
+      @Override
+      public int getJMSMajorVersion() {
+        return 2;
+      }
+
+      @Override
+      public int getJMSMinorVersion() {
+        return 0;
+      }
+
+      @Override
+      public String getJMSProviderName() {
+        return "JMSToolKit null provider";
+      }
+
+      @Override
+      public String getProviderVersion() {
+        return "1.0";
+      }
+
+      @Override
+      public int getProviderMajorVersion() {
+        return 1;
+      }
+
+      @Override
+      public int getProviderMinorVersion() {
+        return 0;
+      }
+
+      @Override
+      public Enumeration<String> getJMSXPropertyNames() {
+        return Collections.enumeration(
+          Collections.singletonList("JMSXGroupID"));
+      }
+    };
+  }
+
+  @Override
+  public final ExceptionListener getExceptionListener() {
+    return exceptionListener;
+  }
+
+  @Override
+  public final void setExceptionListener(final ExceptionListener inListener) {
+    this.exceptionListener = inListener;
+  }
+
+  @Override
+  public final void start() throws JMSException {
+    checkOpen();
+    started = true;
+  }
+
+  @Override
+  public final void stop() throws JMSException {
+    checkOpen();
+    started = false;
+  }
+
+  @Override
+  public final void close() throws JMSException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (NullSession session : sessions) {
+      session.close();
+    }
+  }
+
+  @Override
+  public final ConnectionConsumer createConnectionConsumer(
+    final Destination inDestination, final String inSelector,
+    final ServerSessionPool inPool, final int inMaxMessages)
+    throws JMSException {
+    throw noConnectionConsumers();
+  }
+
+  @Override
+  public final ConnectionConsumer createSharedConnectionConsumer(
+    final Topic inTopic, final String inName, final String inSelector,
+    final ServerSessionPool inPool, final int inMaxMessages)
+    throws JMSException {
+    throw noConnectionConsumers();
+  }
+
+  @Override
+  public final ConnectionConsumer createDurableConnectionConsumer(
+    final Topic inTopic, final String inName, final String inSelector,
+    final ServerSessionPool inPool, final int inMaxMessages)
+    throws JMSException {
+    throw noConnectionConsumers();
+  }
+
+  @Override
+  public final ConnectionConsumer createSharedDurableConnectionConsumer(
+    final Topic inTopic, final String inName, final String inSelector,
+    final ServerSessionPool inPool, final int inMaxMessages)
+    throws JMSException {
+    throw noConnectionConsumers();
+  }
+
+  /**
+   * @return the exception for application server consumers
+   */
+  private static JMSException noConnectionConsumers() {
+    return new JMSException("The null provider has no connection consumers");
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.nulljms;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSRuntimeException;
+
+/**
+ * Connection factory of the null provider, an in-memory JMS provider for
+ * measuring what the toolkit itself can do with no broker in the way.
+ * Looked up through NullContextFactory, see NullBroker for the modes.
+ *
+ * @author Scott Douglass
+ */
+public class NullConnectionFactory implements ConnectionFactory {
+
+  /** Where the messages go. */
+  private final NullBroker broker;
+
+  /**
+   * @param inBroker where the messages go
+   */
+  public NullConnectionFactory(final NullBroker inBroker) {
+    this.broker = inBroker;
+  }
+
+  @Override
+  public final Connection createConnection() {
+    return new NullConnection(broker);
+  }
+
+  @Override
+  public final Connection createConnection(final String inUserName,
+    final String inPassword) {
+    return createConnection();
+  }
+
+  @Override
+  public final JMSContext createContext() {
+    throw noContext();
+  }
+
+  @Override
+  public final JMSContext createContext(final String inUserName,
+    final String inPassword) {
+    throw noContext();
+  }
+
+  @Override
+  public final JMSContext createContext(final String inUserName,
+    final String inPassword, final int inSessionMode) {
+    throw noContext();
+  }
+
+  @Override
+  public final JMSContext createContext(final int inSessionMode) {
+    throw noContext();
+  }
+
+  /**
+   * @return the exception for the simplified API, which the toolkit does
+   * not use
+   */
+  private static JMSRuntimeException noContext() {
+    return new JMSRuntimeException("The null provider has no JMSContext");
+  }
+
+  /**
+   * @return the broker
+   */
+  public final NullBroker getBroker() {
+    return broker;
+  }
+
+  @Override
+  public final String toString() {
+    return NullBroker.SCHEME + broker.getMode();
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.nulljms;
+
+import java.util.concurrent.TimeUnit;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Topic;
+import javax.jms.TopicSubscriber;
+
+/**
+ * A consumer of the null provider, on a queue or a topic subscription.
+ * Receives wait by parking, as there is nothing to wake them; a message
+ * listener is run by the thread of the session.
+ *
+ * @author Scott Douglass
+ */
+public class NullConsumer implements TopicSubscriber {
+
+  /** The session. */
+  private final NullSession session;
+  /** The queue or topic. */
+  private final NullDestination destination;
+  /** Where the messages come from. */
+  private final NullBroker.Channel channel;
+  /** True for a topic subscription that ends with the consumer. */
+  private final boolean temporary;
+  /** The listener, null for receive. */
+  private volatile MessageListener listener = null;
+  /** True once closed. */
+  private volatile boolean closed = false;
+
+  /**
+   * @param inSession the session
+   * @param inDestination the queue or topic
+   * @param inChannel where the messages come from
+   * @param inTemporary true for a subscription that ends with the consumer
+   */
+  NullConsumer(final NullSession inSession,
+    final NullDestination inDestination, final NullBroker.Channel inChannel,
+    final boolean inTemporary) {
+    this.session = inSession;
+    this.destination = inDestination;
+    this.channel = inChannel;
+    this.temporary = inTemporary;
+  }
+
+  /**
+   * @return true until the consumer or its session is closed
+   */
+  private boolean isOpen() {
+    return !closed && !session.isClosed();
+  }
+
+  /**
+   * @return true while messages may be taken
+   */
+  private boolean isStarted() {
+    return session.getConnection().isStarted();
+  }
+
+  /**
+   * @param inMessage a message taken, or null
+   * @return the message
+   */
+  private Message delivered(final NullMessage inMessage) {
+    if (inMessage != null) {
+      session.delivered(inMessage, channel);
+    }
+    return inMessage;
+  }
+
+  @Override
+  public final String getMessageSelector() {
+    return null;
+  }
+
+  @Override
+  public final MessageListener getMessageListener() {
+    return listener;
+  }
+
+  @Override
+  public final void setMessageListener(final MessageListener inListener) {
+    this.listener = inListener;
+    if (inListener != null) {
+      session.listenerSet();
+    }
+  }
+
+  @Override
+  public final Message receive() {
+    return delivered(channel.take(0, this::isOpen, this::isStarted));
+  }
+
+  @Override
+  public final Message receive(final long inTimeout) {
+    if (inTimeout <= 0) {
+      return receive();
+    }
+    return delivered(channel.take(TimeUnit.MILLISECONDS.toNanos(inTimeout),
+      this::isOpen, this::isStarted));
+  }
+
+  @Override
+  public final Message receiveNoWait() {
+    return isOpen() && isStarted() ? delivered(channel.poll()) : null;
+  }
+
+  /**
+   * Give the listener the next message, if there is one. Called by the
+   * thread of the session.
+   *
+   * @return true if there was a message
+   */
+  final boolean dispatch() {
+    final MessageListener current = listener;
+    if (current == null || !isOpen()) {
+      return false;
+    }
+    final NullMessage message = channel.poll();
+    if (message == null) {
+      return false;
+    }
+    delivered(message);
+    try {
+      current.onMessage(message);
+    } catch (RuntimeException e) {
+      NullSession.listenerFailed(current, e);
+    }
+    return true;
+  }
+
+  @Override
+  public final Topic getTopic() throws JMSException {
+    if (!destination.isTopic()) {
+      throw new JMSException("Not a topic subscriber");
+    }
+    return (Topic) destination;
+  }
+
+  @Override
+  public final boolean getNoLocal() {
+    return false;
+  }
+
+  @Override
+  public final void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (temporary) {
+      session.getConnection().getBroker().unsubscribe(
+        destination.getName(), channel);
+    }
+    session.closed(this);
+  }
+}
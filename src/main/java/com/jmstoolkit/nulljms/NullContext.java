@@ -0,0 +1,276 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.nulljms;
+
+import java.util.Hashtable;
+import javax.naming.CompositeName;
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NameClassPair;
+import javax.naming.NameNotFoundException;
+import javax.naming.NameParser;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+
+/**
+ * The read only JNDI context of the null provider. Names resolve the way
+ * the ActiveMQ context resolves them, so the same app.properties works
+ * with either:
+ * <ul>
+ * <li>ConnectionFactory, or each name in the connectionFactoryNames
+ * property, is a connection factory for the broker of the provider
+ * URL;</li>
+ * <li>dynamicQueues/NAME and dynamicTopics/NAME are the queue or topic of
+ * that name;</li>
+ * <li>a name given by a queue.NAME or topic.NAME property, in the
+ * environment or the system properties, is that queue or topic.</li>
+ * </ul>
+ *
+ * @author Scott Douglass
+ */
+public class NullContext implements Context {
+
+  /** Property with the connection factory names, comma separated. */
+  public static final String P_FACTORY_NAMES = "connectionFactoryNames";
+  /** Default connection factory name. */
+  public static final String D_FACTORY_NAMES = "ConnectionFactory";
+  /** Prefix of names of queues made on lookup. */
+  public static final String DYNAMIC_QUEUES = "dynamicQueues/";
+  /** Prefix of names of topics made on lookup. */
+  public static final String DYNAMIC_TOPICS = "dynamicTopics/";
+  /** Prefix of the properties naming queues. */
+  private static final String QUEUE_PREFIX = "queue.";
+  /** Prefix of the properties naming topics. */
+  private static final String TOPIC_PREFIX = "topic.";
+  /** The environment. */
+  private final Hashtable<Object, Object> environment;
+  /** The broker of the provider URL. */
+  private final NullBroker broker;
+
+  /**
+   * @param inEnvironment the environment, with the provider URL
+   * @throws IllegalArgumentException if the provider URL is not valid
+   */
+  public NullContext(final Hashtable<?, ?> inEnvironment) {
+    this.environment = inEnvironment == null ? new Hashtable<>()
+      : new Hashtable<>(inEnvironment);
+    this.broker = NullBroker.forUrl(
+      (String) environment.get(Context.PROVIDER_URL));
+  }
+
+  /**
+   * @param inKey a property name
+   * @return its value in the environment, or else in the system properties
+   */
+  private String property(final String inKey) {
+    final Object value = environment.get(inKey);
+    return value == null ? System.getProperty(inKey) : value.toString();
+  }
+
+  @Override
+  public final Object lookup(final String inName) throws NamingException {
+    final String name = inName.startsWith("/") ? inName.substring(1)
+      : inName;
+    if (name.startsWith(DYNAMIC_QUEUES)) {
+      return new NullQueue(name.substring(DYNAMIC_QUEUES.length()));
+    }
+    if (name.startsWith(DYNAMIC_TOPICS)) {
+      return new NullTopic(name.substring(DYNAMIC_TOPICS.length()));
+    }
+    final String queue = property(QUEUE_PREFIX + name);
+    if (queue != null) {
+      return new NullQueue(queue);
+    }
+    final String topic = property(TOPIC_PREFIX + name);
+    if (topic != null) {
+      return new NullTopic(topic);
+    }
+    final String factories = property(P_FACTORY_NAMES);
+    for (String factory
+      : (factories == null ? D_FACTORY_NAMES : factories).split(",")) {
+      if (factory.trim().equals(name)) {
+        return new NullConnectionFactory(broker);
+      }
+    }
+    throw new NameNotFoundException("Not in the null provider: " + inName);
+  }
+
+  @Override
+  public final Object lookup(final Name inName) throws NamingException {
+    return lookup(inName.toString());
+  }
+
+  @Override
+  public final Object lookupLink(final String inName)
+    throws NamingException {
+    return lookup(inName);
+  }
+
+  @Override
+  public final Object lookupLink(final Name inName) throws NamingException {
+    return lookup(inName);
+  }
+
+  @Override
+  public final void bind(final Name inName, final Object inObject)
+    throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final void bind(final String inName, final Object inObject)
+    throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final void rebind(final Name inName, final Object inObject)
+    throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final void rebind(final String inName, final Object inObject)
+    throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final void unbind(final Name inName) throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final void unbind(final String inName) throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final void rename(final Name inOldName, final Name inNewName)
+    throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final void rename(final String inOldName, final String inNewName)
+    throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final NamingEnumeration<NameClassPair> list(final Name inName)
+    throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final NamingEnumeration<NameClassPair> list(final String inName)
+    throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final NamingEnumeration<javax.naming.Binding> listBindings(
+    final Name inName) throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final NamingEnumeration<javax.naming.Binding> listBindings(
+    final String inName) throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final void destroySubcontext(final Name inName)
+    throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final void destroySubcontext(final String inName)
+    throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final Context createSubcontext(final Name inName)
+    throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final Context createSubcontext(final String inName)
+    throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public final NameParser getNameParser(final Name inName) {
+    return CompositeName::new;
+  }
+
+  @Override
+  public final NameParser getNameParser(final String inName) {
+    return CompositeName::new;
+  }
+
+  @Override
+  public final Name composeName(final Name inName, final Name inPrefix)
+    throws NamingException {
+    return ((Name) inPrefix.clone()).addAll(inName);
+  }
+
+  @Override
+  public final String composeName(final String inName,
+    final String inPrefix) {
+    return inPrefix.isEmpty() ? inName : inPrefix + "/" + inName;
+  }
+
+  @Override
+  public final Object addToEnvironment(final String inName,
+    final Object inValue) {
+    return environment.put(inName, inValue);
+  }
+
+  @Override
+  public final Object removeFromEnvironment(final String inName) {
+    return environment.remove(inName);
+  }
+
+  @Override
+  public final Hashtable<?, ?> getEnvironment() {
+    return new Hashtable<>(environment);
+  }
+
+  @Override
+  public final void close() {
+    // nothing to let go of
+  }
+
+  @Override
+  public final String getNameInNamespace() {
+    return "";
+  }
+
+  /**
+   * @return the exception for anything but lookups
+   */
+  private static NamingException readOnly() {
+    return new OperationNotSupportedException("The null provider context"
+      + " is read only");
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.nulljms;
+
+import java.util.Hashtable;
+import javax.naming.ConfigurationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * JNDI entry point of the null provider, for jndi.properties:
+ * <code>
+ * java.naming.factory.initial=com.jmstoolkit.nulljms.NullContextFactory
+ * java.naming.provider.url=null://loopback
+ * </code>
+ * Names are looked up as with ActiveMQ, see NullContext.
+ *
+ * @author Scott Douglass
+ */
+public class NullContextFactory implements InitialContextFactory {
+
+  @Override
+  public final Context getInitialContext(final Hashtable<?, ?> inEnvironment)
+    throws NamingException {
+    try {
+      return new NullContext(inEnvironment);
+    } catch (IllegalArgumentException e) {
+      final ConfigurationException failure =
+        new ConfigurationException(e.getMessage());
+      failure.setRootCause(e);
+      throw failure;
+    }
+  }
+}
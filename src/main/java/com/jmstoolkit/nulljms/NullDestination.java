@@ -0,0 +1,64 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.nulljms;
+
+import javax.jms.Destination;
+
+/**
+ * A queue or topic of the null provider, known by its name only.
+ *
+ * @author Scott Douglass
+ */
+public abstract class NullDestination implements Destination {
+
+  /** The name. */
+  private final String name;
+
+  /**
+   * @param inName the name
+   */
+  NullDestination(final String inName) {
+    this.name = inName;
+  }
+
+  /**
+   * @return the name
+   */
+  public final String getName() {
+    return name;
+  }
+
+  /**
+   * @return true for a topic
+   */
+  abstract boolean isTopic();
+
+  @Override
+  public final boolean equals(final Object inOther) {
+    return inOther instanceof NullDestination
+      && isTopic() == ((NullDestination) inOther).isTopic()
+      && name.equals(((NullDestination) inOther).name);
+  }
+
+  @Override
+  public final int hashCode() {
+    return name.hashCode();
+  }
+
+  @Override
+  public final String toString() {
+    return (isTopic() ? "topic://" : "queue://") + name;
+  }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.nulljms;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+
+/**
+ * A message of the null provider, with its headers and properties and no
+ * body. Properties convert between types as the JMS specification says.
+ * Sent messages are not made read only, so they can be sent again.
+ *
+ * @author Scott Douglass
+ */
+public class NullMessage implements Message {
+
+  /** The session that received the message, for acknowledge. */
+  private transient NullSession session = null;
+  /** JMSMessageID. */
+  private String messageId = null;
+  /** JMSTimestamp. */
+  private long timestamp = 0;
+  /** JMSCorrelationID. */
+  private String correlationId = null;
+  /** JMSReplyTo. */
+  private Destination replyTo = null;
+  /** JMSDestination. */
+  private Destination destination = null;
+  /** JMSDeliveryMode. */
+  private int deliveryMode = DeliveryMode.PERSISTENT;
+  /** JMSRedelivered. */
+  private boolean redelivered = false;
+  /** JMSType. */
+  private String type = null;
+  /** JMSExpiration. */
+  private long expiration = 0;
+  /** JMSDeliveryTime. */
+  private long deliveryTime = 0;
+  /** JMSPriority. */
+  private int priority = DEFAULT_PRIORITY;
+  /** The properties, in the order they were set. */
+  private Map<String, Object> properties = new LinkedHashMap<>();
+
+  /**
+   * @return a copy with the same headers and properties, for delivery
+   * @throws JMSException if the body can not be copied
+   */
+  NullMessage copy() throws JMSException {
+    final NullMessage copy = create();
+    copy.messageId = messageId;
+    copy.timestamp = timestamp;
+    copy.correlationId = correlationId;
+    copy.replyTo = replyTo;
+    copy.destination = destination;
+    copy.deliveryMode = deliveryMode;
+    copy.type = type;
+    copy.expiration = expiration;
+    copy.deliveryTime = deliveryTime;
+    copy.priority = priority;
+    copy.properties = new LinkedHashMap<>(properties);
+    return copy;
+  }
+
+  /**
+   * @return a new message of this kind, with the body of this one
+   * @throws JMSException if the body can not be copied
+   */
+  NullMessage create() throws JMSException {
+    return new NullMessage();
+  }
+
+  /**
+   * @param inSession the session that received the message
+   */
+  final void setSession(final NullSession inSession) {
+    this.session = inSession;
+  }
+
+  /**
+   * @return true if the time to live has passed
+   */
+  final boolean isExpired() {
+    return expiration != 0 && expiration < System.currentTimeMillis();
+  }
+
+  @Override
+  public final String getJMSMessageID() {
+    return messageId;
+  }
+
+  @Override
+  public final void setJMSMessageID(final String inId) {
+    this.messageId = inId;
+  }
+
+  @Override
+  public final long getJMSTimestamp() {
+    return timestamp;
+  }
+
+  @Override
+  public final void setJMSTimestamp(final long inTimestamp) {
+    this.timestamp = inTimestamp;
+  }
+
+  @Override
+  public final byte[] getJMSCorrelationIDAsBytes() {
+    return correlationId == null ? null
+      : correlationId.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public final void setJMSCorrelationIDAsBytes(final byte[] inId) {
+    this.correlationId = inId == null ? null
+      : new String(inId, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public final void setJMSCorrelationID(final String inId) {
+    this.correlationId = inId;
+  }
+
+  @Override
+  public final String getJMSCorrelationID() {
+    return correlationId;
+  }
+
+  @Override
+  public final Destination getJMSReplyTo() {
+    return replyTo;
+  }
+
+  @Override
+  public final void setJMSReplyTo(final Destination inReplyTo) {
+    this.replyTo = inReplyTo;
+  }
+
+  @Override
+  public final Destination getJMSDestination() {
+    return destination;
+  }
+
+  @Override
+  public final void setJMSDestination(final Destination inDestination) {
+    this.destination = inDestination;
+  }
+
+  @Override
+  public final int getJMSDeliveryMode() {
+    return deliveryMode;
+  }
+
+  @Override
+  public final void setJMSDeliveryMode(final int inDeliveryMode) {
+    this.deliveryMode = inDeliveryMode;
+  }
+
+  @Override
+  public final boolean getJMSRedelivered() {
+    return redelivered;
+  }
+
+  @Override
+  public final void setJMSRedelivered(final boolean inRedelivered) {
+    this.redelivered = inRedelivered;
+  }
+
+  @Override
+  public final String getJMSType() {
+    return type;
+  }
+
+  @Override
+  public final void setJMSType(final String inType) {
+    this.type = inType;
+  }
+
+  @Override
+  public final long getJMSExpiration() {
+    return expiration;
+  }
+
+  @Override
+  public final void setJMSExpiration(final long inExpiration) {
+    this.expiration = inExpiration;
+  }
+
+  @Override
+  public final long getJMSDeliveryTime() {
+    return deliveryTime;
+  }
+
+  @Override
+  public final void setJMSDeliveryTime(final long inDeliveryTime) {
+    this.deliveryTime = inDeliveryTime;
+  }
+
+  @Override
+  public final int getJMSPriority() {
+    return priority;
+  }
+
+  @Override
+  public final void setJMSPriority(final int inPriority) {
+    this.priority = inPriority;
+  }
+
+  @Override
+  public final void clearProperties() {
+    properties.clear();
+  }
+
+  @Override
+  public final boolean propertyExists(final String inName) {
+    return properties.containsKey(inName);
+  }
+
+  @Override
+  public final boolean getBooleanProperty(final String inName)
+    throws JMSException {
+    final Object value = properties.get(inName);
+    if (value instanceof Boolean) {
+      return (Boolean) value;
+    }
+    if (value == null || value instanceof String) {
+      return Boolean.parseBoolean((String) value);
+    }
+    throw notConvertible(inName, "boolean");
+  }
+
+  @Override
+  public final byte getByteProperty(final String inName)
+    throws JMSException {
+    final Object value = properties.get(inName);
+    if (value instanceof Byte) {
+      return (Byte) value;
+    }
+    if (value == null || value instanceof String) {
+      return Byte.parseByte((String) value);
+    }
+    throw notConvertible(inName, "byte");
+  }
+
+  @Override
+  public final short getShortProperty(final String inName)
+    throws JMSException {
+    final Object value = properties.get(inName);
+    if (value instanceof Byte || value instanceof Short) {
+      return ((Number) value).shortValue();
+    }
+    if (value == null || value instanceof String) {
+      return Short.parseShort((String) value);
+    }
+    throw notConvertible(inName, "short");
+  }
+
+  @Override
+  public final int getIntProperty(final String inName) throws JMSException {
+    final Object value = properties.get(inName);
+    if (value instanceof Byte || value instanceof Short
+      || value instanceof Integer) {
+      return ((Number) value).intValue();
+    }
+    if (value == null || value instanceof String) {
+      return Integer.parseInt((String) value);
+    }
+    throw notConvertible(inName, "int");
+  }
+
+  @Override
+  public final long getLongProperty(final String inName)
+    throws JMSException {
+    final Object value = properties.get(inName);
+    if (value instanceof Byte || value instanceof Short
+      || value instanceof Integer || value instanceof Long) {
+      return ((Number) value).longValue();
+    }
+    if (value == null || value instanceof String) {
+      return Long.parseLong((String) value);
+    }
+    throw notConvertible(inName, "long");
+  }
+
+  @Override
+  public final float getFloatProperty(final String inName)
+    throws JMSException {
+    final Object value = properties.get(inName);
+    if (value instanceof Float) {
+      return (Float) value;
+    }
+    if (value == null) {
+      throw new NullPointerException("No property: " + inName);
+    }
+    if (value instanceof String) {
+      return Float.parseFloat((String) value);
+    }
+    throw notConvertible(inName, "float");
+  }
+
+  @Override
+  public final double getDoubleProperty(final String inName)
+    throws JMSException {
+    final Object value = properties.get(inName);
+    if (value instanceof Float || value instanceof Double) {
+      return ((Number) value).doubleValue();
+    }
+    if (value == null) {
+      throw new NullPointerException("No property: " + inName);
+    }
+    if (value instanceof String) {
+      return Double.parseDouble((String) value);
+    }
+    throw notConvertible(inName, "double");
+  }
+
+  @Override
+  public final String getStringProperty(final String inName) {
+    final Object value = properties.get(inName);
+    return value == null ? null : value.toString();
+  }
+
+  @Override
+  public final Object getObjectProperty(final String inName) {
+    return properties.get(inName);
+  }
+
+  @Override
+  public final Enumeration<String> getPropertyNames() {
+    return Collections.enumeration(properties.keySet());
+  }
+
+  @Override
+  public final void setBooleanProperty(final String inName,
+    final boolean inValue) {
+    properties.put(inName, inValue);
+  }
+
+  @Override
+  public final void setByteProperty(final String inName,
+    final byte inValue) {
+    properties.put(inName, inValue);
+  }
+
+  @Override
+  public final void setShortProperty(final String inName,
+    final short inValue) {
+    properties.put(inName, inValue);
+  }
+
+  @Override
+  public final void setIntProperty(final String inName, final int inValue) {
+    properties.put(inName, inValue);
+  }
+
+  @Override
+  public final void setLongProperty(final String inName,
+    final long inValue) {
+    properties.put(inName, inValue);
+  }
+
+  @Override
+  public final void setFloatProperty(final String inName,
+    final float inValue) {
+    properties.put(inName, inValue);
+  }
+
+  @Override
+  public final void setDoubleProperty(final String inName,
+    final double inValue) {
+    properties.put(inName, inValue);
+  }
+
+  @Override
+  public final void setStringProperty(final String inName,
+    final String inValue) {
+    properties.put(inName, inValue);
+  }
+
+  @Override
+  public final void setObjectProperty(final String inName,
+    final Object inValue) throws JMSException {
+    if (inValue != null && !(inValue instanceof Boolean
+      || inValue instanceof Number || inValue instanceof String)) {
+      throw new MessageFormatException("Not a property type: "
+        + inValue.getClass().getName());
+    }
+    properties.put(inName, inValue);
+  }
+
+  @Override
+  public final void acknowledge() throws JMSException {
+    if (session != null) {
+      session.acknowledge();
+    }
+  }
+
+  @Override
+  public void clearBody() {
+    // no body
+  }
+
+  @Override
+  public <T> T getBody(final Class<T> inType) throws JMSException {
+    return null;
+  }
+
+  @Override
+  public boolean isBodyAssignableTo(
+    @SuppressWarnings("rawtypes") final Class inType) {
+    return true;
+  }
+
+  /**
+   * @param inName a property name
+   * @param inType the type asked for
+   * @return the exception for a property that does not convert
+   */
+  private MessageFormatException notConvertible(final String inName,
+    final String inType) {
+    return new MessageFormatException("Property " + inName + " is a "
+      + properties.get(inName).getClass().getSimpleName()
+      + ", not convertible to " + inType);
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.nulljms;
+
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jms.CompletionListener;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.InvalidDestinationException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageProducer;
+
+/**
+ * A producer of the null provider. Sets the headers of each message and
+ * hands a copy to the broker; the message itself may be changed and sent
+ * again. Sends with a completion listener complete before they return.
+ *
+ * @author Scott Douglass
+ */
+public class NullProducer implements MessageProducer {
+
+  /** Numbers the message IDs of this JVM. */
+  private static final AtomicLong IDS = new AtomicLong();
+  /** The session. */
+  private final NullSession session;
+  /** Where the messages go, null if given on each send. */
+  private final NullDestination destination;
+  /** Persistent or non-persistent, neither is kept. */
+  private int deliveryMode = DeliveryMode.PERSISTENT;
+  /** Priority, 0 to 9. */
+  private int priority = Message.DEFAULT_PRIORITY;
+  /** Time to live (ms), 0 for no limit. */
+  private long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+  /** Delivery delay (ms), only set on the message. */
+  private long deliveryDelay = Message.DEFAULT_DELIVERY_DELAY;
+  /** True to leave out message IDs. */
+  private boolean disableMessageId = false;
+  /** True to leave out time stamps. */
+  private boolean disableMessageTimestamp = false;
+  /** True once closed. */
+  private volatile boolean closed = false;
+
+  /**
+   * @param inSession the session
+   * @param inDestination where the messages go, null if given on each send
+   */
+  NullProducer(final NullSession inSession,
+    final NullDestination inDestination) {
+    this.session = inSession;
+    this.destination = inDestination;
+  }
+
+  @Override
+  public final void setDisableMessageID(final boolean inDisable) {
+    this.disableMessageId = inDisable;
+  }
+
+  @Override
+  public final boolean getDisableMessageID() {
+    return disableMessageId;
+  }
+
+  @Override
+  public final void setDisableMessageTimestamp(final boolean inDisable) {
+    this.disableMessageTimestamp = inDisable;
+  }
+
+  @Override
+  public final boolean getDisableMessageTimestamp() {
+    return disableMessageTimestamp;
+  }
+
+  @Override
+  public final void setDeliveryMode(final int inDeliveryMode) {
+    this.deliveryMode = inDeliveryMode;
+  }
+
+  @Override
+  public final int getDeliveryMode() {
+    return deliveryMode;
+  }
+
+  @Override
+  public final void setPriority(final int inPriority) {
+    this.priority = inPriority;
+  }
+
+  @Override
+  public final int getPriority() {
+    return priority;
+  }
+
+  @Override
+  public final void setTimeToLive(final long inTimeToLive) {
+    this.timeToLive = inTimeToLive;
+  }
+
+  @Override
+  public final long getTimeToLive() {
+    return timeToLive;
+  }
+
+  @Override
+  public final void setDeliveryDelay(final long inDeliveryDelay) {
+    this.deliveryDelay = inDeliveryDelay;
+  }
+
+  @Override
+  public final long getDeliveryDelay() {
+    return deliveryDelay;
+  }
+
+  @Override
+  public final Destination getDestination() {
+    return destination;
+  }
+
+  @Override
+  public final void close() {
+    closed = true;
+  }
+
+  @Override
+  public final void send(final Message inMessage) throws JMSException {
+    send(destination, inMessage, deliveryMode, priority, timeToLive);
+  }
+
+  @Override
+  public final void send(final Message inMessage, final int inDeliveryMode,
+    final int inPriority, final long inTimeToLive) throws JMSException {
+    send(destination, inMessage, inDeliveryMode, inPriority, inTimeToLive);
+  }
+
+  @Override
+  public final void send(final Destination inDestination,
+    final Message inMessage) throws JMSException {
+    send(inDestination, inMessage, deliveryMode, priority, timeToLive);
+  }
+
+  @Override
+  public final void send(final Destination inDestination,
+    final Message inMessage, final int inDeliveryMode, final int inPriority,
+    final long inTimeToLive) throws JMSException {
+    if (closed || session.isClosed()) {
+      throw new javax.jms.IllegalStateException("Producer closed");
+    }
+    if (!(inMessage instanceof NullMessage)) {
+      throw new MessageFormatException("Not a null provider message: "
+        + inMessage);
+    }
+    final Destination to = inDestination == null ? destination
+      : inDestination;
+    if (!(to instanceof NullDestination)) {
+      throw new InvalidDestinationException("Not a null provider"
+        + " destination: " + to);
+    }
+    final long now = System.currentTimeMillis();
+    final NullMessage message = (NullMessage) inMessage;
+    message.setJMSDestination(to);
+    message.setJMSDeliveryMode(inDeliveryMode);
+    message.setJMSPriority(inPriority);
+    message.setJMSTimestamp(disableMessageTimestamp ? 0 : now);
+    message.setJMSExpiration(inTimeToLive > 0 ? now + inTimeToLive : 0);
+    message.setJMSDeliveryTime(now + deliveryDelay);
+    message.setJMSMessageID(disableMessageId ? null
+      : "ID:null-" + IDS.incrementAndGet());
+    session.send(message);
+  }
+
+  @Override
+  public final void send(final Message inMessage,
+    final CompletionListener inListener) throws JMSException {
+    send(destination, inMessage, deliveryMode, priority, timeToLive,
+      inListener);
+  }
+
+  @Override
+  public final void send(final Message inMessage, final int inDeliveryMode,
+    final int inPriority, final long inTimeToLive,
+    final CompletionListener inListener) throws JMSException {
+    send(destination, inMessage, inDeliveryMode, inPriority, inTimeToLive,
+      inListener);
+  }
+
+  @Override
+  public final void send(final Destination inDestination,
+    final Message inMessage, final CompletionListener inListener)
+    throws JMSException {
+    send(inDestination, inMessage, deliveryMode, priority, timeToLive,
+      inListener);
+  }
+
+  @Override
+  public final void send(final Destination inDestination,
+    final Message inMessage, final int inDeliveryMode, final int inPriority,
+    final long inTimeToLive, final CompletionListener inListener)
+    throws JMSException {
+    try {
+      send(inDestination, inMessage, inDeliveryMode, inPriority,
+        inTimeToLive);
+    } catch (JMSException e) {
+      inListener.onException(inMessage, e);
+      return;
+    }
+    inListener.onCompletion(inMessage);
+  }
+}
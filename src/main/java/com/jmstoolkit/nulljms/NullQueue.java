@@ -0,0 +1,42 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.nulljms;
+
+import javax.jms.Queue;
+
+/**
+ * A queue of the null provider.
+ *
+ * @author Scott Douglass
+ */
+public class NullQueue extends NullDestination implements Queue {
+
+  /**
+   * @param inName the queue name
+   */
+  public NullQueue(final String inName) {
+    super(inName);
+  }
+
+  @Override
+  public final String getQueueName() {
+    return getName();
+  }
+
+  @Override
+  final boolean isTopic() {
+    return false;
+  }
+}
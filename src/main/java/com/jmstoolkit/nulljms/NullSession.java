@@ -0,0 +1,578 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.nulljms;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.IllegalStateException;
+import javax.jms.InvalidDestinationException;
+import javax.jms.InvalidSelectorException;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+import javax.jms.StreamMessage;
+import javax.jms.TemporaryQueue;
+import javax.jms.TemporaryTopic;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+import javax.jms.TopicSubscriber;
+
+/**
+ * A session of the null provider. Only text messages and messages without
+ * a body can be made. Messages received with client acknowledge or in a
+ * transaction are kept until they are acknowledged or committed, and go
+ * back to their queue on recover, rollback or close. Messages sent in a
+ * transaction are delivered on commit.
+ * <p>
+ * Consumers with a message listener are served by one thread per session,
+ * as JMS requires.
+ *
+ * @author Scott Douglass
+ */
+public class NullSession implements Session {
+
+  /** Logger for the class. */
+  private static final Logger LOGGER =
+    Logger.getLogger(NullSession.class.getName());
+  /** Longest park of the listener thread when idle (ns). */
+  private static final long MAX_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+  /** The connection. */
+  private final NullConnection connection;
+  /** True for a transacted session. */
+  private final boolean transacted;
+  /** Acknowledge mode, SESSION_TRANSACTED when transacted. */
+  private final int acknowledgeMode;
+  /** The consumers. */
+  private final List<NullConsumer> consumers = new CopyOnWriteArrayList<>();
+  /** Messages received and not yet acknowledged or committed. */
+  private final List<Delivery> unacknowledged = new ArrayList<>();
+  /** Messages sent in the current transaction. */
+  private final List<NullMessage> uncommitted = new ArrayList<>();
+  /** Runs the message listeners, null until one is set. */
+  private Thread dispatcher = null;
+  /** True once closed. */
+  private volatile boolean closed = false;
+
+  /**
+   * @param inConnection the connection
+   * @param inTransacted true for a transacted session
+   * @param inAcknowledgeMode the acknowledge mode
+   */
+  NullSession(final NullConnection inConnection, final boolean inTransacted,
+    final int inAcknowledgeMode) {
+    this.connection = inConnection;
+    this.transacted = inTransacted;
+    this.acknowledgeMode = inAcknowledgeMode;
+  }
+
+  /**
+   * @return the connection
+   */
+  final NullConnection getConnection() {
+    return connection;
+  }
+
+  /**
+   * @return true once the session or its connection is closed
+   */
+  final boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * @throws JMSException if the session is closed
+   */
+  private void checkOpen() throws JMSException {
+    if (closed) {
+      throw new IllegalStateException("Session closed");
+    }
+  }
+
+  /**
+   * Send a message, or keep it for the commit.
+   *
+   * @param inMessage the message, with its headers set
+   * @throws JMSException if the message can not be copied
+   */
+  final void send(final NullMessage inMessage) throws JMSException {
+    checkOpen();
+    final NullBroker broker = connection.getBroker();
+    if (!transacted || broker.isDiscard()) {
+      broker.deliver(inMessage);
+      return;
+    }
+    synchronized (uncommitted) {
+      uncommitted.add(inMessage.copy());
+    }
+  }
+
+  /**
+   * Note a message received by a consumer of this session.
+   *
+   * @param inMessage the message
+   * @param inChannel where it came from
+   */
+  final void delivered(final NullMessage inMessage,
+    final NullBroker.Channel inChannel) {
+    inMessage.setSession(this);
+    if (transacted || acknowledgeMode == CLIENT_ACKNOWLEDGE) {
+      synchronized (unacknowledged) {
+        unacknowledged.add(new Delivery(inMessage, inChannel));
+      }
+    }
+  }
+
+  /**
+   * Acknowledge every message received by the session.
+   */
+  final void acknowledge() {
+    synchronized (unacknowledged) {
+      unacknowledged.clear();
+    }
+  }
+
+  /**
+   * Put every message received and not acknowledged back.
+   */
+  private void redeliver() {
+    synchronized (unacknowledged) {
+      for (Delivery delivery : unacknowledged) {
+        delivery.channel.redeliver(delivery.message);
+      }
+      unacknowledged.clear();
+    }
+  }
+
+  @Override
+  public final BytesMessage createBytesMessage() throws JMSException {
+    throw textOnly();
+  }
+
+  @Override
+  public final MapMessage createMapMessage() throws JMSException {
+    throw textOnly();
+  }
+
+  @Override
+  public final Message createMessage() throws JMSException {
+    checkOpen();
+    return new NullMessage();
+  }
+
+  @Override
+  public final ObjectMessage createObjectMessage() throws JMSException {
+    throw textOnly();
+  }
+
+  @Override
+  public final ObjectMessage createObjectMessage(
+    final Serializable inObject) throws JMSException {
+    throw textOnly();
+  }
+
+  @Override
+  public final StreamMessage createStreamMessage() throws JMSException {
+    throw textOnly();
+  }
+
+  @Override
+  public final TextMessage createTextMessage() throws JMSException {
+    return createTextMessage(null);
+  }
+
+  @Override
+  public final TextMessage createTextMessage(final String inText)
+    throws JMSException {
+    checkOpen();
+    return new NullTextMessage(inText);
+  }
+
+  /**
+   * @return the exception for the message types that are not supported
+   */
+  private static JMSException textOnly() {
+    return new JMSException("The null provider only has text messages");
+  }
+
+  @Override
+  public final boolean getTransacted() {
+    return transacted;
+  }
+
+  @Override
+  public final int getAcknowledgeMode() {
+    return acknowledgeMode;
+  }
+
+  @Override
+  public final void commit() throws JMSException {
+    checkOpen();
+    if (!transacted) {
+      throw new IllegalStateException("Not a transacted session");
+    }
+    final List<NullMessage> sent;
+    synchronized (uncommitted) {
+      sent = new ArrayList<>(uncommitted);
+      uncommitted.clear();
+    }
+    for (NullMessage message : sent) {
+      connection.getBroker().deliver(message);
+    }
+    acknowledge();
+  }
+
+  @Override
+  public final void rollback() throws JMSException {
+    checkOpen();
+    if (!transacted) {
+      throw new IllegalStateException("Not a transacted session");
+    }
+    synchronized (uncommitted) {
+      uncommitted.clear();
+    }
+    redeliver();
+  }
+
+  @Override
+  public final void recover() throws JMSException {
+    checkOpen();
+    if (transacted) {
+      throw new IllegalStateException("A transacted session");
+    }
+    redeliver();
+  }
+
+  @Override
+  public final void close() throws JMSException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (NullConsumer consumer : consumers) {
+      consumer.close();
+    }
+    synchronized (uncommitted) {
+      uncommitted.clear();
+    }
+    redeliver();
+    connection.closed(this);
+  }
+
+  @Override
+  public final MessageListener getMessageListener() {
+    return null;
+  }
+
+  @Override
+  public final void setMessageListener(final MessageListener inListener)
+    throws JMSException {
+    throw new JMSException("The null provider has no session listeners");
+  }
+
+  @Override
+  public final void run() {
+    // only for application servers
+  }
+
+  @Override
+  public final MessageProducer createProducer(
+    final Destination inDestination) throws JMSException {
+    checkOpen();
+    return new NullProducer(this, destination(inDestination, true));
+  }
+
+  @Override
+  public final MessageConsumer createConsumer(
+    final Destination inDestination) throws JMSException {
+    return createConsumer(inDestination, null, false);
+  }
+
+  @Override
+  public final MessageConsumer createConsumer(
+    final Destination inDestination, final String inSelector)
+    throws JMSException {
+    return createConsumer(inDestination, inSelector, false);
+  }
+
+  @Override
+  public final MessageConsumer createConsumer(
+    final Destination inDestination, final String inSelector,
+    final boolean inNoLocal) throws JMSException {
+    checkOpen();
+    checkSelector(inSelector);
+    final NullDestination destination = destination(inDestination, false);
+    if (destination.isTopic()) {
+      return consumer(destination, null);
+    }
+    return addConsumer(new NullConsumer(this, destination,
+      connection.getBroker().queue(destination.getName()), false));
+  }
+
+  @Override
+  public final MessageConsumer createSharedConsumer(final Topic inTopic,
+    final String inName) throws JMSException {
+    return createSharedConsumer(inTopic, inName, null);
+  }
+
+  @Override
+  public final MessageConsumer createSharedConsumer(final Topic inTopic,
+    final String inName, final String inSelector) throws JMSException {
+    checkOpen();
+    checkSelector(inSelector);
+    return consumer(destination(inTopic, false), "shared:" + inName);
+  }
+
+  @Override
+  public final TopicSubscriber createDurableSubscriber(final Topic inTopic,
+    final String inName) throws JMSException {
+    return createDurableSubscriber(inTopic, inName, null, false);
+  }
+
+  @Override
+  public final TopicSubscriber createDurableSubscriber(final Topic inTopic,
+    final String inName, final String inSelector, final boolean inNoLocal)
+    throws JMSException {
+    checkOpen();
+    checkSelector(inSelector);
+    return consumer(destination(inTopic, false), durableKey(inName));
+  }
+
+  @Override
+  public final MessageConsumer createDurableConsumer(final Topic inTopic,
+    final String inName) throws JMSException {
+    return createDurableSubscriber(inTopic, inName, null, false);
+  }
+
+  @Override
+  public final MessageConsumer createDurableConsumer(final Topic inTopic,
+    final String inName, final String inSelector, final boolean inNoLocal)
+    throws JMSException {
+    return createDurableSubscriber(inTopic, inName, inSelector, inNoLocal);
+  }
+
+  @Override
+  public final MessageConsumer createSharedDurableConsumer(
+    final Topic inTopic, final String inName) throws JMSException {
+    return createSharedDurableConsumer(inTopic, inName, null);
+  }
+
+  @Override
+  public final MessageConsumer createSharedDurableConsumer(
+    final Topic inTopic, final String inName, final String inSelector)
+    throws JMSException {
+    checkOpen();
+    checkSelector(inSelector);
+    return consumer(destination(inTopic, false), "shared-durable:" + inName);
+  }
+
+  @Override
+  public final void unsubscribe(final String inName) throws JMSException {
+    checkOpen();
+    final NullBroker broker = connection.getBroker();
+    if (!broker.unsubscribe(durableKey(inName))
+      && !broker.unsubscribe("shared-durable:" + inName)) {
+      throw new InvalidDestinationException("No durable subscription: "
+        + inName);
+    }
+  }
+
+  /**
+   * @param inName name of a durable subscription
+   * @return its key, with the client ID
+   * @throws JMSException if the connection has no client ID
+   */
+  private String durableKey(final String inName) throws JMSException {
+    if (connection.getClientID() == null) {
+      throw new IllegalStateException("A durable subscription needs a"
+        + " client ID");
+    }
+    return "durable:" + connection.getClientID() + ":" + inName;
+  }
+
+  /**
+   * @param inTopic the topic
+   * @param inKey key of a durable or shared subscription, null for one
+   * that ends with the consumer
+   * @return a consumer of the subscription
+   */
+  private NullConsumer consumer(final NullDestination inTopic,
+    final String inKey) {
+    return addConsumer(new NullConsumer(this, inTopic,
+      connection.getBroker().subscribe(inTopic.getName(), inKey),
+      inKey == null));
+  }
+
+  /**
+   * @param inConsumer a new consumer
+   * @return the consumer
+   */
+  private NullConsumer addConsumer(final NullConsumer inConsumer) {
+    consumers.add(inConsumer);
+    return inConsumer;
+  }
+
+  /**
+   * @param inConsumer a consumer that was closed
+   */
+  final void closed(final NullConsumer inConsumer) {
+    consumers.remove(inConsumer);
+  }
+
+  /**
+   * @param inSelector a message selector
+   * @throws InvalidSelectorException if there is one, they are not
+   * supported
+   */
+  private static void checkSelector(final String inSelector)
+    throws InvalidSelectorException {
+    if (inSelector != null && !inSelector.trim().isEmpty()) {
+      throw new InvalidSelectorException("The null provider has no"
+        + " selectors: " + inSelector);
+    }
+  }
+
+  /**
+   * @param inDestination a destination
+   * @param inMayBeNull true if null is allowed, for unidentified producers
+   * @return the destination as one of ours
+   * @throws InvalidDestinationException if it is not one of ours
+   */
+  private static NullDestination destination(final Destination inDestination,
+    final boolean inMayBeNull) throws InvalidDestinationException {
+    if (inDestination == null && inMayBeNull) {
+      return null;
+    }
+    if (!(inDestination instanceof NullDestination)) {
+      throw new InvalidDestinationException("Not a null provider"
+        + " destination: " + inDestination);
+    }
+    return (NullDestination) inDestination;
+  }
+
+  @Override
+  public final QueueBrowser createBrowser(final Queue inQueue)
+    throws JMSException {
+    return createBrowser(inQueue, null);
+  }
+
+  @Override
+  public final QueueBrowser createBrowser(final Queue inQueue,
+    final String inSelector) throws JMSException {
+    checkOpen();
+    checkSelector(inSelector);
+    final NullDestination queue = destination(inQueue, false);
+    return new NullBrowser(inQueue,
+      connection.getBroker().queue(queue.getName()));
+  }
+
+  @Override
+  public final Queue createQueue(final String inName) {
+    return new NullQueue(inName);
+  }
+
+  @Override
+  public final Topic createTopic(final String inName) {
+    return new NullTopic(inName);
+  }
+
+  @Override
+  public final TemporaryQueue createTemporaryQueue() throws JMSException {
+    throw new JMSException("The null provider has no temporary queues");
+  }
+
+  @Override
+  public final TemporaryTopic createTemporaryTopic() throws JMSException {
+    throw new JMSException("The null provider has no temporary topics");
+  }
+
+  /**
+   * Start the thread which runs the message listeners of the session, if
+   * it is not running yet.
+   */
+  final synchronized void listenerSet() {
+    if (dispatcher != null || closed) {
+      return;
+    }
+    dispatcher = new Thread(this::dispatch, "null-session");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  /**
+   * Hand messages to the listeners until the session is closed.
+   */
+  private void dispatch() {
+    long park = 1;
+    while (!closed) {
+      boolean delivered = false;
+      if (connection.isStarted()) {
+        for (NullConsumer consumer : consumers) {
+          delivered |= consumer.dispatch();
+        }
+      }
+      if (delivered) {
+        park = 1;
+      } else {
+        LockSupport.parkNanos(park);
+        park = Math.min(park * 2, MAX_PARK);
+      }
+    }
+  }
+
+  /**
+   * @param inListener the listener that failed
+   * @param inFailure what it threw
+   */
+  static void listenerFailed(final MessageListener inListener,
+    final RuntimeException inFailure) {
+    LOGGER.log(Level.SEVERE, "Message listener failed: " + inListener,
+      inFailure);
+  }
+
+  /**
+   * A message received and not yet acknowledged.
+   */
+  private static final class Delivery {
+    /** The message. */
+    private final NullMessage message;
+    /** Where it came from. */
+    private final NullBroker.Channel channel;
+
+    /**
+     * @param inMessage the message
+     * @param inChannel where it came from
+     */
+    Delivery(final NullMessage inMessage,
+      final NullBroker.Channel inChannel) {
+      this.message = inMessage;
+      this.channel = inChannel;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.nulljms;
+
+import javax.jms.JMSException;
+import javax.jms.MessageFormatException;
+import javax.jms.TextMessage;
+
+/**
+ * A text message of the null provider.
+ *
+ * @author Scott Douglass
+ */
+public class NullTextMessage extends NullMessage implements TextMessage {
+
+  /** The body. */
+  private String text;
+
+  /**
+   * @param inText the body, may be null
+   */
+  public NullTextMessage(final String inText) {
+    this.text = inText;
+  }
+
+  @Override
+  NullMessage create() {
+    return new NullTextMessage(text);
+  }
+
+  @Override
+  public final void setText(final String inText) {
+    this.text = inText;
+  }
+
+  @Override
+  public final String getText() {
+    return text;
+  }
+
+  @Override
+  public final void clearBody() {
+    text = null;
+  }
+
+  @Override
+  public final <T> T getBody(final Class<T> inType) throws JMSException {
+    if (text == null) {
+      return null;
+    }
+    if (!inType.isAssignableFrom(String.class)) {
+      throw new MessageFormatException("A text body is not a "
+        + inType.getName());
+    }
+    return inType.cast(text);
+  }
+
+  @Override
+  public final boolean isBodyAssignableTo(
+    @SuppressWarnings("rawtypes") final Class inType) {
+    // the JMS 2.0 interface declares a raw Class
+    final Class<?> type = inType;
+    return text == null || type.isAssignableFrom(String.class);
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011, Scott Douglass <scott@swdouglass.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.jmstoolkit.cli;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual threads, the Java 21 version of this class. Built by the java21
+ * profile into META-INF/versions/21 of the multi-release jar.
+ *
+ * @author Scott Douglass
+ * @see ThreadMode
+ */
+final class VirtualThreads {
+
+  /** Not created. */
+  private VirtualThreads() {
+  }
+
+  /**
+   * @return true if this JVM and build have virtual threads
+   */
+  static boolean isSupported() {
+    return true;
+  }
+
+  /**
+   * Like Executors.newVirtualThreadPerTaskExecutor, with named threads so
+   * they can be told apart in thread dumps and recordings.
+   *
+   * @param inName prefix of the thread names
+   * @return an executor that starts a virtual thread per task
+   */
+  static ExecutorService newExecutor(final String inName) {
+    return Executors.newThreadPerTaskExecutor(
+      Thread.ofVirtual().name(inName + "-", 1).factory());
+  }
+}